@@ -41,6 +41,8 @@ import io.jeo.map.RGB;
 import io.jeo.map.Rule;
 import io.jeo.map.View;
 import io.jeo.render.BaseRenderer;
+import io.jeo.render.ImageRenderer;
+import io.jeo.render.RasterTarget;
 import io.jeo.util.Rect;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.filter.FilterFactory;
@@ -50,7 +52,7 @@ import org.slf4j.LoggerFactory;
 
 import com.vividsolutions.jts.geom.Geometry;
 
-public class GTRenderer extends BaseRenderer {
+public class GTRenderer extends BaseRenderer implements ImageRenderer {
 
     static Logger LOG = LoggerFactory.getLogger(GTRenderer.class);
 
@@ -112,7 +114,7 @@ public class GTRenderer extends BaseRenderer {
 
     @Override
     protected boolean canRenderTiles() {
-        return false;
+        return true;
     }
 
     @Override
@@ -140,6 +142,13 @@ public class GTRenderer extends BaseRenderer {
         painter = new StyledShapePainter(labelCache);
     }
 
+    @Override
+    public BufferedImage renderImage() throws IOException {
+        // without an output the image is left unencoded
+        render(null);
+        return img;
+    }
+
     @Override
     public void close() {
         if (g != null) {
@@ -618,14 +627,43 @@ public class GTRenderer extends BaseRenderer {
 
     @Override
     protected void drawRasterRGBA(ByteBuffer rgba, Rect pos, Rule rule) throws IOException {
-        rgba = toHeap(rgba);
-        WritableRaster raster = Raster.createInterleavedRaster(
-            new DataBufferByte(rgba.array(), pos.area()), pos.width(), pos.height(),
-            pos.width() * 4, 4, new int[]{0,1,2,3}, null) ;
-        ColorModel cm = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_sRGB), true, false,
-                Transparency.TRANSLUCENT, DataBuffer.TYPE_BYTE);
-        BufferedImage img = new BufferedImage(cm, raster, false, null);
-        g.drawRenderedImage(img, transform(pos));
+        // read with absolute gets so that direct buffers need not be copied to the heap first
+        RasterTarget target = createRasterTarget(pos, rule);
+        int n = Math.min(rgba.limit() / 4, target.width() * target.height());
+        for (int i = 0; i < n; i++) {
+            int j = i * 4;
+            target.set(i % target.width(), i / target.width(), ((rgba.get(j+3) & 0xff) << 24)
+                | ((rgba.get(j) & 0xff) << 16) | ((rgba.get(j+1) & 0xff) << 8) | (rgba.get(j+2) & 0xff));
+        }
+        drawRaster(target, pos, rule);
+    }
+
+    @Override
+    protected RasterTarget createRasterTarget(Rect pos, Rule rule) {
+        return new ImageTarget(new BufferedImage(pos.width(), pos.height(), BufferedImage.TYPE_INT_ARGB));
+    }
+
+    @Override
+    protected void drawRaster(RasterTarget target, Rect pos, Rule rule) throws IOException {
+        if (target instanceof ImageTarget) {
+            g.drawImage(((ImageTarget) target).image, pos.left, pos.top, null);
+        }
+        else {
+            super.drawRaster(target, pos, rule);
+        }
+    }
+
+    /**
+     * Raster target writing directly into the pixels of an argb image.
+     */
+    static class ImageTarget extends RasterTarget {
+        final BufferedImage image;
+
+        ImageTarget(BufferedImage image) {
+            super(((DataBufferInt) image.getRaster().getDataBuffer()).getData(), 0,
+                image.getWidth(), image.getWidth(), image.getHeight());
+            this.image = image;
+        }
     }
 
     AffineTransform transform(Rect pos) {
@@ -0,0 +1,66 @@
+/* Copyright 2014 The jeo project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jeo.nano;
+
+import static io.jeo.nano.NanoHTTPD.HTTP_METHOD_NOT_ALLOWED;
+import static io.jeo.nano.NanoHTTPD.HTTP_NOTFOUND;
+import static io.jeo.nano.NanoHTTPD.HTTP_OK;
+import static io.jeo.nano.NanoHTTPD.MIME_JSON;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import io.jeo.json.JSONValue;
+import io.jeo.nano.NanoHTTPD.Response;
+
+/**
+ * Handler for administrative operations.
+ * <p>
+ * <tt>POST /admin/reload</tt> drops all state derived from the registry, such as cached
+ * capabilities and rendered images, for changes made to the data outside of the server. See
+ * {@link NanoServer#reload()}.
+ * </p>
+ */
+public class AdminHandler extends Handler {
+
+    static final Pattern ADMIN_URI_RE = Pattern.compile("/admin/(\\w+)/?", Pattern.CASE_INSENSITIVE);
+
+    @Override
+    public boolean canHandle(Request request, NanoServer server) {
+        return match(request, ADMIN_URI_RE);
+    }
+
+    @Override
+    public Response handle(Request request, NanoServer server) throws Exception {
+        Matcher m = (Matcher) request.getContext().get(Matcher.class);
+        String op = m.group(1);
+
+        if ("reload".equalsIgnoreCase(op)) {
+            if (!"POST".equalsIgnoreCase(request.getMethod())) {
+                throw new HttpException(HTTP_METHOD_NOT_ALLOWED, "reload requires POST");
+            }
+
+            server.reload();
+
+            Map<String,Object> result = new LinkedHashMap<String, Object>();
+            result.put("version", server.getRegistryVersion());
+            return new Response(HTTP_OK, MIME_JSON, JSONValue.toJSONString(result));
+        }
+
+        throw new HttpException(HTTP_NOTFOUND, "No such operation: " + op);
+    }
+}
@@ -32,6 +32,7 @@ public class AppsHandler extends Handler {
 
     @Override
     public void init(NanoServer server) {
+        super.init(server);
         if (appsDir == null) {
             if (server.getWWWRoot() == null) {
                 throw new IllegalStateException(
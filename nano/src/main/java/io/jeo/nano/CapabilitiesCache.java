@@ -0,0 +1,315 @@
+/* Copyright 2014 The jeo project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jeo.nano;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.jeo.data.Dataset;
+import io.jeo.data.Handle;
+import io.jeo.geom.Bounds;
+import io.jeo.nano.NanoHTTPD.Response;
+import io.jeo.proj.Proj;
+import io.jeo.tile.TileDataset;
+import io.jeo.tile.TilePyramid;
+import org.osgeo.proj4j.CoordinateReferenceSystem;
+
+import static io.jeo.nano.NanoHTTPD.HTTP_OK;
+
+/**
+ * Cache of capabilities documents and the layer metadata they are built from.
+ * <p>
+ * Documents are cached along with the registry version they were built at, see
+ * {@link NanoServer#getRegistryVersion()}, and rebuilt once the registry changes. Building a
+ * document is cheap once the metadata of its layers is cached: computing the bounds of a layer
+ * may require a full scan of its data, so layer metadata outlives registry changes and is only
+ * dropped when the layer itself is invalidated, see {@link #invalidateLayer(String, String)}, or
+ * the cache is cleared.
+ * </p>
+ * <p>
+ * Instances of this class are thread safe.
+ * </p>
+ */
+public class CapabilitiesCache {
+
+    /**
+     * Default maximum number of documents cached, one per service and base url.
+     */
+    public static final int DEFAULT_MAX_DOCUMENTS = 16;
+
+    final int maxDocuments;
+
+    final LinkedHashMap<String,Document> documents = new LinkedHashMap<String,Document>(16, 0.75f, true);
+    final ConcurrentMap<String,LayerInfo> layers = new ConcurrentHashMap<String, LayerInfo>();
+
+    /** incremented whenever layers are invalidated, to drop metadata computed concurrently */
+    final AtomicLong generation = new AtomicLong();
+
+    final AtomicLong hits = new AtomicLong();
+    final AtomicLong misses = new AtomicLong();
+    final AtomicLong layerHits = new AtomicLong();
+    final AtomicLong layerMisses = new AtomicLong();
+
+    public CapabilitiesCache() {
+        this(DEFAULT_MAX_DOCUMENTS);
+    }
+
+    /**
+     * @param maxDocuments Maximum number of documents cached.
+     */
+    public CapabilitiesCache(int maxDocuments) {
+        this.maxDocuments = maxDocuments;
+    }
+
+    /**
+     * Returns the cached document for a key, or <tt>null</tt> if there is none built at the
+     * specified registry version.
+     */
+    public Response get(String key, long version) {
+        Document d;
+        synchronized (this) {
+            d = documents.get(key);
+        }
+        if (d == null || d.version != version) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        hits.incrementAndGet();
+        return d.response("HIT");
+    }
+
+    /**
+     * Caches a document, returning a response to send in its place. Responses other than
+     * <tt>200 OK</tt> are not cached and returned as is.
+     *
+     * @param key The document key.
+     * @param version The registry version read before the document was built.
+     */
+    public Response put(String key, long version, Response response) throws IOException {
+        if (response == null || !HTTP_OK.equals(response.status) || response.data == null) {
+            return response;
+        }
+
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        try {
+            response.data.write(bout);
+        }
+        finally {
+            response.data.close();
+        }
+
+        Document d = new Document(version, response.mimeType, bout.toByteArray());
+        synchronized (this) {
+            documents.put(key, d);
+            Iterator<Document> it = documents.values().iterator();
+            while (documents.size() > maxDocuments && it.hasNext()) {
+                it.next();
+                it.remove();
+            }
+        }
+
+        Response r = d.response("MISS");
+        r.toClose = response.toClose;
+        return r;
+    }
+
+    /**
+     * Returns the metadata of a layer, computing it if not cached.
+     *
+     * @param workspace The name of the workspace of the layer.
+     * @param handle The handle of the layer.
+     */
+    public LayerInfo layer(String workspace, Handle<Dataset> handle) throws IOException {
+        String key = key(workspace, handle.name());
+        LayerInfo info = layers.get(key);
+        if (info != null) {
+            layerHits.incrementAndGet();
+            return info;
+        }
+
+        layerMisses.incrementAndGet();
+        long gen = generation.get();
+        info = LayerInfo.load(handle);
+        if (generation.get() == gen) {
+            layers.put(key, info);
+        }
+        return info;
+    }
+
+    /**
+     * Drops the metadata of a layer, and all documents.
+     */
+    public void invalidateLayer(String workspace, String layer) {
+        generation.incrementAndGet();
+        if (layer != null) {
+            layers.remove(key(workspace, layer));
+        }
+        else {
+            // all layers of the workspace
+            String prefix = workspace + ":";
+            for (Iterator<String> it = layers.keySet().iterator(); it.hasNext(); ) {
+                if (it.next().startsWith(prefix)) {
+                    it.remove();
+                }
+            }
+        }
+        synchronized (this) {
+            documents.clear();
+        }
+    }
+
+    /**
+     * Drops all documents and layer metadata.
+     */
+    public void clear() {
+        generation.incrementAndGet();
+        layers.clear();
+        synchronized (this) {
+            documents.clear();
+        }
+    }
+
+    /**
+     * Number of documents answered from the cache.
+     */
+    public long hits() {
+        return hits.get();
+    }
+
+    /**
+     * Number of documents built.
+     */
+    public long misses() {
+        return misses.get();
+    }
+
+    /**
+     * Number of layer metadata lookups answered from the cache.
+     */
+    public long layerHits() {
+        return layerHits.get();
+    }
+
+    /**
+     * Number of layer metadata lookups that computed the metadata.
+     */
+    public long layerMisses() {
+        return layerMisses.get();
+    }
+
+    /**
+     * Number of documents cached.
+     */
+    public synchronized int count() {
+        return documents.size();
+    }
+
+    static String key(String workspace, String layer) {
+        return workspace + ":" + layer;
+    }
+
+    static class Document {
+        final long version;
+        final String mimeType;
+        final byte[] data;
+
+        Document(long version, String mimeType, byte[] data) {
+            this.version = version;
+            this.mimeType = mimeType;
+            this.data = data;
+        }
+
+        Response response(String status) {
+            Response r = new Response(HTTP_OK, mimeType, new ByteArrayInputStream(data));
+            r.addHeader("Content-Length", String.valueOf(data.length));
+            r.addHeader("X-Cache", status);
+            return r;
+        }
+    }
+
+    /**
+     * Metadata of a layer used to describe it in capabilities documents.
+     */
+    public static class LayerInfo {
+
+        /**
+         * Computes the metadata of a layer, opening it only if it may be tiled.
+         */
+        public static LayerInfo load(Handle<Dataset> handle) throws IOException {
+            Class<?> type = handle.type();
+            if (type != null && !TileDataset.class.isAssignableFrom(type)) {
+                return new LayerInfo(handle.crs(), handle.bounds(), null);
+            }
+
+            Dataset ds = handle.resolve();
+            try {
+                TilePyramid pyramid = ds instanceof TileDataset ? ((TileDataset) ds).pyramid() : null;
+                return new LayerInfo(ds.crs(), ds.bounds(), pyramid);
+            }
+            finally {
+                ds.close();
+            }
+        }
+
+        final CoordinateReferenceSystem crs;
+        final Bounds bounds;
+        final Bounds lonLat;
+        final TilePyramid pyramid;
+
+        LayerInfo(CoordinateReferenceSystem crs, Bounds bounds, TilePyramid pyramid) {
+            this.crs = crs;
+            this.bounds = bounds;
+            this.pyramid = pyramid;
+            this.lonLat = bounds != null ?
+                Proj.reproject(bounds, crs != null ? crs : Proj.EPSG_4326, Proj.EPSG_4326) : null;
+        }
+
+        /**
+         * Native crs of the layer, may be <tt>null</tt>.
+         */
+        public CoordinateReferenceSystem crs() {
+            return crs;
+        }
+
+        /**
+         * Native bounds of the layer, may be <tt>null</tt>.
+         */
+        public Bounds bounds() {
+            return bounds;
+        }
+
+        /**
+         * Bounds of the layer in geographic coordinates, <tt>null</tt> if the layer has no
+         * bounds. The native crs is assumed to be geographic if unknown.
+         */
+        public Bounds lonLat() {
+            return lonLat;
+        }
+
+        /**
+         * Tile pyramid of the layer, <tt>null</tt> if the layer is not tiled.
+         */
+        public TilePyramid pyramid() {
+            return pyramid;
+        }
+    }
+}
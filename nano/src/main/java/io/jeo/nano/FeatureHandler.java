@@ -25,24 +25,29 @@ import static io.jeo.nano.NanoHTTPD.MIME_PLAINTEXT;
 import static io.jeo.nano.NanoHTTPD.MIME_PNG;
 
 import java.io.BufferedInputStream;
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -58,6 +63,7 @@ import io.jeo.data.Workspace;
 import io.jeo.vector.Feature;
 import io.jeo.vector.Features;
 import io.jeo.vector.Field;
+import io.jeo.vector.MapFeature;
 import io.jeo.vector.Schema;
 import io.jeo.filter.Filter;
 import io.jeo.filter.Filters;
@@ -66,17 +72,18 @@ import io.jeo.filter.cql.ParseException;
 import io.jeo.geojson.GeoJSONReader;
 import io.jeo.geojson.GeoJSONWriter;
 import io.jeo.geom.Geom;
+import io.jeo.geom.GeomBuilder;
 import io.jeo.json.JSONObject;
 import io.jeo.json.JSONValue;
 import io.jeo.map.MapBuilder;
 import io.jeo.map.Style;
-import io.jeo.map.View;
-import io.jeo.render.Renderer;
 import io.jeo.render.RendererFactory;
 import io.jeo.render.Renderers;
 import io.jeo.nano.NanoHTTPD.Response;
 import io.jeo.proj.Proj;
 import io.jeo.util.Pair;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.WKBWriter;
 import org.osgeo.proj4j.CoordinateReferenceSystem;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -88,6 +95,57 @@ public class FeatureHandler extends Handler {
 
     static final Logger LOG = LoggerFactory.getLogger(NanoServer.class);
 
+    /**
+     * Default number of features committed at once when adding features to a transactional
+     * layer.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
+    static final String MIME_NDJSON = "application/x-ndjson";
+
+    static final String MIME_FLATGEOBUF = "application/flatgeobuf";
+
+    static final String MIME_WKB = "application/x-wkb-stream";
+
+    /**
+     * Feature formats and their mime types, negotiated through the <tt>Accept</tt> header when
+     * a request has no format extension.
+     */
+    static final Map<String,String> FEATURE_FORMATS = new LinkedHashMap<String, String>();
+    static {
+        FEATURE_FORMATS.put("json", MIME_JSON);
+        FEATURE_FORMATS.put("ndjson", MIME_NDJSON);
+        FEATURE_FORMATS.put("fgb", MIME_FLATGEOBUF);
+        FEATURE_FORMATS.put("wkb", MIME_WKB);
+    }
+
+    FeaturePager pager = new FeaturePager();
+
+    /**
+     * Pager of feature requests with a <tt>limit</tt>, see {@link FeaturePager}.
+     */
+    public FeaturePager getPager() {
+        return pager;
+    }
+
+    public void setPager(FeaturePager pager) {
+        this.pager = pager;
+    }
+
+    PointClusters clusters = new PointClusters();
+
+    /**
+     * Cache of the point clusters of layers, for requests with a <tt>cluster</tt> radius, see
+     * {@link PointClusters}.
+     */
+    public PointClusters getClusters() {
+        return clusters;
+    }
+
+    public void setClusters(PointClusters clusters) {
+        this.clusters = clusters;
+    }
+
     // /features/<workspace>[/<layer>][/<id>]
     static final Pattern FEATURES_URI_RE =
         Pattern.compile("/features(?:/([\\w-]+)(?:/([\\w-]+))?)(?:/([\\w-]+))?(?:\\.([\\w]+))?/?", Pattern.CASE_INSENSITIVE);
@@ -97,6 +155,25 @@ public class FeatureHandler extends Handler {
         return match(request, FEATURES_URI_RE);
     }
 
+    @Override
+    public boolean isExpensive(Request request) {
+        if (!"GET".equalsIgnoreCase(request.getMethod())) {
+            return false;
+        }
+        try {
+            String format = parseFormat(request);
+            return format != null && !isFeatureFormat(format) && !"html".equalsIgnoreCase(format);
+        }
+        catch(IOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public boolean streamsBody(Request request) {
+        return "POST".equalsIgnoreCase(request.getMethod()) || "PUT".equalsIgnoreCase(request.getMethod());
+    }
+
     @Override
     public Response handle(Request request, NanoServer server) {
         try {
@@ -104,13 +181,13 @@ public class FeatureHandler extends Handler {
                 return handleGet(request, server);
             }
             else if ("POST".equalsIgnoreCase(request.getMethod())) {
-                return handlePost(request, server);
+                return invalidate(request, handlePost(request, server));
             }
             else if ("PUT".equalsIgnoreCase(request.getMethod())) {
-                return handlePut(request, server);
+                return invalidate(request, handlePut(request, server));
             }
             else if ("DELETE".equalsIgnoreCase(request.getMethod())) {
-                return handleDelete(request, server);
+                return invalidate(request, handleDelete(request, server));
             }
     
             return new Response(HTTP_METHOD_NOT_ALLOWED, MIME_PLAINTEXT, "");
@@ -120,76 +197,550 @@ public class FeatureHandler extends Handler {
         }
     }
 
-    Response handleGet(Request request, NanoServer server) throws IOException {
+    /**
+     * Drops cached renders of the layer modified by a request.
+     * <p>
+     * Ingests run while the response is sent invalidate the layer themselves once they
+     * complete, see {@link FeatureIngest}.
+     * </p>
+     */
+    Response invalidate(Request request, Response response) {
+        if (response.status.startsWith("2") && !(response.data instanceof FeatureIngest)) {
+            invalidateLayer(request);
+        }
+        return response;
+    }
+
+    void invalidateLayer(Request request) {
+        Matcher m = (Matcher) request.getContext().get(Matcher.class);
+        if (imageCache != null) {
+            imageCache.invalidateLayer(m.group(1), m.group(2));
+        }
+        if (capabilitiesCache != null) {
+            capabilitiesCache.invalidateLayer(m.group(1), m.group(2));
+        }
+        if (featureIndex != null) {
+            featureIndex.invalidateLayer(m.group(1), m.group(2));
+        }
+        if (clusters != null) {
+            clusters.invalidateLayer(m.group(1), m.group(2));
+        }
+        if (pager != null) {
+            pager.invalidateLayer(m.group(1), m.group(2));
+        }
+    }
+
+    Response handleGet(final Request request, final NanoServer server) throws IOException {
+        final String key = ImageCache.key(request.getUri(), request.getParms());
+        if (imageCache != null && isExpensive(request)) {
+            Response cached = imageCache.get(key);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
         Pair<Workspace,VectorDataset> p = findVectorLayer(request, server);
-        String format = parseFormat(request);
+        final String format = parseFormat(request);
 
-        VectorDataset layer = p.second;
+        final VectorDataset layer = p.second;
         Response resp;
-        if (format == null || "json".equalsIgnoreCase(format)) {
+        if ((format == null || "json".equalsIgnoreCase(format)) && isClustered(request)) {
+            resp = getAsClusters(layer, request, server);
+        }
+        else if ((format == null || "json".equalsIgnoreCase(format)) && isPaged(request)) {
+            resp = getAsJSONPage(p, request);
+        }
+        else if (format == null || "json".equalsIgnoreCase(format)) {
             resp = getAsJSON(layer, request, server);
         }
+        else if ("ndjson".equalsIgnoreCase(format)) {
+            resp = getAsNDJSON(layer, request);
+        }
+        else if ("fgb".equalsIgnoreCase(format)) {
+            resp = getAsFlatGeobuf(layer, request);
+        }
+        else if ("wkb".equalsIgnoreCase(format)) {
+            resp = getAsWKB(layer, request);
+        }
         else if ("html".equalsIgnoreCase(format)) {
             resp = getAsHTML(layer, request, server);
         }
-        else {
+        else if (isStreamed(parseWidth(request), parseHeight(request))) {
             resp = getAsRendered(layer, format, request, server);
         }
+        else {
+            // identical concurrent requests share a single render
+            resp = coalesce(key, new Callable<Response>() {
+                @Override
+                public Response call() throws Exception {
+                    Response r = getAsRendered(layer, format, request, server);
+                    if (imageCache != null) {
+                        Matcher m = (Matcher) request.getContext().get(Matcher.class);
+                        Set<String> tags = new HashSet<String>();
+                        tags.add(ImageCache.layerTag(m.group(1), m.group(2)));
+                        String style = request.getParms().getProperty("style");
+                        if (style != null && !style.isEmpty()) {
+                            tags.add(ImageCache.styleTag(style));
+                        }
+                        r = imageCache.put(key, tags, r);
+                    }
+                    return r;
+                }
+            });
+        }
 
-        resp.toClose(layer, p.first);
+        if (resp.toClose == null) {
+            resp.toClose(layer, p.first);
+        }
         return resp;
     }
 
     Response getAsJSON(VectorDataset layer, Request request, NanoServer server) 
         throws IOException {
 
-        VectorQuery q = buildQuery(layer, request);
+        final QuantizedGeoJSONWriter.Settings quantized =
+            QuantizedGeoJSONWriter.settings(request.getParms());
+        final Cursor<Feature> c = read(layer, request);
 
-        String fieldSpec = request.parms.getProperty("fields");
-        String[] fields = null;
-        if (fieldSpec != null && fieldSpec.length() > 0) {
-            fields = fieldSpec.split(",");
-            if (fields.length > 0) {
-                // reduce the query response to any fields specified
-                q.fields(Arrays.asList(fields));
-                // and ensure the filter fields are included
-                q.appendFields(Filters.properties(q.filter()));
+        return new Response(HTTP_OK, MIME_JSON, new Response.Content() {
+
+            GeoJSONWriter w;
+
+            @Override
+            public void write(OutputStream output) throws IOException {
+                Writer out = new OutputStreamWriter(output, Charset.forName("UTF-8"));
+                if (quantized != null) {
+                    QuantizedGeoJSONWriter q = quantized.writer(out).featureCollection();
+                    while (c.hasNext()) {
+                        q.feature(c.next());
+                    }
+                    q.endFeatureCollection(null).flush();
+                    return;
+                }
+
+                w = new GeoJSONWriter(out);
+                w.featureCollection(c);
+                w.flush();
             }
-        }
 
-        final Cursor<Feature> c;
-        if (fields == null) {
-            c = layer.read(q);
-        } else {
-            // if the request specifies fields, wrap the cursor to prevent
-            // any fields referenced in the query from getting into the response
-            c = layer.read(q).select(Arrays.asList(fields));
+            @Override
+            public void close() throws IOException {
+                c.close();
+            }
+        });
+    }
+
+    /**
+     * Returns features as newline delimited GeoJSON, a feature per line.
+     */
+    Response getAsNDJSON(VectorDataset layer, Request request) throws IOException {
+        final QuantizedGeoJSONWriter.Settings quantized =
+            QuantizedGeoJSONWriter.settings(request.getParms());
+        final Cursor<Feature> c = read(layer, request);
+
+        return new Response(HTTP_OK, MIME_NDJSON, new Response.Content() {
+            @Override
+            public void write(OutputStream output) throws IOException {
+                Writer out = new OutputStreamWriter(output, Charset.forName("UTF-8"));
+                QuantizedGeoJSONWriter q = quantized != null ? quantized.writer(out) : null;
+                while (c.hasNext()) {
+                    if (q != null) {
+                        q.feature(c.next());
+                    }
+                    else {
+                        new GeoJSONWriter(out).feature(c.next());
+                    }
+                    out.write('\n');
+                }
+                out.flush();
+            }
+
+            @Override
+            public void close() throws IOException {
+                c.close();
+            }
+        });
+    }
+
+    /**
+     * Returns features as FlatGeobuf, see {@link FlatGeobufWriter}.
+     */
+    Response getAsFlatGeobuf(VectorDataset layer, Request request) throws IOException {
+        Properties p = request.getParms();
+
+        Schema schema = layer.schema();
+        String fieldSpec = p.getProperty("fields");
+        if (schema != null && fieldSpec != null && fieldSpec.length() > 0) {
+            // only the selected fields, along with the geometry
+            List<Field> fields = new ArrayList<Field>();
+            for (Field fld : schema) {
+                if (fld.geometry()) {
+                    fields.add(fld);
+                }
+            }
+            for (String name : fieldSpec.split(",")) {
+                Field fld = schema.field(name);
+                if (fld != null && !fld.geometry()) {
+                    fields.add(fld);
+                }
+            }
+            schema = new Schema(schema.name(), fields);
         }
 
-        // if requesting a specific feature, fail if not found
-        String fid = parseFeatureId(request);
-        if (fid != null) {
-            if (! c.hasNext()) {
-                throw new HttpException(HTTP_NOTFOUND, "Unable to locate feature at " + request.uri);
+        CoordinateReferenceSystem crs = p.containsKey("srs") ? parseCRS(p) : layer.crs();
+        final String name = layer.name();
+        final Schema s = schema;
+        final Integer epsg = crs != null ? Proj.epsgCode(crs) : null;
+
+        final Cursor<Feature> c = read(layer, request);
+
+        return new Response(HTTP_OK, MIME_FLATGEOBUF, new Response.Content() {
+            @Override
+            public void write(OutputStream output) throws IOException {
+                FlatGeobufWriter w = new FlatGeobufWriter(output, name, s, epsg);
+                while (c.hasNext()) {
+                    w.write(c.next());
+                }
+                w.finish();
             }
+
+            @Override
+            public void close() throws IOException {
+                c.close();
+            }
+        });
+    }
+
+    /**
+     * Returns features as a stream of length prefixed records. All integers are big endian.
+     * <pre>
+     * feature    := length:uint32 id:string geometry:bytes properties:string
+     * string     := length:uint32 utf8
+     * bytes      := length:uint32 byte*
+     * </pre>
+     * The geometry is two dimensional WKB, empty if the feature has no geometry, and the
+     * properties a JSON object of the non geometry values of the feature.
+     */
+    Response getAsWKB(VectorDataset layer, Request request) throws IOException {
+        final Cursor<Feature> c = read(layer, request);
+
+        return new Response(HTTP_OK, MIME_WKB, new Response.Content() {
+            @Override
+            public void write(OutputStream output) throws IOException {
+                Charset utf8 = Charset.forName("UTF-8");
+                WKBWriter wkb = new WKBWriter(2);
+                ByteArrayOutputStream buf = new ByteArrayOutputStream(1024);
+                DataOutputStream rec = new DataOutputStream(buf);
+                DataOutputStream out = new DataOutputStream(output);
+
+                Map<String,Object> props = new LinkedHashMap<String, Object>();
+                while (c.hasNext()) {
+                    Feature f = c.next();
+
+                    buf.reset();
+                    bytes(rec, f.id() != null ? f.id().getBytes(utf8) : new byte[0]);
+
+                    Geometry g = f.geometry();
+                    bytes(rec, g != null ? wkb.write(g) : new byte[0]);
+
+                    props.clear();
+                    for (Map.Entry<String,Object> e : f.map().entrySet()) {
+                        if (!(e.getValue() instanceof Geometry)) {
+                            props.put(e.getKey(), e.getValue());
+                        }
+                    }
+                    bytes(rec, JSONValue.toJSONString(props).getBytes(utf8));
+
+                    out.writeInt(buf.size());
+                    buf.writeTo(out);
+                }
+                out.flush();
+            }
+
+            void bytes(DataOutputStream rec, byte[] b) throws IOException {
+                rec.writeInt(b.length);
+                rec.write(b);
+            }
+
+            @Override
+            public void close() throws IOException {
+                c.close();
+            }
+        });
+    }
+
+    boolean isClustered(Request request) throws IOException {
+        return clusters != null && parseFeatureId(request) == null
+            && request.getParms().containsKey("cluster");
+    }
+
+    /**
+     * Returns the points of a layer clustered for a zoom level as JSON. Every cluster is a point
+     * at the centroid of its points, with their <tt>count</tt> and the sum, minimum and maximum
+     * of the numeric fields listed in the <tt>aggregate</tt> parameter. Clusters of a single
+     * point carry the id of the point. Clusters are in geographic coordinates, optionally
+     * limited to a <tt>bbox</tt>.
+     */
+    Response getAsClusters(final VectorDataset layer, Request request, NanoServer server)
+        throws IOException {
+        Properties p = request.getParms();
+
+        final int radius = parseInt(p, "cluster", -1);
+        if (radius < 1 || radius > PointClusters.TILE_SIZE) {
+            throw new HttpException(HTTP_BADREQUEST, "Invalid cluster radius: " + p.getProperty("cluster"));
+        }
+        final int zoom = parseInt(p, "zoom", -1);
+        if (zoom < 0) {
+            throw new HttpException(HTTP_BADREQUEST, "Invalid or missing zoom: " + p.getProperty("zoom"));
         }
+        if (p.containsKey("srs") && !Proj.equal(parseCRS(p), Proj.EPSG_4326)) {
+            throw new HttpException(HTTP_BADREQUEST, "Clusters are only available in epsg:4326");
+        }
+
+        final String filter = p.getProperty("filter");
+        String aggregate = p.getProperty("aggregate");
+        final String[] fields = aggregate != null && !aggregate.isEmpty() ? aggregate.split(",") : null;
+        final Bounds bbox = p.containsKey("bbox") ? parseBBOX(p.getProperty("bbox")) : null;
+
+        Matcher m = (Matcher) request.getContext().get(Matcher.class);
+        String key = PointClusters.key(m.group(1), m.group(2), radius, filter, fields);
+
+        PointClusters.Hierarchy h = clusters.get(key,
+            new Callable<PointClusters.Hierarchy>() {
+                @Override
+                public PointClusters.Hierarchy call() throws Exception {
+                    VectorQuery q = new VectorQuery();
+                    CoordinateReferenceSystem crs = layer.crs();
+                    if (crs != null && !Proj.equal(crs, Proj.EPSG_4326)) {
+                        q.reproject(crs, Proj.EPSG_4326);
+                    }
+                    if (filter != null) {
+                        q.filter(parseFilter(filter));
+                    }
+                    return clusters.load(layer.read(q), radius, fields);
+                }
+            });
+
+        final PointClusters.Level level = h.level(zoom);
+        final String[] aggregated = h.fields();
 
         return new Response(HTTP_OK, MIME_JSON, new Response.Content() {
+            @Override
+            public void write(OutputStream output) throws IOException {
+                GeoJSONWriter w = new GeoJSONWriter(new OutputStreamWriter(output, Charset.forName("UTF-8")));
+                w.featureCollection();
+                GeomBuilder gb = new GeomBuilder();
+                for (int i = 0; i < level.size(); i++) {
+                    if (bbox != null && !level.within(i, bbox)) {
+                        continue;
+                    }
 
-            GeoJSONWriter w;
+                    Map<String,Object> values = new LinkedHashMap<String, Object>();
+                    values.put("geometry", gb.point(level.lon(i), level.lat(i)).toPoint());
+                    values.put("count", level.count(i));
+                    for (int k = 0; k < aggregated.length; k++) {
+                        if (!Double.isNaN(level.sum[k][i])) {
+                            values.put(aggregated[k] + "_sum", level.sum[k][i]);
+                            values.put(aggregated[k] + "_min", level.min[k][i]);
+                            values.put(aggregated[k] + "_max", level.max[k][i]);
+                        }
+                    }
+
+                    String id = level.id(i);
+                    w.feature(new MapFeature(id != null ? id : "cluster." + zoom + "." + i, values));
+                }
+                w.endArray();
+                w.endObject();
+                w.flush();
+            }
+
+            @Override
+            public void close() throws IOException {
+            }
+        });
+    }
+
+    static int parseInt(Properties p, String key, int def) {
+        String value = p.getProperty(key);
+        if (value == null) {
+            return def;
+        }
+        try {
+            return Integer.parseInt(value);
+        }
+        catch(NumberFormatException e) {
+            throw new HttpException(HTTP_BADREQUEST, "Invalid " + key + ": " + value);
+        }
+    }
+
+    boolean isPaged(Request request) throws IOException {
+        Properties p = request.getParms();
+        return pager != null && parseFeatureId(request) == null
+            && (p.containsKey("cursor") || p.containsKey("limit"));
+    }
+
+    /**
+     * Returns a page of features as JSON. If more features follow the page, the collection has
+     * a <tt>next</tt> member with the continuation token to pass as the <tt>cursor</tt>
+     * parameter for the next page, which stands in for all other parameters.
+     * <p>
+     * The next page is read by resuming the cursor parked by the previous one, or with an offset
+     * if that cursor is gone, see {@link FeaturePager}.
+     * </p>
+     */
+    Response getAsJSONPage(Pair<Workspace,VectorDataset> p, Request request) throws IOException {
+        final String path = request.getUri();
+        Matcher m = (Matcher) request.getContext().get(Matcher.class);
+        final String layer = m != null ? ImageCache.layerTag(m.group(1), m.group(2)) : null;
+        final Properties query;
+        final long position;
+        FeaturePager.Page page = null;
+
+        String token = request.getParms().getProperty("cursor");
+        if (token != null) {
+            Properties t = FeaturePager.decode(token);
+            query = FeaturePager.query(t);
+            position = FeaturePager.position(t);
+            page = pager.resume(path, t);
+        }
+        else {
+            query = new Properties();
+            query.putAll(request.getParms());
+            position = 0;
+        }
+
+        final int limit;
+        try {
+            limit = Integer.parseInt(query.getProperty("limit"));
+        }
+        catch(NumberFormatException e) {
+            throw new HttpException(HTTP_BADREQUEST, "Invalid limit: " + query.getProperty("limit"));
+        }
+        if (limit < 1) {
+            throw new HttpException(HTTP_BADREQUEST, "Invalid limit: " + limit);
+        }
+        final QuantizedGeoJSONWriter.Settings quantized = QuantizedGeoJSONWriter.settings(query);
+
+        final Cursor<Feature> c;
+        final Closeable[] resources;
+        Response resp;
+        if (page != null) {
+            c = page.cursor();
+            resources = page.resources();
+        }
+        else {
+            // read from the start of the page, past any initial offset
+            Properties q = new Properties();
+            q.putAll(query);
+            q.remove("limit");
+            long offset = position + (q.containsKey("offset") ? Long.parseLong(q.getProperty("offset")) : 0);
+            if (offset > 0) {
+                q.setProperty("offset", String.valueOf(offset));
+            }
+
+            Request r = new Request(path, request.getMethod(), request.getHeader(), q, request.getFiles());
+            r.getContext().putAll(request.getContext());
+            c = read(p.second, r);
+            resources = new Closeable[]{p.second, p.first};
+        }
+
+        resp = new Response(HTTP_OK, MIME_JSON, new Response.Content() {
+
+            boolean parked;
 
             @Override
             public void write(OutputStream output) throws IOException {
-                w = new GeoJSONWriter(new OutputStreamWriter(output, Charset.forName("UTF-8")));
-                w.featureCollection(c);
+                Writer out = new OutputStreamWriter(output, Charset.forName("UTF-8"));
+                if (quantized != null) {
+                    QuantizedGeoJSONWriter q = quantized.writer(out).featureCollection();
+                    int n = 0;
+                    while (n < limit && c.hasNext()) {
+                        q.feature(c.next());
+                        n++;
+                    }
+                    String next = null;
+                    if (c.hasNext()) {
+                        parked = true;
+                        next = pager.park(path, layer, query, position + n, c, resources);
+                    }
+                    q.endFeatureCollection(next).flush();
+                    return;
+                }
+
+                GeoJSONWriter w = new GeoJSONWriter(out);
+                w.featureCollection();
+                int n = 0;
+                while (n < limit && c.hasNext()) {
+                    w.feature(c.next());
+                    n++;
+                }
+                w.endArray();
+
+                if (c.hasNext()) {
+                    parked = true;
+                    w.key("next").value(pager.park(path, layer, query, position + n, c, resources));
+                }
+                w.endObject();
                 w.flush();
             }
 
             @Override
             public void close() throws IOException {
-                c.close();
+                if (!parked) {
+                    FeaturePager.close(c, resources);
+                }
             }
         });
+
+        // the cursor owns the layer read from, if not resumed
+        if (page != null) {
+            resp.toClose(p.second, p.first);
+        }
+        else {
+            resp.toClose();
+        }
+        return resp;
+    }
+
+    /**
+     * Reads the features selected by a request, failing if a requested feature doesn't exist.
+     */
+    Cursor<Feature> read(VectorDataset layer, Request request) throws IOException {
+        Cursor<Feature> c = select(layer, request);
+
+        // if requesting a specific feature, fail if not found
+        String fid = parseFeatureId(request);
+        if (fid != null) {
+            if (! c.hasNext()) {
+                c.close();
+                throw new HttpException(HTTP_NOTFOUND, "Unable to locate feature at " + request.uri);
+            }
+        }
+        return c;
+    }
+
+    Cursor<Feature> select(VectorDataset layer, Request request) throws IOException {
+        VectorQuery q = buildQuery(layer, request);
+
+        String fieldSpec = request.parms.getProperty("fields");
+        String[] fields = null;
+        if (fieldSpec != null && fieldSpec.length() > 0) {
+            fields = fieldSpec.split(",");
+            if (fields.length > 0) {
+                // reduce the query response to any fields specified
+                q.fields(Arrays.asList(fields));
+                // and ensure the filter fields are included
+                q.appendFields(Filters.properties(q.filter()));
+            }
+        }
+
+        if (fields == null) {
+            return layer.read(q);
+        }
+
+        // if the request specifies fields, wrap the cursor to prevent
+        // any fields referenced in the query from getting into the response
+        return layer.read(q).select(Arrays.asList(fields));
     }
 
     VectorQuery buildQuery(VectorDataset layer, Request request) throws IOException {
@@ -345,8 +896,8 @@ public class FeatureHandler extends Handler {
         }
 
         //parse the image dimensions
-        Integer width = p.containsKey("width") ? Integer.parseInt(p.getProperty("width")) : 256;
-        Integer height = p.containsKey("height") ? Integer.parseInt(p.getProperty("height")) : width;
+        int width = parseWidth(request);
+        int height = parseHeight(request);
         mb.size(width, height);
 
         Style style = null;
@@ -368,19 +919,17 @@ public class FeatureHandler extends Handler {
         }
         mb.style(style);
 
-        ByteArrayOutputStream bout = new ByteArrayOutputStream();
-        View view = mb.view();
+        return renderMap(rf, mb, MIME_PNG, width, height);
+    }
 
-        Renderer renderer = rf.create(view, null);
-        renderer.init(view, null);
-        try {
-            renderer.render(bout);
-        } finally {
-            mb.map().close();
-            renderer.close();
-        }
+    int parseWidth(Request request) {
+        Properties p = request.getParms();
+        return p.containsKey("width") ? Integer.parseInt(p.getProperty("width")) : 256;
+    }
 
-        return new Response(HTTP_OK, MIME_PNG, new ByteArrayInputStream(bout.toByteArray()));
+    int parseHeight(Request request) {
+        Properties p = request.getParms();
+        return p.containsKey("height") ? Integer.parseInt(p.getProperty("height")) : parseWidth(request);
     }
 
     Response handlePost(Request request, NanoServer server) throws IOException {
@@ -432,9 +981,33 @@ public class FeatureHandler extends Handler {
         return new Response(HTTP_CREATED, MIME_PLAINTEXT, "");
     }
 
+    /**
+     * Adds the features of the request body, a feature, feature collection or newline delimited
+     * features, as they are read.
+     * <p>
+     * The <tt>batch</tt> parameter sets the number of features committed at once to a
+     * transactional layer. With the <tt>progress</tt> parameter features are added while the
+     * response is sent, reporting progress every <tt>progress</tt> features and commit, see
+     * {@link FeatureIngest}.
+     * </p>
+     */
     Response handlePostAddFeatures(Request request, NanoServer server) throws IOException {
-        VectorQuery query = new VectorQuery();
-        handleWrite(request, server, query, false, true);
+        Properties p = request.getParms();
+        int batch = p != null ? parseInt(p, "batch", DEFAULT_BATCH_SIZE) : DEFAULT_BATCH_SIZE;
+        if (batch < 1) {
+            throw new HttpException(HTTP_BADREQUEST, "Invalid batch: " + batch);
+        }
+
+        if (p != null && p.containsKey("progress")) {
+            int progress = parseInt(p, "progress", 0);
+            if (progress < 0) {
+                throw new HttpException(HTTP_BADREQUEST, "Invalid progress: " + progress);
+            }
+            return new Response(HTTP_CREATED, MIME_NDJSON,
+                new FeatureIngest(this, request, server, batch, progress));
+        }
+
+        new FeatureIngest(this, request, server, batch, 0).run();
         //TODO: set Location header
         return new Response(HTTP_CREATED, MIME_PLAINTEXT, "");
     }
@@ -527,6 +1100,9 @@ public class FeatureHandler extends Handler {
     }
 
     InputStream getInput(Request request) throws IOException {
+        if (request.getBody() != null) {
+            return new BufferedInputStream(request.getBody());
+        }
         String file = request.getFiles().getProperty("content");
         return new BufferedInputStream(new FileInputStream(file));
     }
@@ -534,7 +1110,33 @@ public class FeatureHandler extends Handler {
     String parseFormat(Request request) throws IOException {
         Matcher m = (Matcher) request.getContext().get(Matcher.class);
 
-        return m.group(4) != null ? m.group(4) : null;
+        return m.group(4) != null ? m.group(4) : negotiateFormat(request);
+    }
+
+    /**
+     * Picks the feature format of the first mime type in the <tt>Accept</tt> header of a request
+     * that is one of the {@link #FEATURE_FORMATS}, ignoring quality values.
+     */
+    String negotiateFormat(Request request) {
+        String accept = request.getHeader() != null ? request.getHeader().getProperty("accept") : null;
+        if (accept == null) {
+            return null;
+        }
+
+        for (String type : accept.split(",")) {
+            int semi = type.indexOf(';');
+            type = (semi >= 0 ? type.substring(0, semi) : type).trim().toLowerCase(Locale.ROOT);
+            for (Map.Entry<String,String> e : FEATURE_FORMATS.entrySet()) {
+                if (e.getValue().equals(type)) {
+                    return e.getKey();
+                }
+            }
+        }
+        return null;
+    }
+
+    static boolean isFeatureFormat(String format) {
+        return FEATURE_FORMATS.containsKey(format.toLowerCase(Locale.ROOT));
     }
 
     String parseFeatureId(Request request) throws IOException {
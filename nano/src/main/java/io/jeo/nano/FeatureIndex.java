@@ -0,0 +1,447 @@
+/* Copyright 2014 The jeo project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jeo.nano;
+
+import static io.jeo.map.CartoCSS.LINE_WIDTH;
+import static io.jeo.map.CartoCSS.MARKER_HEIGHT;
+import static io.jeo.map.CartoCSS.MARKER_LINE_WIDTH;
+import static io.jeo.map.CartoCSS.MARKER_WIDTH;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.index.strtree.STRtree;
+import io.jeo.data.Dataset;
+import io.jeo.geom.Geom;
+import io.jeo.map.Layer;
+import io.jeo.map.Rule;
+import io.jeo.map.View;
+import io.jeo.render.RenderListener;
+import io.jeo.vector.Feature;
+
+/**
+ * Spatial index of the features last rendered for a view, used to answer identify requests
+ * such as WMS <tt>GetFeatureInfo</tt> without querying the data again.
+ * <p>
+ * As a map is rendered a {@link Capture} records the id and geometry of the features drawn,
+ * along with the size of the symbols they are drawn with. Once the render completes the features
+ * of each layer are bulk loaded into an STR-tree, kept for a short time under the key of the
+ * view, see {@link #key(Properties)}. A click is then resolved against the symbolized features
+ * with a pixel tolerance, to the ids of the features hit.
+ * </p>
+ * <p>
+ * Attributes are not recorded, so the render still reads only those its style refers to, and
+ * the features hit are read by id when identified.
+ * </p>
+ * <p>
+ * Views drawing too many features are not indexed, identify requests on them fall back to
+ * querying the data. Instances of this class are thread safe.
+ * </p>
+ */
+public class FeatureIndex {
+
+    /**
+     * Default maximum number of views indexed.
+     */
+    public static final int DEFAULT_MAX_VIEWS = 16;
+
+    /**
+     * Default maximum number of features indexed per view.
+     */
+    public static final int DEFAULT_MAX_FEATURES = 5000;
+
+    /**
+     * Default number of milliseconds a view stays indexed.
+     */
+    public static final long DEFAULT_TTL = 5 * 60 * 1000;
+
+    /**
+     * Parameters of a map request identifying its view.
+     */
+    static final String[] VIEW_PARAMS =
+        {"layers", "styles", "crs", "srs", "bbox", "width", "height", "cql_filter"};
+
+    static final GeometryFactory GEOMS = new GeometryFactory();
+
+    final int maxViews;
+    final int maxFeatures;
+    final long ttl;
+
+    final LinkedHashMap<String,Entry> views = new LinkedHashMap<String,Entry>(16, 0.75f, true);
+
+    final AtomicLong hits = new AtomicLong();
+    final AtomicLong misses = new AtomicLong();
+    final AtomicLong overflows = new AtomicLong();
+
+    public FeatureIndex() {
+        this(DEFAULT_MAX_VIEWS, DEFAULT_MAX_FEATURES, DEFAULT_TTL);
+    }
+
+    /**
+     * @param maxViews Maximum number of views indexed.
+     * @param maxFeatures Maximum number of features of a view indexed.
+     * @param ttl Milliseconds a view stays indexed.
+     */
+    public FeatureIndex(int maxViews, int maxFeatures, long ttl) {
+        this.maxViews = maxViews;
+        this.maxFeatures = maxFeatures;
+        this.ttl = ttl;
+    }
+
+    /**
+     * Computes the key of the view of a map request, the same for all requests on the view no
+     * matter the output format or operation.
+     */
+    public static String key(Properties parms) {
+        Properties view = new Properties();
+        for (String name : parms.stringPropertyNames()) {
+            String lower = name.toLowerCase(Locale.ROOT);
+            for (String p : VIEW_PARAMS) {
+                if (p.equals(lower)) {
+                    view.setProperty(lower, parms.getProperty(name));
+                }
+            }
+        }
+        return ImageCache.key("/view", view);
+    }
+
+    /**
+     * Creates a listener recording the features rendered for a view.
+     *
+     * @param key The key of the view.
+     * @param layers The names of the layers of the map, <tt>workspace:layer</tt>, keyed by their
+     * data.
+     */
+    public Capture capture(String key, Map<Dataset,String> layers) {
+        return new Capture(key, layers);
+    }
+
+    /**
+     * Returns the index of a view, or <tt>null</tt> if the view is not indexed.
+     */
+    public Entry get(String key) {
+        Entry e;
+        synchronized (this) {
+            e = views.get(key);
+            if (e != null && expired(e)) {
+                views.remove(key);
+                e = null;
+            }
+        }
+        if (e == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        hits.incrementAndGet();
+        return e;
+    }
+
+    void put(String key, Entry e) {
+        synchronized (this) {
+            views.put(key, e);
+            Iterator<Entry> it = views.values().iterator();
+            while (views.size() > maxViews && it.hasNext()) {
+                it.next();
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Drops the views showing a layer, or any layer of a workspace if <tt>layer</tt> is
+     * <tt>null</tt>.
+     */
+    public synchronized void invalidateLayer(String workspace, String layer) {
+        for (Iterator<Entry> it = views.values().iterator(); it.hasNext(); ) {
+            Entry e = it.next();
+            for (String name : e.layers.keySet()) {
+                String[] parts = name.split(":", 2);
+                if (parts[0].equals(workspace) && (layer == null || layer.equals(parts[1]))) {
+                    it.remove();
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops all views.
+     */
+    public synchronized void clear() {
+        views.clear();
+    }
+
+    /**
+     * Number of identify requests answered from the index.
+     */
+    public long hits() {
+        return hits.get();
+    }
+
+    /**
+     * Number of identify requests on views not indexed.
+     */
+    public long misses() {
+        return misses.get();
+    }
+
+    /**
+     * Number of renders that drew too many features to be indexed.
+     */
+    public long overflows() {
+        return overflows.get();
+    }
+
+    /**
+     * Number of views indexed.
+     */
+    public synchronized int count() {
+        return views.size();
+    }
+
+    boolean expired(Entry e) {
+        return ttl > 0 && System.currentTimeMillis() - e.created > ttl;
+    }
+
+    /**
+     * Radius, in pixels, of the symbol a feature is drawn with around its geometry.
+     */
+    static double radius(Feature f, Rule rule, Geometry g) {
+        switch(Geom.Type.from(g)) {
+        case POINT:
+        case MULTIPOINT:
+            float w = rule.number(f, MARKER_WIDTH, 10f);
+            float h = rule.number(f, MARKER_HEIGHT, w);
+            return Math.max(w, h) / 2d + rule.number(f, MARKER_LINE_WIDTH, 1f) / 2d;
+        default:
+            return rule.number(f, LINE_WIDTH, 1f) / 2d;
+        }
+    }
+
+    /**
+     * Listener recording the features drawn by a render.
+     */
+    public class Capture implements RenderListener {
+
+        final String key;
+        final Map<Dataset,String> names;
+        final Map<String,List<Hit>> layers = new LinkedHashMap<String, List<Hit>>();
+
+        double scale;
+        Transform transform;
+        int count;
+
+        Capture(String key, Map<Dataset,String> names) {
+            this.key = key;
+            this.names = new IdentityHashMap<Dataset, String>(names);
+        }
+
+        @Override
+        public void onStart(View view) {
+            transform = new Transform(view);
+            scale = transform.unitsPerPixel();
+        }
+
+        @Override
+        public void onFeature(Layer layer, Feature feature, Rule rule) {
+            if (count > maxFeatures) {
+                return;
+            }
+            if (++count > maxFeatures) {
+                overflows.incrementAndGet();
+                layers.clear();
+                return;
+            }
+
+            String name = names.get(layer.getData());
+            if (name == null) {
+                return;
+            }
+
+            List<Hit> hits = layers.get(name);
+            if (hits == null) {
+                hits = new ArrayList<Hit>();
+                layers.put(name, hits);
+            }
+
+            // only the id and geometry, the renderer may reuse the feature
+            Geometry g = feature.geometry();
+            hits.add(new Hit(count, feature.id(), g, radius(feature, rule, g) * scale));
+        }
+
+        @Override
+        public void onFinish() {
+            if (count > maxFeatures || transform == null) {
+                return;
+            }
+
+            Map<String,STRtree> trees = new HashMap<String, STRtree>();
+            for (Map.Entry<String,List<Hit>> e : layers.entrySet()) {
+                STRtree tree = new STRtree();
+                for (Hit h : e.getValue()) {
+                    Envelope env = new Envelope(h.geometry.getEnvelopeInternal());
+                    env.expandBy(h.radius);
+                    tree.insert(env, h);
+                }
+                tree.build();
+                trees.put(e.getKey(), tree);
+            }
+            // layers with nothing drawn are indexed as empty
+            for (String name : names.values()) {
+                if (!trees.containsKey(name)) {
+                    STRtree tree = new STRtree();
+                    tree.build();
+                    trees.put(name, tree);
+                }
+            }
+            put(key, new Entry(transform, trees));
+        }
+    }
+
+    /**
+     * The features rendered for a view.
+     */
+    public static class Entry {
+
+        final Transform transform;
+        final Map<String,STRtree> layers;
+        final long created = System.currentTimeMillis();
+
+        Entry(Transform transform, Map<String,STRtree> layers) {
+            this.transform = transform;
+            this.layers = layers;
+        }
+
+        /**
+         * Names of the layers indexed.
+         */
+        public Set<String> layers() {
+            return layers.keySet();
+        }
+
+        /**
+         * Returns the ids of the features of a layer drawn at a pixel, topmost first.
+         *
+         * @param layer The name of the layer.
+         * @param i The column of the pixel.
+         * @param j The row of the pixel.
+         * @param tolerance Distance in pixels a feature may be drawn from the pixel.
+         * @param max Maximum number of features to return.
+         *
+         * @return The feature ids, or <tt>null</tt> if the layer is not indexed.
+         */
+        public List<String> query(String layer, int i, int j, int tolerance, int max) {
+            STRtree tree = layers.get(layer);
+            if (tree == null) {
+                return null;
+            }
+
+            double tol = tolerance * transform.unitsPerPixel();
+            Point p = transform.toWorld(i + 0.5, j + 0.5);
+
+            Envelope env = new Envelope(p.getCoordinate());
+            env.expandBy(tol);
+
+            List<Hit> hits = new ArrayList<Hit>();
+            for (Object o : tree.query(env)) {
+                Hit h = (Hit) o;
+                if (h.geometry.isWithinDistance(p, h.radius + tol)) {
+                    hits.add(h);
+                }
+            }
+
+            // last drawn is on top
+            Collections.sort(hits, new Comparator<Hit>() {
+                @Override
+                public int compare(Hit h1, Hit h2) {
+                    return h2.order < h1.order ? -1 : h2.order == h1.order ? 0 : 1;
+                }
+            });
+
+            List<String> ids = new ArrayList<String>(Math.min(max, hits.size()));
+            for (Hit h : hits) {
+                if (ids.size() >= max) {
+                    break;
+                }
+                ids.add(h.id);
+            }
+            return ids;
+        }
+    }
+
+    /**
+     * Affine transform between world and screen space of a view, held rather than the view
+     * itself since the view references the map and its data.
+     */
+    static class Transform {
+
+        final double scaleX, scaleY, translateX, translateY;
+
+        Transform(View view) {
+            this(view.scaleX(), view.scaleY(), view.translateX(), view.translateY());
+        }
+
+        Transform(double scaleX, double scaleY, double translateX, double translateY) {
+            this.scaleX = scaleX;
+            this.scaleY = scaleY;
+            this.translateX = translateX;
+            this.translateY = translateY;
+        }
+
+        /**
+         * World units covered by a pixel, the larger of both axes.
+         */
+        double unitsPerPixel() {
+            return Math.max(1 / scaleX, 1 / scaleY);
+        }
+
+        Point toWorld(double x, double y) {
+            return GEOMS.createPoint(new Coordinate((x - translateX) / scaleX, (translateY - y) / scaleY));
+        }
+    }
+
+    static class Hit {
+
+        final int order;
+        final String id;
+        final Geometry geometry;
+        /** radius of the symbol, in world units */
+        final double radius;
+
+        Hit(int order, String id, Geometry geometry, double radius) {
+            this.order = order;
+            this.id = id;
+            this.geometry = geometry;
+            this.radius = radius;
+        }
+    }
+}
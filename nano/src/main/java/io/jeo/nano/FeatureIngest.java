@@ -0,0 +1,216 @@
+/* Copyright 2014 The jeo project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jeo.nano;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import io.jeo.data.Transaction;
+import io.jeo.data.Transactional;
+import io.jeo.data.Workspace;
+import io.jeo.json.JSONValue;
+import io.jeo.nano.NanoHTTPD.Response;
+import io.jeo.util.Pair;
+import io.jeo.vector.Feature;
+import io.jeo.vector.FeatureWriteCursor;
+import io.jeo.vector.Features;
+import io.jeo.vector.VectorDataset;
+import io.jeo.vector.VectorQuery;
+
+/**
+ * Appends the features of a request body to a layer as they are read.
+ * <p>
+ * Features are read with a {@link GeoJSONStreamReader} so memory use is independent of the size
+ * of the body. For {@link Transactional} layers a transaction is committed every
+ * <tt>batchSize</tt> features, a failure only rolling back the batch in progress. Other layers
+ * are written through a single cursor.
+ * </p>
+ * <p>
+ * As response content the ingest runs while the response is sent, reporting progress as
+ * newline delimited JSON records of the features written and committed so far. Progress is
+ * reported after every commit and every <tt>progress</tt> features if greater than zero. A
+ * failure before the first record results in an error response, after it in a final record
+ * carrying the error.
+ * </p>
+ * <p>
+ * Cached state derived from the layer is invalidated once, when the ingest completes or fails
+ * after committing features, rather than after every batch.
+ * </p>
+ */
+class FeatureIngest implements Response.Content {
+
+    final FeatureHandler handler;
+    final Request request;
+    final NanoServer server;
+    final int batchSize;
+    final int progress;
+
+    long written;
+    long committed;
+
+    Writer out;
+    boolean reported;
+
+    FeatureIngest(FeatureHandler handler, Request request, NanoServer server, int batchSize,
+        int progress) {
+        this.handler = handler;
+        this.request = request;
+        this.server = server;
+        this.batchSize = batchSize;
+        this.progress = progress;
+    }
+
+    /**
+     * Number of features written.
+     */
+    public long written() {
+        return written;
+    }
+
+    /**
+     * Number of features committed.
+     */
+    public long committed() {
+        return committed;
+    }
+
+    /**
+     * Runs the ingest.
+     *
+     * @return The number of features committed.
+     */
+    public long run() throws IOException {
+        Pair<Workspace, VectorDataset> p = handler.findVectorLayer(request, server);
+        VectorDataset layer = p.second;
+        boolean complete = false;
+        try {
+            GeoJSONStreamReader features = new GeoJSONStreamReader(handler.getInput(request));
+            try {
+                boolean batched = layer instanceof Transactional;
+
+                Feature f = features.next();
+                do {
+                    Transaction tx = handler.buildTransaction(layer, request);
+                    VectorQuery query = new VectorQuery();
+                    query.transaction(tx);
+
+                    FeatureWriteCursor c = layer.append(query);
+                    try {
+                        int n = 0;
+                        while (f != null && (!batched || n < batchSize)) {
+                            Features.copy(f, c.next());
+                            c.write();
+                            n++;
+                            written++;
+                            if (progress > 0 && written % progress == 0) {
+                                report(null);
+                            }
+                            f = features.next();
+                        }
+                        tx.commit();
+                        committed += n;
+                    }
+                    catch(RuntimeException e) {
+                        tx.rollback();
+                        throw e;
+                    }
+                    catch(IOException e) {
+                        tx.rollback();
+                        throw e;
+                    }
+                    finally {
+                        c.close();
+                    }
+
+                    if (f != null) {
+                        report(null);
+                    }
+                }
+                while (f != null);
+                complete = true;
+            }
+            finally {
+                features.close();
+            }
+        }
+        finally {
+            layer.close();
+            Workspace ws = p.first;
+            if (ws != null) {
+                ws.close();
+            }
+            if (!complete && committed > 0) {
+                // the batches committed before the failure are visible
+                handler.invalidateLayer(request);
+            }
+        }
+        return committed;
+    }
+
+    @Override
+    public void write(OutputStream output) throws IOException {
+        out = new OutputStreamWriter(output, Charset.forName("UTF-8"));
+        try {
+            run();
+        }
+        catch(RuntimeException e) {
+            if (!reported) {
+                // nothing sent yet, respond with the error
+                throw e;
+            }
+            error(e);
+            return;
+        }
+        catch(IOException e) {
+            if (!reported) {
+                throw e;
+            }
+            error(e);
+            return;
+        }
+        handler.invalidateLayer(request);
+        report(null);
+    }
+
+    void error(Exception e) throws IOException {
+        report(e.getMessage() != null ? e.getMessage() : e.toString());
+    }
+
+    void report(String error) throws IOException {
+        if (out == null) {
+            return;
+        }
+
+        Map<String,Object> rec = new LinkedHashMap<String, Object>();
+        rec.put("written", written);
+        rec.put("committed", committed);
+        if (error != null) {
+            rec.put("error", error);
+        }
+        out.write(JSONValue.toJSONString(rec));
+        out.write('\n');
+        out.flush();
+        reported = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+    }
+}
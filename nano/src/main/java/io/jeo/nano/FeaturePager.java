@@ -0,0 +1,481 @@
+/* Copyright 2014 The jeo project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jeo.nano;
+
+import static io.jeo.nano.NanoHTTPD.HTTP_BADREQUEST;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.jeo.data.Cursor;
+import io.jeo.vector.Feature;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pages through features with continuation tokens rather than offsets.
+ * <p>
+ * When a page of features is sent the cursor it was read from is parked, still open, under a
+ * continuation token. The token encodes the query, the position of the page and the id of the
+ * parked cursor, so the next page is read by resuming the cursor, at a cost proportional to the
+ * size of the page no matter how deep it is. A token is single use, the next page parks the
+ * cursor again under a new token.
+ * </p>
+ * <p>
+ * Parked cursors hold on to their dataset and are closed once unused for the time to live, by a
+ * background reaper that runs while any cursor is parked, or when the layer they read from is
+ * invalidated. A cursor isn't parked at all when too many are already open.
+ * </p>
+ * <p>
+ * A token whose cursor is gone, because it wasn't parked, expired, was invalidated or the server
+ * restarted, is still honored. The page is then read with an offset of the position in the
+ * token, at a cost proportional to its depth. Such pages are counted by {@link #missed()}.
+ * </p>
+ * <p>
+ * Resuming a cursor is preferred over a <tt>id &gt; last</tt> style filter since queries can't
+ * be sorted, so the order of features can't be relied on to match the order of their ids.
+ * </p>
+ */
+public class FeaturePager {
+
+    static final Logger LOG = LoggerFactory.getLogger(NanoServer.class);
+
+    /**
+     * Default number of milliseconds a parked cursor stays open.
+     */
+    public static final long DEFAULT_TTL = 60 * 1000;
+
+    /**
+     * Default maximum number of parked cursors.
+     */
+    public static final int DEFAULT_MAX_OPEN = 32;
+
+    static final String ID = "cursor.id";
+    static final String POSITION = "cursor.position";
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    final ConcurrentMap<Long,Page> pages = new ConcurrentHashMap<Long, Page>();
+    final Random random = new SecureRandom();
+
+    final long ttl;
+    final int maxOpen;
+
+    final AtomicLong parked = new AtomicLong();
+    final AtomicLong resumed = new AtomicLong();
+    final AtomicLong expired = new AtomicLong();
+    final AtomicLong missed = new AtomicLong();
+
+    /** closes expired cursors, running only while cursors are parked */
+    Thread reaper;
+
+    public FeaturePager() {
+        this(DEFAULT_TTL, DEFAULT_MAX_OPEN);
+    }
+
+    /**
+     * @param ttl Milliseconds an unused cursor stays open.
+     * @param maxOpen Maximum number of cursors kept open, <tt>0</tt> disables parking.
+     */
+    public FeaturePager(long ttl, int maxOpen) {
+        this.ttl = ttl;
+        this.maxOpen = maxOpen;
+    }
+
+    /**
+     * Parks a cursor positioned at the start of the next page.
+     *
+     * @param path The path of the request.
+     * @param query The query parameters of the request, along with the path identifying the
+     * query.
+     * @param position The number of features read from the query.
+     * @param cursor The open cursor.
+     * @param resources Resources the cursor depends on, closed along with it.
+     *
+     * @return The continuation token for the next page.
+     */
+    public String park(String path, Properties query, long position, Cursor<Feature> cursor,
+        Closeable... resources) {
+        return park(path, null, query, position, cursor, resources);
+    }
+
+    /**
+     * Parks a cursor positioned at the start of the next page, tagged with the layer it reads
+     * from.
+     *
+     * @param layer Tag of the layer read from, see {@link ImageCache#layerTag(String, String)}.
+     *
+     * @see #park(String, Properties, long, Cursor, Closeable...)
+     * @see #invalidateLayer(String, String)
+     */
+    public String park(String path, String layer, Properties query, long position,
+        Cursor<Feature> cursor, Closeable... resources) {
+        evict();
+
+        long id = 0;
+        if (pages.size() < maxOpen) {
+            do {
+                id = random.nextLong() & Long.MAX_VALUE;
+            }
+            while (id == 0 || pages.putIfAbsent(id, new Page(ImageCache.key(path, query), layer,
+                position, cursor, resources)) != null);
+            parked.incrementAndGet();
+            reap();
+        }
+        else {
+            close(cursor, resources);
+        }
+
+        Properties token = new Properties();
+        token.putAll(query);
+        token.setProperty(ID, String.valueOf(id));
+        token.setProperty(POSITION, String.valueOf(position));
+        return encode(token);
+    }
+
+    /**
+     * Resumes the cursor parked for a page.
+     *
+     * @param path The path of the request.
+     * @param token The decoded continuation token.
+     *
+     * @return The page, or <tt>null</tt> if its cursor is no longer open.
+     */
+    public Page resume(String path, Properties token) {
+        evict();
+
+        long id = Long.parseLong(token.getProperty(ID, "0"));
+        Page page = pages.get(id);
+        if (page == null || page.position != position(token)
+            || !page.key.equals(ImageCache.key(path, query(token))) || !pages.remove(id, page)) {
+            missed.incrementAndGet();
+            return null;
+        }
+
+        resumed.incrementAndGet();
+        return page;
+    }
+
+    /**
+     * Closes cursors unused for longer than the time to live.
+     */
+    public void evict() {
+        long now = System.currentTimeMillis();
+        for (Iterator<Map.Entry<Long,Page>> it = pages.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Long,Page> e = it.next();
+            if (now - e.getValue().created > ttl && pages.remove(e.getKey(), e.getValue())) {
+                expired.incrementAndGet();
+                e.getValue().close();
+            }
+        }
+    }
+
+    /**
+     * Closes the cursors parked reading from a layer, since pages resumed from them would no
+     * longer reflect its contents.
+     *
+     * @param layer The layer, <tt>null</tt> for all layers of the workspace.
+     */
+    public void invalidateLayer(String workspace, String layer) {
+        String tag = layer != null ?
+            ImageCache.layerTag(workspace, layer) : "layer:" + workspace + ":";
+        for (Map.Entry<Long,Page> e : pages.entrySet()) {
+            String t = e.getValue().layer;
+            if (t != null && (layer != null ? t.equals(tag) : t.startsWith(tag))
+                && pages.remove(e.getKey(), e.getValue())) {
+                e.getValue().close();
+            }
+        }
+    }
+
+    /**
+     * Starts the reaper if not running.
+     */
+    synchronized void reap() {
+        if (reaper != null || ttl <= 0) {
+            return;
+        }
+
+        reaper = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        long wait;
+                        synchronized (FeaturePager.this) {
+                            if (pages.isEmpty()) {
+                                // restarted by the next cursor parked
+                                reaper = null;
+                                return;
+                            }
+                            wait = expiry() - System.currentTimeMillis();
+                        }
+                        if (wait > 0) {
+                            Thread.sleep(wait);
+                        }
+                        evict();
+                    }
+                }
+                catch(InterruptedException e) {
+                    synchronized (FeaturePager.this) {
+                        reaper = null;
+                    }
+                }
+            }
+        }, "feature-pager-reaper");
+        reaper.setDaemon(true);
+        reaper.start();
+    }
+
+    /**
+     * Time at which the next parked cursor expires.
+     */
+    long expiry() {
+        long min = Long.MAX_VALUE;
+        for (Page page : pages.values()) {
+            min = Math.min(min, page.created);
+        }
+        return min == Long.MAX_VALUE ? System.currentTimeMillis() : min + ttl + 1;
+    }
+
+    /**
+     * Closes all parked cursors.
+     */
+    public void clear() {
+        for (Long id : pages.keySet()) {
+            Page page = pages.remove(id);
+            if (page != null) {
+                page.close();
+            }
+        }
+    }
+
+    /**
+     * Number of cursors open.
+     */
+    public int open() {
+        return pages.size();
+    }
+
+    /**
+     * Number of cursors parked.
+     */
+    public long parked() {
+        return parked.get();
+    }
+
+    /**
+     * Number of pages read by resuming a cursor.
+     */
+    public long resumed() {
+        return resumed.get();
+    }
+
+    /**
+     * Number of cursors closed unused.
+     */
+    public long expired() {
+        return expired.get();
+    }
+
+    /**
+     * Number of pages read with an offset since the cursor of their token was no longer open.
+     */
+    public long missed() {
+        return missed.get();
+    }
+
+    /**
+     * The query parameters of a decoded token.
+     */
+    public static Properties query(Properties token) {
+        Properties query = new Properties();
+        query.putAll(token);
+        query.remove(ID);
+        query.remove(POSITION);
+        return query;
+    }
+
+    /**
+     * The number of features preceding the page of a decoded token.
+     */
+    public static long position(Properties token) {
+        return Long.parseLong(token.getProperty(POSITION, "0"));
+    }
+
+    static String encode(Properties token) {
+        Map<String,String> sorted = new TreeMap<String, String>();
+        for (String name : token.stringPropertyNames()) {
+            sorted.put(name, token.getProperty(name));
+        }
+
+        StringBuilder sb = new StringBuilder();
+        try {
+            for (Map.Entry<String,String> e : sorted.entrySet()) {
+                if (sb.length() > 0) {
+                    sb.append('&');
+                }
+                sb.append(URLEncoder.encode(e.getKey(), "UTF-8")).append('=')
+                  .append(URLEncoder.encode(e.getValue(), "UTF-8"));
+            }
+        }
+        catch(UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        return base64(sb.toString().getBytes(UTF8));
+    }
+
+    /**
+     * Decodes a continuation token.
+     *
+     * @throws HttpException A <tt>400</tt> if the token is invalid.
+     */
+    public static Properties decode(String token) {
+        Properties p = new Properties();
+        try {
+            String s = new String(unbase64(token), UTF8);
+            for (String kv : s.split("&")) {
+                int eq = kv.indexOf('=');
+                if (eq < 0) {
+                    throw new IllegalArgumentException(kv);
+                }
+                p.setProperty(URLDecoder.decode(kv.substring(0, eq), "UTF-8"),
+                    URLDecoder.decode(kv.substring(eq + 1), "UTF-8"));
+            }
+            Long.parseLong(p.getProperty(ID));
+            position(p);
+        }
+        catch(Exception e) {
+            throw new HttpException(HTTP_BADREQUEST, "Invalid cursor: " + token);
+        }
+        return p;
+    }
+
+    static final char[] BASE64 =
+        "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+
+    /**
+     * Url safe base64 without padding.
+     */
+    static String base64(byte[] b) {
+        StringBuilder sb = new StringBuilder((b.length * 4 + 2) / 3);
+        for (int i = 0; i < b.length; i += 3) {
+            int n = (b[i] & 0xff) << 16;
+            if (i + 1 < b.length) {
+                n |= (b[i + 1] & 0xff) << 8;
+            }
+            if (i + 2 < b.length) {
+                n |= b[i + 2] & 0xff;
+            }
+            sb.append(BASE64[n >>> 18]).append(BASE64[(n >>> 12) & 63]);
+            if (i + 1 < b.length) {
+                sb.append(BASE64[(n >>> 6) & 63]);
+            }
+            if (i + 2 < b.length) {
+                sb.append(BASE64[n & 63]);
+            }
+        }
+        return sb.toString();
+    }
+
+    static byte[] unbase64(String s) {
+        if (s.length() % 4 == 1) {
+            throw new IllegalArgumentException(s);
+        }
+        byte[] b = new byte[s.length() * 3 / 4];
+        int n = 0, bits = 0, j = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            int v = c >= 'A' && c <= 'Z' ? c - 'A' : c >= 'a' && c <= 'z' ? c - 'a' + 26
+                : c >= '0' && c <= '9' ? c - '0' + 52 : c == '-' ? 62 : c == '_' ? 63 : -1;
+            if (v < 0) {
+                throw new IllegalArgumentException(s);
+            }
+            n = (n << 6) | v;
+            bits += 6;
+            if (bits >= 8) {
+                bits -= 8;
+                b[j++] = (byte) (n >>> bits);
+            }
+        }
+        return b;
+    }
+
+    static void close(Cursor<Feature> cursor, Closeable... resources) {
+        try {
+            cursor.close();
+        }
+        catch(IOException e) {
+            LOG.debug("Error closing cursor", e);
+        }
+        for (Closeable c : resources) {
+            try {
+                if (c != null) {
+                    c.close();
+                }
+            }
+            catch(IOException e) {
+                LOG.debug("Error closing cursor resource", e);
+            }
+        }
+    }
+
+    /**
+     * A cursor parked at the start of a page.
+     */
+    public static class Page {
+
+        final String key;
+        final String layer;
+        final long position;
+        final Cursor<Feature> cursor;
+        final Closeable[] resources;
+        final long created = System.currentTimeMillis();
+
+        Page(String key, String layer, long position, Cursor<Feature> cursor,
+            Closeable[] resources) {
+            this.key = key;
+            this.layer = layer;
+            this.position = position;
+            this.cursor = cursor;
+            this.resources = resources;
+        }
+
+        public Cursor<Feature> cursor() {
+            return cursor;
+        }
+
+        public Closeable[] resources() {
+            return resources;
+        }
+
+        void close() {
+            FeaturePager.close(cursor, resources);
+        }
+    }
+}
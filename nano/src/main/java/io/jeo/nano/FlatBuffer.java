@@ -0,0 +1,314 @@
+/* Copyright 2014 The jeo project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jeo.nano;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Minimal builder of size prefixed FlatBuffers.
+ * <p>
+ * Unlike the reference builder, which builds back to front, the buffer is built front to back:
+ * a table is written with placeholders for its references, and the objects it references are
+ * written after it, patching the placeholders. This allows features to be encoded in a single
+ * pass without knowing the size of their parts up front. Scalars are aligned to their size
+ * relative to the start of the buffer, including the size prefix.
+ * </p>
+ * <p>
+ * The buffer is reused, {@link #reset()} starts a new one.
+ * </p>
+ */
+class FlatBuffer {
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    byte[] buf = new byte[1024];
+    int len;
+
+    FlatBuffer() {
+        reset();
+    }
+
+    /**
+     * Starts a new buffer, reserving the size prefix and root offset.
+     */
+    void reset() {
+        len = 0;
+        putInt(0);
+        putInt(0);
+    }
+
+    /**
+     * Starts a table with the specified number of fields.
+     */
+    Table table(int fields) {
+        return new Table(fields);
+    }
+
+    /**
+     * Writes a vector of doubles from the specified array.
+     *
+     * @return The position of the vector.
+     */
+    int doubles(double[] a, int n) {
+        int pos = vector(n, 8);
+        for (int i = 0; i < n; i++) {
+            putLong(Double.doubleToRawLongBits(a[i]));
+        }
+        return pos;
+    }
+
+    /**
+     * Writes a vector of unsigned ints from the specified array.
+     *
+     * @return The position of the vector.
+     */
+    int uints(int[] a, int n) {
+        int pos = vector(n, 4);
+        for (int i = 0; i < n; i++) {
+            putInt(a[i]);
+        }
+        return pos;
+    }
+
+    /**
+     * Writes a vector of offsets to be patched with {@link #patch(int, int)}, the slot of the
+     * <tt>i</tt>th element being <tt>pos + 4 + 4 * i</tt>.
+     *
+     * @return The position of the vector.
+     */
+    int offsets(int n) {
+        int pos = vector(n, 4);
+        ensure(n * 4);
+        len += n * 4;
+        return pos;
+    }
+
+    /**
+     * Writes a null terminated string.
+     *
+     * @return The position of the string.
+     */
+    int string(String s) {
+        byte[] b = s.getBytes(UTF8);
+        int pos = vector(b.length, 1);
+        putBytes(b, 0, b.length);
+        putByte(0);
+        return pos;
+    }
+
+    /**
+     * Starts a vector of bytes of unknown length, completed with {@link #endBytes(int)}.
+     *
+     * @return The position of the vector.
+     */
+    int startBytes() {
+        return vector(0, 1);
+    }
+
+    void endBytes(int pos) {
+        setInt(pos, len - pos - 4);
+    }
+
+    /**
+     * Writes the length of a vector aligning its elements to their size.
+     */
+    int vector(int n, int size) {
+        align(4, 0);
+        if (size > 4) {
+            align(size, 4);
+        }
+        int pos = len;
+        putInt(n);
+        return pos;
+    }
+
+    /**
+     * Points the offset at <tt>slot</tt> to the object at <tt>pos</tt>.
+     */
+    void patch(int slot, int pos) {
+        setInt(slot, pos - slot);
+    }
+
+    /**
+     * Completes the buffer with the specified root table.
+     */
+    void finish(int root) {
+        patch(4, root);
+        setInt(0, len - 4);
+    }
+
+    /**
+     * Size of the buffer including the size prefix.
+     */
+    int size() {
+        return len;
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+        out.write(buf, 0, len);
+    }
+
+    /**
+     * Pads so that <tt>len + offset</tt> is a multiple of <tt>align</tt>.
+     */
+    void align(int align, int offset) {
+        while ((len + offset) % align != 0) {
+            putByte(0);
+        }
+    }
+
+    void ensure(int n) {
+        if (len + n > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + n));
+        }
+    }
+
+    void putByte(int v) {
+        ensure(1);
+        buf[len++] = (byte) v;
+    }
+
+    void putShort(int v) {
+        ensure(2);
+        buf[len++] = (byte) v;
+        buf[len++] = (byte) (v >>> 8);
+    }
+
+    void putInt(int v) {
+        ensure(4);
+        setInt(len, v);
+        len += 4;
+    }
+
+    void putLong(long v) {
+        ensure(8);
+        for (int i = 0; i < 8; i++) {
+            buf[len++] = (byte) (v >>> (8 * i));
+        }
+    }
+
+    void putBytes(byte[] b, int off, int n) {
+        ensure(n);
+        System.arraycopy(b, off, buf, len, n);
+        len += n;
+    }
+
+    void setInt(int pos, int v) {
+        buf[pos] = (byte) v;
+        buf[pos + 1] = (byte) (v >>> 8);
+        buf[pos + 2] = (byte) (v >>> 16);
+        buf[pos + 3] = (byte) (v >>> 24);
+    }
+
+    /**
+     * A table being built. Scalar fields equal to their default value may be left out.
+     */
+    class Table {
+
+        final int[] sizes;
+        final long[] values;
+        final int[] slots;
+
+        Table(int fields) {
+            sizes = new int[fields];
+            values = new long[fields];
+            slots = new int[fields];
+        }
+
+        Table add(int field, int size, long value) {
+            sizes[field] = size;
+            values[field] = value;
+            return this;
+        }
+
+        /**
+         * Adds a reference to be patched once the table is ended, see {@link #slot(int)}.
+         */
+        Table ref(int field) {
+            sizes[field] = 4;
+            values[field] = 0;
+            slots[field] = -1;
+            return this;
+        }
+
+        /**
+         * Writes the vtable followed by the table.
+         *
+         * @return The position of the table.
+         */
+        int end() {
+            // lay out the fields from largest to smallest to keep them aligned
+            int[] offsets = new int[sizes.length];
+            int size = 4;
+            for (int s = 8; s > 0; s /= 2) {
+                for (int i = 0; i < sizes.length; i++) {
+                    if (sizes[i] == s) {
+                        offsets[i] = size;
+                        size += s;
+                    }
+                }
+            }
+
+            align(2, 0);
+            int vtable = len;
+            putShort(4 + 2 * sizes.length);
+            putShort(size);
+            for (int off : offsets) {
+                putShort(off);
+            }
+
+            // offsets within the table are aligned relative to its start
+            align(4, 0);
+            if (hasLongs()) {
+                align(8, 4);
+            }
+            int table = len;
+            putInt(table - vtable);
+            ensure(size - 4);
+            for (int s = 8; s > 0; s /= 2) {
+                for (int i = 0; i < sizes.length; i++) {
+                    if (sizes[i] == s) {
+                        if (slots[i] == -1) {
+                            slots[i] = len;
+                        }
+                        for (int b = 0; b < s; b++) {
+                            buf[len++] = (byte) (values[i] >>> (8 * b));
+                        }
+                    }
+                }
+            }
+            return table;
+        }
+
+        boolean hasLongs() {
+            for (int s : sizes) {
+                if (s == 8) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Position of the slot of a reference, valid once the table is ended.
+         */
+        int slot(int field) {
+            return slots[field];
+        }
+    }
+}
@@ -0,0 +1,457 @@
+/* Copyright 2014 The jeo project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jeo.nano;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+import com.vividsolutions.jts.geom.CoordinateSequence;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryCollection;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.MultiLineString;
+import com.vividsolutions.jts.geom.MultiPoint;
+import com.vividsolutions.jts.geom.MultiPolygon;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.Polygon;
+import io.jeo.geom.Geom;
+import io.jeo.vector.Feature;
+import io.jeo.vector.Field;
+import io.jeo.vector.Schema;
+
+/**
+ * Writes features in the <a href="https://flatgeobuf.org">FlatGeobuf</a> format.
+ * <p>
+ * Features are written one at a time as they are read, so the stream has no spatial index and
+ * no feature count or envelope in its header. Coordinates are written in two dimensions.
+ * </p>
+ * <p>
+ * The columns of the stream are the non geometry fields of the schema, or if there is no schema
+ * the non geometry values of the first feature. Values not matching the type of their column are
+ * converted, or left out if they can't be.
+ * </p>
+ */
+class FlatGeobufWriter {
+
+    static final byte[] MAGIC = {0x66, 0x67, 0x62, 0x03, 0x66, 0x67, 0x62, 0x00};
+
+    // GeometryType
+    static final int UNKNOWN = 0, POINT = 1, LINESTRING = 2, POLYGON = 3, MULTIPOINT = 4,
+        MULTILINESTRING = 5, MULTIPOLYGON = 6, GEOMETRYCOLLECTION = 7;
+
+    // ColumnType
+    static final int BYTE = 0, BOOL = 2, SHORT = 3, INT = 5, LONG = 7, FLOAT = 9, DOUBLE = 10,
+        STRING = 11, DATETIME = 13, BINARY = 14;
+
+    final OutputStream out;
+    final String name;
+    final Schema schema;
+    final Integer epsg;
+
+    final FlatBuffer fb = new FlatBuffer();
+    final List<String> columns = new ArrayList<String>();
+    final List<Integer> types = new ArrayList<Integer>();
+
+    double[] xy = new double[256];
+    int[] ends = new int[16];
+
+    SimpleDateFormat dateFormat;
+    boolean started;
+
+    /**
+     * @param out The output to write to.
+     * @param name The name of the layer.
+     * @param schema The schema of the features, may be <tt>null</tt>.
+     * @param epsg The EPSG code of the coordinates, may be <tt>null</tt>.
+     */
+    FlatGeobufWriter(OutputStream out, String name, Schema schema, Integer epsg) {
+        this.out = out;
+        this.name = name;
+        this.schema = schema;
+        this.epsg = epsg;
+    }
+
+    /**
+     * Writes a feature, preceded by the header for the first one.
+     */
+    public void write(Feature f) throws IOException {
+        if (!started) {
+            header(f);
+        }
+
+        fb.reset();
+        FlatBuffer.Table t = fb.table(3);
+        Geometry g = f.geometry();
+        if (g != null) {
+            t.ref(0);
+        }
+        t.ref(1);
+        int feature = t.end();
+
+        if (g != null) {
+            fb.patch(t.slot(0), geometry(g));
+        }
+
+        int props = fb.startBytes();
+        for (int i = 0; i < columns.size(); i++) {
+            value(i, f.get(columns.get(i)));
+        }
+        fb.endBytes(props);
+        fb.patch(t.slot(1), props);
+
+        fb.finish(feature);
+        fb.writeTo(out);
+    }
+
+    /**
+     * Completes the stream, writing the header if no features were written.
+     */
+    public void finish() throws IOException {
+        if (!started) {
+            header(null);
+        }
+        out.flush();
+    }
+
+    void header(Feature first) throws IOException {
+        started = true;
+
+        int geomType = UNKNOWN;
+        if (schema != null) {
+            for (Field fld : schema) {
+                if (fld.geometry()) {
+                    continue;
+                }
+                columns.add(fld.name());
+                types.add(columnType(fld.type()));
+            }
+            Field geom = schema.geometry();
+            if (geom != null) {
+                geomType = geometryType(geom.type());
+            }
+        }
+        else if (first != null) {
+            for (Map.Entry<String,Object> e : first.map().entrySet()) {
+                if (e.getValue() == null || e.getValue() instanceof Geometry) {
+                    continue;
+                }
+                columns.add(e.getKey());
+                types.add(columnType(e.getValue().getClass()));
+            }
+        }
+
+        out.write(MAGIC);
+
+        fb.reset();
+        FlatBuffer.Table t = fb.table(11);
+        t.ref(0);
+        t.add(2, 1, geomType);
+        t.ref(7);
+        t.add(9, 2, 0);
+        if (epsg != null) {
+            t.ref(10);
+        }
+        int header = t.end();
+
+        fb.patch(t.slot(0), fb.string(name != null ? name : ""));
+
+        int cols = fb.offsets(columns.size());
+        fb.patch(t.slot(7), cols);
+        for (int i = 0; i < columns.size(); i++) {
+            FlatBuffer.Table c = fb.table(11);
+            c.ref(0);
+            c.add(1, 1, types.get(i));
+            int col = c.end();
+            fb.patch(c.slot(0), fb.string(columns.get(i)));
+            fb.patch(cols + 4 + 4 * i, col);
+        }
+
+        if (epsg != null) {
+            FlatBuffer.Table c = fb.table(6);
+            c.ref(0);
+            c.add(1, 4, epsg);
+            int crs = c.end();
+            fb.patch(c.slot(0), fb.string("EPSG"));
+            fb.patch(t.slot(10), crs);
+        }
+
+        fb.finish(header);
+        fb.writeTo(out);
+    }
+
+    /**
+     * Writes a geometry table and its parts.
+     *
+     * @return The position of the table.
+     */
+    int geometry(Geometry g) {
+        int type;
+        List<CoordinateSequence> seqs = new ArrayList<CoordinateSequence>();
+        GeometryCollection parts = null;
+
+        switch(Geom.Type.from(g)) {
+        case POINT:
+            type = POINT;
+            seqs.add(((Point) g).getCoordinateSequence());
+            break;
+        case LINESTRING:
+            type = LINESTRING;
+            seqs.add(((LineString) g).getCoordinateSequence());
+            break;
+        case POLYGON:
+            type = POLYGON;
+            Polygon p = (Polygon) g;
+            if (!p.isEmpty()) {
+                seqs.add(p.getExteriorRing().getCoordinateSequence());
+                for (int i = 0; i < p.getNumInteriorRing(); i++) {
+                    seqs.add(p.getInteriorRingN(i).getCoordinateSequence());
+                }
+            }
+            break;
+        case MULTIPOINT:
+            type = MULTIPOINT;
+            for (int i = 0; i < g.getNumGeometries(); i++) {
+                seqs.add(((Point) g.getGeometryN(i)).getCoordinateSequence());
+            }
+            break;
+        case MULTILINESTRING:
+            type = MULTILINESTRING;
+            for (int i = 0; i < g.getNumGeometries(); i++) {
+                seqs.add(((LineString) g.getGeometryN(i)).getCoordinateSequence());
+            }
+            break;
+        case MULTIPOLYGON:
+            type = MULTIPOLYGON;
+            parts = (GeometryCollection) g;
+            break;
+        case GEOMETRYCOLLECTION:
+            type = GEOMETRYCOLLECTION;
+            parts = (GeometryCollection) g;
+            break;
+        default:
+            throw new IllegalArgumentException("Unsupported geometry: " + g);
+        }
+
+        FlatBuffer.Table t = fb.table(8);
+        if (seqs.size() > 1 && type != MULTIPOINT) {
+            t.ref(0);
+        }
+        if (!seqs.isEmpty()) {
+            t.ref(1);
+        }
+        t.add(6, 1, type);
+        if (parts != null) {
+            t.ref(7);
+        }
+        int table = t.end();
+
+        if (!seqs.isEmpty()) {
+            int n = 0, e = 0;
+            for (CoordinateSequence seq : seqs) {
+                n += seq.size();
+                if (e == ends.length) {
+                    ends = Arrays.copyOf(ends, e * 2);
+                }
+                ends[e++] = n;
+            }
+            if (xy.length < n * 2) {
+                xy = new double[Math.max(n * 2, xy.length * 2)];
+            }
+            int i = 0;
+            for (CoordinateSequence seq : seqs) {
+                for (int j = 0; j < seq.size(); j++) {
+                    xy[i++] = seq.getX(j);
+                    xy[i++] = seq.getY(j);
+                }
+            }
+
+            if (seqs.size() > 1 && type != MULTIPOINT) {
+                fb.patch(t.slot(0), fb.uints(ends, e));
+            }
+            fb.patch(t.slot(1), fb.doubles(xy, i));
+        }
+
+        if (parts != null) {
+            int vec = fb.offsets(parts.getNumGeometries());
+            fb.patch(t.slot(7), vec);
+            for (int i = 0; i < parts.getNumGeometries(); i++) {
+                fb.patch(vec + 4 + 4 * i, geometry(parts.getGeometryN(i)));
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Writes a property value, prefixed by its column index.
+     */
+    void value(int col, Object v) {
+        if (v == null) {
+            return;
+        }
+
+        int type = types.get(col);
+        if (type == STRING) {
+            fb.putShort(col);
+            string(v instanceof Date ? date((Date) v) : v.toString());
+            return;
+        }
+        if (type == DATETIME) {
+            if (!(v instanceof Date)) {
+                return;
+            }
+            fb.putShort(col);
+            string(date((Date) v));
+            return;
+        }
+        if (type == BINARY) {
+            if (!(v instanceof byte[])) {
+                return;
+            }
+            byte[] b = (byte[]) v;
+            fb.putShort(col);
+            fb.putInt(b.length);
+            fb.putBytes(b, 0, b.length);
+            return;
+        }
+        if (type == BOOL) {
+            if (!(v instanceof Boolean)) {
+                return;
+            }
+            fb.putShort(col);
+            fb.putByte((Boolean) v ? 1 : 0);
+            return;
+        }
+
+        Number n;
+        if (v instanceof Number) {
+            n = (Number) v;
+        }
+        else {
+            try {
+                n = new BigDecimal(v.toString());
+            }
+            catch(NumberFormatException e) {
+                return;
+            }
+        }
+
+        fb.putShort(col);
+        switch(type) {
+        case BYTE:
+            fb.putByte(n.byteValue());
+            break;
+        case SHORT:
+            fb.putShort(n.shortValue());
+            break;
+        case INT:
+            fb.putInt(n.intValue());
+            break;
+        case LONG:
+            fb.putLong(n.longValue());
+            break;
+        case FLOAT:
+            fb.putInt(Float.floatToRawIntBits(n.floatValue()));
+            break;
+        default:
+            fb.putLong(Double.doubleToRawLongBits(n.doubleValue()));
+        }
+    }
+
+    void string(String s) {
+        byte[] b = s.getBytes(FlatBuffer.UTF8);
+        fb.putInt(b.length);
+        fb.putBytes(b, 0, b.length);
+    }
+
+    String date(Date d) {
+        if (dateFormat == null) {
+            dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.ROOT);
+            dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        }
+        return dateFormat.format(d);
+    }
+
+    static int columnType(Class<?> type) {
+        if (type == null) {
+            return STRING;
+        }
+        if (Boolean.class.isAssignableFrom(type)) {
+            return BOOL;
+        }
+        if (Byte.class.isAssignableFrom(type)) {
+            return BYTE;
+        }
+        if (Short.class.isAssignableFrom(type)) {
+            return SHORT;
+        }
+        if (Integer.class.isAssignableFrom(type)) {
+            return INT;
+        }
+        if (Long.class.isAssignableFrom(type) || BigInteger.class.isAssignableFrom(type)) {
+            return LONG;
+        }
+        if (Float.class.isAssignableFrom(type)) {
+            return FLOAT;
+        }
+        if (Number.class.isAssignableFrom(type)) {
+            return DOUBLE;
+        }
+        if (Date.class.isAssignableFrom(type)) {
+            return DATETIME;
+        }
+        if (byte[].class.equals(type)) {
+            return BINARY;
+        }
+        return STRING;
+    }
+
+    static int geometryType(Class<?> type) {
+        if (type == null) {
+            return UNKNOWN;
+        }
+        if (Point.class.isAssignableFrom(type)) {
+            return POINT;
+        }
+        if (LineString.class.isAssignableFrom(type)) {
+            return LINESTRING;
+        }
+        if (Polygon.class.isAssignableFrom(type)) {
+            return POLYGON;
+        }
+        if (MultiPoint.class.isAssignableFrom(type)) {
+            return MULTIPOINT;
+        }
+        if (MultiLineString.class.isAssignableFrom(type)) {
+            return MULTILINESTRING;
+        }
+        if (MultiPolygon.class.isAssignableFrom(type)) {
+            return MULTIPOLYGON;
+        }
+        if (GeometryCollection.class.equals(type)) {
+            return GEOMETRYCOLLECTION;
+        }
+        return UNKNOWN;
+    }
+}
@@ -0,0 +1,318 @@
+/* Copyright 2014 The jeo project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jeo.nano;
+
+import static io.jeo.nano.NanoHTTPD.HTTP_BADREQUEST;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+
+import io.jeo.geojson.GeoJSONReader;
+import io.jeo.vector.Feature;
+
+/**
+ * Reads features one at a time from a stream of GeoJSON.
+ * <p>
+ * The stream is a single feature, a feature collection, or a sequence of features such as
+ * newline delimited GeoJSON or a GeoJSON text sequence. Features of a collection are read from
+ * its <tt>features</tt> array as they arrive, so only a single feature is held in memory at a
+ * time regardless of the size of the stream.
+ * </p>
+ */
+class GeoJSONStreamReader implements Closeable {
+
+    static final char RS = 0x1e;
+
+    final Reader in;
+    final GeoJSONReader reader = new GeoJSONReader();
+
+    final char[] buf = new char[8192];
+    int pos, lim;
+    long offset;
+
+    /** within the features array of a collection */
+    boolean features;
+
+    /** within the top level object of a collection, or a top level array */
+    boolean collection;
+
+    long count;
+
+    GeoJSONStreamReader(InputStream in) {
+        this(new InputStreamReader(in, Charset.forName("UTF-8")));
+    }
+
+    GeoJSONStreamReader(Reader in) {
+        this.in = in;
+    }
+
+    /**
+     * Number of features read so far.
+     */
+    public long count() {
+        return count;
+    }
+
+    /**
+     * Reads the next feature.
+     *
+     * @return The feature, or <tt>null</tt> at the end of the stream.
+     */
+    public Feature next() throws IOException {
+        String json = nextObject();
+        if (json == null) {
+            return null;
+        }
+
+        Object obj = reader.read(new StringReader(json));
+        if (!(obj instanceof Feature)) {
+            throw new HttpException(HTTP_BADREQUEST, "unable to add features from: " + obj);
+        }
+        count++;
+        return (Feature) obj;
+    }
+
+    String nextObject() throws IOException {
+        while (true) {
+            if (features) {
+                int c = skip(',');
+                if (c == ']') {
+                    read();
+                    features = false;
+                    if (collection) {
+                        // skip the members of the collection following the features
+                        members(null, false);
+                        collection = false;
+                    }
+                    continue;
+                }
+                if (c != '{') {
+                    throw invalid("expected feature");
+                }
+                StringBuilder sb = new StringBuilder();
+                value(sb);
+                return sb.toString();
+            }
+
+            int c = skip(RS);
+            if (c == -1) {
+                return null;
+            }
+            if (c == '[') {
+                // top level array of features
+                read();
+                features = true;
+                continue;
+            }
+            if (c != '{') {
+                throw invalid("expected GeoJSON object");
+            }
+
+            read();
+            StringBuilder sb = new StringBuilder("{");
+            if (members(sb, true)) {
+                // found the features array of a collection
+                features = true;
+                collection = true;
+                continue;
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Reads the members of an object up to and including its closing brace, appending them to
+     * <tt>sb</tt> if not <tt>null</tt>.
+     *
+     * @param first Whether reading starts at the first member.
+     *
+     * @return <tt>true</tt> if reading stopped at the start of a features array.
+     */
+    boolean members(StringBuilder sb, boolean first) throws IOException {
+        while (true) {
+            int c = skip((char)0);
+            if (c == '}') {
+                read();
+                append(sb, '}');
+                return false;
+            }
+            if (!first) {
+                if (c != ',') {
+                    throw invalid("expected ',' or '}'");
+                }
+                read();
+                c = skip((char)0);
+            }
+
+            if (c != '"') {
+                throw invalid("expected member name");
+            }
+            StringBuilder key = new StringBuilder();
+            string(key);
+
+            if (skip((char)0) != ':') {
+                throw invalid("expected ':'");
+            }
+            read();
+
+            if (sb != null && "\"features\"".equals(key.toString()) && skip((char)0) == '[') {
+                read();
+                return true;
+            }
+
+            if (!first) {
+                append(sb, ',');
+            }
+            append(sb, key);
+            append(sb, ':');
+            value(sb);
+            first = false;
+        }
+    }
+
+    /**
+     * Reads a value, appending its text to <tt>sb</tt> if not <tt>null</tt>.
+     */
+    void value(StringBuilder sb) throws IOException {
+        int c = skip((char)0);
+        if (c == '"') {
+            string(sb);
+            return;
+        }
+        if (c == '{' || c == '[') {
+            int depth = 0;
+            do {
+                c = skip((char)0);
+                if (c == -1) {
+                    throw invalid("unexpected end of input");
+                }
+                if (c == '"') {
+                    string(sb);
+                    continue;
+                }
+                read();
+                if (c == '{' || c == '[') {
+                    depth++;
+                }
+                else if (c == '}' || c == ']') {
+                    depth--;
+                }
+                append(sb, (char) c);
+            }
+            while (depth > 0);
+            return;
+        }
+
+        // number, true, false or null
+        int n = 0;
+        while (c != -1 && c != ',' && c != '}' && c != ']' && !Character.isWhitespace(c)) {
+            append(sb, (char) read());
+            c = peek();
+            n++;
+        }
+        if (n == 0) {
+            throw invalid("expected value");
+        }
+    }
+
+    /**
+     * Reads a string including its quotes.
+     */
+    void string(StringBuilder sb) throws IOException {
+        append(sb, (char) read());
+        while (true) {
+            int c = read();
+            if (c == -1) {
+                throw invalid("unterminated string");
+            }
+            append(sb, (char) c);
+            if (c == '\\') {
+                c = read();
+                if (c == -1) {
+                    throw invalid("unterminated string");
+                }
+                append(sb, (char) c);
+            }
+            else if (c == '"') {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Skips whitespace along with an optional separator, returning the next character without
+     * consuming it.
+     */
+    int skip(char sep) throws IOException {
+        int c = peek();
+        while (c != -1 && (Character.isWhitespace(c) || (sep != 0 && c == sep))) {
+            read();
+            c = peek();
+        }
+        return c;
+    }
+
+    int peek() throws IOException {
+        if (pos == lim && !fill()) {
+            return -1;
+        }
+        return buf[pos];
+    }
+
+    int read() throws IOException {
+        if (pos == lim && !fill()) {
+            return -1;
+        }
+        return buf[pos++];
+    }
+
+    boolean fill() throws IOException {
+        offset += lim;
+        pos = lim = 0;
+        int n = in.read(buf, 0, buf.length);
+        if (n <= 0) {
+            return false;
+        }
+        lim = n;
+        return true;
+    }
+
+    void append(StringBuilder sb, char c) {
+        if (sb != null) {
+            sb.append(c);
+        }
+    }
+
+    void append(StringBuilder sb, CharSequence s) {
+        if (sb != null) {
+            sb.append(s);
+        }
+    }
+
+    HttpException invalid(String msg) {
+        return new HttpException(HTTP_BADREQUEST,
+            "Invalid GeoJSON at character " + (offset + pos) + ": " + msg);
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -15,6 +15,7 @@
 package io.jeo.nano;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.nio.charset.Charset;
@@ -22,6 +23,7 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Callable;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -30,11 +32,15 @@ import io.jeo.data.DataRepository;
 import io.jeo.data.Workspace;
 import io.jeo.geom.Bounds;
 import io.jeo.map.CartoCSS;
+import io.jeo.map.MapBuilder;
 import io.jeo.map.Style;
 import static io.jeo.nano.NanoHTTPD.HTTP_BADREQUEST;
 import static io.jeo.nano.NanoHTTPD.HTTP_NOTFOUND;
+import static io.jeo.nano.NanoHTTPD.HTTP_OK;
 import io.jeo.nano.NanoHTTPD.Response;
 import io.jeo.proj.Proj;
+import io.jeo.render.RenderListener;
+import io.jeo.render.RendererFactory;
 import io.jeo.util.Pair;
 import org.osgeo.proj4j.CoordinateReferenceSystem;
 import org.osgeo.proj4j.UnknownAuthorityCodeException;
@@ -42,13 +48,256 @@ import org.osgeo.proj4j.UnsupportedParameterException;
 
 public abstract class Handler {
 
+    /**
+     * Guard bounding the number of concurrent renders.
+     */
+    protected RenderGuard renderGuard = RenderGuard.DEFAULT;
+
+    /**
+     * Seconds clients may cache responses for, -1 to leave caching to the client.
+     */
+    protected int maxAge = -1;
+
+    /**
+     * Cache of rendered images, <tt>null</tt> if rendered images are not cached.
+     */
+    protected ImageCache imageCache;
+
+    /**
+     * Default number of pixels above which rendered images are streamed.
+     */
+    public static final long DEFAULT_MAX_BUFFERED_PIXELS = 1024 * 1024;
+
+    /**
+     * Number of pixels above which rendered images are streamed to the client as they are
+     * rendered rather than buffered.
+     */
+    protected long maxBufferedPixels = DEFAULT_MAX_BUFFERED_PIXELS;
+
+    /**
+     * Coalescer of identical concurrent renders, <tt>null</tt> if renders are not coalesced.
+     */
+    protected SingleFlight singleFlight;
+
+    /**
+     * Cache of capabilities documents and layer metadata, <tt>null</tt> if not cached.
+     */
+    protected CapabilitiesCache capabilitiesCache;
+
+    /**
+     * Metrics renders are recorded to, <tt>null</tt> if not recorded.
+     */
+    protected Metrics metrics;
+
+    /**
+     * Index of the features last rendered, <tt>null</tt> if rendered features are not indexed.
+     */
+    protected FeatureIndex featureIndex;
+
+    /**
+     * Pool streamed renders are executed on, <tt>null</tt> to render on the request thread.
+     */
+    protected RenderPool renderPool;
+
     public void init(NanoServer server) {
+        imageCache = server.getImageCache();
+        singleFlight = server.getSingleFlight();
+        capabilitiesCache = server.getCapabilitiesCache();
+        metrics = server.getMetrics();
+        featureIndex = server.getFeatureIndex();
+        renderPool = server.getRenderPool();
+    }
+
+    public RenderGuard getRenderGuard() {
+        return renderGuard;
+    }
+
+    public void setRenderGuard(RenderGuard renderGuard) {
+        this.renderGuard = renderGuard;
+    }
+
+    public ImageCache getImageCache() {
+        return imageCache;
+    }
+
+    public void setImageCache(ImageCache imageCache) {
+        this.imageCache = imageCache;
+    }
+
+    public SingleFlight getSingleFlight() {
+        return singleFlight;
+    }
+
+    public void setSingleFlight(SingleFlight singleFlight) {
+        this.singleFlight = singleFlight;
+    }
+
+    public CapabilitiesCache getCapabilitiesCache() {
+        return capabilitiesCache;
+    }
+
+    public void setCapabilitiesCache(CapabilitiesCache capabilitiesCache) {
+        this.capabilitiesCache = capabilitiesCache;
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public FeatureIndex getFeatureIndex() {
+        return featureIndex;
+    }
+
+    public void setFeatureIndex(FeatureIndex featureIndex) {
+        this.featureIndex = featureIndex;
+    }
+
+    /**
+     * Computes a response, sharing it with identical requests in flight when renders are
+     * coalesced.
+     *
+     * @param key The normalized signature of the request.
+     */
+    protected Response coalesce(String key, Callable<Response> task) throws IOException {
+        if (singleFlight != null) {
+            return singleFlight.execute(key, task);
+        }
+
+        try {
+            return task.call();
+        }
+        catch(IOException e) {
+            throw e;
+        }
+        catch(RuntimeException e) {
+            throw e;
+        }
+        catch(Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    public long getMaxBufferedPixels() {
+        return maxBufferedPixels;
+    }
+
+    public void setMaxBufferedPixels(long maxBufferedPixels) {
+        this.maxBufferedPixels = maxBufferedPixels;
+    }
+
+    /**
+     * Determines if an image of the given size is streamed rather than buffered.
+     * <p>
+     * Streamed images are rendered while the response is sent, so they are neither cached nor
+     * coalesced.
+     * </p>
+     */
+    protected boolean isStreamed(int width, int height) {
+        return (long) width * height > maxBufferedPixels;
+    }
+
+    /**
+     * Renders a map, closing it once rendered.
+     * <p>
+     * Large images, see {@link #isStreamed(int, int)}, are rendered straight into the response
+     * output as it is sent, on the render pool like any expensive request, and shed with a
+     * <tt>503</tt> when it is overloaded. Failures occurring before the first bytes are sent are
+     * still answered with an error status. Other images are rendered into a buffer sent as is.
+     * </p>
+     */
+    protected Response renderMap(RendererFactory<?> factory, MapBuilder mb, String mimeType,
+        int width, int height) throws IOException {
+        return renderMap(factory, mb, mimeType, width, height, null);
+    }
+
+    /**
+     * Renders a map, notifying a listener as it is rendered.
+     *
+     * @param listener The listener, may be <tt>null</tt>.
+     *
+     * @see #renderMap(RendererFactory, MapBuilder, String, int, int)
+     */
+    protected Response renderMap(RendererFactory<?> factory, MapBuilder mb, String mimeType,
+        int width, int height, RenderListener listener) throws IOException {
+        if (isStreamed(width, height)) {
+            // rendered once the request has left the render pool, as the response is sent
+            return new Response(HTTP_OK, mimeType,
+                new RenderContent(factory, mb, renderGuard, metrics, listener, renderPool));
+        }
+
+        RenderContent content = new RenderContent(factory, mb, renderGuard, metrics, listener);
+
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        try {
+            content.write(bout);
+        }
+        finally {
+            content.close();
+        }
+
+        Response r = new Response(HTTP_OK, mimeType, new Response.BufferContent(bout));
+        r.addHeader("Content-Length", String.valueOf(bout.size()));
+        return r;
+    }
+
+    public int getMaxAge() {
+        return maxAge;
+    }
+
+    /**
+     * Sets the number of seconds clients may cache successful responses of the handler for,
+     * sent as the <tt>max-age</tt> of the <tt>Cache-Control</tt> header. A negative value
+     * sends no <tt>Cache-Control</tt> header.
+     */
+    public void setMaxAge(int maxAge) {
+        this.maxAge = maxAge;
     }
 
     public abstract boolean canHandle(Request request, NanoServer server);
 
     public abstract Response handle(Request request, NanoServer server) throws Exception;
 
+    /**
+     * Whether the request is cpu heavy, such as a render, and should be run on the render pool
+     * of the server rather than alongside cheap requests.
+     * <p>
+     * Called after {@link #canHandle(Request, NanoServer)} has matched the request.
+     * </p>
+     */
+    public boolean isExpensive(Request request) {
+        return false;
+    }
+
+    /**
+     * Whether the body of the request is read by the handler as it arrives, from
+     * {@link Request#getBody()}, rather than saved to a temporary file up front.
+     * <p>
+     * Called after {@link #canHandle(Request, NanoServer)} has matched the request, before its
+     * body is read.
+     * </p>
+     */
+    public boolean streamsBody(Request request) {
+        return false;
+    }
+
+    /**
+     * Returns a validator for the response to a request without producing the response.
+     * <p>
+     * Handlers able to cheaply determine if a resource has changed, from a file modified time or
+     * a version for instance, override this method so conditional requests are answered with
+     * <tt>304 Not Modified</tt> without touching the data. Handlers can also add validators to
+     * the responses they produce with {@link Validator#apply(Response)}.
+     * </p>
+     * @return The validator, or <tt>null</tt> if the handler can't provide one up front.
+     */
+    public Validator validator(Request request, NanoServer server) throws IOException {
+        return null;
+    }
+
     protected boolean match(Request request, Pattern pattern) {
         Matcher m = pattern.matcher(request.getUri());
         if (m.matches()) {
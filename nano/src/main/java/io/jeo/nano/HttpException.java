@@ -14,6 +14,8 @@
  */
 package io.jeo.nano;
 
+import java.util.Properties;
+
 import io.jeo.nano.NanoHTTPD.Response;
 
 public class HttpException extends RuntimeException {
@@ -24,6 +26,7 @@ public class HttpException extends RuntimeException {
     String status;
     String mimeType;
     String content;
+    Properties headers;
 
     public HttpException(String status, String content) {
         this(status, content, NanoHTTPD.MIME_PLAINTEXT);
@@ -35,7 +38,24 @@ public class HttpException extends RuntimeException {
         this.mimeType = mimeType;
     }
 
+    /**
+     * Adds a header to the response sent for the exception.
+     */
+    public HttpException header(String name, String value) {
+        if (headers == null) {
+            headers = new Properties();
+        }
+        headers.setProperty(name, value);
+        return this;
+    }
+
     public Response toResponse() {
-        return new Response(status, mimeType, content);
+        Response r = new Response(status, mimeType, content);
+        if (headers != null) {
+            for (String name : headers.stringPropertyNames()) {
+                r.addHeader(name, headers.getProperty(name));
+            }
+        }
+        return r;
     }
 }
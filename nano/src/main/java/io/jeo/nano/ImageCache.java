@@ -0,0 +1,594 @@
+/* Copyright 2014 The jeo project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jeo.nano;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.jeo.nano.NanoHTTPD.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static io.jeo.nano.NanoHTTPD.HTTP_OK;
+
+/**
+ * Cache of rendered images, keyed by a normalized signature of the request that produced them.
+ * <p>
+ * The cache has two tiers. An in memory tier, a least recently used map bounded by the number of
+ * bytes of image data it holds, and an optional disk tier that stores images in a directory
+ * hashed by key. Disk entries are written to a temporary file and moved into place so that
+ * readers never see a partially written image. Images found on disk are promoted to memory.
+ * </p>
+ * <p>
+ * Every entry is tagged with the layers and styles it was rendered from so that entries can be
+ * invalidated when a layer or style changes, see {@link #invalidateLayer(String, String)} and
+ * {@link #invalidateStyle(String)}. Entries also expire after the time to live of the cache.
+ * </p>
+ * <p>
+ * Instances of this class are thread safe.
+ * </p>
+ */
+public class ImageCache {
+
+    static final Logger LOG = LoggerFactory.getLogger(NanoServer.class);
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Default size of the memory tier, 64MB.
+     */
+    public static final long DEFAULT_MAX_BYTES = 64 * 1024 * 1024;
+
+    /**
+     * Default time to live of cached images, 5 minutes.
+     */
+    public static final long DEFAULT_TTL = 5 * 60 * 1000;
+
+    /**
+     * Header of entries on disk, changed along with their layout so older entries are ignored.
+     */
+    static final int MAGIC = 0x6a656f4a;
+
+    final long maxBytes;
+    final long ttl;
+    final File dir;
+
+    final LinkedHashMap<String,Entry> entries = new LinkedHashMap<String,Entry>(64, 0.75f, true);
+    long bytes = 0;
+
+    final AtomicLong hits = new AtomicLong();
+    final AtomicLong diskHits = new AtomicLong();
+    final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Creates a memory only cache with the default size and time to live.
+     */
+    public ImageCache() {
+        this(DEFAULT_MAX_BYTES, DEFAULT_TTL, null);
+    }
+
+    /**
+     * Creates a new cache.
+     *
+     * @param maxBytes Maximum number of bytes of images held in memory.
+     * @param ttl Milliseconds images are cached for, <tt>0</tt> to cache until invalidated.
+     * @param dir Directory of the disk tier, <tt>null</tt> for no disk tier.
+     */
+    public ImageCache(long maxBytes, long ttl, File dir) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("cache size must be positive");
+        }
+        this.maxBytes = maxBytes;
+        this.ttl = ttl;
+        this.dir = dir;
+
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IllegalArgumentException("Unable to create cache directory: " + dir.getPath());
+        }
+    }
+
+    /**
+     * Creates the key of a request, from the handler path and the request parameters.
+     * <p>
+     * Parameter names are lower cased and sorted so that equivalent requests share a key.
+     * </p>
+     */
+    public static String key(String path, Properties parms) {
+        Map<String,String> sorted = new TreeMap<String, String>();
+        if (parms != null) {
+            for (String name : parms.stringPropertyNames()) {
+                sorted.put(name.toLowerCase(Locale.ROOT), parms.getProperty(name));
+            }
+        }
+
+        StringBuilder sb = new StringBuilder(path);
+        for (Map.Entry<String,String> e : sorted.entrySet()) {
+            sb.append('&').append(e.getKey()).append('=').append(e.getValue());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Tag of a layer, used to invalidate entries rendered from the layer.
+     */
+    public static String layerTag(String workspace, String layer) {
+        return "layer:" + workspace + ":" + (layer != null ? layer : workspace);
+    }
+
+    /**
+     * Tag of a style, used to invalidate entries rendered with the style.
+     */
+    public static String styleTag(String style) {
+        return "style:" + style;
+    }
+
+    /**
+     * Returns the cached response for a key, or <tt>null</tt> if there is no current entry.
+     */
+    public Response get(String key) {
+        Entry e;
+        synchronized (this) {
+            e = entries.get(key);
+            if (e != null && expired(e)) {
+                remove(key);
+                e = null;
+            }
+        }
+
+        if (e != null) {
+            hits.incrementAndGet();
+            return e.response("HIT");
+        }
+
+        if (dir != null) {
+            e = readFromDisk(key);
+            if (e != null) {
+                diskHits.incrementAndGet();
+                putInMemory(key, e);
+                return e.response("HIT");
+            }
+        }
+
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Caches a response, returning a response to send in its place.
+     * <p>
+     * The response content is read fully, responses other than <tt>200 OK</tt> are not cached
+     * and returned as is.
+     * </p>
+     * @param key The request key.
+     * @param tags The layer and style tags of the request.
+     */
+    public Response put(String key, Set<String> tags, Response response) throws IOException {
+        if (response == null || !HTTP_OK.equals(response.status) || response.data == null) {
+            return response;
+        }
+
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        try {
+            response.data.write(bout);
+        }
+        finally {
+            response.data.close();
+        }
+
+        Response r = put(key, tags, response.mimeType, bout.toByteArray());
+        r.toClose = response.toClose;
+        return r;
+    }
+
+    /**
+     * Caches an image, returning a response for it.
+     *
+     * @param key The request key.
+     * @param tags The layer and style tags of the image.
+     * @param mimeType The format of the image.
+     * @param data The encoded image.
+     */
+    public Response put(String key, Set<String> tags, String mimeType, byte[] data) {
+        Entry e = new Entry(mimeType, data, tags, System.currentTimeMillis());
+        putInMemory(key, e);
+        if (dir != null) {
+            writeToDisk(key, e);
+        }
+        return e.response("MISS");
+    }
+
+    /**
+     * Determines if there is a current entry for a key, without counting a hit or miss.
+     */
+    public boolean contains(String key) {
+        synchronized (this) {
+            Entry e = entries.get(key);
+            if (e != null && !expired(e)) {
+                return true;
+            }
+        }
+        return dir != null && readFromDisk(key) != null;
+    }
+
+    /**
+     * Removes all entries rendered from a layer.
+     *
+     * @param layer The layer, <tt>null</tt> for all layers of the workspace.
+     */
+    public void invalidateLayer(String workspace, String layer) {
+        if (layer != null) {
+            invalidate(layerTag(workspace, layer), false);
+        }
+        else {
+            invalidate("layer:" + workspace + ":", true);
+        }
+    }
+
+    /**
+     * Removes all entries rendered with a style.
+     */
+    public void invalidateStyle(String style) {
+        invalidate(styleTag(style));
+    }
+
+    /**
+     * Removes all entries carrying a tag.
+     */
+    public void invalidate(String tag) {
+        invalidate(tag, false);
+    }
+
+    /**
+     * Removes all entries carrying a tag, or a tag starting with <tt>tag</tt> if <tt>prefix</tt>
+     * is set.
+     */
+    void invalidate(String tag, boolean prefix) {
+        synchronized (this) {
+            for (Iterator<Entry> it = entries.values().iterator(); it.hasNext();) {
+                Entry e = it.next();
+                if (tagged(e, tag, prefix)) {
+                    bytes -= e.data.length;
+                    it.remove();
+                }
+            }
+        }
+
+        if (dir != null) {
+            invalidateOnDisk(dir, tag, prefix);
+        }
+    }
+
+    static boolean tagged(Entry e, String tag, boolean prefix) {
+        if (!prefix) {
+            return e.tags.contains(tag);
+        }
+        for (String t : e.tags) {
+            if (t.startsWith(tag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Removes all entries.
+     */
+    public void clear() {
+        synchronized (this) {
+            entries.clear();
+            bytes = 0;
+        }
+
+        if (dir != null) {
+            clearOnDisk(dir);
+        }
+    }
+
+    /**
+     * Number of requests answered from memory.
+     */
+    public long hits() {
+        return hits.get();
+    }
+
+    /**
+     * Number of requests answered from disk.
+     */
+    public long diskHits() {
+        return diskHits.get();
+    }
+
+    /**
+     * Number of requests not found in the cache.
+     */
+    public long misses() {
+        return misses.get();
+    }
+
+    /**
+     * Number of entries held in memory.
+     */
+    public synchronized int count() {
+        return entries.size();
+    }
+
+    /**
+     * Number of bytes of images held in memory.
+     */
+    public synchronized long size() {
+        return bytes;
+    }
+
+    boolean expired(Entry e) {
+        return ttl > 0 && System.currentTimeMillis() - e.created > ttl;
+    }
+
+    synchronized void putInMemory(String key, Entry e) {
+        Entry old = entries.put(key, e);
+        if (old != null) {
+            bytes -= old.data.length;
+        }
+        bytes += e.data.length;
+
+        Iterator<Entry> it = entries.values().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            Entry eldest = it.next();
+            if (eldest == e) {
+                break;
+            }
+            bytes -= eldest.data.length;
+            it.remove();
+        }
+    }
+
+    void remove(String key) {
+        Entry e = entries.remove(key);
+        if (e != null) {
+            bytes -= e.data.length;
+        }
+    }
+
+    File file(String key) {
+        String hash = hash(key);
+        return new File(new File(new File(dir, hash.substring(0, 2)), hash.substring(2, 4)), hash);
+    }
+
+    Entry readFromDisk(String key) {
+        File f = file(key);
+        if (!f.exists()) {
+            return null;
+        }
+
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+            try {
+                Entry e = read(in, true);
+                if (e == null || !key.equals(e.key)) {
+                    return null;
+                }
+                if (expired(e)) {
+                    f.delete();
+                    return null;
+                }
+                return e;
+            }
+            finally {
+                in.close();
+            }
+        }
+        catch(IOException ex) {
+            LOG.debug("Error reading cache entry " + f.getPath(), ex);
+            return null;
+        }
+    }
+
+    void writeToDisk(String key, Entry e) {
+        File f = file(key);
+        File parent = f.getParentFile();
+        parent.mkdirs();
+
+        try {
+            File tmp = File.createTempFile(f.getName(), ".tmp", parent);
+            try {
+                DataOutputStream out =
+                    new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+                try {
+                    out.writeInt(MAGIC);
+                    write(out, key);
+                    out.writeLong(e.created);
+                    write(out, e.mimeType != null ? e.mimeType : "");
+                    out.writeInt(e.tags.size());
+                    for (String tag : e.tags) {
+                        write(out, tag);
+                    }
+                    out.writeInt(e.data.length);
+                    out.write(e.data);
+                }
+                finally {
+                    out.close();
+                }
+
+                Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+            }
+            finally {
+                if (tmp.exists()) {
+                    tmp.delete();
+                }
+            }
+        }
+        catch(IOException ex) {
+            LOG.debug("Error writing cache entry " + f.getPath(), ex);
+        }
+    }
+
+    /**
+     * Reads an entry from disk, optionally skipping the image data.
+     */
+    Entry read(DataInputStream in, boolean data) throws IOException {
+        if (in.readInt() != MAGIC) {
+            return null;
+        }
+
+        String key = read(in);
+        long created = in.readLong();
+        String mimeType = read(in);
+
+        int n = in.readInt();
+        Set<String> tags = new TreeSet<String>();
+        for (int i = 0; i < n; i++) {
+            tags.add(read(in));
+        }
+
+        byte[] bytes = null;
+        if (data) {
+            bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+        }
+
+        Entry e = new Entry(mimeType.isEmpty() ? null : mimeType, bytes, tags, created);
+        e.key = key;
+        return e;
+    }
+
+    /**
+     * Writes a string as its length followed by its UTF-8 bytes, unlike
+     * {@link DataOutputStream#writeUTF(String)} not limited to 64KB, as keys holding long filters
+     * or lists of layers can be.
+     */
+    static void write(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String read(DataInputStream in) throws IOException {
+        int n = in.readInt();
+        if (n < 0 || n > in.available()) {
+            throw new IOException("Invalid string length: " + n);
+        }
+        byte[] bytes = new byte[n];
+        in.readFully(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    void invalidateOnDisk(File d, String tag, boolean prefix) {
+        File[] files = d.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        for (File f : files) {
+            if (f.isDirectory()) {
+                invalidateOnDisk(f, tag, prefix);
+                continue;
+            }
+
+            boolean delete = false;
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+                try {
+                    Entry e = read(in, false);
+                    delete = e == null || tagged(e, tag, prefix) || expired(e);
+                }
+                finally {
+                    in.close();
+                }
+            }
+            catch(IOException ex) {
+                delete = true;
+            }
+
+            if (delete) {
+                f.delete();
+            }
+        }
+    }
+
+    void clearOnDisk(File d) {
+        File[] files = d.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File f : files) {
+            if (f.isDirectory()) {
+                clearOnDisk(f);
+            }
+            if (!f.equals(dir)) {
+                f.delete();
+            }
+        }
+    }
+
+    static String hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes(UTF8));
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        }
+        catch(NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static class Entry {
+        String key;
+        final String mimeType;
+        final byte[] data;
+        final Set<String> tags;
+        final long created;
+
+        Entry(String mimeType, byte[] data, Set<String> tags, long created) {
+            this.mimeType = mimeType;
+            this.data = data;
+            this.tags = tags != null ? Collections.unmodifiableSet(new TreeSet<String>(tags))
+                : Collections.<String>emptySet();
+            this.created = created;
+        }
+
+        Response response(String status) {
+            Response r = new Response(HTTP_OK, mimeType, new ByteArrayInputStream(data));
+            r.addHeader("Content-Length", String.valueOf(data.length));
+            r.addHeader("X-Cache", status);
+            return r;
+        }
+    }
+}
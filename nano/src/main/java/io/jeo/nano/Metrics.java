@@ -0,0 +1,185 @@
+/* Copyright 2014 The jeo project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jeo.nano;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Request and render metrics of the server, exposed by {@link MetricsHandler}.
+ * <p>
+ * Recording is lock free: series are looked up in concurrent maps, created once per handler
+ * and status, and updated with atomic increments.
+ * </p>
+ */
+public class Metrics {
+
+    /** request latencies keyed by handler name and status code, separated by a space */
+    final ConcurrentMap<String,Histogram> requests = new ConcurrentHashMap<String, Histogram>();
+    final ConcurrentMap<String,AtomicLong> bytes = new ConcurrentHashMap<String, AtomicLong>();
+    final AtomicInteger inFlight = new AtomicInteger();
+
+    final Histogram renderWait = new Histogram();
+    final Histogram render = new Histogram();
+
+    /**
+     * Signals a request started being served.
+     */
+    public void started() {
+        inFlight.incrementAndGet();
+    }
+
+    /**
+     * Records a request once its response has been written.
+     *
+     * @param handler The name of the handler of the request.
+     * @param status The status of the response.
+     * @param nanos Nanoseconds taken to serve the request.
+     * @param written Number of bytes written, including headers.
+     * @param started Whether {@link #started()} was called for the request.
+     */
+    public void completed(String handler, String status, long nanos, long written, boolean started) {
+        if (started) {
+            inFlight.decrementAndGet();
+        }
+
+        String code = status != null && status.length() >= 3 ? status.substring(0, 3) : "000";
+        series(requests, handler + " " + code).record(nanos);
+
+        AtomicLong b = bytes.get(handler);
+        if (b == null) {
+            AtomicLong created = new AtomicLong();
+            b = bytes.putIfAbsent(handler, created);
+            if (b == null) {
+                b = created;
+            }
+        }
+        b.addAndGet(written);
+    }
+
+    /**
+     * Records the time a render waited to be admitted by the {@link RenderGuard}, and the time
+     * it then took.
+     */
+    public void rendered(long waitNanos, long renderNanos) {
+        renderWait.record(waitNanos);
+        render.record(renderNanos);
+    }
+
+    /**
+     * Number of requests being served.
+     */
+    public int inFlight() {
+        return inFlight.get();
+    }
+
+    static Histogram series(ConcurrentMap<String,Histogram> map, String key) {
+        Histogram h = map.get(key);
+        if (h == null) {
+            Histogram created = new Histogram();
+            h = map.putIfAbsent(key, created);
+            if (h == null) {
+                h = created;
+            }
+        }
+        return h;
+    }
+
+    /**
+     * Latency histogram with log linear buckets, in the manner of HdrHistogram.
+     * <p>
+     * Values are recorded in microseconds. Every power of two is split into
+     * {@link #SUB_BUCKETS} buckets of equal width, bounding the relative error of a value to
+     * <tt>1 / SUB_BUCKETS</tt>, 12.5%, with a fixed number of buckets. Values of
+     * <tt>2^MAX_EXPONENT</tt> microseconds, about 19 hours, or more fall in the last bucket.
+     * </p>
+     */
+    public static class Histogram {
+
+        static final int SUB_BITS = 3;
+        static final int SUB_BUCKETS = 1 << SUB_BITS;
+        static final int MAX_EXPONENT = 36;
+        static final int BUCKETS = SUB_BUCKETS * (MAX_EXPONENT - SUB_BITS + 1);
+
+        final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        final AtomicLong sum = new AtomicLong();
+
+        /**
+         * Records a value, in nanoseconds.
+         */
+        public void record(long nanos) {
+            long micros = Math.max(0, nanos / 1000);
+            counts.incrementAndGet(bucket(micros));
+            sum.addAndGet(micros);
+        }
+
+        /**
+         * Number of values recorded.
+         */
+        public long count() {
+            long n = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                n += counts.get(i);
+            }
+            return n;
+        }
+
+        /**
+         * Number of values recorded that are lower than a value, in microseconds, which must
+         * be a bucket boundary, see {@link #lower(int)}.
+         */
+        public long countBelow(long micros) {
+            long n = 0;
+            for (int i = 0, b = bucket(micros); i < b; i++) {
+                n += counts.get(i);
+            }
+            return n;
+        }
+
+        /**
+         * Sum of the values recorded, in microseconds.
+         */
+        public long sum() {
+            return sum.get();
+        }
+
+        static int bucket(long micros) {
+            if (micros < SUB_BUCKETS) {
+                return (int) micros;
+            }
+            int exp = 63 - Long.numberOfLeadingZeros(micros);
+            if (exp >= MAX_EXPONENT) {
+                return BUCKETS - 1;
+            }
+            int sub = (int) (micros >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1);
+            return SUB_BUCKETS * (exp - SUB_BITS + 1) + sub;
+        }
+
+        /**
+         * Lowest value of a bucket, in microseconds.
+         */
+        static long lower(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int exp = bucket / SUB_BUCKETS + SUB_BITS - 1;
+            int sub = bucket % SUB_BUCKETS;
+            return (long) (SUB_BUCKETS + sub) << (exp - SUB_BITS);
+        }
+    }
+}
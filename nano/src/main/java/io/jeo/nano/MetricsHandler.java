@@ -0,0 +1,301 @@
+/* Copyright 2014 The jeo project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jeo.nano;
+
+import static io.jeo.nano.NanoHTTPD.HTTP_OK;
+
+import java.math.BigDecimal;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import io.jeo.nano.Metrics.Histogram;
+import io.jeo.nano.NanoHTTPD.Response;
+
+/**
+ * Handler exposing the metrics of the server in the Prometheus text format.
+ * <p>
+ * <tt>GET /metrics</tt> reports request latencies per handler and status, bytes written, the
+ * load of the request executor and render pool, render timings, and the counters of the
+ * caches of the server. See {@link Metrics}.
+ * </p>
+ */
+public class MetricsHandler extends Handler {
+
+    static final Pattern METRICS_URI_RE = Pattern.compile("/metrics/?", Pattern.CASE_INSENSITIVE);
+
+    static final String MIME_PROMETHEUS = "text/plain; version=0.0.4; charset=utf-8";
+
+    /**
+     * Bounds of the histogram buckets exposed, powers of two of microseconds. Buckets are
+     * exposed at every bucket boundary in between, from 128us to 32s, eight per power of two
+     * so that quantiles estimated from them are within the error of the histogram.
+     */
+    static final int MIN_EXPONENT = 7;
+    static final int MAX_EXPONENT = 25;
+
+    @Override
+    public boolean canHandle(Request request, NanoServer server) {
+        return match(request, METRICS_URI_RE);
+    }
+
+    @Override
+    public Response handle(Request request, NanoServer server) throws Exception {
+        Exposition out = new Exposition();
+
+        Metrics m = server.getMetrics();
+        if (m != null) {
+            out.type("nano_requests_in_flight", "gauge", "Requests being served.");
+            out.sample("nano_requests_in_flight", "", m.inFlight());
+
+            out.type("nano_request_duration_seconds", "histogram",
+                "Time to serve requests, until the response is written.");
+            for (Map.Entry<String,Histogram> e : new TreeMap<String, Histogram>(m.requests).entrySet()) {
+                String[] key = e.getKey().split(" ", 2);
+                out.histogram("nano_request_duration_seconds",
+                    out.labels("handler", key[0], "code", key[1]), e.getValue());
+            }
+
+            out.type("nano_response_bytes_total", "counter", "Bytes written in responses.");
+            for (Map.Entry<String,AtomicLong> e : new TreeMap<String, AtomicLong>(m.bytes).entrySet()) {
+                out.sample("nano_response_bytes_total", out.labels("handler", e.getKey()),
+                    e.getValue().get());
+            }
+
+            out.type("nano_render_wait_seconds", "histogram",
+                "Time renders waited to be admitted by the render guard.");
+            out.histogram("nano_render_wait_seconds", "", m.renderWait);
+            out.type("nano_render_duration_seconds", "histogram", "Time spent rendering.");
+            out.histogram("nano_render_duration_seconds", "", m.render);
+        }
+
+        ExecutorService executor = server.getExecutor();
+        if (executor instanceof ThreadPoolExecutor) {
+            ThreadPoolExecutor tpe = (ThreadPoolExecutor) executor;
+            out.gauge("nano_executor_active_threads", "Threads serving requests.",
+                tpe.getActiveCount());
+            out.gauge("nano_executor_pool_threads", "Threads of the request executor.",
+                tpe.getPoolSize());
+            out.gauge("nano_executor_queued_tasks", "Requests waiting for a thread.",
+                tpe.getQueue().size());
+        }
+
+        RenderPool pool = server.getRenderPool();
+        if (pool != null) {
+            out.gauge("nano_render_pool_active_tasks", "Requests executing on the render pool.",
+                pool.active());
+            out.gauge("nano_render_pool_queued_tasks", "Requests waiting on the render pool.",
+                pool.queued());
+            out.counter("nano_render_pool_completed_total",
+                "Requests executed, or shed, by the render pool.", pool.completed());
+            out.counter("nano_render_pool_rejected_total", "Requests shed by the render pool.",
+                pool.rejected());
+        }
+
+        if (renderGuard != null) {
+            out.gauge("nano_render_guard_max", "Maximum number of concurrent renders.",
+                renderGuard.getMaxRenders());
+            out.gauge("nano_render_guard_available", "Renders that may start without waiting.",
+                renderGuard.available());
+        }
+
+        ImageCache images = server.getImageCache();
+        if (images != null) {
+            out.type("nano_image_cache_hits_total", "counter", "Images answered from the cache.");
+            out.sample("nano_image_cache_hits_total", out.labels("tier", "memory"), images.hits());
+            out.sample("nano_image_cache_hits_total", out.labels("tier", "disk"), images.diskHits());
+            out.counter("nano_image_cache_misses_total", "Images not found in the cache.",
+                images.misses());
+            out.gauge("nano_image_cache_entries", "Images held in memory.", images.count());
+            out.gauge("nano_image_cache_bytes", "Bytes of images held in memory.", images.size());
+        }
+
+        SingleFlight flights = server.getSingleFlight();
+        if (flights != null) {
+            out.counter("nano_single_flight_executed_total", "Renders executed.",
+                flights.executed());
+            out.counter("nano_single_flight_coalesced_total",
+                "Renders answered with the result of a concurrent identical render.",
+                flights.coalesced());
+            out.counter("nano_single_flight_timeouts_total",
+                "Renders that timed out waiting for a concurrent identical render.",
+                flights.timeouts());
+            out.gauge("nano_single_flight_in_flight", "Renders in flight.", flights.inFlight());
+        }
+
+        CapabilitiesCache caps = server.getCapabilitiesCache();
+        if (caps != null) {
+            out.counter("nano_capabilities_cache_hits_total",
+                "Capabilities documents answered from the cache.", caps.hits());
+            out.counter("nano_capabilities_cache_misses_total", "Capabilities documents built.",
+                caps.misses());
+            out.counter("nano_capabilities_layer_hits_total",
+                "Layer metadata lookups answered from the cache.", caps.layerHits());
+            out.counter("nano_capabilities_layer_misses_total", "Layer metadata computed.",
+                caps.layerMisses());
+            out.gauge("nano_capabilities_cache_documents", "Capabilities documents cached.",
+                caps.count());
+        }
+
+        FeatureIndex index = server.getFeatureIndex();
+        if (index != null) {
+            out.counter("nano_feature_index_hits_total",
+                "Identify requests answered from the index of rendered features.", index.hits());
+            out.counter("nano_feature_index_misses_total",
+                "Identify requests on views not indexed.", index.misses());
+            out.counter("nano_feature_index_overflows_total",
+                "Renders that drew too many features to be indexed.", index.overflows());
+            out.gauge("nano_feature_index_views", "Views indexed.", index.count());
+        }
+
+        long open = 0, parked = 0, resumed = 0, expired = 0, missed = 0;
+        long clusterHits = 0, clusterMisses = 0, hierarchies = 0;
+        boolean paged = false, clustered = false;
+        for (Handler h : server.getHandlers()) {
+            FeaturePager pager = h instanceof FeatureHandler ? ((FeatureHandler) h).getPager() : null;
+            if (pager != null) {
+                paged = true;
+                open += pager.open();
+                parked += pager.parked();
+                resumed += pager.resumed();
+                expired += pager.expired();
+                missed += pager.missed();
+            }
+            PointClusters clusters =
+                h instanceof FeatureHandler ? ((FeatureHandler) h).getClusters() : null;
+            if (clusters != null) {
+                clustered = true;
+                clusterHits += clusters.hits();
+                clusterMisses += clusters.misses();
+                hierarchies += clusters.count();
+            }
+        }
+        if (paged) {
+            out.gauge("nano_feature_pager_open_cursors", "Cursors parked between pages.", open);
+            out.counter("nano_feature_pager_parked_total", "Cursors parked.", parked);
+            out.counter("nano_feature_pager_resumed_total", "Pages read by resuming a cursor.",
+                resumed);
+            out.counter("nano_feature_pager_expired_total", "Cursors closed unused.", expired);
+            out.counter("nano_feature_pager_missed_total",
+                "Pages read with an offset since their cursor was no longer open.", missed);
+        }
+        if (clustered) {
+            out.counter("nano_feature_clusters_hits_total",
+                "Cluster requests answered from a cached hierarchy.", clusterHits);
+            out.counter("nano_feature_clusters_misses_total", "Cluster hierarchies loaded.",
+                clusterMisses);
+            out.gauge("nano_feature_clusters_hierarchies", "Cluster hierarchies cached.",
+                hierarchies);
+        }
+
+        Response r = new Response(HTTP_OK, MIME_PROMETHEUS, out.toString());
+        r.addHeader("Cache-Control", "no-cache");
+        return r;
+    }
+
+    /**
+     * Writer of metrics in the Prometheus text exposition format.
+     */
+    static class Exposition {
+
+        final StringBuilder sb = new StringBuilder();
+
+        void type(String name, String type, String help) {
+            sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        }
+
+        void gauge(String name, String help, long value) {
+            type(name, "gauge", help);
+            sample(name, "", value);
+        }
+
+        void counter(String name, String help, long value) {
+            type(name, "counter", help);
+            sample(name, "", value);
+        }
+
+        void sample(String name, String labels, long value) {
+            sb.append(name).append(labels).append(' ').append(value).append('\n');
+        }
+
+        void sample(String name, String labels, String value) {
+            sb.append(name).append(labels).append(' ').append(value).append('\n');
+        }
+
+        /**
+         * Writes the cumulative buckets of a histogram, with its sum and count.
+         *
+         * @param labels The labels of the histogram, as returned by {@link #labels(String...)}.
+         */
+        void histogram(String name, String labels, Histogram h) {
+            String prefix = labels.isEmpty() ? "{" : labels.substring(0, labels.length() - 1) + ",";
+
+            // buckets are read in ascending order so that counts never decrease
+            int first = Histogram.bucket(1L << MIN_EXPONENT);
+            int last = Histogram.bucket(1L << MAX_EXPONENT);
+            for (int i = first; i <= last; i++) {
+                long le = Histogram.lower(i);
+                sb.append(name).append("_bucket").append(prefix).append("le=\"")
+                  .append(seconds(le)).append("\"} ").append(h.countBelow(le)).append('\n');
+            }
+            long count = h.count();
+            sb.append(name).append("_bucket").append(prefix).append("le=\"+Inf\"} ")
+              .append(count).append('\n');
+            sample(name + "_sum", labels, seconds(h.sum()));
+            sample(name + "_count", labels, count);
+        }
+
+        /**
+         * Formats label names and values, <tt>{name="value",...}</tt>.
+         */
+        String labels(String... kv) {
+            StringBuilder l = new StringBuilder("{");
+            for (int i = 0; i < kv.length; i += 2) {
+                if (i > 0) {
+                    l.append(',');
+                }
+                l.append(kv[i]).append("=\"");
+                String v = kv[i + 1];
+                for (int j = 0; j < v.length(); j++) {
+                    char c = v.charAt(j);
+                    if (c == '\\' || c == '"') {
+                        l.append('\\').append(c);
+                    }
+                    else if (c == '\n') {
+                        l.append("\\n");
+                    }
+                    else {
+                        l.append(c);
+                    }
+                }
+                l.append('"');
+            }
+            return l.append('}').toString();
+        }
+
+        static String seconds(long micros) {
+            return BigDecimal.valueOf(micros, 6).stripTrailingZeros().toPlainString();
+        }
+
+        @Override
+        public String toString() {
+            return sb.toString();
+        }
+    }
+}
@@ -14,33 +14,57 @@
  */
 package io.jeo.nano;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
-import java.io.PrintWriter;
-import java.net.ServerSocket;
+import java.io.SequenceInputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Locale;
 import java.util.Properties;
+import java.util.Queue;
 import java.util.StringTokenizer;
 import java.util.TimeZone;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 
 import io.jeo.nano.NanoHTTPD.Response.Content;
 
@@ -64,6 +88,11 @@ import io.jeo.nano.NanoHTTPD.Response.Content;
  *    <li> Supports ETags</li>
  *    <li> Never caches anything </li>
  *    <li> Doesn't limit bandwidth, request time or simultaneous connections </li>
+ *    <li> Supports HTTP/1.1 persistent connections and pipelined requests, with an idle
+ *         timeout and a cap on the number of requests per connection </li>
+ *    <li> Compresses text responses with gzip or deflate on the fly, as accepted by the client </li>
+ *    <li> Multiplexes connections on a single selector thread, idle connections
+ *         don't hold on to a worker thread </li>
  *    <li> Default code serves files and shows all HTTP parameters and headers</li>
  *    <li> File server supports directory listing, index.html and index.htm</li>
  *    <li> File server supports partial content (streaming)</li>
@@ -133,6 +162,37 @@ public class NanoHTTPD
 		return serveFile( uri, header, myRootDir, true, null );
 	}
 
+	/**
+	 * Override this to read request bodies as they arrive.<p>
+	 *
+	 * (By default, this delegates to serve() without the body.)
+	 *
+	 * @param body	The request body if {@link #streamBody} accepted it, null otherwise.
+	 *	Whatever is left unread once the response is sent is discarded.
+	 * @return HTTP response, see class Response for details
+	 */
+	public Response serve( String uri, String method, Properties header, Properties parms, Properties files,
+		InputStream body )
+	{
+		return serve( uri, method, header, parms, files );
+	}
+
+	/**
+	 * Override this to stream the body of a POST or PUT request to serve()
+	 * instead of having it saved to a temporary file up front.<p>
+	 *
+	 * Form posts are always read up front since their parameters are decoded
+	 * from the body. Called on the selector thread as soon as the request
+	 * header has arrived, so must not block.
+	 *
+	 * @param header	Header entries, names in lower case
+	 * @return Whether to stream the body, false by default.
+	 */
+	protected boolean streamBody( String uri, String method, Properties header )
+	{
+		return false;
+	}
+
 	/**
 	 * HTTP response.
 	 * Return one of these from serve().
@@ -236,6 +296,138 @@ public class NanoHTTPD
 		    void write(OutputStream output) throws IOException;
 		}
 
+		/**
+		 * Content held in a buffer, written out without copying it.
+		 */
+		static class BufferContent implements Content {
+		    final ByteArrayOutputStream buffer;
+
+		    BufferContent(ByteArrayOutputStream buffer) {
+		        this.buffer = buffer;
+		    }
+
+		    @Override
+		    public void write(OutputStream out) throws IOException {
+		        buffer.writeTo(out);
+		    }
+
+		    @Override
+		    public void close() throws IOException {
+		    }
+		}
+
+		/**
+		 * Content of a file, or of byte ranges of a file, transferred straight
+		 * from the file system onto the connection when it is sent as is.
+		 * <p>
+		 * Multiple ranges are sent as a multipart/byteranges body.
+		 */
+		static class FileContent implements Content {
+		    final File file;
+		    final long[][] ranges;
+		    final String mime;
+		    final String boundary;
+
+		    FileContent(File file, String mime) {
+		        this(file, new long[][]{{0, file.length() - 1}}, mime);
+		    }
+
+		    /**
+		     * @param ranges Byte ranges of the file, first and last byte inclusive.
+		     * @param mime The type of the file.
+		     */
+		    FileContent(File file, long[][] ranges, String mime) {
+		        this.file = file;
+		        this.ranges = ranges;
+		        this.mime = mime;
+		        this.boundary = ranges.length > 1 ? Long.toHexString(System.nanoTime())
+		            + Long.toHexString(Double.doubleToLongBits(Math.random())) : null;
+		    }
+
+		    /**
+		     * The content type of the response, the type of the file unless
+		     * several ranges are sent.
+		     */
+		    String contentType() {
+		        return boundary != null ? "multipart/byteranges; boundary=" + boundary : mime;
+		    }
+
+		    /**
+		     * Length of the content, including any multipart delimiters.
+		     */
+		    long length() throws IOException {
+		        long length = 0;
+		        for (int i = 0; i < ranges.length; i++) {
+		            if (boundary != null)
+		                length += partHeader(i).length;
+		            length += ranges[i][1] - ranges[i][0] + 1;
+		        }
+		        if (boundary != null)
+		            length += closeDelimiter().length;
+		        return length;
+		    }
+
+		    byte[] partHeader(int i) throws IOException {
+		        return ("\r\n--" + boundary + "\r\nContent-Type: " + mime + "\r\nContent-Range: bytes "
+		            + ranges[i][0] + "-" + ranges[i][1] + "/" + file.length() + "\r\n\r\n").getBytes("ISO-8859-1");
+		    }
+
+		    byte[] closeDelimiter() throws IOException {
+		        return ("\r\n--" + boundary + "--\r\n").getBytes("ISO-8859-1");
+		    }
+
+		    @Override
+		    public void write(OutputStream out) throws IOException {
+		        write(out, null);
+		    }
+
+		    /**
+		     * Writes the content, transferring the file ranges onto the
+		     * connection stream if one is given. The output stream is flushed
+		     * ahead of each transfer to keep the response in order.
+		     */
+		    void write(OutputStream out, Connection.ConnectionOutputStream conn) throws IOException {
+		        FileChannel ch = conn == null ? new FileInputStream(file).getChannel() : null;
+		        try {
+		            for (int i = 0; i < ranges.length; i++) {
+		                if (boundary != null)
+		                    out.write(partHeader(i));
+
+		                long pos = ranges[i][0];
+		                long len = ranges[i][1] - pos + 1;
+		                if (conn != null) {
+		                    out.flush();
+		                    conn.transfer(file, pos, len);
+		                    continue;
+		                }
+
+		                ByteBuffer buf = ByteBuffer.allocate((int) Math.min(theBufferSize, Math.max(len, 1)));
+		                while (len > 0) {
+		                    buf.clear();
+		                    if (len < buf.capacity())
+		                        buf.limit((int) len);
+		                    int read = ch.read(buf, pos);
+		                    if (read <= 0)
+		                        throw new EOFException("Unexpected end of file " + file.getPath());
+		                    out.write(buf.array(), 0, read);
+		                    pos += read;
+		                    len -= read;
+		                }
+		            }
+		            if (boundary != null)
+		                out.write(closeDelimiter());
+		        }
+		        finally {
+		            if (ch != null)
+		                ch.close();
+		        }
+		    }
+
+		    @Override
+		    public void close() throws IOException {
+		    }
+		}
+
 		static class StreamContent implements Content {
 		    InputStream data;
 
@@ -245,14 +437,11 @@ public class NanoHTTPD
 
 		    @Override
 		    public void write(OutputStream out) throws IOException {
-                        int pending = data.available(); // This is to support partial sends, see serveFile()
                         byte[] buff = new byte[theBufferSize];
-                        while (pending>0)
+                        int read;
+                        while ((read = data.read(buff)) > 0)
                         {
-                                int read = data.read( buff, 0, ( (pending>theBufferSize) ?  theBufferSize : pending ));
-                                if (read <= 0)  break;
                                 out.write( buff, 0, read );
-                                pending -= read;
                         }
 		    }
 
@@ -269,6 +458,7 @@ public class NanoHTTPD
 	public static final String
 		HTTP_OK = "200 OK",
 		HTTP_CREATED = "201 Created",
+		HTTP_ACCEPTED = "202 Accepted",
 		HTTP_PARTIALCONTENT = "206 Partial Content",
 		HTTP_RANGE_NOT_SATISFIABLE = "416 Requested Range Not Satisfiable",
 		HTTP_REDIRECT = "301 Moved Permanently",
@@ -277,6 +467,7 @@ public class NanoHTTPD
 		HTTP_NOTFOUND = "404 Not Found",
 		HTTP_BADREQUEST = "400 Bad Request",
 		HTTP_METHOD_NOT_ALLOWED = "405 Method Not Allowed",
+		HTTP_ENTITY_TOO_LARGE = "413 Request Entity Too Large",
 		HTTP_INTERNALERROR = "500 Internal Server Error",
 		HTTP_NOTIMPLEMENTED = "501 Not Implemented",
         HTTP_SERVICE_UNAVAILABLE = "503 Service Unavailable";
@@ -302,12 +493,29 @@ public class NanoHTTPD
 	 * Throws an IOException if the socket is already in use
 	 */
 	public NanoHTTPD( int port, File wwwroot, int nthreads) throws IOException
+	{
+		this( port, wwwroot, Executors.newFixedThreadPool( nthreads ));
+	}
+
+	/**
+	 * Starts a HTTP server to given port, serving requests with the
+	 * specified executor.<p>
+	 * The executor is shut down when the server is stopped.
+	 * Throws an IOException if the socket is already in use
+	 */
+	public NanoHTTPD( int port, File wwwroot, ExecutorService executor ) throws IOException
 	{
 		myTcpPort = port;
 		this.myRootDir = wwwroot;
-		myThreadPool = Executors.newFixedThreadPool(nthreads);
+		myThreadPool = executor;
+
+		mySelector = Selector.open();
+		myServerChannel = ServerSocketChannel.open();
+		myServerChannel.socket().setReuseAddress( true );
+		myServerChannel.socket().bind( new InetSocketAddress( myTcpPort ));
+		myServerChannel.configureBlocking( false );
+		myServerChannel.register( mySelector, SelectionKey.OP_ACCEPT );
 
-		myServerSocket = new ServerSocket( myTcpPort );
 		myThread = new Thread( new Runnable()
 			{
 				public void run()
@@ -319,37 +527,126 @@ public class NanoHTTPD
 		myThread.start();
 	}
 
+	/**
+	 * Selector loop, run on a single thread.
+	 * <p>
+	 * Accepts connections, reads from them until a complete request has been
+	 * buffered and hands it off to the thread pool. Responses are queued by
+	 * the workers and written out as the sockets become writable, so idle
+	 * and slow connections don't occupy a worker thread.
+	 */
     private void serve() {
         notifyStarted();
         try {
-            while (true) {
-                Socket socket;
+            while (myServerChannel.isOpen()) {
                 try {
-                    socket = myServerSocket.accept();
+                    mySelector.select(1000);
                 } catch (IOException ex) {
-                    if (myServerSocket.isClosed()) {
-                        break;
-                    }
-                    error("Error accepting client: " + ex.getMessage(), null);
+                    error("Error selecting: " + ex.getMessage(), null);
                     continue;
                 }
-                HTTPSession session = new HTTPSession(socket);
-                try {
-                    myThreadPool.submit(session);
-                } catch (RejectedExecutionException ree) {
+
+                Iterator<SelectionKey> it = mySelector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+
+                    Connection c = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            c.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            c.write();
+                        }
+                        c.update();
+                    } catch (IOException ex) {
+                        c.close();
+                    } catch (CancelledKeyException ex) {
+                        c.close();
+                    }
+                }
+
+                // connections that workers have queued output for or finished with
+                Connection c;
+                while ((c = myUpdates.poll()) != null) {
                     try {
-                        session.sendResponse(HTTP_SERVICE_UNAVAILABLE, MIME_PLAINTEXT, null, 
-                                Response.newStreamContent("HTTP_SERVICE_UNAVAILABLE"));
-                    } catch (Throwable t) {
-                        error("Error sending error response", t);
+                        c.update();
+                    } catch (IOException ex) {
+                        c.close();
+                    } catch (CancelledKeyException ex) {
+                        c.close();
                     }
                 }
+
+                closeIdle();
             }
         } finally {
+            for (SelectionKey key : mySelector.keys()) {
+                if (key.attachment() instanceof Connection) {
+                    ((Connection) key.attachment()).close();
+                }
+            }
+            safeClose(mySelector);
             notifyStopped();
         }
     }
 
+    private void accept() {
+        try {
+            SocketChannel ch;
+            while ((ch = myServerChannel.accept()) != null) {
+                ch.configureBlocking(false);
+                ch.socket().setTcpNoDelay(true);
+                Connection c = new Connection(ch);
+                c.key = ch.register(mySelector, SelectionKey.OP_READ, c);
+            }
+        } catch (IOException ex) {
+            if (myServerChannel.isOpen()) {
+                error("Error accepting client: " + ex.getMessage(), null);
+            }
+        }
+    }
+
+    /**
+     * Closes connections that have been waiting on the client for longer than the idle
+     * timeout, either between requests or in the middle of sending one.
+     */
+    private void closeIdle() {
+        long now = System.currentTimeMillis();
+        if (now - myLastIdleCheck < 1000) {
+            return;
+        }
+        myLastIdleCheck = now;
+
+        long timeout = myKeepAliveTimeout > 0 ? myKeepAliveTimeout : DEFAULT_READ_TIMEOUT;
+        for (SelectionKey key : mySelector.keys()) {
+            Object att = key.attachment();
+            if (att instanceof Connection) {
+                Connection c = (Connection) att;
+                if (c.isIdle(now, timeout)) {
+                    c.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Schedules a connection to have its selector interest updated on the selector thread.
+     */
+    private void schedule(Connection c) {
+        myUpdates.add(c);
+        mySelector.wakeup();
+    }
+
     protected void notifyStarted() {
 
     }
@@ -365,7 +662,8 @@ public class NanoHTTPD
 	{
 		try
 		{
-			myServerSocket.close();
+			myServerChannel.close();
+			mySelector.wakeup();
 		}
 		catch( IOException ioe) {}
 		try {
@@ -385,6 +683,23 @@ public class NanoHTTPD
             } catch (InterruptedException e) {}
 	}
 
+	/**
+	 * The port the server listens on, the one picked by the system when
+	 * started on port 0.
+	 */
+	public int getListeningPort()
+	{
+		return myServerChannel.socket().getLocalPort();
+	}
+
+	/**
+	 * The executor requests are served with.
+	 */
+	public ExecutorService getExecutor()
+	{
+		return myThreadPool;
+	}
+
 	/**
 	 * Starts as a standalone file server and waits for Enter.
 	 */
@@ -426,176 +741,440 @@ public class NanoHTTPD
 	}
 
 	/**
-	 * Handles one session, i.e. parses the HTTP request
+	 * Handles one request, i.e. parses the HTTP request
 	 * and returns the response.
 	 */
-	private class HTTPSession implements Runnable
+	private class HTTPSession
 	{
-		public HTTPSession( Socket s )
+		/**
+		 * @param in Stream containing the complete request.
+		 * @param out Stream to write the response to.
+		 * @param socket The socket the request was received on.
+		 */
+		public HTTPSession( InputStream in, OutputStream out, Socket socket )
 		{
-			mySocket = s;
+			this( in, out, socket, false );
 		}
 
-		public void run()
+		/**
+		 * @param bodyStreamed Whether the request body is passed on to serve()
+		 * as it is read from <tt>in</tt>, rather than read up front.
+		 */
+		public HTTPSession( InputStream in, OutputStream out, Socket socket, boolean bodyStreamed )
 		{
-            InputStream is = null;
-            Response response = null;
-			try
+			myIn = in;
+			myBodyStreamed = bodyStreamed;
+			myOutput = new BufferedOutputStream( out, theBufferSize );
+			myConnectionOutput = out instanceof Connection.ConnectionOutputStream
+				? (Connection.ConnectionOutputStream) out : null;
+			mySocket = socket;
+			myStart = System.nanoTime();
+		}
+
+		/**
+		 * Reads and serves the request.
+		 *
+		 * @param count The number of the request on this connection, starting at 1.
+		 * @return Whether the connection should be kept open for another request.
+		 */
+		boolean handleRequest( int count ) throws IOException, InterruptedException
+		{
+			byte[] head = readHead();
+			if ( head == null )
+				return false;
+
+			// Create a BufferedReader for parsing the header.
+			BufferedReader hin = new BufferedReader( new InputStreamReader( new ByteArrayInputStream( head )));
+			Properties pre = new Properties();
+			Properties parms = new Properties();
+			Properties header = new Properties();
+			Properties files = new Properties();
+
+			// Reset the per request state before anything is sent
+			myHttp11 = false;
+			myKeepAlive = false;
+			myHeadOnly = false;
+			myAcceptEncoding = null;
+
+			// Decode the header into parms and header java properties
+			decodeHeader(hin, pre, parms, header);
+			myAcceptEncoding = header.getProperty( "accept-encoding" );
+			String method = pre.getProperty("method");
+			String uri = pre.getProperty("uri");
+
+			if (method == null) {
+			    //assume get
+			    method = "GET";
+			}
+
+			myHttp11 = "HTTP/1.1".equalsIgnoreCase( pre.getProperty( "version" ));
+			myHeadOnly = method.equalsIgnoreCase( "HEAD" );
+
+			String connection = header.getProperty( "connection", "" ).toLowerCase();
+			myKeepAlive = ( myHttp11 ? connection.indexOf( "close" ) < 0 : connection.indexOf( "keep-alive" ) >= 0 )
+				&& myKeepAliveTimeout > 0 && count < myMaxKeepAliveRequests && myServerChannel.isOpen();
+
+			// Get the raw body as a byte [], unless it is streamed to serve()
+			BodyInputStream body = null;
+			byte [] fbuf;
+			if ( myBodyStreamed )
+			{
+				body = new BodyInputStream( header );
+				fbuf = new byte[0];
+			}
+			else
+				fbuf = readBody( header );
+
+			// Create a BufferedReader for easily reading it as string.
+			ByteArrayInputStream bin = new ByteArrayInputStream(fbuf);
+			BufferedReader in = new BufferedReader( new InputStreamReader(bin));
+
+			// If the method is POST, there may be parameters
+			// in data section, too, read it:
+			if ( method.equalsIgnoreCase( "POST" ))
 			{
-				is = mySocket.getInputStream();
-				if ( is == null) return;
-
-				// Read the first 8192 bytes.
-				// The full header should fit in here.
-				// Apache's default header limit is 8KB.
-				// Do NOT assume that a single read will get the entire header at once!
-				final int bufsize = 8192;
-				byte[] buf = new byte[bufsize];
-				int splitbyte = 0;
-				int rlen = 0;
+				String contentType = "";
+				String contentTypeHeader = header.getProperty("content-type", "");
+				StringTokenizer st = new StringTokenizer( contentTypeHeader , "; " );
+				if ( st.hasMoreTokens()) {
+					contentType = st.nextToken();
+				}
+
+				if (contentType.equalsIgnoreCase("multipart/form-data"))
+				{
+					// Handle multipart/form-data
+					if ( !st.hasMoreTokens())
+						sendError( HTTP_BADREQUEST, "BAD REQUEST: Content type is multipart/form-data but boundary missing. Usage: GET /example/file.html" );
+					String boundaryExp = st.nextToken();
+					st = new StringTokenizer( boundaryExp , "=" );
+					if (st.countTokens() != 2)
+						sendError( HTTP_BADREQUEST, "BAD REQUEST: Content type is multipart/form-data but boundary syntax error. Usage: GET /example/file.html" );
+					st.nextToken();
+					String boundary = st.nextToken();
+
+					decodeMultipartData(boundary, fbuf, in, parms, files);
+				}
+				else if (contentType.equalsIgnoreCase("application/x-www-form-urlencoded"))
 				{
-					int read = is.read(buf, 0, bufsize);
-					while (read > 0)
+					// Handle application/x-www-form-urlencoded
+					String postLine = "";
+					char pbuf[] = new char[512];
+					int read = in.read(pbuf);
+					while ( read >= 0 && !postLine.endsWith("\r\n") )
 					{
-						rlen += read;
-						splitbyte = findHeaderEnd(buf, rlen);
-						if (splitbyte > 0)
-							break;
-						read = is.read(buf, rlen, bufsize - rlen);
+						postLine += String.valueOf(pbuf, 0, read);
+						read = in.read(pbuf);
 					}
+					postLine = postLine.trim();
+					decodeParms( postLine, parms );
 				}
+				else if ( body == null ) {
+				    files.put("content", saveTmpFile( fbuf, 0, fbuf.length));
+				}
+			}
 
-				// Create a BufferedReader for parsing the header.
-				ByteArrayInputStream hbis = new ByteArrayInputStream(buf, 0, rlen);
-				BufferedReader hin = new BufferedReader( new InputStreamReader( hbis ));
-				Properties pre = new Properties();
-				Properties parms = new Properties();
-				Properties header = new Properties();
-				Properties files = new Properties();
-
-				// Decode the header into parms and header java properties
-				decodeHeader(hin, pre, parms, header);
-				String method = pre.getProperty("method");
-				String uri = pre.getProperty("uri");
-
-				long size = 0x7FFFFFFFFFFFFFFFl;
-				String contentLength = header.getProperty("content-length");
-				if (contentLength != null)
-				{
-					try { size = Integer.parseInt(contentLength); }
-					catch (NumberFormatException ex) {}
+			if ( method.equalsIgnoreCase( "PUT" ) && body == null )
+				files.put("content", saveTmpFile( fbuf, 0, fbuf.length));
+
+            if ( !header.contains("HOST")) {
+                header.put("HOST", mySocket.getLocalAddress().getHostAddress() + ":" + mySocket.getLocalPort());
+            }
+
+			// Ok, now do the serve()
+			Response response = null;
+			try
+			{
+				response = serve( uri, method, header, parms, files, body );
+				if ( response == null )
+					sendError( HTTP_INTERNALERROR, "SERVER INTERNAL ERROR: Serve() returned a null response." );
+				else
+					sendResponse( response.status, response.mimeType, response.header, response.data );
+			}
+			catch ( RuntimeException e )
+			{
+				error("Unexpected error", e);
+				myKeepAlive = false;
+				sendResponse(HTTP_INTERNALERROR, MIME_PLAINTEXT, null, Response.newStreamContent("SERVER INTERNAL ERROR"));
+			}
+			finally
+			{
+				if (response != null && response.toClose != null) {
+					safeClose(response.toClose);
 				}
+			}
+
+			// skip what is left of the body, unless too much to keep the connection
+			if ( body != null && !body.drain( MAX_DRAIN ))
+				myKeepAlive = false;
+
+			return myKeepAlive;
+		}
+
+		/**
+		 * Determines from the request header whether the body of the request
+		 * is to be streamed, see {@link NanoHTTPD#streamBody}. Form posts never
+		 * are.
+		 */
+		boolean isBodyStreamed()
+		{
+			Properties pre = new Properties();
+			Properties header = new Properties();
+			try
+			{
+				decodeHeader( new BufferedReader( new InputStreamReader( myIn )), pre, new Properties(), header );
+			}
+			catch ( InterruptedException e )
+			{
+				// malformed, rejected when the request is served
+				return false;
+			}
+
+			String method = pre.getProperty( "method", "" );
+			if ( !method.equalsIgnoreCase( "POST" ) && !method.equalsIgnoreCase( "PUT" ))
+				return false;
+			String contentType = header.getProperty( "content-type", "" ).toLowerCase( Locale.ROOT );
+			if ( contentType.startsWith( "multipart/form-data" )
+				|| contentType.startsWith( "application/x-www-form-urlencoded" ))
+				return false;
+
+			try
+			{
+				return streamBody( pre.getProperty( "uri" ), method, header );
+			}
+			catch ( RuntimeException e )
+			{
+				error( "Error deciding whether to stream request body", e );
+				return false;
+			}
+		}
+
+		/**
+		 * Reads the request line and headers, up to and including the empty line
+		 * terminating them.
+		 *
+		 * @return The header bytes, or null if there is no request.
+		 */
+		private byte[] readHead() throws IOException, InterruptedException
+		{
+			ByteArrayOutputStream head = new ByteArrayOutputStream( 512 );
+			int last = 0;
+			while ( true )
+			{
+				int b = myIn.read();
+				if ( b == -1 )
+					return head.size() == 0 ? null : head.toByteArray();
 
-				// Write the part of body already read to ByteArrayOutputStream f
-				ByteArrayOutputStream f = new ByteArrayOutputStream();
-				if (splitbyte < rlen)
-					f.write(buf, splitbyte, rlen-splitbyte);
-
-				// While Firefox sends on the first read all the data fitting
-				// our buffer, Chrome and Opera send only the headers even if
-				// there is data for the body. We do some magic here to find
-				// out whether we have already consumed part of body, if we
-				// have reached the end of the data to be sent or we should
-				// expect the first byte of the body at the next read.
-				if (splitbyte < rlen)
-					size -= rlen-splitbyte+1;
-				else if (splitbyte==0 || size == 0x7FFFFFFFFFFFFFFFl)
-					size = 0;
-
-				// Now read all the body and write it to f
-				buf = new byte[512];
-				while ( rlen >= 0 && size > 0 )
+				// Ignore empty lines preceding a request
+				if ( head.size() == 0 && ( b == '\r' || b == '\n' ))
+					continue;
+
+				head.write( b );
+				if ( head.size() > MAX_HEADER_SIZE )
 				{
-					rlen = is.read(buf, 0, 512);
-					size -= rlen;
-					if (rlen > 0)
-						f.write(buf, 0, rlen);
+					myKeepAlive = false;
+					sendError( HTTP_BADREQUEST, "BAD REQUEST: Request header too large." );
 				}
 
-				// Get the raw body as a byte []
-				byte [] fbuf = f.toByteArray();
+				last = ( last << 8 ) | b;
+				if ( last == 0x0d0a0d0a || ( last & 0xffff ) == 0x0a0a )
+					return head.toByteArray();
+			}
+		}
 
-				// Create a BufferedReader for easily reading it as string.
-				ByteArrayInputStream bin = new ByteArrayInputStream(fbuf);
-				BufferedReader in = new BufferedReader( new InputStreamReader(bin));
+		/**
+		 * Reads the request body, as delimited by the Content-Length header or
+		 * chunked transfer encoding.
+		 */
+		private byte[] readBody( Properties header ) throws IOException, InterruptedException
+		{
+			String te = header.getProperty( "transfer-encoding" );
+			String contentLength = header.getProperty( "content-length" );
+			if ( te == null && contentLength == null )
+				return new byte[0];
 
-				if (method == null) {
-				    //assume get
-				    method = "GET";
-				}
-				// If the method is POST, there may be parameters
-				// in data section, too, read it:
-				if ( method.equalsIgnoreCase( "POST" ))
+			DataInputStream din = new DataInputStream( myIn );
+			if ( te != null && te.toLowerCase().indexOf( "chunked" ) >= 0 )
+			{
+				ByteArrayOutputStream body = new ByteArrayOutputStream();
+				while ( true )
 				{
-					String contentType = "";
-					String contentTypeHeader = header.getProperty("content-type");
-					StringTokenizer st = new StringTokenizer( contentTypeHeader , "; " );
-					if ( st.hasMoreTokens()) {
-						contentType = st.nextToken();
+					String line = readLine();
+					int semi = line.indexOf( ';' );
+					int size;
+					try
+					{
+						size = Integer.parseInt(( semi >= 0 ? line.substring( 0, semi ) : line ).trim(), 16 );
 					}
-
-					if (contentType.equalsIgnoreCase("multipart/form-data"))
+					catch ( NumberFormatException e )
 					{
-						// Handle multipart/form-data
-						if ( !st.hasMoreTokens())
-							sendError( HTTP_BADREQUEST, "BAD REQUEST: Content type is multipart/form-data but boundary missing. Usage: GET /example/file.html" );
-						String boundaryExp = st.nextToken();
-						st = new StringTokenizer( boundaryExp , "=" );
-						if (st.countTokens() != 2)
-							sendError( HTTP_BADREQUEST, "BAD REQUEST: Content type is multipart/form-data but boundary syntax error. Usage: GET /example/file.html" );
-						st.nextToken();
-						String boundary = st.nextToken();
-
-						decodeMultipartData(boundary, fbuf, in, parms, files);
+						myKeepAlive = false;
+						sendError( HTTP_BADREQUEST, "BAD REQUEST: Invalid chunk size." );
+						return null;
 					}
-					else if (contentType.equalsIgnoreCase("application/x-www-form-urlencoded"))
+
+					if ( size == 0 )
 					{
-						// Handle application/x-www-form-urlencoded
-						String postLine = "";
-						char pbuf[] = new char[512];
-						int read = in.read(pbuf);
-						while ( read >= 0 && !postLine.endsWith("\r\n") )
-						{
-							postLine += String.valueOf(pbuf, 0, read);
-							read = in.read(pbuf);
-						}
-						postLine = postLine.trim();
-						decodeParms( postLine, parms );
+						// skip any trailers
+						while ( readLine().length() > 0 );
+						return body.toByteArray();
 					}
-					else {
-					    files.put("content", saveTmpFile( fbuf, 0, f.size()));
+
+					if ( size < 0 || body.size() + (long) size > myMaxBodySize )
+					{
+						myKeepAlive = false;
+						sendError( HTTP_ENTITY_TOO_LARGE, "Request body too large." );
 					}
+
+					byte[] chunk = new byte[size];
+					din.readFully( chunk );
+					body.write( chunk );
+					readLine();
 				}
+			}
 
-				if ( method.equalsIgnoreCase( "PUT" ))
-					files.put("content", saveTmpFile( fbuf, 0, f.size()));
+			long size = -1;
+			try { size = Long.parseLong( contentLength.trim()); }
+			catch ( NumberFormatException ex ) {}
 
-                if ( !header.contains("HOST")) {
-                    header.put("HOST", mySocket.getLocalAddress().getHostAddress() + ":" + mySocket.getLocalPort());
-                }
+			if ( size < 0 )
+			{
+				myKeepAlive = false;
+				sendError( HTTP_BADREQUEST, "BAD REQUEST: Invalid Content-Length." );
+			}
+			if ( size > myMaxBodySize )
+			{
+				myKeepAlive = false;
+				sendError( HTTP_ENTITY_TOO_LARGE, "Request body too large." );
+			}
 
-				// Ok, now do the serve()
-				response = serve( uri, method, header, parms, files );
-				if ( response == null )
-					sendError( HTTP_INTERNALERROR, "SERVER INTERNAL ERROR: Serve() returned a null response." );
+			byte[] body = new byte[(int) size];
+			din.readFully( body );
+			return body;
+		}
+
+		/**
+		 * Request body read from the connection as it arrives, as delimited by
+		 * the Content-Length header or chunked transfer encoding.
+		 */
+		private class BodyInputStream extends InputStream
+		{
+			boolean chunked;
+			long remaining;
+			boolean eof;
+
+			BodyInputStream( Properties header ) throws IOException, InterruptedException
+			{
+				String te = header.getProperty( "transfer-encoding" );
+				String contentLength = header.getProperty( "content-length" );
+				if ( te != null && te.toLowerCase().indexOf( "chunked" ) >= 0 )
+					chunked = true;
+				else if ( contentLength == null )
+					eof = true;
 				else
-					sendResponse( response.status, response.mimeType, response.header, response.data );
+				{
+					remaining = -1;
+					try { remaining = Long.parseLong( contentLength.trim()); }
+					catch ( NumberFormatException ex ) {}
+
+					if ( remaining < 0 )
+					{
+						myKeepAlive = false;
+						sendError( HTTP_BADREQUEST, "BAD REQUEST: Invalid Content-Length." );
+					}
+					eof = remaining == 0;
+				}
 			}
-			catch ( Throwable t1 )
+
+			public int read() throws IOException
 			{
-                if (t1 instanceof InterruptedException) {
-                    // Thrown by sendError, ignore and exit
-                } else {
-                    error("Unexpected error", t1);
-                    sendResponse(HTTP_INTERNALERROR, MIME_PLAINTEXT, null, Response.newStreamContent("SERVER INTERNAL ERROR"));
-                }
+				byte[] b = new byte[1];
+				return read( b, 0, 1 ) == -1 ? -1 : b[0] & 0xff;
 			}
-            finally {
-                if (response.toClose != null) {
-                    safeClose(response.toClose);
-                }
-                safeClose(is);
-            }
+
+			public int read( byte[] b, int off, int len ) throws IOException
+			{
+				if ( eof )
+					return -1;
+				if ( len == 0 )
+					return 0;
+
+				if ( remaining == 0 && chunked )
+				{
+					String line = readLine();
+					int semi = line.indexOf( ';' );
+					try
+					{
+						remaining = Long.parseLong(( semi >= 0 ? line.substring( 0, semi ) : line ).trim(), 16 );
+					}
+					catch ( NumberFormatException e )
+					{
+						eof = true;
+						myKeepAlive = false;
+						throw new IOException( "Invalid chunk size: " + line );
+					}
+					if ( remaining == 0 )
+					{
+						// skip any trailers
+						while ( readLine().length() > 0 );
+						eof = true;
+						return -1;
+					}
+				}
+
+				int n = myIn.read( b, off, (int) Math.min( len, remaining ));
+				if ( n == -1 )
+				{
+					eof = true;
+					myKeepAlive = false;
+					throw new EOFException( "Unexpected end of request body" );
+				}
+				remaining -= n;
+				if ( remaining == 0 )
+				{
+					if ( chunked )
+						readLine();
+					else
+						eof = true;
+				}
+				return n;
+			}
+
+			/**
+			 * Skips the rest of the body.
+			 *
+			 * @return Whether the end of the body was reached within max bytes.
+			 */
+			boolean drain( long max ) throws IOException
+			{
+				byte[] buf = new byte[4096];
+				long skipped = 0;
+				while ( skipped <= max )
+				{
+					int n = read( buf, 0, buf.length );
+					if ( n == -1 )
+						return true;
+					skipped += n;
+				}
+				return false;
+			}
+		}
+
+		/**
+		 * Reads a CRLF terminated line from the connection.
+		 */
+		private String readLine() throws IOException
+		{
+			StringBuilder sb = new StringBuilder();
+			int b = myIn.read();
+			while ( b != -1 && b != '\n' )
+			{
+				if ( b != '\r' )
+					sb.append( (char) b );
+				b = myIn.read();
+			}
+			if ( b == -1 )
+				throw new EOFException();
+			return sb.toString();
 		}
 
 		/**
@@ -631,11 +1210,13 @@ public class NanoHTTPD
 				else uri = decodePercent(uri);
 
 				// If there's another token, it's protocol version,
-				// followed by HTTP headers. Ignore version but parse headers.
+				// followed by HTTP headers.
 				// NOTE: this now forces header names lowercase since they are
 				// case insensitive and vary by client.
 				if ( st.hasMoreTokens())
 				{
+					pre.put("version", st.nextToken());
+
 					String line = in.readLine();
 					while ( line != null && line.trim().length() > 0 )
 					{
@@ -895,6 +1476,7 @@ public class NanoHTTPD
 		 */
 		private void sendError( String status, String msg ) throws InterruptedException
 		{
+			myKeepAlive = false;
 			sendResponse( status, MIME_PLAINTEXT, null, new ByteArrayInputStream( msg.getBytes()));
 			throw new InterruptedException();
 		}
@@ -905,63 +1487,1167 @@ public class NanoHTTPD
 
 		/**
 		 * Sends given response to the socket.
+		 * <p>
+		 * The body is delimited with the Content-Length header when the response
+		 * specifies one and with chunked transfer encoding otherwise. HTTP/1.0
+		 * clients can not receive chunked responses, so the connection is closed
+		 * after a response of unknown length instead.
+		 * <p>
+		 * The status line and headers are held back until the content writes its
+		 * first bytes, so content produced while it is sent, such as a streamed
+		 * render, that fails before writing anything is answered with the
+		 * response of {@link NanoHTTPD#errorResponse(Throwable)} instead.
 		 */
-		private void sendResponse( String status, String mime, Properties header, Content data )
+		void sendResponse( String status, String mime, Properties header, Content data )
 		{
-            OutputStream out = null;
 			try
 			{
-				if ( status == null )
-					throw new NullPointerException( "sendResponse(): Status can't be null." );
-
-				out = mySocket.getOutputStream();
-				PrintWriter pw = new PrintWriter( out );
-				pw.print("HTTP/1.0 " + status + " \r\n");
-
-				if ( mime != null )
-					pw.print("Content-Type: " + mime + "\r\n");
-
-				if ( header == null || header.getProperty( "Date" ) == null )
-					pw.print( "Date: " + gmtFrmt.format( new Date()) + "\r\n");
-
-				if ( header != null )
-				{
-					Enumeration e = header.keys();
-					while ( e.hasMoreElements())
-					{
-						String key = (String)e.nextElement();
-						String value = header.getProperty( key );
-						pw.print( key + ": " + value + "\r\n");
-					}
-				}
-
-				pw.print("\r\n");
-				pw.flush();
-
-                if (data != null) {
-                    data.write(out);
-                }
+				writeResponse( status, mime, header, data );
 			}
-			catch( Throwable ioe )
+			catch( UncommittedException e )
 			{
-                error("Error responding", ioe);
-			}
-            finally {
-                requestComplete();
-                safeClose(out, data);
-                try {
-                    // socket is not Closeable on android until kitkat(API 19) :(
-                    mySocket.close();
-                } catch (IOException ioe) {
-                    // pass
-                }
-            }
+				error("Error producing response", e.getCause());
+				Response r = errorResponse( e.getCause());
+				try
+				{
+					safeClose(data);
+					writeResponse( r.status, r.mimeType, r.header, r.data );
+				}
+				catch( Throwable ioe )
+				{
+					myKeepAlive = false;
+					error("Error responding", ioe);
+				}
+				finally
+				{
+					if ( r.data != null )
+						safeClose(r.data);
+				}
+			}
+			catch( Throwable ioe )
+			{
+				myKeepAlive = false;
+				error("Error responding", ioe);
+			}
+			finally {
+				requestComplete( myStatus, myConnectionOutput != null ? myConnectionOutput.written : 0,
+					System.nanoTime() - myStart );
+				safeClose(data);
+			}
+		}
+
+		private void writeResponse( String status, String mime, Properties header, Content data )
+			throws IOException
+		{
+			if ( status == null )
+				throw new NullPointerException( "sendResponse(): Status can't be null." );
+			myStatus = status;
+
+			OutputStream out = myOutput;
+
+			String contentLength = header != null ? header.getProperty( "Content-Length" ) : null;
+
+			// Compress on the fly if the client accepts it
+			boolean compressible = data != null && hasBody( status ) && !status.startsWith( "206" )
+				&& isCompressible( mime ) && ( header == null || header.getProperty( "Content-Encoding" ) == null );
+			String encoding = null;
+			if ( compressible )
+			{
+				header = header != null ? (Properties) header.clone() : new Properties();
+				header.setProperty( "Vary", "Accept-Encoding" );
+			}
+			if ( compressible && myCompressionLevel > 0 )
+			{
+				encoding = negotiateEncoding( myAcceptEncoding );
+				if ( encoding != null && contentLength != null )
+				{
+					try
+					{
+						if ( Long.parseLong( contentLength.trim()) < myCompressionMinSize )
+							encoding = null;
+					}
+					catch ( NumberFormatException e ) {}
+				}
+				if ( encoding != null )
+				{
+					// the length of the compressed content is not known up front
+					header.remove( "Content-Length" );
+					header.setProperty( "Content-Encoding", encoding );
+					contentLength = null;
+
+					// the compressed content is a different representation, tag it apart
+					// from the identity one as done for precompressed files
+					String etag = header.getProperty( "ETag" );
+					if ( etag != null && !etag.startsWith( "W/" ) && etag.endsWith( "\"" ))
+						header.setProperty( "ETag", etag.substring( 0, etag.length() - 1 )
+							+ ( "gzip".equals( encoding ) ? "-gz" : "-" + encoding ) + "\"" );
+				}
+			}
+			boolean body = data != null && !myHeadOnly && hasBody( status );
+			boolean chunked = false;
+			if ( body && contentLength == null )
+			{
+				if ( myHttp11 )
+					chunked = true;
+				else
+					myKeepAlive = false;
+			}
+
+			StringBuilder sb = new StringBuilder();
+			sb.append( myHttp11 ? "HTTP/1.1 " : "HTTP/1.0 " ).append( status ).append( " \r\n" );
+
+			if ( mime != null )
+				sb.append( "Content-Type: " ).append( mime ).append( "\r\n" );
+
+			if ( header == null || header.getProperty( "Date" ) == null )
+				sb.append( "Date: " ).append( formatDate( new Date())).append( "\r\n" );
+
+			if ( header != null )
+			{
+				Enumeration e = header.keys();
+				while ( e.hasMoreElements())
+				{
+					String key = (String)e.nextElement();
+					String value = header.getProperty( key );
+					sb.append( key ).append( ": " ).append( value ).append( "\r\n" );
+				}
+			}
+
+			if ( chunked )
+				sb.append( "Transfer-Encoding: chunked\r\n" );
+			else if ( data == null && contentLength == null && hasBody( status ))
+				sb.append( "Content-Length: 0\r\n" );
+
+			if ( myKeepAlive )
+			{
+				sb.append( "Connection: keep-alive\r\n" );
+				if ( !myHttp11 )
+					sb.append( "Keep-Alive: timeout=" ).append( myKeepAliveTimeout / 1000 )
+						.append( ", max=" ).append( myMaxKeepAliveRequests ).append( "\r\n" );
+			}
+			else
+				sb.append( "Connection: close\r\n" );
+
+			sb.append( "\r\n" );
+			CommitOutputStream commit = new CommitOutputStream( out, sb.toString().getBytes( "ISO-8859-1" ));
+
+			if ( body )
+			{
+				ChunkedOutputStream chunks = null;
+				OutputStream dst = commit;
+				if ( chunked )
+				{
+					chunks = new ChunkedOutputStream( commit );
+					dst = new BufferedOutputStream( chunks, theBufferSize );
+				}
+
+				if ( data instanceof Response.FileContent && dst == commit && encoding == null
+					&& myConnectionOutput != null )
+				{
+					// send the file straight from the file system
+					commit.commit();
+					((Response.FileContent) data).write( out, myConnectionOutput );
+				}
+				else try
+				{
+					if ( encoding != null )
+					{
+						Deflater def = new Deflater( myCompressionLevel, "gzip".equals( encoding ));
+						try
+						{
+							CompressingOutputStream z = new CompressingOutputStream(
+								new ShieldedOutputStream( dst ), def, "gzip".equals( encoding ));
+							data.write( new ShieldedOutputStream( z ));
+							z.finish();
+						}
+						finally
+						{
+							def.end();
+						}
+					}
+					else
+						data.write( new ShieldedOutputStream( dst ));
+				}
+				catch( Exception e )
+				{
+					if ( !commit.committed())
+						throw new UncommittedException( e );
+					throw e instanceof IOException ? (IOException) e : new IOException( e );
+				}
+
+				if ( chunks != null )
+				{
+					dst.flush();
+					chunks.finish();
+				}
+			}
+			commit.commit();
+			out.flush();
+		}
+
+		private Socket mySocket;
+		private InputStream myIn;
+		private OutputStream myOutput;
+		private Connection.ConnectionOutputStream myConnectionOutput;
+		private boolean myBodyStreamed;
+		private long myStart;
+		private String myStatus;
+
+		/**
+		 * Per request state
+		 */
+		private boolean myHttp11;
+		private boolean myKeepAlive;
+		private boolean myHeadOnly;
+		private String myAcceptEncoding;
+	}
+
+	/**
+	 * Client connection multiplexed on the selector thread.
+	 * <p>
+	 * Input is buffered until a complete request has arrived, which is then
+	 * served on the thread pool. Requests are served one at a time in the
+	 * order they were received, so pipelined requests are answered in order.
+	 * Response output is queued and written by the selector thread as the
+	 * client accepts it.
+	 */
+	private class Connection implements Runnable
+	{
+		final SocketChannel channel;
+		SelectionKey key;
+
+		/**
+		 * Selector thread state
+		 */
+		byte[] in = new byte[4096];
+		int inLen = 0;
+		boolean eof = false;
+		boolean expectContinue = false;
+		boolean continueSent = false;
+		Boolean streamed = null;
+
+		/**
+		 * Shared state, guarded by the lock. A lock rather than the monitor of
+		 * the connection, since waiting on a monitor pins a virtual thread.
+		 */
+		final ReentrantLock lock = new ReentrantLock();
+		final Condition changed = lock.newCondition();
+		final LinkedList<Object> out = new LinkedList<Object>();
+		long outBytes = 0;
+		boolean processing = false;
+		boolean reading = false;
+		boolean closeAfterWrite = false;
+		boolean closed = false;
+		long lastActive = System.currentTimeMillis();
+
+		byte[] request;
+		boolean bodyStreamed;
+		int count = 0;
+
+		Connection( SocketChannel channel )
+		{
+			this.channel = channel;
+		}
+
+		/**
+		 * Reads available input from the client.
+		 */
+		void read() throws IOException
+		{
+			lock.lock();
+			try
+			{
+				if ( inLen == in.length )
+				{
+					// bounded by the request size limits checked once buffered
+					if ( in.length >= MAX_BUFFER_SIZE )
+						throw new IOException( "Request too large" );
+					in = Arrays.copyOf( in, (int) Math.min( in.length * 2L, MAX_BUFFER_SIZE ));
+				}
+
+				int n = channel.read( ByteBuffer.wrap( in, inLen, in.length - inLen ));
+				if ( n < 0 )
+					eof = true;
+				else
+				{
+					inLen += n;
+					lastActive = System.currentTimeMillis();
+				}
+				// wake up a worker waiting on a streamed request body
+				changed.signalAll();
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Writes as much queued output as the client accepts.
+		 */
+		void write() throws IOException
+		{
+			lock.lock();
+			try
+			{
+				while ( !out.isEmpty())
+				{
+					Object o = out.getFirst();
+					long n;
+					boolean done;
+					if ( o instanceof FileRegion )
+					{
+						FileRegion region = (FileRegion) o;
+						n = region.transferTo( channel );
+						done = region.remaining == 0;
+					}
+					else
+					{
+						ByteBuffer buf = (ByteBuffer) o;
+						n = channel.write( buf );
+						done = !buf.hasRemaining();
+					}
+					if ( n > 0 )
+					{
+						outBytes -= n;
+						lastActive = System.currentTimeMillis();
+					}
+					if ( !done )
+						break;
+					out.removeFirst();
+					if ( o instanceof FileRegion )
+						safeClose( (FileRegion) o );
+				}
+				// wake up a worker waiting on the output queue
+				changed.signalAll();
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Starts the next request if one is ready and updates the interest of
+		 * the connection to match its state. Called on the selector thread.
+		 */
+		void update() throws IOException
+		{
+			lock.lock();
+			try
+			{
+				if ( closed )
+					return;
+
+				if ( !processing && !closeAfterWrite )
+				{
+					int len = requestLength();
+					if ( len < 0 )
+						reject( HTTP_ENTITY_TOO_LARGE, "Request body too large" );
+					else if ( len > 0 )
+						dispatch( len );
+					else if ( eof )
+						closeAfterWrite = true;
+					else if ( expectContinue && !continueSent )
+					{
+						continueSent = true;
+						enqueue( "HTTP/1.1 100 Continue\r\n\r\n".getBytes( "ISO-8859-1" ));
+					}
+				}
+
+				if ( closeAfterWrite && !processing && out.isEmpty())
+				{
+					close();
+					return;
+				}
+
+				int ops = 0;
+				if ( !eof && !closeAfterWrite && ( !processing || inLen < MAX_PIPELINE_SIZE ))
+					ops |= SelectionKey.OP_READ;
+				if ( !out.isEmpty())
+					ops |= SelectionKey.OP_WRITE;
+				key.interestOps( ops );
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Determines the length of the first request in the input buffer.
+		 * <p>
+		 * Only enough of the request is parsed to find where it ends. Malformed
+		 * requests are handed on as is and rejected when the request is read.
+		 *
+		 * @return The length of the request, 0 if it has not fully arrived, or
+		 *	-1 if its body is larger than the maximum body size.
+		 */
+		private int requestLength() throws IOException
+		{
+			expectContinue = false;
+
+			// Ignore empty lines preceding a request
+			int start = 0;
+			while ( start < inLen && ( in[start] == '\r' || in[start] == '\n' ))
+				start++;
+			if ( start == inLen )
+			{
+				inLen = 0;
+				return 0;
+			}
+
+			int end = -1;
+			for ( int i = start; i < inLen && end < 0; i++ )
+			{
+				if ( in[i] == '\n' && i > start )
+				{
+					if ( in[i-1] == '\n' )
+						end = i + 1;
+					else if ( i > start + 2 && in[i-1] == '\r' && in[i-2] == '\n' && in[i-3] == '\r' )
+						end = i + 1;
+				}
+			}
+			if ( end < 0 )
+			{
+				// an over sized header is rejected when it is read
+				return inLen - start > MAX_HEADER_SIZE ? inLen : 0;
+			}
+
+			if ( streamed == null && !isBodyless( start, end ))
+				streamed = new HTTPSession( new ByteArrayInputStream( in, start, end - start ),
+					new ByteArrayOutputStream(), channel.socket()).isBodyStreamed();
+
+			String contentLength = null, te = null, expect = null;
+			StringTokenizer st = new StringTokenizer( new String( in, start, end - start, "ISO-8859-1" ), "\r\n" );
+			if ( st.hasMoreTokens())
+				st.nextToken();
+			while ( st.hasMoreTokens())
+			{
+				String line = st.nextToken();
+				int p = line.indexOf( ':' );
+				if ( p < 0 )
+					continue;
+				String name = line.substring( 0, p ).trim().toLowerCase( Locale.ROOT );
+				String value = line.substring( p + 1 ).trim();
+				if ( name.equals( "content-length" ))
+					contentLength = value;
+				else if ( name.equals( "transfer-encoding" ))
+					te = value;
+				else if ( name.equals( "expect" ))
+					expect = value;
+			}
+
+			int len;
+			if ( streamed != null && streamed )
+				// the body is read from the connection as the request is served
+				len = end;
+			else if ( te != null && te.toLowerCase( Locale.ROOT ).indexOf( "chunked" ) >= 0 )
+				len = chunkedLength( end );
+			else if ( contentLength != null )
+			{
+				long size = -1;
+				try { size = Long.parseLong( contentLength ); }
+				catch ( NumberFormatException ex ) {}
+
+				if ( size < 0 )
+					return end;
+				if ( size > myMaxBodySize )
+					return -1;
+				len = end + size <= inLen ? end + (int) size : 0;
+			}
+			else
+				len = end;
+
+			expectContinue = ( len == 0 || ( streamed != null && streamed )) && "100-continue".equalsIgnoreCase( expect );
+			return len;
+		}
+
+		/**
+		 * Finds the end of a chunked body starting at the specified offset.
+		 *
+		 * @return The end of the body, 0 if it has not fully arrived, or -1 if
+		 *	it is larger than the maximum body size.
+		 */
+		private int chunkedLength( int pos ) throws IOException
+		{
+			int start = pos;
+			while ( true )
+			{
+				if ( pos - start > myMaxBodySize + MAX_HEADER_SIZE )
+					return -1;
+
+				int eol = indexOf( '\n', pos );
+				if ( eol < 0 )
+					return 0;
+
+				String line = new String( in, pos, eol - pos, "ISO-8859-1").trim();
+				int semi = line.indexOf( ';' );
+				long size;
+				try
+				{
+					size = Long.parseLong(( semi >= 0 ? line.substring( 0, semi ) : line ).trim(), 16 );
+				}
+				catch ( NumberFormatException e )
+				{
+					// rejected when the body is read
+					return eol + 1;
+				}
+
+				pos = eol + 1;
+				if ( size > myMaxBodySize || pos + size - start > myMaxBodySize + MAX_HEADER_SIZE )
+					return -1;
+				if ( size == 0 )
+				{
+					// skip any trailers
+					while ( true )
+					{
+						eol = indexOf( '\n', pos );
+						if ( eol < 0 )
+							return 0;
+						boolean empty = eol == pos || ( eol == pos + 1 && in[pos] == '\r' );
+						pos = eol + 1;
+						if ( empty )
+							return pos;
+					}
+				}
+
+				if ( pos + size >= inLen )
+					return 0;
+				eol = indexOf( '\n', pos + (int) size );
+				if ( eol < 0 )
+					return 0;
+				pos = eol + 1;
+			}
+		}
+
+		/**
+		 * Whether the method of the request with the specified head doesn't
+		 * take a body to stream.
+		 */
+		private boolean isBodyless( int start, int end ) throws IOException
+		{
+			int sp = indexOf( ' ', start );
+			if ( sp < 0 || sp > end )
+				return true;
+			String method = new String( in, start, sp - start, "ISO-8859-1" );
+			return !method.equalsIgnoreCase( "POST" ) && !method.equalsIgnoreCase( "PUT" );
+		}
+
+		private int indexOf( int b, int from )
+		{
+			for ( int i = from; i < inLen; i++ )
+				if ( in[i] == b )
+					return i;
+			return -1;
+		}
+
+		/**
+		 * Hands the first request in the input buffer off to the thread pool.
+		 */
+		private void dispatch( int len ) throws IOException
+		{
+			request = Arrays.copyOf( in, len );
+			System.arraycopy( in, len, in, 0, inLen - len );
+			inLen -= len;
+
+			processing = true;
+			continueSent = false;
+			lastActive = System.currentTimeMillis();
+			count++;
+
+			bodyStreamed = streamed != null && streamed;
+			streamed = null;
+			if ( bodyStreamed && expectContinue )
+			{
+				continueSent = true;
+				enqueue( "HTTP/1.1 100 Continue\r\n\r\n".getBytes( "ISO-8859-1" ));
+			}
+
+			try
+			{
+				myThreadPool.execute( this );
+			}
+			catch ( RejectedExecutionException ree )
+			{
+				processing = false;
+				closeAfterWrite = true;
+
+				HTTPSession session = new HTTPSession( new ByteArrayInputStream( request ), new ConnectionOutputStream(), channel.socket());
+				session.sendResponse( HTTP_SERVICE_UNAVAILABLE, MIME_PLAINTEXT, null,
+					Response.newStreamContent( "HTTP_SERVICE_UNAVAILABLE" ));
+				request = null;
+			}
+		}
+
+		/**
+		 * Answers the request in the input buffer with an error without
+		 * serving it, and closes the connection once the answer is sent.
+		 */
+		private void reject( String status, String msg ) throws IOException
+		{
+			closeAfterWrite = true;
+			streamed = null;
+
+			HTTPSession session = new HTTPSession( new ByteArrayInputStream( in, 0, inLen ), new ConnectionOutputStream(), channel.socket());
+			inLen = 0;
+			session.sendResponse( status, MIME_PLAINTEXT, null, Response.newStreamContent( msg ));
+		}
+
+		/**
+		 * Serves the current request, called from the thread pool.
+		 */
+		public void run()
+		{
+			boolean keepAlive = false;
+			try
+			{
+				InputStream in = new ByteArrayInputStream( request );
+				if ( bodyStreamed )
+					in = new SequenceInputStream( in, new ConnectionInputStream());
+				HTTPSession session = new HTTPSession( in, new ConnectionOutputStream(), channel.socket(), bodyStreamed );
+				keepAlive = session.handleRequest( count );
+			}
+			catch ( InterruptedException ie )
+			{
+				// Thrown by sendError, ignore
+			}
+			catch ( Throwable t )
+			{
+				error("Unexpected error", t);
+			}
+			finally
+			{
+				lock.lock();
+				try
+				{
+					request = null;
+					processing = false;
+					lastActive = System.currentTimeMillis();
+					if ( !keepAlive )
+						closeAfterWrite = true;
+				}
+				finally
+				{
+					lock.unlock();
+				}
+				schedule( this );
+			}
+		}
+
+		private void enqueue( byte[] b )
+		{
+			out.add( ByteBuffer.wrap( b ));
+			outBytes += b.length;
+		}
+
+		/**
+		 * Whether the connection has been waiting on the client for longer
+		 * than the specified timeout.
+		 */
+		boolean isIdle( long now, long timeout )
+		{
+			lock.lock();
+			try
+			{
+				// a request being served with no output is waiting on the server,
+				// unless it is waiting for more of the request body
+				if ( processing && out.isEmpty() && !reading )
+					return false;
+				return now - lastActive > timeout;
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+
+		void close()
+		{
+			lock.lock();
+			try
+			{
+				if ( closed )
+					return;
+
+				closed = true;
+				for ( Object o : out )
+					if ( o instanceof FileRegion )
+						safeClose( (FileRegion) o );
+				out.clear();
+				outBytes = 0;
+				changed.signalAll();
+
+				if ( key != null )
+					key.cancel();
+				safeClose( channel );
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Stream reading a request body from the connection as it arrives.
+		 * Readers block while no input is buffered, and reading resumes once the
+		 * buffer is drained below MAX_PIPELINE_SIZE, so a large body is never
+		 * held in memory.
+		 */
+		class ConnectionInputStream extends InputStream
+		{
+			@Override
+			public int read() throws IOException
+			{
+				byte[] b = new byte[1];
+				return read( b, 0, 1 ) == -1 ? -1 : b[0] & 0xff;
+			}
+
+			@Override
+			public int read( byte[] b, int off, int len ) throws IOException
+			{
+				if ( len == 0 )
+					return 0;
+
+				boolean resume;
+				int n;
+				lock.lock();
+				try
+				{
+					try
+					{
+						reading = true;
+						while ( !closed && !eof && inLen == 0 )
+							changed.await();
+					}
+					catch ( InterruptedException e )
+					{
+						throw new InterruptedIOException();
+					}
+					finally
+					{
+						reading = false;
+					}
+
+					if ( closed )
+						throw new IOException( "Connection closed" );
+					if ( inLen == 0 )
+						return -1;
+
+					resume = inLen >= MAX_PIPELINE_SIZE;
+					n = Math.min( len, inLen );
+					System.arraycopy( in, 0, b, off, n );
+					System.arraycopy( in, n, in, 0, inLen - n );
+					inLen -= n;
+					lastActive = System.currentTimeMillis();
+				}
+				finally
+				{
+					lock.unlock();
+				}
+				if ( resume )
+					schedule( Connection.this );
+				return n;
+			}
+		}
+
+		/**
+		 * Stream queueing response output on the connection. Writers block while
+		 * too much output is pending, so a slow client can't exhaust memory.
+		 */
+		class ConnectionOutputStream extends OutputStream
+		{
+			/**
+			 * Number of bytes written, or queued for transfer
+			 */
+			long written;
+
+			@Override
+			public void write( int b ) throws IOException
+			{
+				write( new byte[]{ (byte) b }, 0, 1 );
+			}
+
+			@Override
+			public void write( byte[] b, int off, int len ) throws IOException
+			{
+				if ( len == 0 )
+					return;
+
+				lock.lock();
+				try
+				{
+					try
+					{
+						while ( !closed && outBytes > MAX_PENDING_OUTPUT )
+							changed.await();
+					}
+					catch ( InterruptedException e )
+					{
+						throw new InterruptedIOException();
+					}
+
+					if ( closed )
+						throw new IOException( "Connection closed" );
+
+					enqueue( Arrays.copyOfRange( b, off, off + len ));
+				}
+				finally
+				{
+					lock.unlock();
+				}
+				written += len;
+				schedule( Connection.this );
+			}
+
+			/**
+			 * Queues a region of a file, sent with FileChannel.transferTo by
+			 * the selector thread without copying it through the heap.
+			 */
+			void transfer( File file, long position, long count ) throws IOException
+			{
+				if ( count <= 0 )
+					return;
+
+				lock.lock();
+				try
+				{
+					try
+					{
+						while ( !closed && outBytes > MAX_PENDING_OUTPUT )
+							changed.await();
+					}
+					catch ( InterruptedException e )
+					{
+						throw new InterruptedIOException();
+					}
+
+					if ( closed )
+						throw new IOException( "Connection closed" );
+
+					out.add( new FileRegion( new FileInputStream( file ).getChannel(), position, count ));
+					outBytes += count;
+				}
+				finally
+				{
+					lock.unlock();
+				}
+				written += count;
+				schedule( Connection.this );
+			}
+		}
+	}
+
+	/**
+	 * Region of a file queued for sending on a connection.
+	 */
+	static class FileRegion implements Closeable
+	{
+		final FileChannel channel;
+		long position;
+		long remaining;
+
+		FileRegion( FileChannel channel, long position, long count )
+		{
+			this.channel = channel;
+			this.position = position;
+			this.remaining = count;
+		}
+
+		long transferTo( SocketChannel target ) throws IOException
+		{
+			long n = channel.transferTo( position, remaining, target );
+			if ( n == 0 && position >= channel.size())
+				throw new EOFException( "File truncated while sending" );
+			position += n;
+			remaining -= n;
+			return n;
+		}
+
+		public void close() throws IOException
+		{
+			channel.close();
+		}
+	}
+
+	/**
+	 * Whether a response with the given status carries a body.
+	 */
+	static boolean hasBody( String status )
+	{
+		return !( status.startsWith( "1" ) || status.startsWith( "204" ) || status.startsWith( "304" ));
+	}
+
+	/**
+	 * Whether content of the given mime type benefits from compression.
+	 * Formats that are compressed already, such as images, are not.
+	 */
+	static boolean isCompressible( String mime )
+	{
+		if ( mime == null )
+			return false;
+
+		mime = mime.toLowerCase( Locale.ROOT );
+		int semi = mime.indexOf( ';' );
+		if ( semi >= 0 )
+			mime = mime.substring( 0, semi ).trim();
+
+		return mime.startsWith( "text/" ) || mime.endsWith( "/json" ) || mime.endsWith( "+json" )
+			|| mime.endsWith( "-ndjson" ) || mime.endsWith( "/xml" ) || mime.endsWith( "+xml" ) || mime.equals( "application/javascript" );
+	}
+
+	/**
+	 * Picks the content coding for a response from the Accept-Encoding
+	 * header of the request, preferring gzip over deflate.
+	 *
+	 * @return "gzip", "deflate" or null if neither is acceptable.
+	 */
+	static String negotiateEncoding( String acceptEncoding )
+	{
+		if ( acceptEncoding == null )
+			return null;
+
+		boolean gzip = false, deflate = false;
+		StringTokenizer st = new StringTokenizer( acceptEncoding, "," );
+		while ( st.hasMoreTokens())
+		{
+			String tok = st.nextToken().trim().toLowerCase( Locale.ROOT );
+			String coding = tok;
+			int semi = tok.indexOf( ';' );
+			if ( semi >= 0 )
+			{
+				coding = tok.substring( 0, semi ).trim();
+				String q = tok.substring( semi + 1 ).replace( " ", "" );
+				if ( q.startsWith( "q=" ))
+				{
+					try
+					{
+						if ( Double.parseDouble( q.substring( 2 )) <= 0 )
+							continue;
+					}
+					catch ( NumberFormatException e )
+					{
+						continue;
+					}
+				}
+			}
+
+			if ( coding.equals( "gzip" ) || coding.equals( "x-gzip" ) || coding.equals( "*" ))
+				gzip = true;
+			else if ( coding.equals( "deflate" ))
+				deflate = true;
 		}
+		return gzip ? "gzip" : deflate ? "deflate" : null;
+	}
 
-		private Socket mySocket;
+	static synchronized String formatDate( Date date )
+	{
+		// SimpleDateFormat is not thread safe
+		return gmtFrmt.format( date );
+	}
+
+	/**
+	 * Parses a HTTP date, returning -1 if the date is not valid.
+	 */
+	static synchronized long parseDate( String date )
+	{
+		try
+		{
+			return gmtFrmt.parse( date.trim()).getTime();
+		}
+		catch ( java.text.ParseException e )
+		{
+			return -1;
+		}
+	}
+
+	/**
+	 * Holds back the status line and headers of a response until the first
+	 * bytes of content are written, or the response is committed explicitly.
+	 */
+	static class CommitOutputStream extends FilterOutputStream
+	{
+		private byte[] myHead;
+
+		CommitOutputStream( OutputStream out, byte[] head )
+		{
+			super( out );
+			myHead = head;
+		}
+
+		boolean committed()
+		{
+			return myHead == null;
+		}
+
+		void commit() throws IOException
+		{
+			if ( myHead != null )
+			{
+				out.write( myHead );
+				myHead = null;
+			}
+		}
+
+		public void write( int b ) throws IOException
+		{
+			commit();
+			out.write( b );
+		}
+
+		public void write( byte[] b, int off, int len ) throws IOException
+		{
+			commit();
+			out.write( b, off, len );
+		}
+
+		public void flush() throws IOException
+		{
+			// flushing before any content does not commit the response
+			if ( myHead == null )
+				out.flush();
+		}
+	}
+
+	/**
+	 * Failure of response content before any of the response was sent.
+	 */
+	static class UncommittedException extends IOException
+	{
+		UncommittedException( Throwable cause )
+		{
+			super( cause );
+		}
+	}
+
+	/**
+	 * Output stream handed to response content that does not close the
+	 * underlying connection, so content can not break a persistent connection.
+	 */
+	static class ShieldedOutputStream extends FilterOutputStream
+	{
+		ShieldedOutputStream( OutputStream out )
+		{
+			super( out );
+		}
+
+		public void write( byte[] b, int off, int len ) throws IOException
+		{
+			out.write( b, off, len );
+		}
+
+		public void close() throws IOException
+		{
+			out.flush();
+		}
+	}
+
+	/**
+	 * Compresses response content as gzip, or zlib for the deflate coding,
+	 * with a caller supplied deflater so the compression level can be set.
+	 */
+	static class CompressingOutputStream extends DeflaterOutputStream
+	{
+		private final boolean myGzip;
+		private final CRC32 myCrc = new CRC32();
+		private boolean myHeaderWritten = false;
+
+		public CompressingOutputStream( OutputStream out, Deflater def, boolean gzip )
+		{
+			super( out, def, theBufferSize );
+			myGzip = gzip;
+		}
+
+		public void write( byte[] b, int off, int len ) throws IOException
+		{
+			writeHeader();
+			if ( myGzip )
+				myCrc.update( b, off, len );
+			super.write( b, off, len );
+		}
+
+		public void finish() throws IOException
+		{
+			writeHeader();
+			super.finish();
+			if ( myGzip )
+			{
+				writeInt( (int) myCrc.getValue());
+				writeInt( def.getTotalIn());
+			}
+			out.flush();
+		}
+
+		private void writeHeader() throws IOException
+		{
+			if ( myGzip && !myHeaderWritten )
+			{
+				out.write( new byte[] { 0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff });
+				myHeaderWritten = true;
+			}
+		}
+
+		private void writeInt( int i ) throws IOException
+		{
+			out.write( i & 0xff );
+			out.write(( i >> 8 ) & 0xff );
+			out.write(( i >> 16 ) & 0xff );
+			out.write(( i >> 24 ) & 0xff );
+		}
+	}
+
+	/**
+	 * Output stream writing chunked transfer encoding.
+	 */
+	static class ChunkedOutputStream extends FilterOutputStream
+	{
+		static final byte[] CRLF = { '\r', '\n' };
+
+		ChunkedOutputStream( OutputStream out )
+		{
+			super( out );
+		}
+
+		public void write( int b ) throws IOException
+		{
+			write( new byte[]{ (byte) b }, 0, 1 );
+		}
+
+		public void write( byte[] b, int off, int len ) throws IOException
+		{
+			if ( len == 0 )
+				return;
+			out.write( Integer.toHexString( len ).getBytes( "ISO-8859-1" ));
+			out.write( CRLF );
+			out.write( b, off, len );
+			out.write( CRLF );
+		}
+
+		/**
+		 * Writes the last chunk, without closing the underlying stream.
+		 */
+		public void finish() throws IOException
+		{
+			out.write( '0' );
+			out.write( CRLF );
+			out.write( CRLF );
+			out.flush();
+		}
+
+		public void close() throws IOException
+		{
+			out.flush();
+		}
 	}
 
-    protected void requestComplete() {
+    /**
+     * Called once the response to a request has been written.
+     *
+     * @param status The status of the response, <tt>null</tt> if it failed before any was sent.
+     * @param written Number of bytes written, including headers.
+     * @param nanos Nanoseconds since the request was read.
+     */
+    protected void requestComplete(String status, long written, long nanos) {
         // hook
     }
 
@@ -977,6 +2663,14 @@ public class NanoHTTPD
         }
     }
 
+    /**
+     * Creates the response sent when the content of a response fails before any of it was
+     * sent, mapping the failure to a status.
+     */
+    protected Response errorResponse(Throwable t) {
+        return new Response(HTTP_INTERNALERROR, MIME_PLAINTEXT, "SERVER INTERNAL ERROR");
+    }
+
     protected void error(String message, Throwable t) {
         myErr.println(message);
         if (t != null) {
@@ -1010,12 +2704,166 @@ public class NanoHTTPD
 	}
 
 	private final int myTcpPort;
-	private final ServerSocket myServerSocket;
+	private final ServerSocketChannel myServerChannel;
+	private final Selector mySelector;
+	private final Queue<Connection> myUpdates = new ConcurrentLinkedQueue<Connection>();
+	private long myLastIdleCheck;
 	private Thread myThread;
 	private File myRootDir;
 
 	private ExecutorService myThreadPool;
 
+	/**
+	 * Maximum size of the request line and headers.
+	 */
+	static final int MAX_HEADER_SIZE = 8192;
+
+	/**
+	 * Maximum number of bytes of an unread streamed request body skipped to
+	 * keep the connection open.
+	 */
+	static final long MAX_DRAIN = 64 * 1024;
+
+	/**
+	 * Maximum number of ranges served for a request, more are ignored.
+	 */
+	static final int MAX_RANGES = 16;
+
+	/**
+	 * Milliseconds a client may stall sending a request or reading a response,
+	 * when persistent connections are disabled.
+	 */
+	static final int DEFAULT_READ_TIMEOUT = 30000;
+
+	/**
+	 * Number of bytes of response output queued on a connection before the
+	 * response writer blocks.
+	 */
+	static final int MAX_PENDING_OUTPUT = 256 * 1024;
+
+	/**
+	 * Number of bytes of pipelined requests buffered while a request is served.
+	 */
+	static final int MAX_PIPELINE_SIZE = 64 * 1024;
+
+	/**
+	 * Default maximum size of a request body read up front.
+	 */
+	public static final int DEFAULT_MAX_BODY_SIZE = 64 * 1024 * 1024;
+
+	/**
+	 * Largest request body size that can be configured, so that a buffered
+	 * request always fits in an array.
+	 */
+	static final int MAX_BODY_SIZE = 1024 * 1024 * 1024;
+
+	/**
+	 * Size the input buffer of a connection never grows beyond.
+	 */
+	static final int MAX_BUFFER_SIZE = MAX_BODY_SIZE + 2 * MAX_HEADER_SIZE + MAX_PIPELINE_SIZE;
+
+	/**
+	 * Maximum size of a request body read up front, larger requests are
+	 * answered with 413. Streamed bodies are not limited.
+	 */
+	private volatile int myMaxBodySize = DEFAULT_MAX_BODY_SIZE;
+
+	/**
+	 * Sets the maximum size in bytes of a request body read up front, rather
+	 * than streamed to serve(). Larger requests are answered with
+	 * <tt>413 Request Entity Too Large</tt> and the connection is closed.
+	 */
+	public void setMaxBodySize( int size )
+	{
+		if ( size < 0 || size > MAX_BODY_SIZE )
+			throw new IllegalArgumentException( "Maximum body size must be between 0 and " + MAX_BODY_SIZE );
+		myMaxBodySize = size;
+	}
+
+	public int getMaxBodySize()
+	{
+		return myMaxBodySize;
+	}
+
+	/**
+	 * Milliseconds an idle persistent connection is kept open.
+	 */
+	private int myKeepAliveTimeout = 5000;
+
+	/**
+	 * Maximum number of requests served over a single connection.
+	 */
+	private int myMaxKeepAliveRequests = 100;
+
+	/**
+	 * Sets the number of milliseconds an idle persistent connection is kept
+	 * open waiting for the next request. A value of 0 disables persistent
+	 * connections.
+	 */
+	public void setKeepAliveTimeout( int millis )
+	{
+		myKeepAliveTimeout = Math.max( 0, millis );
+	}
+
+	public int getKeepAliveTimeout()
+	{
+		return myKeepAliveTimeout;
+	}
+
+	/**
+	 * Sets the maximum number of requests served over a single connection
+	 * before it is closed.
+	 */
+	public void setMaxKeepAliveRequests( int max )
+	{
+		myMaxKeepAliveRequests = Math.max( 1, max );
+	}
+
+	public int getMaxKeepAliveRequests()
+	{
+		return myMaxKeepAliveRequests;
+	}
+
+	/**
+	 * Compression level of responses, from 1 (fastest) to 9 (smallest).
+	 */
+	private int myCompressionLevel = 6;
+
+	/**
+	 * Minimum size of a response of known length for it to be compressed.
+	 */
+	private int myCompressionMinSize = 1024;
+
+	/**
+	 * Sets the level responses are compressed with, from 1 (fastest) to 9
+	 * (smallest). A value of 0 disables compression.
+	 */
+	public void setCompressionLevel( int level )
+	{
+		if ( level < 0 || level > 9 )
+			throw new IllegalArgumentException( "Compression level must be between 0 and 9" );
+		myCompressionLevel = level;
+	}
+
+	public int getCompressionLevel()
+	{
+		return myCompressionLevel;
+	}
+
+	/**
+	 * Sets the minimum size in bytes of a response of known length for it to
+	 * be compressed. Responses of unknown length are always compressed.
+	 */
+	public void setCompressionMinSize( int size )
+	{
+		myCompressionMinSize = Math.max( 0, size );
+	}
+
+	public int getCompressionMinSize()
+	{
+		return myCompressionMinSize;
+	}
+
 	// ==================================================
 	// File server code
 	// ==================================================
@@ -1157,68 +3005,61 @@ public class NanoHTTPD
 					mime = MIME_DEFAULT_BINARY;
 
 				// Calculate etag
-				String etag = Integer.toHexString((f.getAbsolutePath() + f.lastModified() + "" + f.length()).hashCode());
+				String etag = "\"" + Integer.toHexString((f.getAbsolutePath() + f.lastModified() + "" + f.length()).hashCode()) + "\"";
+				String lastModified = formatDate( new Date( f.lastModified()));
+				long fileLen = f.length();
 
-				// Support (simple) skipping:
-				long startFrom = 0;
-				long endAt = -1;
-				String range = header.getProperty( "range" );
-				if ( range != null )
+				// Ranges only apply to the representation the client holds, see If-Range
+				String range = header != null ? header.getProperty( "range" ) : null;
+				String ifRange = header != null ? header.getProperty( "if-range" ) : null;
+				if ( range != null && ifRange != null && !ifRange.trim().equals( etag )
+					&& !ifRange.trim().equals( lastModified ))
+					range = null;
+
+				long[][] ranges = range != null ? parseRanges( range, fileLen ) : null;
+				if ( ranges != null && ranges.length == 0 )
 				{
-					if ( range.startsWith( "bytes=" ))
-					{
-						range = range.substring( "bytes=".length());
-						int minus = range.indexOf( '-' );
-						try {
-							if ( minus > 0 )
-							{
-								startFrom = Long.parseLong( range.substring( 0, minus ));
-								endAt = Long.parseLong( range.substring( minus+1 ));
-							}
-						}
-						catch ( NumberFormatException nfe ) {}
-					}
+					res = new Response( HTTP_RANGE_NOT_SATISFIABLE, MIME_PLAINTEXT, "" );
+					res.addHeader( "Content-Range", "bytes */" + fileLen);
+					res.addHeader( "ETag", etag);
 				}
-
-				// Change return code and add Content-Range header when skipping is requested
-				long fileLen = f.length();
-				if (range != null && startFrom >= 0)
+				else if ( ranges != null )
 				{
-					if ( startFrom >= fileLen)
-					{
-						res = new Response( HTTP_RANGE_NOT_SATISFIABLE, MIME_PLAINTEXT, "" );
-						res.addHeader( "Content-Range", "bytes 0-0/" + fileLen);
-						res.addHeader( "ETag", etag);
-					}
-					else
-					{
-						if ( endAt < 0 )
-							endAt = fileLen-1;
-						long newLen = endAt - startFrom + 1;
-						if ( newLen < 0 ) newLen = 0;
-
-						final long dataLen = newLen;
-						FileInputStream fis = new FileInputStream( f ) {
-							public int available() throws IOException { return (int)dataLen; }
-						};
-						fis.skip( startFrom );
-
-						res = new Response( HTTP_PARTIALCONTENT, mime, fis );
-						res.addHeader( "Content-Length", "" + dataLen);
-						res.addHeader( "Content-Range", "bytes " + startFrom + "-" + endAt + "/" + fileLen);
-						res.addHeader( "ETag", etag);
-					}
+					Response.FileContent content = new Response.FileContent( f, ranges, mime );
+					res = new Response( HTTP_PARTIALCONTENT, content.contentType(), content );
+					res.addHeader( "Content-Length", "" + content.length());
+					if ( ranges.length == 1 )
+						res.addHeader( "Content-Range", "bytes " + ranges[0][0] + "-" + ranges[0][1] + "/" + fileLen);
+					res.addHeader( "ETag", etag);
+					res.addHeader( "Last-Modified", lastModified);
+				}
+				else if ( new Validator( etag, f.lastModified()).matches( header ))
+				{
+					// matched as the handlers match, including compressed copies and If-Modified-Since
+					res = new Response( HTTP_NOTMODIFIED, mime, "");
+					res.addHeader( "ETag", etag);
+					res.addHeader( "Last-Modified", lastModified);
 				}
 				else
 				{
-					if (etag.equals(header.getProperty("if-none-match")))
-						res = new Response( HTTP_NOTMODIFIED, mime, "");
+					// Serve a precompressed copy of the file if there is a current one
+					File gz = new File( f.getPath() + ".gz" );
+					if ( header != null && isCompressible( mime ) && gz.isFile() && gz.lastModified() >= f.lastModified()
+						&& "gzip".equals( negotiateEncoding( header.getProperty( "accept-encoding" ))))
+					{
+						res = new Response( HTTP_OK, mime, new Response.FileContent( gz, mime ));
+						res.addHeader( "Content-Length", "" + gz.length());
+						res.addHeader( "Content-Encoding", "gzip");
+						res.addHeader( "Vary", "Accept-Encoding");
+						res.addHeader( "ETag", etag.substring( 0, etag.length() - 1 ) + "-gz\"");
+					}
 					else
 					{
-						res = new Response( HTTP_OK, mime, new FileInputStream( f ));
+						res = new Response( HTTP_OK, mime, new Response.FileContent( f, mime ));
 						res.addHeader( "Content-Length", "" + fileLen);
 						res.addHeader( "ETag", etag);
 					}
+					res.addHeader( "Last-Modified", lastModified);
 				}
 			}
 		}
@@ -1231,6 +3072,68 @@ public class NanoHTTPD
 		return res;
 	}
 
+	/**
+	 * Parses the byte ranges of a Range header, as specified by RFC 7233.
+	 * <p>
+	 * Ranges are clamped to the length of the file. Ranges that start past
+	 * the end of the file are dropped.
+	 *
+	 * @return The ranges, first and last byte inclusive, an empty array if
+	 * none of the ranges can be satisfied, or null if the header is invalid
+	 * or has too many ranges and should be ignored.
+	 */
+	static long[][] parseRanges( String range, long length )
+	{
+		range = range.trim();
+		if ( !range.regionMatches( true, 0, "bytes=", 0, 6 ))
+			return null;
+
+		String[] specs = range.substring( 6 ).split( "," );
+		if ( specs.length > MAX_RANGES )
+			return null;
+
+		List<long[]> ranges = new ArrayList<long[]>( specs.length );
+		for ( int i = 0; i < specs.length; i++ )
+		{
+			String spec = specs[i].trim();
+			int minus = spec.indexOf( '-' );
+			if ( minus < 0 )
+				return null;
+
+			try
+			{
+				long first, last;
+				if ( minus == 0 )
+				{
+					// suffix range, the last n bytes
+					long n = Long.parseLong( spec.substring( 1 ));
+					if ( n < 0 )
+						return null;
+					if ( n == 0 || length == 0 )
+						continue;
+					first = Math.max( 0, length - n );
+					last = length - 1;
+				}
+				else
+				{
+					first = Long.parseLong( spec.substring( 0, minus ));
+					last = minus == spec.length() - 1 ? Long.MAX_VALUE : Long.parseLong( spec.substring( minus + 1 ));
+					if ( first < 0 || last < first )
+						return null;
+					if ( first >= length )
+						continue;
+					last = Math.min( last, length - 1 );
+				}
+				ranges.add( new long[]{ first, last });
+			}
+			catch ( NumberFormatException e )
+			{
+				return null;
+			}
+		}
+		return ranges.toArray( new long[ranges.size()][] );
+	}
+
 	/**
 	 * Hashtable mapping (String)FILENAME_EXTENSION -> (String)MIME_TYPE
 	 */
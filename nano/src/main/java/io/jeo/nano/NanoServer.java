@@ -20,18 +20,30 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
+import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import io.jeo.data.DataRepository;
 import io.jeo.data.DataRepositoryView;
 import io.jeo.data.DirectoryRepository;
 import io.jeo.data.mem.MemRepository;
 import io.jeo.render.RendererRegistry;
+import io.jeo.util.Util;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -39,11 +51,31 @@ public class NanoServer extends NanoHTTPD {
 
     public static final int DEFAULT_NUM_THREADS = 25;
 
+    /**
+     * Default number of milliseconds between checks of a watched data directory.
+     */
+    public static final long DEFAULT_WATCH_INTERVAL = 5000;
+
     static final Logger LOG = LoggerFactory.getLogger(NanoServer.class);
 
     DataRepositoryView reg;
     RendererRegistry rendererRegistry;
     List<Handler> handlers;
+    RenderPool renderPool;
+    ImageCache imageCache = new ImageCache();
+    SingleFlight singleFlight = new SingleFlight();
+    CapabilitiesCache capabilitiesCache = new CapabilitiesCache();
+    Metrics metrics = new Metrics();
+    FeatureIndex featureIndex = new FeatureIndex();
+    final AtomicLong registryVersion = new AtomicLong(System.currentTimeMillis());
+
+    volatile File watched;
+    long watchInterval = DEFAULT_WATCH_INTERVAL;
+    final AtomicLong lastWatchCheck = new AtomicLong();
+    volatile Map<String,Long> watchedFiles;
+
+    /** name of the handler of the request being served by the current thread */
+    final ThreadLocal<String> served = new ThreadLocal<String>();
 
     public NanoServer(int port, File wwwRoot, int nThreads, DataRepositoryView reg, List<Handler> handlers)
         throws IOException {
@@ -52,7 +84,18 @@ public class NanoServer extends NanoHTTPD {
     
     public NanoServer(int port, File wwwRoot, int nThreads, DataRepositoryView reg, List<Handler> handlers,
         RendererRegistry rendererRegistry) throws IOException {
-        super(port, wwwRoot, nThreads);
+        this(port, wwwRoot, Executors.newFixedThreadPool(nThreads), reg, handlers, rendererRegistry);
+    }
+
+    public NanoServer(int port, File wwwRoot, ExecutorService executor, DataRepositoryView reg,
+        List<Handler> handlers, RendererRegistry rendererRegistry) throws IOException {
+        super(port, wwwRoot, executor);
+
+        // requests waiting on the render pool hold a request thread, admit no more than can be
+        // spared when the threads are limited
+        renderPool = executor instanceof ThreadPoolExecutor
+            ? RenderPool.forRequestThreads(((ThreadPoolExecutor) executor).getMaximumPoolSize())
+            : new RenderPool();
 
         this.reg = reg;
         this.rendererRegistry = rendererRegistry;
@@ -62,7 +105,8 @@ public class NanoServer extends NanoHTTPD {
 
         if (handlers == null || handlers.isEmpty()) {
             handlers = Arrays.asList(new TileHandler(), new FeatureHandler(), new StyleHandler(),
-                    new WMSHandler(), new WMTSHandler());
+                    new WMSHandler(), new WMTSHandler(), new SeedHandler(), new AdminHandler(),
+                    new MetricsHandler());
         }
 
         this.handlers.addAll(handlers);
@@ -90,6 +134,17 @@ public class NanoServer extends NanoHTTPD {
         LOG.error(message, t);
     }
 
+    @Override
+    protected Response errorResponse(Throwable t) {
+        if (t instanceof HttpException) {
+            return ((HttpException) t).toResponse();
+        }
+        if (t instanceof Exception) {
+            return new Response(HTTP_INTERNALERROR, MIME_PLAINTEXT, toStream((Exception) t));
+        }
+        return super.errorResponse(t);
+    }
+
     public DataRepositoryView getRegistry() {
         return reg;
     }
@@ -102,13 +157,339 @@ public class NanoServer extends NanoHTTPD {
         this.rendererRegistry = rendererRegistry;
     }
 
+    /**
+     * The pool that expensive requests are executed on.
+     *
+     * @see Handler#isExpensive(Request)
+     */
+    public RenderPool getRenderPool() {
+        return renderPool;
+    }
+
+    public void setRenderPool(RenderPool renderPool) {
+        this.renderPool = renderPool;
+    }
+
+    /**
+     * The cache of rendered images, <tt>null</tt> if rendered images are not cached.
+     */
+    public ImageCache getImageCache() {
+        return imageCache;
+    }
+
+    /**
+     * Sets the cache of rendered images, must be called before handlers are initialized.
+     */
+    public void setImageCache(ImageCache imageCache) {
+        this.imageCache = imageCache;
+    }
+
+    /**
+     * The coalescer of identical concurrent renders, <tt>null</tt> if renders are not coalesced.
+     */
+    public SingleFlight getSingleFlight() {
+        return singleFlight;
+    }
+
+    /**
+     * Sets the coalescer of renders, must be called before handlers are initialized.
+     */
+    public void setSingleFlight(SingleFlight singleFlight) {
+        this.singleFlight = singleFlight;
+    }
+
+    /**
+     * The cache of capabilities documents, <tt>null</tt> if capabilities are not cached.
+     */
+    public CapabilitiesCache getCapabilitiesCache() {
+        return capabilitiesCache;
+    }
+
+    /**
+     * Sets the cache of capabilities, must be called before handlers are initialized.
+     */
+    public void setCapabilitiesCache(CapabilitiesCache capabilitiesCache) {
+        this.capabilitiesCache = capabilitiesCache;
+    }
+
+    /**
+     * The request and render metrics of the server, <tt>null</tt> if not recorded.
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets the metrics of the server, must be called before handlers are initialized.
+     */
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * The index of rendered features, <tt>null</tt> if rendered features are not indexed.
+     */
+    public FeatureIndex getFeatureIndex() {
+        return featureIndex;
+    }
+
+    /**
+     * Sets the index of rendered features, must be called before handlers are initialized.
+     */
+    public void setFeatureIndex(FeatureIndex featureIndex) {
+        this.featureIndex = featureIndex;
+    }
+
+    /**
+     * The handlers requests are dispatched to, in order.
+     */
+    public List<Handler> getHandlers() {
+        return handlers;
+    }
+
+    /**
+     * Version of the registry, changing whenever data is modified through the server, or
+     * files change in the {@link #watch(File, long) watched} directory.
+     * <p>
+     * The version is the time of the last modification, in milliseconds.
+     * </p>
+     */
+    public long getRegistryVersion() {
+        checkWatched();
+        return registryVersion.get();
+    }
+
+    /**
+     * Watches the directory the registry is loaded from for changes made outside the server.
+     * <p>
+     * The directory is checked before a request is handled, and when the registry version is
+     * read, at most once every <tt>interval</tt> milliseconds. Adding, removing or modifying a file within it, or within
+     * one of its subdirectories, invalidates the state derived from the registry entry the file
+     * backs, see {@link #entry(String)}, as both a layer and a style.
+     * </p>
+     * @param dir The directory, <tt>null</tt> to stop watching.
+     */
+    public void watch(File dir, long interval) {
+        watchInterval = interval;
+        watchedFiles = dir != null ? snapshot(dir) : null;
+        lastWatchCheck.set(System.currentTimeMillis());
+        watched = dir;
+    }
+
+    void checkWatched() {
+        File dir = watched;
+        if (dir == null) {
+            return;
+        }
+
+        // a single thread checks at a time
+        long now = System.currentTimeMillis();
+        long last = lastWatchCheck.get();
+        if (now - last < watchInterval || !lastWatchCheck.compareAndSet(last, now)) {
+            return;
+        }
+
+        Map<String,Long> files = snapshot(dir);
+        Set<String> changed = changed(watchedFiles, files);
+        watchedFiles = files;
+        if (changed.isEmpty()) {
+            return;
+        }
+
+        LOG.debug("Change detected in " + dir.getPath() + " to " + changed);
+        for (String name : changed) {
+            invalidateLayer(name, null);
+            invalidateStyle(name);
+        }
+        registryChanged();
+    }
+
+    /**
+     * The state of the files of a directory and its subdirectories, keyed by path relative to
+     * the directory.
+     */
+    static Map<String,Long> snapshot(File dir) {
+        Map<String,Long> files = new HashMap<String, Long>();
+        snapshot(dir, "", files);
+        return files;
+    }
+
+    static void snapshot(File dir, String path, Map<String,Long> files) {
+        File[] list = dir.listFiles();
+        if (list == null) {
+            return;
+        }
+        for (File f : list) {
+            if (f.isDirectory()) {
+                snapshot(f, path + f.getName() + "/", files);
+            }
+            else {
+                files.put(path + f.getName(), 31 * f.lastModified() + f.length());
+            }
+        }
+    }
+
+    /**
+     * The names of the registry entries backed by files added, removed or modified between two
+     * snapshots.
+     */
+    static Set<String> changed(Map<String,Long> before, Map<String,Long> after) {
+        Set<String> changed = new LinkedHashSet<String>();
+        Set<String> paths = new HashSet<String>(after.keySet());
+        if (before != null) {
+            paths.addAll(before.keySet());
+        }
+        for (String path : paths) {
+            Long b = before != null ? before.get(path) : null;
+            Long a = after.get(path);
+            if (b == null || !b.equals(a)) {
+                String name = entry(path);
+                if (name != null) {
+                    changed.add(name);
+                }
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * The name of the registry entry backed by a file, as a directory repository names it: the
+     * base name of the file, or of the directory containing it directly within the watched one.
+     * <p>
+     * A sqlite <tt>-wal</tt> or <tt>-journal</tt> file backs the database it belongs to, its
+     * <tt>-shm</tt> file backs nothing since it changes when the database is only read.
+     * </p>
+     *
+     * @param path The path of the file relative to the watched directory.
+     *
+     * @return The entry name, or <tt>null</tt> if the file backs no entry.
+     */
+    static String entry(String path) {
+        int slash = path.indexOf('/');
+        String name = slash < 0 ? path : path.substring(0, slash);
+        if (slash < 0 && name.endsWith("-shm")) {
+            return null;
+        }
+        return Util.base(name);
+    }
+
+    /**
+     * Drops all state derived from the registry, cached capabilities and layer metadata along
+     * with rendered images, indexed features, cluster hierarchies, parked cursors and parsed
+     * styles, and signals a registry change.
+     */
+    public void reload() {
+        if (capabilitiesCache != null) {
+            capabilitiesCache.clear();
+        }
+        if (imageCache != null) {
+            imageCache.clear();
+        }
+        if (featureIndex != null) {
+            featureIndex.clear();
+        }
+        for (Handler h : handlers) {
+            if (h instanceof FeatureHandler) {
+                FeatureHandler fh = (FeatureHandler) h;
+                if (fh.getClusters() != null) {
+                    fh.getClusters().clear();
+                }
+                if (fh.getPager() != null) {
+                    fh.getPager().clear();
+                }
+            }
+            if (h instanceof TileHandler) {
+                ((TileHandler) h).clear();
+            }
+        }
+        registryChanged();
+    }
+
+    /**
+     * Drops the state derived from a layer once it has been modified outside of a request:
+     * rendered images, capabilities and layer metadata such as its bounds, indexed features,
+     * cluster hierarchies, parked cursors and whether it is a tile layer.
+     *
+     * @param layer The layer, <tt>null</tt> for all layers of the workspace.
+     */
+    public void invalidateLayer(String workspace, String layer) {
+        if (imageCache != null) {
+            imageCache.invalidateLayer(workspace, layer);
+        }
+        if (capabilitiesCache != null) {
+            capabilitiesCache.invalidateLayer(workspace, layer);
+        }
+        if (featureIndex != null) {
+            featureIndex.invalidateLayer(workspace, layer);
+        }
+        for (Handler h : handlers) {
+            if (h instanceof FeatureHandler) {
+                FeatureHandler fh = (FeatureHandler) h;
+                if (fh.getClusters() != null) {
+                    fh.getClusters().invalidateLayer(workspace, layer);
+                }
+                if (fh.getPager() != null) {
+                    fh.getPager().invalidateLayer(workspace, layer);
+                }
+            }
+            if (h instanceof TileHandler) {
+                ((TileHandler) h).invalidateLayer(workspace, layer);
+            }
+        }
+    }
+
+    /**
+     * Drops the state derived from a style once it has been modified, images rendered with it
+     * along with its parsed form.
+     */
+    public void invalidateStyle(String style) {
+        if (imageCache != null) {
+            imageCache.invalidateStyle(style);
+        }
+        for (Handler h : handlers) {
+            if (h instanceof TileHandler) {
+                ((TileHandler) h).invalidateStyle(style);
+            }
+        }
+    }
+
+    /**
+     * Signals that the registry, or data in it, has been modified.
+     */
+    public void registryChanged() {
+        long now = System.currentTimeMillis();
+        long v = registryVersion.get();
+        while (!registryVersion.compareAndSet(v, Math.max(now, v + 1))) {
+            v = registryVersion.get();
+        }
+    }
+
+    @Override
+    public void stop() {
+        super.stop();
+        renderPool.shutdown();
+    }
+
     public File getWWWRoot() {
         return getRootDir();
     }
 
     @Override
-    public Response serve(String uri, String method, Properties header, Properties parms, 
+    public Response serve(String uri, String method, Properties header, Properties parms,
         Properties files) {
+        return serve(uri, method, header, parms, files, null);
+    }
+
+    @Override
+    protected boolean streamBody(String uri, String method, Properties header) {
+        Request request = new Request(uri, method, header, new Properties(), new Properties());
+        Handler h = findHandler(request);
+        return h != null && h.streamsBody(request);
+    }
+
+    @Override
+    public Response serve(String uri, String method, Properties header, Properties parms,
+        Properties files, InputStream body) {
 
         if (uri == null) {
             uri = "";
@@ -116,20 +497,62 @@ public class NanoServer extends NanoHTTPD {
 
         // handle a "ping"
         if (uri.equals("/ping")) {
+            started("ping");
             return new Response(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "");
         }
 
-        Request request = new Request(uri, method, header, parms, files);
-         
+        Request request = new Request(uri, method, header, parms, files, body);
+
+        // drop state derived from files changed since the last request
+        checkWatched();
+
         //find the handler for this request
         Handler h = findHandler(request);
+        started(h != null ? name(h) : "none");
         if (h == null) {
             return new Response(HTTP_NOTFOUND, MIME_PLAINTEXT, "No handler for request");
         }
 
         LOG.debug(method + " " + uri + "?" + parms);
         try {
-            return h.handle(request, this);
+            boolean get = "GET".equalsIgnoreCase(method) || "HEAD".equalsIgnoreCase(method);
+            if (!get) {
+                Response r = handle(h, request);
+                if (r.status.startsWith("2")) {
+                    registryChanged();
+                }
+                return r;
+            }
+
+            // answer conditional requests without producing the response if possible
+            Validator v = h.validator(request, this);
+            if (v != null && v.matches(header)) {
+                return cacheControl(h, v.notModified());
+            }
+
+            Response r = handle(h, request);
+            if (v != null && r.status.equals(HTTP_OK)) {
+                v.apply(r);
+            }
+            else if (r.status.equals(HTTP_OK) && r.header.getProperty("ETag") != null) {
+                // validator provided by the response itself
+                v = new Validator(r.header.getProperty("ETag"), -1);
+                if (v.matches(header)) {
+                    Response nm = v.notModified();
+                    if (r.toClose != null) {
+                        nm.toClose(r.toClose);
+                    }
+                    if (r.data != null) {
+                        try {
+                            r.data.close();
+                        } catch (IOException e) {
+                            LOG.debug("Error closing response", e);
+                        }
+                    }
+                    return cacheControl(h, nm);
+                }
+            }
+            return r.status.equals(HTTP_OK) ? cacheControl(h, r) : r;
         }
         catch(HttpException e) {
             return e.toResponse();
@@ -140,6 +563,75 @@ public class NanoServer extends NanoHTTPD {
         }
     }
 
+    static String name(Handler h) {
+        String name = h.getClass().getSimpleName();
+        return name.isEmpty() ? h.getClass().getName() : name;
+    }
+
+    void started(String handler) {
+        if (metrics != null) {
+            metrics.started();
+            served.set(handler);
+        }
+    }
+
+    @Override
+    protected void requestComplete(String status, long written, long nanos) {
+        // requests answered before reaching serve(), such as those rejected when the executor
+        // is saturated, have no handler
+        String handler = served.get();
+        served.remove();
+        if (metrics != null) {
+            metrics.completed(handler != null ? handler : "none", status, nanos, written,
+                handler != null);
+        }
+    }
+
+    /**
+     * Creates the executor requests are served with.
+     * <p>
+     * When <tt>virtual</tt> is set and the jvm supports virtual threads (jdk 21+) every request
+     * is served on a new virtual thread, which lets requests blocked on the backing data store
+     * scale to thousands without tying up platform threads. Otherwise, or if virtual threads
+     * are not available, a fixed pool of <tt>nThreads</tt> platform threads is used.
+     * </p>
+     */
+    public static ExecutorService newExecutor(int nThreads, boolean virtual) {
+        if (virtual) {
+            try {
+                // look up reflectively to remain compatible with older jvms
+                Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (ExecutorService) m.invoke(null);
+            }
+            catch(Exception e) {
+                LOG.warn("Virtual threads not supported, falling back to pool of {} threads", nThreads);
+                LOG.debug("Unable to create virtual thread executor", e);
+            }
+        }
+        return Executors.newFixedThreadPool(nThreads);
+    }
+
+    Response cacheControl(Handler h, Response r) {
+        if (h.getMaxAge() >= 0 && r.header.getProperty("Cache-Control") == null) {
+            r.addHeader("Cache-Control", "public, max-age=" + h.getMaxAge());
+        }
+        return r;
+    }
+
+    Response handle(final Handler h, final Request request) throws Exception {
+        if (!h.isExpensive(request)) {
+            return h.handle(request, this);
+        }
+
+        // run on the render pool, keeping the request threads free for cheap requests
+        return renderPool.execute(new Callable<Response>() {
+            @Override
+            public Response call() throws Exception {
+                return h.handle(request, NanoServer.this);
+            }
+        });
+    }
+
     InputStream toStream(Exception e) {
         ByteArrayOutputStream bout = new ByteArrayOutputStream();
 
@@ -172,10 +664,17 @@ public class NanoServer extends NanoHTTPD {
             java.util.logging.Logger.getLogger("").getHandlers()[0].setLevel(level);
         }
 
-        // make number of threads configurable
         try {
-            new NanoServer(opts.port, opts.root, DEFAULT_NUM_THREADS, loadRegistry(opts), 
-                null, null);
+            NanoServer server = new NanoServer(opts.port, opts.root,
+                newExecutor(opts.threads, opts.virtualThreads), loadRegistry(opts), null, null);
+            for (Handler h : server.handlers) {
+                if (h instanceof SeedHandler) {
+                    ((SeedHandler) h).setMBTilesDir(opts.mbtiles);
+                }
+            }
+            if (opts.data != null) {
+                server.watch(opts.data, DEFAULT_WATCH_INTERVAL);
+            }
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -188,6 +687,7 @@ public class NanoServer extends NanoHTTPD {
         Opts opts = new Opts();
 
         opts.verbose = argList.remove("-v");
+        opts.virtualThreads = argList.remove("--virtual-threads");
 
         if (argList.size() % 2 != 0) {
             usage();
@@ -204,6 +704,12 @@ public class NanoServer extends NanoHTTPD {
             else if ("-d".equalsIgnoreCase(arg)) {
                 opts.data = new File(a.next());
             }
+            else if ("-t".equalsIgnoreCase(arg)) {
+                opts.threads = Integer.parseInt(a.next());
+            }
+            else if ("-m".equalsIgnoreCase(arg)) {
+                opts.mbtiles = new File(a.next());
+            }
             else {
                 usage();
             }
@@ -222,7 +728,8 @@ public class NanoServer extends NanoHTTPD {
     }
 
     static void usage() {
-        System.out.println(NanoServer.class.getCanonicalName() + "[-p <port>] [-r <root>] [-d <dataRoot>]");
+        System.out.println(NanoServer.class.getCanonicalName() + "[-p <port>] [-r <root>] [-d <dataRoot>] "
+            + "[-t <threads>] [-m <mbtilesDir>] [--virtual-threads] [-v]");
         System.exit(1);
     }
 
@@ -230,6 +737,9 @@ public class NanoServer extends NanoHTTPD {
         Integer port = 8000;
         File root = null;
         File data = null;
+        File mbtiles = null;
+        int threads = DEFAULT_NUM_THREADS;
+        boolean virtualThreads = false;
         boolean verbose = false;
     }
 }
@@ -17,10 +17,13 @@ package io.jeo.nano;
 import java.io.IOException;
 import java.io.StringWriter;
 import java.util.Locale;
+import java.util.concurrent.Callable;
 
 import io.jeo.data.DataRepositoryView;
 import io.jeo.data.Dataset;
+import io.jeo.data.Handle;
 import io.jeo.data.Workspace;
+import io.jeo.nano.CapabilitiesCache.LayerInfo;
 import io.jeo.util.XMLWriter;
 
 /**
@@ -41,6 +44,24 @@ public abstract class OWSHandler extends Handler {
         return uri.equals(match) || uri.equals(match + "/");
     }
 
+    /**
+     * Capabilities are validated by the registry version of the server, so they are only
+     * regenerated when the registry changes.
+     */
+    @Override
+    public Validator validator(Request request, NanoServer server) throws IOException {
+        if (isGetCapabilities(request.getParms().getProperty("request"))) {
+            return Validator.of(server.getRegistryVersion(), serviceName, request.baseURL(),
+                request.getParms());
+        }
+        return null;
+    }
+
+    static boolean isGetCapabilities(String request) {
+        return request != null
+            && (request.equalsIgnoreCase("getcapabilities") || request.equalsIgnoreCase("capabilities"));
+    }
+
     @Override
     public final NanoHTTPD.Response handle(Request req, NanoServer server) throws Exception {
         String service = req.parms.getProperty("service", serviceName);
@@ -56,9 +77,43 @@ public abstract class OWSHandler extends Handler {
         if (handler == null) {
             throw exception("OperationNotSupported", "request", "No operation : " + request);
         }
+        if (capabilitiesCache != null && isGetCapabilities(request)) {
+            return getCapabilities(handler, req, server);
+        }
         return handler.handle(req, server);
     }
 
+    /**
+     * Returns the capabilities document from the cache, building it if the registry changed
+     * since it was cached. Concurrent builds of the same document are coalesced.
+     */
+    NanoHTTPD.Response getCapabilities(final DelegateHandler handler, final Request req,
+        final NanoServer server) throws Exception {
+        final String key = serviceName + " " + req.baseURL();
+
+        // read the version up front so a change during the build isn't missed
+        final long version = server.getRegistryVersion();
+        NanoHTTPD.Response cached = capabilitiesCache.get(key, version);
+        if (cached != null) {
+            return cached;
+        }
+
+        return coalesce("capabilities " + key + " " + version, new Callable<NanoHTTPD.Response>() {
+            @Override
+            public NanoHTTPD.Response call() throws Exception {
+                return capabilitiesCache.put(key, version, handler.handle(req, server));
+            }
+        });
+    }
+
+    /**
+     * Metadata of a layer, from the capabilities cache if there is one.
+     */
+    LayerInfo layerInfo(Handle<Workspace> ws, Handle<Dataset> layer) throws IOException {
+        return capabilitiesCache != null ?
+            capabilitiesCache.layer(ws.name(), layer) : LayerInfo.load(layer);
+    }
+
     Dataset resolve(DataRepositoryView registry, String wsDatasetSpec, RequestParser parser) throws IOException {
         Dataset resolved = null;
         String[] parts = wsDatasetSpec.split(":", 2);
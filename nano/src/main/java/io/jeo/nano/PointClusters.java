@@ -0,0 +1,483 @@
+/* Copyright 2014 The jeo project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jeo.nano;
+
+import static io.jeo.nano.NanoHTTPD.HTTP_BADREQUEST;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.Point;
+import io.jeo.data.Cursor;
+import io.jeo.geom.Bounds;
+import io.jeo.vector.Feature;
+
+/**
+ * Cache of point cluster hierarchies, one per layer, filter and cluster radius.
+ * <p>
+ * A hierarchy is loaded once from all the points of a layer, in geographic coordinates, and
+ * projected to spherical mercator normalized to the unit square. The clusters of a zoom level
+ * are computed on demand by grouping the clusters of the level below on a grid whose cells are
+ * the cluster radius wide at that zoom, see {@link Hierarchy#level(int)}. Levels are kept with
+ * the hierarchy so repeated requests at a zoom only filter the clusters of the level.
+ * </p>
+ * <p>
+ * Hierarchies are cached until their layer is invalidated, see
+ * {@link NanoServer#invalidateLayer(String, String)}.
+ * Concurrent requests for a hierarchy not yet loaded wait on a single load. Instances of this
+ * class are thread safe.
+ * </p>
+ */
+public class PointClusters {
+
+    /**
+     * Default maximum number of hierarchies cached.
+     */
+    public static final int DEFAULT_MAX_HIERARCHIES = 8;
+
+    /**
+     * Default maximum number of points of a layer clustered.
+     */
+    public static final int DEFAULT_MAX_POINTS = 1000000;
+
+    /**
+     * Highest zoom level points are clustered at, points are not clustered above it.
+     */
+    public static final int MAX_ZOOM = 22;
+
+    /**
+     * Size of a tile in pixels, cluster radii are relative to it.
+     */
+    static final int TILE_SIZE = 256;
+
+    final int maxHierarchies;
+    final int maxPoints;
+
+    final LinkedHashMap<String,FutureTask<Hierarchy>> hierarchies =
+        new LinkedHashMap<String,FutureTask<Hierarchy>>(16, 0.75f, true);
+
+    final AtomicLong hits = new AtomicLong();
+    final AtomicLong misses = new AtomicLong();
+
+    public PointClusters() {
+        this(DEFAULT_MAX_HIERARCHIES, DEFAULT_MAX_POINTS);
+    }
+
+    /**
+     * @param maxHierarchies Maximum number of hierarchies cached.
+     * @param maxPoints Maximum number of points of a layer clustered.
+     */
+    public PointClusters(int maxHierarchies, int maxPoints) {
+        this.maxHierarchies = maxHierarchies;
+        this.maxPoints = maxPoints;
+    }
+
+    /**
+     * Computes the key of a hierarchy.
+     *
+     * @param workspace The workspace of the layer.
+     * @param layer The name of the layer.
+     * @param radius The cluster radius, in pixels.
+     * @param filter The filter applied to the layer, may be <tt>null</tt>.
+     * @param fields The fields aggregated, may be <tt>null</tt>.
+     */
+    public static String key(String workspace, String layer, int radius, String filter,
+        String[] fields) {
+        return workspace + ":" + layer + " " + radius + " " + (filter != null ? filter : "")
+            + " " + (fields != null ? Arrays.toString(fields) : "");
+    }
+
+    /**
+     * Returns the hierarchy for a key, loading it if not cached.
+     *
+     * @param key The key of the hierarchy, see {@link #key(String, String, int, String, String[])}.
+     * @param loader Loads the hierarchy, typically with {@link #load(Cursor, int, String[])}.
+     */
+    public Hierarchy get(String key, Callable<Hierarchy> loader) throws IOException {
+        FutureTask<Hierarchy> task;
+        boolean load = false;
+        synchronized (this) {
+            task = hierarchies.get(key);
+            if (task == null) {
+                task = new FutureTask<Hierarchy>(loader);
+                hierarchies.put(key, task);
+                Iterator<FutureTask<Hierarchy>> it = hierarchies.values().iterator();
+                while (hierarchies.size() > maxHierarchies && it.hasNext()) {
+                    it.next();
+                    it.remove();
+                }
+                load = true;
+            }
+        }
+
+        if (load) {
+            misses.incrementAndGet();
+            task.run();
+        }
+        else {
+            hits.incrementAndGet();
+        }
+
+        try {
+            return task.get();
+        }
+        catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for clusters");
+        }
+        catch(ExecutionException ex) {
+            // failed loads are not cached
+            synchronized (this) {
+                if (hierarchies.get(key) == task) {
+                    hierarchies.remove(key);
+                }
+            }
+
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Loads a hierarchy from features in geographic coordinates, closing the cursor. Features
+     * other than points are clustered at their centroid.
+     *
+     * @param radius The cluster radius, in pixels.
+     * @param fields The numeric fields to aggregate, may be <tt>null</tt>.
+     */
+    public Hierarchy load(Cursor<Feature> cursor, int radius, String[] fields) throws IOException {
+        int nfields = fields != null ? fields.length : 0;
+        Level points = new Level(1024, nfields);
+        try {
+            for (Feature f : cursor) {
+                Geometry g = f.geometry();
+                if (g == null || g.isEmpty()) {
+                    continue;
+                }
+                Point p = g instanceof Point ? (Point) g : g.getCentroid();
+                if (p.isEmpty()) {
+                    continue;
+                }
+                if (points.size == maxPoints) {
+                    throw new HttpException(HTTP_BADREQUEST,
+                        "Too many points to cluster, maximum is " + maxPoints);
+                }
+
+                int i = points.add(x(p.getX()), y(p.getY()), 1, f.id());
+                for (int k = 0; k < nfields; k++) {
+                    Object v = f.get(fields[k]);
+                    if (v instanceof Number) {
+                        double d = ((Number) v).doubleValue();
+                        points.sum[k][i] = d;
+                        points.min[k][i] = d;
+                        points.max[k][i] = d;
+                    }
+                }
+            }
+        }
+        finally {
+            cursor.close();
+        }
+        return new Hierarchy(radius, fields, points.trim());
+    }
+
+    /**
+     * Drops the hierarchies of a layer, or of any layer of a workspace if <tt>layer</tt> is
+     * <tt>null</tt>.
+     */
+    public synchronized void invalidateLayer(String workspace, String layer) {
+        String prefix = workspace + ":" + (layer != null ? layer + " " : "");
+        for (Iterator<String> it = hierarchies.keySet().iterator(); it.hasNext(); ) {
+            if (it.next().startsWith(prefix)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Drops all hierarchies.
+     */
+    public synchronized void clear() {
+        hierarchies.clear();
+    }
+
+    /**
+     * Number of requests answered from a cached hierarchy.
+     */
+    public long hits() {
+        return hits.get();
+    }
+
+    /**
+     * Number of hierarchies loaded.
+     */
+    public long misses() {
+        return misses.get();
+    }
+
+    /**
+     * Number of hierarchies cached.
+     */
+    public synchronized int count() {
+        return hierarchies.size();
+    }
+
+    /**
+     * Projects a longitude to spherical mercator, normalized to [0,1].
+     */
+    static double x(double lon) {
+        return lon / 360 + 0.5;
+    }
+
+    /**
+     * Projects a latitude to spherical mercator, normalized to [0,1] from north to south.
+     */
+    static double y(double lat) {
+        double sin = Math.sin(Math.toRadians(lat));
+        double y = 0.5 - 0.25 * Math.log((1 + sin) / (1 - sin)) / Math.PI;
+        return y < 0 ? 0 : y > 1 ? 1 : y;
+    }
+
+    static double lon(double x) {
+        return (x - 0.5) * 360;
+    }
+
+    static double lat(double y) {
+        return Math.toDegrees(2 * Math.atan(Math.exp((0.5 - y) * 2 * Math.PI))) - 90;
+    }
+
+    /**
+     * The clusters of a layer at every zoom level.
+     */
+    public static class Hierarchy {
+
+        final int radius;
+        final String[] fields;
+
+        /** levels by zoom, the last holding the points themselves */
+        final Level[] levels = new Level[MAX_ZOOM + 2];
+
+        Hierarchy(int radius, String[] fields, Level points) {
+            this.radius = radius;
+            this.fields = fields != null ? fields : new String[0];
+            levels[MAX_ZOOM + 1] = points;
+        }
+
+        /**
+         * The aggregated fields.
+         */
+        public String[] fields() {
+            return fields;
+        }
+
+        /**
+         * Number of points clustered.
+         */
+        public int size() {
+            return levels[MAX_ZOOM + 1].size;
+        }
+
+        /**
+         * Returns the clusters of a zoom level, computing it from the level above if needed.
+         * Zoom levels above {@link #MAX_ZOOM} return the points.
+         */
+        public synchronized Level level(int zoom) {
+            int z = Math.max(0, Math.min(zoom, MAX_ZOOM + 1));
+            int from = z;
+            while (levels[from] == null) {
+                from++;
+            }
+            for (int i = from - 1; i >= z; i--) {
+                levels[i] = levels[i + 1].cluster((double) radius / (TILE_SIZE * Math.pow(2, i)));
+            }
+            return levels[z];
+        }
+    }
+
+    /**
+     * Clusters of a zoom level, as parallel arrays. Coordinates are in spherical mercator
+     * normalized to the unit square.
+     */
+    public static class Level {
+
+        int size;
+        double[] x, y;
+        int[] count;
+        /** id of the point, for clusters of a single point */
+        String[] ids;
+        /** aggregates per field, NaN when no value was numeric */
+        double[][] sum, min, max;
+
+        Level(int capacity, int fields) {
+            x = new double[capacity];
+            y = new double[capacity];
+            count = new int[capacity];
+            ids = new String[capacity];
+            sum = new double[fields][capacity];
+            min = new double[fields][capacity];
+            max = new double[fields][capacity];
+        }
+
+        int add(double px, double py, int n, String id) {
+            if (size == x.length) {
+                grow(size * 2);
+            }
+            int i = size++;
+            x[i] = px;
+            y[i] = py;
+            count[i] = n;
+            ids[i] = id;
+            for (int k = 0; k < sum.length; k++) {
+                sum[k][i] = Double.NaN;
+                min[k][i] = Double.NaN;
+                max[k][i] = Double.NaN;
+            }
+            return i;
+        }
+
+        Level trim() {
+            grow(size);
+            return this;
+        }
+
+        void grow(int capacity) {
+            x = Arrays.copyOf(x, capacity);
+            y = Arrays.copyOf(y, capacity);
+            count = Arrays.copyOf(count, capacity);
+            ids = Arrays.copyOf(ids, capacity);
+            for (int k = 0; k < sum.length; k++) {
+                sum[k] = Arrays.copyOf(sum[k], capacity);
+                min[k] = Arrays.copyOf(min[k], capacity);
+                max[k] = Arrays.copyOf(max[k], capacity);
+            }
+        }
+
+        /**
+         * Groups the clusters of this level falling in the same cell of a grid, at the weighted
+         * centroid of the cell.
+         *
+         * @param cell The width of a cell.
+         */
+        Level cluster(double cell) {
+            long cells = (long) Math.ceil(1 / cell) + 1;
+            Map<Long,Integer> grid = new HashMap<Long, Integer>();
+
+            Level l = new Level(Math.max(16, size / 4), sum.length);
+            for (int i = 0; i < size; i++) {
+                long key = (long) (x[i] / cell) * cells + (long) (y[i] / cell);
+                Integer j = grid.get(key);
+                if (j == null) {
+                    int c = l.add(x[i] * count[i], y[i] * count[i], count[i], ids[i]);
+                    for (int k = 0; k < sum.length; k++) {
+                        l.sum[k][c] = sum[k][i];
+                        l.min[k][c] = min[k][i];
+                        l.max[k][c] = max[k][i];
+                    }
+                    grid.put(key, c);
+                    continue;
+                }
+
+                int c = j;
+                l.x[c] += x[i] * count[i];
+                l.y[c] += y[i] * count[i];
+                l.count[c] += count[i];
+                l.ids[c] = null;
+                for (int k = 0; k < sum.length; k++) {
+                    l.sum[k][c] = add(l.sum[k][c], sum[k][i]);
+                    l.min[k][c] = min(l.min[k][c], min[k][i]);
+                    l.max[k][c] = max(l.max[k][c], max[k][i]);
+                }
+            }
+
+            // coordinates were summed weighted by count
+            for (int c = 0; c < l.size; c++) {
+                l.x[c] /= l.count[c];
+                l.y[c] /= l.count[c];
+            }
+            return l.trim();
+        }
+
+        /**
+         * Number of clusters.
+         */
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Whether a cluster lies within a geographic bounding box.
+         */
+        public boolean within(int i, Bounds bbox) {
+            return x[i] >= x(bbox.getMinX()) && x[i] <= x(bbox.getMaxX())
+                && y[i] >= y(bbox.getMaxY()) && y[i] <= y(bbox.getMinY());
+        }
+
+        /**
+         * Longitude of a cluster.
+         */
+        public double lon(int i) {
+            return PointClusters.lon(x[i]);
+        }
+
+        /**
+         * Latitude of a cluster.
+         */
+        public double lat(int i) {
+            return PointClusters.lat(y[i]);
+        }
+
+        /**
+         * Number of points of a cluster.
+         */
+        public int count(int i) {
+            return count[i];
+        }
+
+        /**
+         * Id of the point of a cluster of a single point, <tt>null</tt> for other clusters.
+         */
+        public String id(int i) {
+            return ids[i];
+        }
+
+        static double add(double a, double b) {
+            return Double.isNaN(a) ? b : Double.isNaN(b) ? a : a + b;
+        }
+
+        static double min(double a, double b) {
+            return Double.isNaN(a) ? b : Double.isNaN(b) ? a : Math.min(a, b);
+        }
+
+        static double max(double a, double b) {
+            return Double.isNaN(a) ? b : Double.isNaN(b) ? a : Math.max(a, b);
+        }
+    }
+}
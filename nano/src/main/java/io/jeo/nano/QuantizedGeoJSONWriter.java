@@ -0,0 +1,496 @@
+/* Copyright 2014 The jeo project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jeo.nano;
+
+import static io.jeo.nano.NanoHTTPD.HTTP_BADREQUEST;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TimeZone;
+
+import com.vividsolutions.jts.geom.CoordinateSequence;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryCollection;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.MultiPoint;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.simplify.TopologyPreservingSimplifier;
+import io.jeo.geom.Geom;
+import io.jeo.json.JSONValue;
+import io.jeo.vector.Feature;
+
+/**
+ * Writes features as GeoJSON with geometries reduced to a target resolution.
+ * <p>
+ * Geometries are simplified with a topology preserving simplifier, then their coordinates are
+ * snapped to a grid of fixed decimal precision. Consecutive points snapped to the same position
+ * are merged, and lines and rings left with too few points are dropped, along with polygons
+ * whose shell collapsed. A geometry with no parts left is written as <tt>null</tt>.
+ * </p>
+ * <p>
+ * Coordinates are written from their snapped integer values with no intermediate strings, and
+ * trailing zeros are dropped.
+ * </p>
+ */
+class QuantizedGeoJSONWriter {
+
+    /**
+     * Maximum number of decimals, bounded so that snapped coordinates of projected data fit a
+     * long.
+     */
+    static final int MAX_PRECISION = 9;
+
+    static final long[] POWERS = new long[MAX_PRECISION + 1];
+    static {
+        POWERS[0] = 1;
+        for (int i = 1; i < POWERS.length; i++) {
+            POWERS[i] = POWERS[i - 1] * 10;
+        }
+    }
+
+    /**
+     * Parses the <tt>resolution</tt>, <tt>precision</tt> and <tt>simplify</tt> parameters of a
+     * request, returning <tt>null</tt> if none is specified.
+     * <p>
+     * The resolution is the size of a pixel of the client in units of the output projection. It
+     * defaults the simplification tolerance to a pixel, and the precision to the decimals
+     * needed to keep coordinates within half a pixel.
+     * </p>
+     */
+    static Settings settings(Properties p) {
+        String res = p.getProperty("resolution");
+        String prec = p.getProperty("precision");
+        String simp = p.getProperty("simplify");
+        if (res == null && prec == null && simp == null) {
+            return null;
+        }
+
+        int precision = MAX_PRECISION;
+        double tolerance = 0;
+        if (res != null) {
+            double resolution = parseDouble("resolution", res);
+            if (!(resolution > 0)) {
+                throw new HttpException(HTTP_BADREQUEST, "Invalid resolution: " + res);
+            }
+            precision = (int) Math.ceil(-Math.log10(resolution));
+            tolerance = resolution;
+        }
+        if (prec != null) {
+            try {
+                precision = Integer.parseInt(prec);
+            }
+            catch(NumberFormatException e) {
+                throw new HttpException(HTTP_BADREQUEST, "Invalid precision: " + prec);
+            }
+            if (precision < 0 || precision > MAX_PRECISION) {
+                throw new HttpException(HTTP_BADREQUEST,
+                    "Invalid precision: " + prec + ", must be between 0 and " + MAX_PRECISION);
+            }
+        }
+        if (simp != null) {
+            tolerance = parseDouble("simplify", simp);
+            if (tolerance < 0) {
+                throw new HttpException(HTTP_BADREQUEST, "Invalid simplify: " + simp);
+            }
+        }
+        return new Settings(Math.max(0, Math.min(precision, MAX_PRECISION)), tolerance);
+    }
+
+    static double parseDouble(String key, String value) {
+        try {
+            return Double.parseDouble(value);
+        }
+        catch(NumberFormatException e) {
+            throw new HttpException(HTTP_BADREQUEST, "Invalid " + key + ": " + value);
+        }
+    }
+
+    /**
+     * Precision and simplification tolerance of the output.
+     */
+    static class Settings {
+        /** number of decimals of coordinates */
+        final int precision;
+        /** simplification tolerance, in units of the output, 0 for none */
+        final double tolerance;
+
+        Settings(int precision, double tolerance) {
+            this.precision = precision;
+            this.tolerance = tolerance;
+        }
+
+        QuantizedGeoJSONWriter writer(Writer out) {
+            return new QuantizedGeoJSONWriter(out, this);
+        }
+    }
+
+    final Writer out;
+    final int precision;
+    final long scale;
+    final double tolerance;
+
+    boolean inCollection;
+    int count;
+
+    /** snapped coordinates of the part being written */
+    long[] xs = new long[256];
+    long[] ys = new long[256];
+    final char[] digits = new char[20];
+
+    SimpleDateFormat dateFormat;
+
+    QuantizedGeoJSONWriter(Writer out, Settings settings) {
+        this.out = out;
+        this.precision = settings.precision;
+        this.scale = POWERS[precision];
+        this.tolerance = settings.tolerance;
+    }
+
+    /**
+     * Starts a feature collection, its features follow.
+     */
+    QuantizedGeoJSONWriter featureCollection() throws IOException {
+        out.write("{\"type\":\"FeatureCollection\",\"features\":[");
+        inCollection = true;
+        count = 0;
+        return this;
+    }
+
+    /**
+     * Ends a feature collection.
+     *
+     * @param next Continuation token of the next page, may be <tt>null</tt>.
+     */
+    QuantizedGeoJSONWriter endFeatureCollection(String next) throws IOException {
+        out.write(']');
+        if (next != null) {
+            out.write(",\"next\":");
+            out.write(JSONValue.toJSONString(next));
+        }
+        out.write('}');
+        inCollection = false;
+        return this;
+    }
+
+    QuantizedGeoJSONWriter feature(Feature f) throws IOException {
+        if (inCollection && count++ > 0) {
+            out.write(',');
+        }
+
+        out.write("{\"type\":\"Feature\"");
+        if (f.id() != null) {
+            out.write(",\"id\":");
+            out.write(JSONValue.toJSONString(f.id()));
+        }
+
+        Geometry geom = f.geometry();
+        out.write(",\"geometry\":");
+        geometry(geom);
+
+        out.write(",\"properties\":{");
+        boolean first = true;
+        for (Map.Entry<String,Object> e : f.map().entrySet()) {
+            Object v = e.getValue();
+            if (geom != null && v == geom) {
+                continue;
+            }
+            if (!first) {
+                out.write(',');
+            }
+            first = false;
+            out.write(JSONValue.toJSONString(e.getKey()));
+            out.write(':');
+            value(v);
+        }
+        out.write("}}");
+        return this;
+    }
+
+    void value(Object v) throws IOException {
+        if (v instanceof Geometry) {
+            geometry((Geometry) v);
+        }
+        else if (v instanceof Double || v instanceof Float) {
+            double d = ((Number) v).doubleValue();
+            out.write(Double.isNaN(d) || Double.isInfinite(d) ? "null" : v.toString());
+        }
+        else if (v == null || v instanceof Number || v instanceof Boolean || v instanceof String
+            || v instanceof Map || v instanceof Collection) {
+            out.write(JSONValue.toJSONString(v));
+        }
+        else if (v instanceof Date) {
+            out.write(JSONValue.toJSONString(format((Date) v)));
+        }
+        else {
+            out.write(JSONValue.toJSONString(v.toString()));
+        }
+    }
+
+    String format(Date d) {
+        if (dateFormat == null) {
+            dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.ROOT);
+            dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        }
+        return dateFormat.format(d);
+    }
+
+    void geometry(Geometry g) throws IOException {
+        if (g == null || g.isEmpty()) {
+            out.write("null");
+            return;
+        }
+        if (tolerance > 0 && !(g instanceof Point) && !(g instanceof MultiPoint)) {
+            g = TopologyPreservingSimplifier.simplify(g, tolerance);
+        }
+
+        boolean written;
+        switch(Geom.Type.from(g)) {
+        case POINT:
+            written = point((Point) g);
+            break;
+        case LINESTRING:
+            written = line("LineString", (LineString) g);
+            break;
+        case POLYGON:
+            written = polygon("Polygon", (Polygon) g);
+            break;
+        case MULTIPOINT:
+            written = points((MultiPoint) g);
+            break;
+        case MULTILINESTRING:
+            written = false;
+            for (int i = 0; i < g.getNumGeometries(); i++) {
+                written = line(written ? null : "MultiLineString", (LineString) g.getGeometryN(i))
+                    || written;
+            }
+            if (written) {
+                out.write("]}");
+            }
+            break;
+        case MULTIPOLYGON:
+            written = false;
+            for (int i = 0; i < g.getNumGeometries(); i++) {
+                written = polygon(written ? null : "MultiPolygon", (Polygon) g.getGeometryN(i))
+                    || written;
+            }
+            if (written) {
+                out.write("]}");
+            }
+            break;
+        case GEOMETRYCOLLECTION:
+            collection((GeometryCollection) g);
+            written = true;
+            break;
+        default:
+            throw new IllegalArgumentException("Unsupported geometry: " + g.getGeometryType());
+        }
+
+        if (!written) {
+            out.write("null");
+        }
+    }
+
+    boolean point(Point p) throws IOException {
+        out.write("{\"type\":\"Point\",\"coordinates\":");
+        coordinate(snap(p.getX()), snap(p.getY()));
+        out.write('}');
+        return true;
+    }
+
+    boolean points(MultiPoint mp) throws IOException {
+        out.write("{\"type\":\"MultiPoint\",\"coordinates\":[");
+        for (int i = 0; i < mp.getNumGeometries(); i++) {
+            Point p = (Point) mp.getGeometryN(i);
+            if (i > 0) {
+                out.write(',');
+            }
+            coordinate(snap(p.getX()), snap(p.getY()));
+        }
+        out.write("]}");
+        return true;
+    }
+
+    /**
+     * Writes a line, unless collapsed.
+     *
+     * @param type The type of geometry to open before the line, if <tt>null</tt> the line
+     * follows a previous part of a multi geometry.
+     *
+     * @return Whether the line was written.
+     */
+    boolean line(String type, LineString line) throws IOException {
+        int n = snap(line.getCoordinateSequence());
+        if (n < 2) {
+            return false;
+        }
+        open(type, "LineString");
+        coordinates(n);
+        if ("LineString".equals(type)) {
+            out.write('}');
+        }
+        return true;
+    }
+
+    /**
+     * Writes a polygon, unless its shell collapsed. Holes that collapsed are left out.
+     *
+     * @see #line(String, LineString)
+     */
+    boolean polygon(String type, Polygon polygon) throws IOException {
+        int n = snap(polygon.getExteriorRing().getCoordinateSequence());
+        if (n < 4) {
+            return false;
+        }
+        open(type, "Polygon");
+        out.write('[');
+        coordinates(n);
+        for (int i = 0; i < polygon.getNumInteriorRing(); i++) {
+            n = snap(polygon.getInteriorRingN(i).getCoordinateSequence());
+            if (n >= 4) {
+                out.write(',');
+                coordinates(n);
+            }
+        }
+        out.write(']');
+        if ("Polygon".equals(type)) {
+            out.write('}');
+        }
+        return true;
+    }
+
+    void open(String type, String single) throws IOException {
+        if (type == null) {
+            out.write(',');
+        }
+        else {
+            out.write("{\"type\":\"");
+            out.write(type);
+            out.write("\",\"coordinates\":");
+            if (!type.equals(single)) {
+                out.write('[');
+            }
+        }
+    }
+
+    void collection(GeometryCollection gc) throws IOException {
+        out.write("{\"type\":\"GeometryCollection\",\"geometries\":[");
+        for (int i = 0; i < gc.getNumGeometries(); i++) {
+            if (i > 0) {
+                out.write(',');
+            }
+            geometry(gc.getGeometryN(i));
+        }
+        out.write("]}");
+    }
+
+    /**
+     * Snaps the coordinates of a sequence, merging consecutive duplicates.
+     *
+     * @return The number of coordinates left.
+     */
+    int snap(CoordinateSequence seq) {
+        int size = seq.size();
+        if (xs.length < size) {
+            xs = Arrays.copyOf(xs, size);
+            ys = Arrays.copyOf(ys, size);
+        }
+
+        int n = 0;
+        for (int i = 0; i < size; i++) {
+            long x = snap(seq.getOrdinate(i, CoordinateSequence.X));
+            long y = snap(seq.getOrdinate(i, CoordinateSequence.Y));
+            if (n > 0 && xs[n - 1] == x && ys[n - 1] == y) {
+                continue;
+            }
+            xs[n] = x;
+            ys[n] = y;
+            n++;
+        }
+        return n;
+    }
+
+    long snap(double ordinate) {
+        return Math.round(ordinate * scale);
+    }
+
+    void coordinates(int n) throws IOException {
+        out.write('[');
+        for (int i = 0; i < n; i++) {
+            if (i > 0) {
+                out.write(',');
+            }
+            coordinate(xs[i], ys[i]);
+        }
+        out.write(']');
+    }
+
+    void coordinate(long x, long y) throws IOException {
+        out.write('[');
+        number(x);
+        out.write(',');
+        number(y);
+        out.write(']');
+    }
+
+    /**
+     * Writes a snapped ordinate as a decimal number.
+     */
+    void number(long value) throws IOException {
+        if (value < 0) {
+            out.write('-');
+            value = -value;
+        }
+
+        long integer = value / scale;
+        long fraction = value % scale;
+
+        int pos = digits.length;
+        do {
+            digits[--pos] = (char) ('0' + integer % 10);
+            integer /= 10;
+        }
+        while (integer > 0);
+        out.write(digits, pos, digits.length - pos);
+
+        if (fraction > 0) {
+            // drop trailing zeros
+            int decimals = precision;
+            while (fraction % 10 == 0) {
+                fraction /= 10;
+                decimals--;
+            }
+
+            pos = digits.length;
+            for (int i = 0; i < decimals; i++) {
+                digits[--pos] = (char) ('0' + fraction % 10);
+                fraction /= 10;
+            }
+            digits[--pos] = '.';
+            out.write(digits, pos, digits.length - pos);
+        }
+    }
+
+    void flush() throws IOException {
+        out.flush();
+    }
+}
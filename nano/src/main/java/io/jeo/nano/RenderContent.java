@@ -0,0 +1,175 @@
+/* Copyright 2014 The jeo project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jeo.nano;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import javax.imageio.ImageIO;
+
+import io.jeo.map.MapBuilder;
+import io.jeo.map.View;
+import io.jeo.nano.NanoHTTPD.Response;
+import io.jeo.render.BaseRenderer;
+import io.jeo.render.ImageRenderer;
+import io.jeo.render.RenderListener;
+import io.jeo.render.Renderer;
+import io.jeo.render.RendererFactory;
+
+/**
+ * Response content rendering a map straight into the response output.
+ * <p>
+ * Nothing is rendered until the response is sent. The map, and the layers in it, are closed
+ * once rendered or when the content is closed without being sent. Given a {@link RenderPool}
+ * the render is executed on the pool, which sheds it before anything is sent when overloaded.
+ * </p>
+ */
+class RenderContent implements Response.Content {
+
+    final RendererFactory<?> factory;
+    final MapBuilder mb;
+    final RenderGuard guard;
+    final Metrics metrics;
+    final RenderListener listener;
+    final RenderPool pool;
+    boolean closed;
+
+    RenderContent(RendererFactory<?> factory, MapBuilder mb, RenderGuard guard, Metrics metrics,
+        RenderListener listener) {
+        this(factory, mb, guard, metrics, listener, null);
+    }
+
+    /**
+     * @param pool The pool to render on, <tt>null</tt> to render on the calling thread.
+     */
+    RenderContent(RendererFactory<?> factory, MapBuilder mb, RenderGuard guard, Metrics metrics,
+        RenderListener listener, RenderPool pool) {
+        this.factory = factory;
+        this.mb = mb;
+        this.guard = guard;
+        this.metrics = metrics;
+        this.listener = listener;
+        this.pool = pool;
+    }
+
+    @Override
+    public void write(final OutputStream out) throws IOException {
+        if (pool == null) {
+            render(out);
+            return;
+        }
+
+        try {
+            pool.execute(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    render(out);
+                    return null;
+                }
+            });
+        }
+        catch(IOException e) {
+            throw e;
+        }
+        catch(RuntimeException e) {
+            // including the 503 of an overloaded pool
+            throw e;
+        }
+        catch(Exception e) {
+            throw new IOException(e);
+        }
+        finally {
+            // closed by the render unless shed
+            close();
+        }
+    }
+
+    void render(OutputStream out) throws IOException {
+        render(out, false);
+    }
+
+    /**
+     * Renders the map into an image on the calling thread, see {@link #image(Renderer)}.
+     */
+    BufferedImage renderImage() throws IOException {
+        return render(null, true);
+    }
+
+    BufferedImage render(OutputStream out, boolean image) throws IOException {
+        BufferedImage img = null;
+        try {
+            View view = mb.view();
+            Map<String,Object> opts = listener != null ?
+                Collections.<String,Object>singletonMap(BaseRenderer.LISTENER, listener) : null;
+            Renderer renderer = factory.create(view, opts);
+            renderer.init(view, opts);
+            try {
+                long start = System.nanoTime();
+                guard.acquire();
+                long admitted = System.nanoTime();
+                try {
+                    if (image) {
+                        img = image(renderer);
+                    }
+                    else {
+                        renderer.render(out);
+                    }
+                } finally {
+                    guard.release();
+                }
+                if (metrics != null) {
+                    metrics.rendered(admitted - start, System.nanoTime() - admitted);
+                }
+            } finally {
+                renderer.close();
+            }
+        } finally {
+            close();
+        }
+        return img;
+    }
+
+    /**
+     * Renders a map into an image with an initialized renderer. Renderers implementing
+     * {@link ImageRenderer} draw into the image directly, the output of others is decoded.
+     */
+    static BufferedImage image(Renderer renderer) throws IOException {
+        if (renderer instanceof ImageRenderer) {
+            return ((ImageRenderer) renderer).renderImage();
+        }
+
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        renderer.render(bout);
+        BufferedImage img = ImageIO.read(new ByteArrayInputStream(bout.toByteArray()));
+        if (img == null) {
+            throw new IOException("Unable to decode rendered image");
+        }
+        return img;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            mb.map().close();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/* Copyright 2014 The jeo project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jeo.nano;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Bounds the number of renders running at once.
+ * <p>
+ * Rendering is cpu and memory bound, unlike most requests which spend their time waiting on
+ * the backing data store. When requests are served by a large number of threads, or a thread
+ * per request, renders are admitted through a guard so they don't compete for the processors.
+ * </p>
+ * <pre>
+ * guard.acquire();
+ * try {
+ *     renderer.render(out);
+ * }
+ * finally {
+ *     guard.release();
+ * }
+ * </pre>
+ */
+public class RenderGuard {
+
+    /**
+     * Guard shared by the handlers of the server, admitting two renders per processor.
+     */
+    public static final RenderGuard DEFAULT =
+        new RenderGuard(Runtime.getRuntime().availableProcessors() * 2);
+
+    final Permits permits;
+    int maxRenders;
+
+    /**
+     * Creates a new guard.
+     *
+     * @param maxRenders The maximum number of concurrent renders.
+     */
+    public RenderGuard(int maxRenders) {
+        if (maxRenders < 1) {
+            throw new IllegalArgumentException("max renders must be positive");
+        }
+        this.maxRenders = maxRenders;
+        permits = new Permits(maxRenders);
+    }
+
+    /**
+     * The maximum number of concurrent renders.
+     */
+    public synchronized int getMaxRenders() {
+        return maxRenders;
+    }
+
+    /**
+     * Sets the maximum number of concurrent renders.
+     * <p>
+     * Lowering the maximum does not affect renders already admitted, it takes effect as they
+     * complete.
+     * </p>
+     */
+    public synchronized void setMaxRenders(int max) {
+        if (max < 1) {
+            throw new IllegalArgumentException("max renders must be positive");
+        }
+        if (max > maxRenders) {
+            permits.release(max - maxRenders);
+        }
+        else if (max < maxRenders) {
+            permits.reducePermits(maxRenders - max);
+        }
+        maxRenders = max;
+    }
+
+    /**
+     * The number of renders that may currently be started without waiting.
+     */
+    public int available() {
+        return Math.max(0, permits.availablePermits());
+    }
+
+    /**
+     * Waits until a render may be started.
+     * <p>
+     * Every successful call must be paired with a call to {@link #release()}.
+     * </p>
+     */
+    public void acquire() throws InterruptedIOException {
+        try {
+            permits.acquire();
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting to render");
+        }
+    }
+
+    /**
+     * Signals that a render admitted with {@link #acquire()} is complete.
+     */
+    public void release() {
+        permits.release();
+    }
+
+    static class Permits extends Semaphore {
+
+        /** serialVersionUID */
+        private static final long serialVersionUID = 1L;
+
+        Permits(int permits) {
+            super(permits, true);
+        }
+
+        @Override
+        protected void reducePermits(int reduction) {
+            super.reducePermits(reduction);
+        }
+    }
+}
@@ -0,0 +1,259 @@
+/* Copyright 2014 The jeo project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jeo.nano;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static io.jeo.nano.NanoHTTPD.HTTP_SERVICE_UNAVAILABLE;
+
+/**
+ * Bounded pool that expensive requests, such as renders, are executed on.
+ * <p>
+ * The pool runs a fixed number of threads, typically one per processor, fed by a bounded queue.
+ * A request is shed with a <tt>503 Service Unavailable</tt> response, rather than queued
+ * indefinitely, when the queue is full or when it has waited longer than the latency budget
+ * of the pool to start. Requests that are not run on the pool are unaffected by its load.
+ * </p>
+ * <p>
+ * A request waiting on the pool still holds the thread serving it, so the number of requests
+ * admitted at once, executing or queued, is bounded separately from the queue. A server with a
+ * fixed number of request threads uses {@link #forRequestThreads(int)} to keep some of them
+ * free for cheap requests.
+ * </p>
+ */
+public class RenderPool {
+
+    /**
+     * Default number of milliseconds a request waits to start before being shed.
+     */
+    public static final long DEFAULT_MAX_WAIT = 2000;
+
+    final ThreadPoolExecutor executor;
+    final long maxWait;
+    final int maxAdmitted;
+
+    final AtomicInteger admitted = new AtomicInteger();
+
+    final AtomicLong completed = new AtomicLong();
+    final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * Creates a pool with a thread per processor, a queue of four requests per thread and the
+     * default latency budget.
+     */
+    public RenderPool() {
+        this(Runtime.getRuntime().availableProcessors(),
+            Runtime.getRuntime().availableProcessors() * 4, DEFAULT_MAX_WAIT);
+    }
+
+    /**
+     * Creates a new pool.
+     *
+     * @param nThreads Number of threads executing requests.
+     * @param queueSize Maximum number of requests waiting to be executed.
+     * @param maxWait Milliseconds a request may wait to start before being shed.
+     */
+    public RenderPool(int nThreads, int queueSize, long maxWait) {
+        this(nThreads, queueSize, maxWait, nThreads + queueSize);
+    }
+
+    /**
+     * Creates a new pool.
+     *
+     * @param nThreads Number of threads executing requests.
+     * @param queueSize Maximum number of requests waiting to be executed.
+     * @param maxWait Milliseconds a request may wait to start before being shed.
+     * @param maxAdmitted Maximum number of requests executing or waiting at once.
+     */
+    public RenderPool(int nThreads, int queueSize, long maxWait, int maxAdmitted) {
+        if (maxAdmitted < 1) {
+            throw new IllegalArgumentException("max admitted must be positive");
+        }
+        executor = new ThreadPoolExecutor(nThreads, nThreads, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+                final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "render-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        this.maxWait = maxWait;
+        this.maxAdmitted = maxAdmitted;
+    }
+
+    /**
+     * Creates a pool for a server serving requests with a fixed number of threads.
+     * <p>
+     * At most half of the request threads are admitted to the pool, the others remain free to
+     * serve cheap requests however many expensive requests arrive.
+     * </p>
+     *
+     * @param requestThreads The number of threads serving requests.
+     */
+    public static RenderPool forRequestThreads(int requestThreads) {
+        int max = Math.max(1, requestThreads / 2);
+        int nThreads = Math.min(Runtime.getRuntime().availableProcessors(), max);
+        return new RenderPool(nThreads, Math.max(1, max - nThreads), DEFAULT_MAX_WAIT, max);
+    }
+
+    /**
+     * Executes a request on the pool, waiting for it to complete.
+     *
+     * @return The result of the request.
+     *
+     * @throws HttpException A <tt>503</tt> if the pool is overloaded and the request was shed.
+     * @throws Exception Any exception thrown by the request itself.
+     */
+    public <T> T execute(Callable<T> task) throws Exception {
+        if (admitted.incrementAndGet() > maxAdmitted) {
+            admitted.decrementAndGet();
+            throw overloaded();
+        }
+        try {
+            return run(task);
+        }
+        finally {
+            admitted.decrementAndGet();
+        }
+    }
+
+    <T> T run(Callable<T> task) throws Exception {
+        Job<T> job = new Job<T>(task);
+        try {
+            executor.execute(job);
+        }
+        catch(RejectedExecutionException e) {
+            throw overloaded();
+        }
+
+        try {
+            if (!job.started.await(maxWait, TimeUnit.MILLISECONDS) && job.shed()) {
+                executor.remove(job);
+                throw overloaded();
+            }
+
+            return job.get();
+        }
+        catch(InterruptedException e) {
+            job.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for render");
+        }
+        catch(ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+        finally {
+            completed.incrementAndGet();
+        }
+    }
+
+    /**
+     * Number of requests that have been executed, or shed, by the pool.
+     */
+    public long completed() {
+        return completed.get();
+    }
+
+    /**
+     * Number of requests that have been shed by the pool.
+     */
+    public long rejected() {
+        return rejected.get();
+    }
+
+    /**
+     * Number of requests waiting to be executed.
+     */
+    public int queued() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Number of requests admitted, executing or waiting to be executed.
+     */
+    public int admitted() {
+        return admitted.get();
+    }
+
+    /**
+     * Number of requests being executed.
+     */
+    public int active() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * Shuts down the pool, requests already accepted are completed.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    HttpException overloaded() {
+        rejected.incrementAndGet();
+
+        long retry = Math.max(1, (maxWait + 999) / 1000);
+        return new HttpException(HTTP_SERVICE_UNAVAILABLE, "Server is too busy, retry later")
+            .header("Retry-After", String.valueOf(retry));
+    }
+
+    static class Job<T> extends FutureTask<T> {
+
+        static final int NEW = 0, STARTED = 1, SHED = 2;
+
+        final AtomicInteger state = new AtomicInteger(NEW);
+        final CountDownLatch started = new CountDownLatch(1);
+
+        Job(Callable<T> task) {
+            super(task);
+        }
+
+        @Override
+        public void run() {
+            if (state.compareAndSet(NEW, STARTED)) {
+                started.countDown();
+                super.run();
+            }
+        }
+
+        /**
+         * Marks the job as shed, returning false if it has already started.
+         */
+        boolean shed() {
+            return state.compareAndSet(NEW, SHED);
+        }
+    }
+}
@@ -14,6 +14,7 @@
  */
 package io.jeo.nano;
 
+import java.io.InputStream;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
@@ -25,6 +26,7 @@ public class Request {
     Properties header;
     Properties parms;
     Properties files;
+    InputStream body;
     Map<Object, Object> context;
 
     public Request(String uri, String method) {
@@ -42,11 +44,17 @@ public class Request {
     }
 
     public Request(String uri, String method, Properties header, Properties parms, Properties files) {
+        this(uri, method, header, parms, files, null);
+    }
+
+    public Request(String uri, String method, Properties header, Properties parms, Properties files,
+        InputStream body) {
         this.uri = uri;
         this.method = method;
         this.header = header;
         this.parms = parms;
         this.files = files;
+        this.body = body;
         this.context = new HashMap<Object, Object>();
     }
 
@@ -70,6 +78,15 @@ public class Request {
         return files;
     }
 
+    /**
+     * The body of the request as it arrives, for handlers that
+     * {@link Handler#streamsBody(Request) stream} it. <tt>null</tt> when the body was saved to
+     * the <tt>content</tt> file instead.
+     */
+    public InputStream getBody() {
+        return body;
+    }
+
     public Map<Object, Object> getContext() {
         return context;
     }
@@ -0,0 +1,332 @@
+/* Copyright 2014 The jeo project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jeo.nano;
+
+import static io.jeo.nano.NanoHTTPD.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import io.jeo.geojson.GeoJSONWriter;
+import io.jeo.geom.Bounds;
+import io.jeo.nano.NanoHTTPD.Response;
+import io.jeo.tile.TileDataset;
+import io.jeo.tile.TilePyramid;
+
+/**
+ * Handler for seeding jobs, pre-rendering tiles with a {@link TileSeeder}.
+ * <p>
+ * <tt>POST /seed</tt> starts a job in the background and takes the parameters:
+ * <ul>
+ *   <li><tt>layers</tt> - Layers to render, as a list of <tt>workspace:layer</tt>, required.
+ *   <li><tt>grid</tt> - Tile layer whose pyramid defines the tiles, defaults to
+ *   {@link TileHandler#GRID}, the web mercator grid layers are served on under <tt>/tiles</tt>.
+ *   <li><tt>style</tt> - Style to render with.
+ *   <li><tt>bbox</tt> - Area to seed, defaults to the bounds of the grid layer.
+ *   <li><tt>zoom</tt> - Zoom level or range, such as <tt>0-10</tt>, defaults to <tt>0</tt>.
+ *   <li><tt>format</tt> - Image format, defaults to <tt>image/png</tt>.
+ *   <li><tt>metatile</tt> - Metatile size, defaults to <tt>4</tt>.
+ *   <li><tt>mbtiles</tt> - Name of an MBTiles file to write to, within the
+ *   {@link #setMBTilesDir(File) MBTiles directory}. Tiles are written to the image cache of
+ *   the server otherwise, which requires a single layer on the web mercator grid, the tiles
+ *   {@link TileHandler} serves from the cache.
+ * </ul>
+ * <tt>GET /seed</tt> lists jobs along with their progress, <tt>GET /seed/&lt;id></tt> reports a
+ * single job and <tt>DELETE /seed/&lt;id></tt> cancels it. A limited number of jobs run at
+ * once, further jobs are refused with <tt>503 Service Unavailable</tt>, and only the most
+ * recent finished jobs are kept.
+ * </p>
+ * <p>
+ * Seeding into the image cache is most useful with a disk backed cache whose time to live
+ * is long enough for the seeded tiles to be served.
+ * </p>
+ */
+public class SeedHandler extends Handler {
+
+    static final Pattern SEED_URI_RE = Pattern.compile("/seed(?:/(\\d+))?/?", Pattern.CASE_INSENSITIVE);
+
+    static final Pattern ZOOM_RE = Pattern.compile("(\\d+)(?:-(\\d+))?");
+
+    /**
+     * Default maximum number of jobs running at once.
+     */
+    public static final int DEFAULT_MAX_RUNNING = 2;
+
+    /**
+     * Number of finished jobs kept for reporting.
+     */
+    static final int MAX_FINISHED = 16;
+
+    final Map<Integer,TileSeeder> jobs = new LinkedHashMap<Integer, TileSeeder>();
+    final AtomicInteger ids = new AtomicInteger();
+
+    File mbtilesDir;
+    int maxRunning = DEFAULT_MAX_RUNNING;
+
+    /**
+     * Directory MBTiles files are written to, <tt>null</tt> disables MBTiles output.
+     */
+    public File getMBTilesDir() {
+        return mbtilesDir;
+    }
+
+    public void setMBTilesDir(File mbtilesDir) {
+        this.mbtilesDir = mbtilesDir;
+    }
+
+    public int getMaxRunning() {
+        return maxRunning;
+    }
+
+    /**
+     * Sets the maximum number of jobs running at once.
+     */
+    public void setMaxRunning(int maxRunning) {
+        if (maxRunning < 1) {
+            throw new IllegalArgumentException("max running must be positive");
+        }
+        this.maxRunning = maxRunning;
+    }
+
+    @Override
+    public boolean canHandle(Request request, NanoServer server) {
+        return match(request, SEED_URI_RE);
+    }
+
+    @Override
+    public Response handle(Request request, NanoServer server) throws Exception {
+        Matcher m = (Matcher) request.getContext().get(Matcher.class);
+        String id = m.group(1);
+        String method = request.getMethod();
+
+        if ("POST".equalsIgnoreCase(method)) {
+            if (id != null) {
+                throw new HttpException(HTTP_METHOD_NOT_ALLOWED, "POST not allowed on a seed job");
+            }
+            return start(request, server);
+        }
+        if ("DELETE".equalsIgnoreCase(method)) {
+            if (id == null) {
+                throw new HttpException(HTTP_METHOD_NOT_ALLOWED, "DELETE requires a seed job");
+            }
+            TileSeeder job = job(id);
+            job.cancel();
+            return new Response(HTTP_OK, MIME_JSON, encode(id, job));
+        }
+
+        if (id != null) {
+            return new Response(HTTP_OK, MIME_JSON, encode(id, job(id)));
+        }
+
+        StringWriter out = new StringWriter();
+        GeoJSONWriter w = new GeoJSONWriter(out);
+        w.array();
+        synchronized (jobs) {
+            for (Map.Entry<Integer,TileSeeder> e : jobs.entrySet()) {
+                encode(e.getKey().toString(), e.getValue(), w);
+            }
+        }
+        w.endArray();
+        return new Response(HTTP_OK, MIME_JSON, out.toString());
+    }
+
+    Response start(Request request, NanoServer server) throws IOException {
+        RequestParser parser = new RequestParser(request);
+        String[] layers = parser.getList("layers", true);
+        String grid = parser.getParameter("grid", TileHandler.GRID);
+        String style = parser.getParameter("style", false);
+        String format = parser.getParameter("format", "image/png");
+        Integer metatile = parser.getInteger("metatile", false);
+        String mbtiles = parser.getParameter("mbtiles", false);
+        Bounds bbox = request.getParms().getProperty("bbox") != null ? parser.getBBox() : null;
+
+        int minZoom = 0, maxZoom = 0;
+        String zoom = parser.getParameter("zoom", false);
+        if (zoom != null) {
+            Matcher zm = ZOOM_RE.matcher(zoom);
+            if (zm.matches()) {
+                minZoom = Integer.parseInt(zm.group(1));
+                maxZoom = zm.group(2) != null ? Integer.parseInt(zm.group(2)) : minZoom;
+                if (minZoom > maxZoom) {
+                    parser.addError("Invalid zoom range: " + zoom);
+                }
+            }
+            else {
+                parser.addError("Invalid zoom: " + zoom);
+            }
+        }
+        if (metatile != null && metatile < 1) {
+            parser.addError("Invalid metatile: " + metatile);
+        }
+        if (parser.errors != null) {
+            StringBuilder sb = new StringBuilder();
+            for (String e : parser.errors) {
+                sb.append(e).append('\n');
+            }
+            throw new HttpException(HTTP_BADREQUEST, sb.toString());
+        }
+
+        TileSeeder seeder = new TileSeeder(server.getRegistry(), server.getRendererRegistry())
+            .layers(layers).grid(grid).style(style).format(format).bounds(bbox)
+            .zoom(minZoom, maxZoom).metatile(metatile != null ? metatile : 4);
+        for (Handler h : server.getHandlers()) {
+            if (h instanceof TileHandler) {
+                // render as the tiles served are rendered
+                seeder.buffer(((TileHandler) h).getBuffer());
+            }
+        }
+
+        List<String> layerList = Arrays.asList(layers);
+        if (mbtiles != null) {
+            seeder.sink(new TileSeeder.MBTilesSink(mbtilesFile(mbtiles), mbtiles, pyramid(grid, seeder),
+                format));
+        }
+        else {
+            ImageCache cache = server.getImageCache();
+            if (cache == null) {
+                throw new HttpException(HTTP_BADREQUEST, "Image cache disabled, specify mbtiles");
+            }
+            if (!TileHandler.GRID.equals(grid) || layers.length != 1) {
+                // tiles are only read from the cache by TileHandler, a layer at a time
+                throw new HttpException(HTTP_BADREQUEST, "Seeding the image cache requires a "
+                    + "single layer on the " + TileHandler.GRID + " grid, specify mbtiles");
+            }
+            seeder.sink(new TileSeeder.CacheSink(cache,
+                TileSeeder.prefix(layerList, style, grid, format), TileSeeder.tags(layerList, style)));
+        }
+
+        String id;
+        synchronized (jobs) {
+            int running = 0;
+            int finished = 0;
+            for (TileSeeder job : jobs.values()) {
+                if (job.isDone()) {
+                    finished++;
+                }
+                else {
+                    running++;
+                }
+            }
+            if (running >= maxRunning) {
+                seeder.sink.close();
+                throw new HttpException(HTTP_SERVICE_UNAVAILABLE,
+                    "Too many seed jobs running, retry later").header("Retry-After", "60");
+            }
+
+            // drop the oldest finished jobs
+            for (Iterator<TileSeeder> it = jobs.values().iterator();
+                finished >= MAX_FINISHED && it.hasNext();) {
+                if (it.next().isDone()) {
+                    it.remove();
+                    finished--;
+                }
+            }
+
+            id = String.valueOf(ids.incrementAndGet());
+            jobs.put(Integer.valueOf(id), seeder);
+        }
+
+        Thread t = new Thread(seeder, "seed-" + id);
+        t.setDaemon(true);
+        t.start();
+
+        return new Response(HTTP_ACCEPTED, MIME_JSON, encode(id, seeder));
+    }
+
+    File mbtilesFile(String name) {
+        if (mbtilesDir == null) {
+            throw new HttpException(HTTP_BADREQUEST, "MBTiles output is disabled");
+        }
+        if (!name.matches("[\\w-]+")) {
+            throw new HttpException(HTTP_BADREQUEST, "Invalid mbtiles name: " + name);
+        }
+        return new File(mbtilesDir, name + ".mbtiles");
+    }
+
+    TilePyramid pyramid(String grid, TileSeeder seeder) throws IOException {
+        if (TileHandler.GRID.equals(grid)) {
+            return null;
+        }
+        Object ds = seeder.resolve(grid);
+        if (!(ds instanceof TileDataset)) {
+            throw new HttpException(HTTP_BADREQUEST, grid + " is not a tile layer");
+        }
+        TileDataset tds = (TileDataset) ds;
+        try {
+            return tds.pyramid();
+        }
+        finally {
+            tds.close();
+        }
+    }
+
+    TileSeeder job(String id) {
+        synchronized (jobs) {
+            TileSeeder job = jobs.get(Integer.valueOf(id));
+            if (job == null) {
+                throw new HttpException(HTTP_NOTFOUND, "no such seed job: " + id);
+            }
+            return job;
+        }
+    }
+
+    String encode(String id, TileSeeder job) throws IOException {
+        StringWriter out = new StringWriter();
+        encode(id, job, new GeoJSONWriter(out));
+        return out.toString();
+    }
+
+    void encode(String id, TileSeeder job, GeoJSONWriter w) throws IOException {
+        String status = job.isDone() ? (job.error() != null ? "failed" : job.isCancelled() ?
+            "cancelled" : "done") : job.isCancelled() ? "cancelling" : "running";
+
+        w.object()
+            .key("id").value(id)
+            .key("layers").value(join(job.layers))
+            .key("grid").value(job.grid)
+            .key("zoom").value(job.minZoom + "-" + job.maxZoom)
+            .key("status").value(status)
+            .key("total").value(job.total())
+            .key("rendered").value(job.rendered())
+            .key("skipped").value(job.skipped())
+            .key("failed").value(job.failed())
+            .key("elapsed").value(job.elapsed())
+            .key("throughput").value(job.throughput());
+        if (job.error() != null) {
+            w.key("error").value(String.valueOf(job.error().getMessage()));
+        }
+        w.endObject();
+    }
+
+    String join(List<String> list) {
+        StringBuilder sb = new StringBuilder();
+        for (String s : list) {
+            sb.append(s).append(',');
+        }
+        if (sb.length() > 0) {
+            sb.setLength(sb.length() - 1);
+        }
+        return sb.toString();
+    }
+}
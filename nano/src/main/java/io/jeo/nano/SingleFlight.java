@@ -0,0 +1,212 @@
+/* Copyright 2014 The jeo project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jeo.nano;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.jeo.nano.NanoHTTPD.Response;
+
+import static io.jeo.nano.NanoHTTPD.HTTP_SERVICE_UNAVAILABLE;
+
+/**
+ * Coalesces identical concurrent requests so that only one of them does the work.
+ * <p>
+ * The first request for a key, the leader, computes the response while requests for the same
+ * key arriving in the meantime wait for it and receive a copy of its content. Should the leader
+ * fail, its exception is thrown to every waiting request. A request that waits longer than the
+ * timeout is answered with a <tt>503 Service Unavailable</tt>.
+ * </p>
+ * <p>
+ * Coalescing is independent of the {@link ImageCache}. When both are used the cache is checked
+ * before coalescing and populated by the leader, so a cold entry is rendered once and later
+ * requests are answered from the cache.
+ * </p>
+ */
+public class SingleFlight {
+
+    /**
+     * Default number of milliseconds a request waits for the leader.
+     */
+    public static final long DEFAULT_TIMEOUT = 30000;
+
+    final ConcurrentMap<String,Flight> flights = new ConcurrentHashMap<String, Flight>();
+    final long timeout;
+
+    final AtomicLong executed = new AtomicLong();
+    final AtomicLong coalesced = new AtomicLong();
+    final AtomicLong timeouts = new AtomicLong();
+
+    public SingleFlight() {
+        this(DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * @param timeout Milliseconds a request waits for the leader before giving up.
+     */
+    public SingleFlight(long timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Executes a request, or waits for an identical request in flight.
+     *
+     * @param key The normalized signature of the request, see {@link ImageCache#key}.
+     * @param task The computation of the response.
+     */
+    public Response execute(String key, Callable<Response> task) throws IOException {
+        Flight f = new Flight();
+        Flight leader = flights.putIfAbsent(key, f);
+        if (leader != null) {
+            coalesced.incrementAndGet();
+            return leader.await(timeout);
+        }
+
+        executed.incrementAndGet();
+        try {
+            Response r = task.call();
+            return f.complete(r);
+        }
+        catch(Exception e) {
+            f.fail(e);
+            throw f.rethrow();
+        }
+        catch(Error e) {
+            f.fail(new IOException(e));
+            throw e;
+        }
+        finally {
+            flights.remove(key, f);
+        }
+    }
+
+    /**
+     * Number of requests that did the work.
+     */
+    public long executed() {
+        return executed.get();
+    }
+
+    /**
+     * Number of requests answered with the result of another request.
+     */
+    public long coalesced() {
+        return coalesced.get();
+    }
+
+    /**
+     * Number of requests that timed out waiting for another request.
+     */
+    public long timeouts() {
+        return timeouts.get();
+    }
+
+    /**
+     * Number of requests in flight.
+     */
+    public int inFlight() {
+        return flights.size();
+    }
+
+    class Flight {
+
+        final CountDownLatch done = new CountDownLatch(1);
+
+        String status;
+        String mimeType;
+        Properties header;
+        byte[] data;
+        Exception error;
+
+        Response complete(Response r) throws IOException {
+            try {
+                status = r.status;
+                mimeType = r.mimeType;
+                header = r.header;
+                if (r.data != null) {
+                    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+                    try {
+                        r.data.write(bout);
+                    }
+                    finally {
+                        r.data.close();
+                    }
+                    data = bout.toByteArray();
+                }
+            }
+            catch(IOException e) {
+                fail(e);
+                throw e;
+            }
+            done.countDown();
+
+            Response copy = response();
+            copy.toClose = r.toClose;
+            return copy;
+        }
+
+        void fail(Exception e) {
+            error = e;
+            done.countDown();
+        }
+
+        Response await(long timeout) throws IOException {
+            try {
+                if (!done.await(timeout, TimeUnit.MILLISECONDS)) {
+                    timeouts.incrementAndGet();
+                    throw new HttpException(HTTP_SERVICE_UNAVAILABLE, "Timed out waiting for render")
+                        .header("Retry-After", "1");
+                }
+            }
+            catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for render");
+            }
+
+            if (error != null) {
+                throw rethrow();
+            }
+            return response();
+        }
+
+        Response response() {
+            Response r = data != null ? new Response(status, mimeType, new ByteArrayInputStream(data))
+                : new Response(status, mimeType, (Response.Content) null);
+            if (header != null) {
+                r.header.putAll(header);
+            }
+            return r;
+        }
+
+        IOException rethrow() {
+            if (error instanceof RuntimeException) {
+                throw (RuntimeException) error;
+            }
+            if (error instanceof IOException) {
+                return (IOException) error;
+            }
+            return new IOException(error);
+        }
+    }
+}
@@ -54,7 +54,8 @@ public class StyleHandler extends Handler {
                 throw new HttpException(HTTP_NOTFOUND, "no such style: " + s);
             }
 
-            return new Response(HTTP_OK, MIME_CSS, style.toString());
+            String css = style.toString();
+            return Validator.of(css.getBytes("UTF-8")).apply(new Response(HTTP_OK, MIME_CSS, css));
         }
 
     }
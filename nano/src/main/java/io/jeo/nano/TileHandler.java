@@ -14,24 +14,43 @@
  */
 package io.jeo.nano;
 
+import static io.jeo.nano.NanoHTTPD.HTTP_BADREQUEST;
 import static io.jeo.nano.NanoHTTPD.HTTP_INTERNALERROR;
 import static io.jeo.nano.NanoHTTPD.HTTP_NOTFOUND;
 import static io.jeo.nano.NanoHTTPD.HTTP_OK;
 import static io.jeo.nano.NanoHTTPD.MIME_HTML;
 import static io.jeo.nano.NanoHTTPD.MIME_PLAINTEXT;
 
+import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import javax.imageio.ImageIO;
+
 import io.jeo.data.Cursor;
 import io.jeo.data.Dataset;
+import io.jeo.data.FileDriver;
 import io.jeo.geom.Bounds;
+import io.jeo.map.MapBuilder;
+import io.jeo.map.Style;
+import io.jeo.proj.Proj;
+import io.jeo.render.RendererFactory;
+import io.jeo.render.Renderers;
 import io.jeo.tile.Tile;
 import io.jeo.tile.TileDataset;
 import io.jeo.tile.TileGrid;
@@ -39,24 +58,132 @@ import io.jeo.tile.TilePyramid;
 import io.jeo.tile.TilePyramid.Origin;
 import io.jeo.data.Workspace;
 import io.jeo.nano.NanoHTTPD.Response;
+import io.jeo.util.Key;
 import io.jeo.util.Pair;
+import io.jeo.vector.VectorDataset;
 
+/**
+ * Serves the tiles of tile layers, and of vector layers rendered on the fly.
+ * <p>
+ * Vector layers are rendered on the web mercator grid with the XYZ layout, rows counted from the
+ * north edge, at <tt>/tiles/&lt;workspace>/&lt;layer>/&lt;z>/&lt;x>/&lt;y>.png?style=&lt;style></tt>.
+ * Without a style the layer is rendered with the default style. When the server caches rendered
+ * images a whole metatile is rendered at once and its tiles are cached under the keys of
+ * {@link TileSeeder.CacheSink}, so tiles seeded on the {@link #GRID} grid are served from the
+ * cache as well.
+ * </p>
+ */
 public class TileHandler extends Handler {
 
     /* /tiles/<workspace>/<layer>/<z>/<x>/<y>.<format.  */
     static final Pattern TILES_URI_RE = Pattern.compile( 
         "/tiles(?:/([\\w-]+)(?:/([\\w-]+)))(?:/(\\d+)/+(\\d+)/+(\\d+))?(?:\\.(\\w+))?", Pattern.CASE_INSENSITIVE);
-    
+
+    /**
+     * Name of the grid vector layers are rendered on, in the cache keys of the rendered tiles.
+     */
+    public static final String GRID = "webmercator";
+
+    /**
+     * Default number of tiles along each side of a metatile.
+     */
+    public static final int DEFAULT_METATILE = 4;
+
+    /**
+     * Default number of pixels rendered around a metatile, so that symbols crossing its edges
+     * aren't cut.
+     */
+    public static final int DEFAULT_BUFFER = 32;
+
+    /**
+     * Half the width of the web mercator world.
+     */
+    static final double EXTENT = 20037508.342789244;
+
+    static final int TILE_SIZE = 256;
+
+    static final int MAX_ZOOM = 30;
+
+    int metatile = DEFAULT_METATILE;
+    int buffer = DEFAULT_BUFFER;
+
+    /**
+     * Styles resolved from the registry, by name.
+     */
+    final ConcurrentMap<String,Style> styles = new ConcurrentHashMap<String, Style>();
+    volatile Style defaultStyle;
+
+    /**
+     * Tile layers, by <tt>workspace:layer</tt>, whose tiles are read rather than rendered.
+     */
+    final Set<String> tileLayers =
+        Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    public int getMetatile() {
+        return metatile;
+    }
+
+    /**
+     * Sets the number of tiles along each side of the metatiles rendered, when rendered tiles
+     * are cached.
+     */
+    public void setMetatile(int metatile) {
+        if (metatile < 1) {
+            throw new IllegalArgumentException("metatile must be positive");
+        }
+        this.metatile = metatile;
+    }
+
+    public int getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Sets the number of pixels rendered around the metatiles and discarded.
+     */
+    public void setBuffer(int buffer) {
+        if (buffer < 0) {
+            throw new IllegalArgumentException("buffer must not be negative");
+        }
+        this.buffer = buffer;
+    }
+
     @Override
     public boolean canHandle(Request request, NanoServer server) {
         return match(request, TILES_URI_RE);
     }
-    
+
+    /**
+     * Tiles are expensive unless their layer is known to be a tile layer, as the tiles of vector
+     * layers are rendered.
+     */
+    @Override
+    public boolean isExpensive(Request request) {
+        Matcher m = (Matcher) request.getContext().get(Matcher.class);
+        return m.group(3) != null && !"html".equalsIgnoreCase(m.group(6))
+            && !tileLayers.contains(m.group(1) + ":" + m.group(2));
+    }
+
     @Override
     public Response handle(Request request, NanoServer server) {
         try {
-            Pair<Workspace, TileDataset> p = findTileLayer(request, server);
-            TileDataset layer = p.second;
+            Pair<Workspace, ? extends Dataset> p = findLayer(request, server);
+            if (p.second instanceof TileDataset) {
+                Matcher m = (Matcher) request.getContext().get(Matcher.class);
+                tileLayers.add(m.group(1) + ":" + m.group(2));
+            }
+            if (p.second instanceof VectorDataset) {
+                try {
+                    return getAsRenderedImage(p, request, server);
+                }
+                finally {
+                    if (p.first != null) {
+                        p.first.close();
+                    }
+                }
+            }
+
+            TileDataset layer = (TileDataset) p.second;
 
             try {
                 //get the tile index
@@ -101,11 +228,53 @@ public class TileHandler extends Handler {
                 }
             }
         }
+        catch(HttpException e) {
+            throw e;
+        }
         catch(Exception e) {
             throw new RuntimeException(e);
         }
     }
     
+    @Override
+    public Validator validator(Request request, NanoServer server) throws IOException {
+        Tile t = parseTileIndex(request);
+        String format = parseFormat(request);
+        if (t == null || "html".equalsIgnoreCase(format) || !conditional(request)) {
+            // unconditional requests are validated as the tile is read, see getAsImage
+            return null;
+        }
+
+        // tiles of file backed layers are validated by the file, without reading the tile
+        Pair<Workspace, ? extends Dataset> p = findLayer(request, server);
+        try {
+            // rendered tiles change along with the data, which is only known once rendered
+            File file = p.second instanceof TileDataset ? file(p.second) : null;
+            if (file == null) {
+                return null;
+            }
+            return Validator.of(file, p.second.name(), t.z(), t.x(), t.y(), request.getParms());
+        }
+        finally {
+            p.second.close();
+            if (p.first != null) {
+                p.first.close();
+            }
+        }
+    }
+
+    static boolean conditional(Request request) {
+        Properties h = request.getHeader();
+        return h != null
+            && (h.getProperty("if-none-match") != null || h.getProperty("if-modified-since") != null);
+    }
+
+    static File file(Dataset data) {
+        Map<Key<?>, Object> opts = data.driverOptions();
+        Object file = opts != null ? opts.get(FileDriver.FILE) : null;
+        return file instanceof File && ((File) file).isFile() ? (File) file : null;
+    }
+
     Tile getFirstTile(TileDataset layer) throws IOException {
         TilePyramid pyr = layer.pyramid();
         TileGrid grid = pyr.grids().get(0);
@@ -145,22 +314,251 @@ public class TileHandler extends Handler {
                     Locale.ROOT, "No such tile z = %d, x = %d, y = %d", tile.z(), tile.x(), tile.y()));
             }
     
-            return new Response(HTTP_OK, t.mimeType(), new ByteArrayInputStream(t.data()));
+            // the same validator as up front for file backed layers, without hashing the tile
+            Tile requested = parseTileIndex(request);
+            File file = file(layer);
+            Validator v = file != null && requested != null
+                ? Validator.of(file, layer.name(), requested.z(), requested.x(), requested.y(),
+                    request.getParms())
+                : Validator.of(t.data());
+            return v.apply(new Response(HTTP_OK, t.mimeType(), new ByteArrayInputStream(t.data())));
         }
         catch(IOException e) {
             return new Response(HTTP_INTERNALERROR, MIME_PLAINTEXT, e.getLocalizedMessage());
         }
     }
 
-    Pair<Workspace, TileDataset> findTileLayer(Request request, NanoServer server) throws IOException {
+    /**
+     * Renders a tile of a vector layer, closing the layer.
+     */
+    Response getAsRenderedImage(Pair<Workspace, ? extends Dataset> p, Request request,
+        NanoServer server) throws IOException {
+        final VectorDataset data = (VectorDataset) p.second;
+        final boolean[] rendered = new boolean[1];
+        try {
+            final Tile t = parseTileIndex(request);
+            final int n = t.z() <= MAX_ZOOM ? 1 << t.z() : 0;
+            if (t.x() >= n || t.y() >= n) {
+                throw new HttpException(HTTP_NOTFOUND, String.format(
+                    Locale.ROOT, "No such tile z = %d, x = %d, y = %d", t.z(), t.x(), t.y()));
+            }
+
+            final String format = mimeType(parseFormat(request));
+            Iterator<RendererFactory<?>> it =
+                Renderers.listForFormat(format, server.getRendererRegistry());
+            if (!it.hasNext()) {
+                throw new HttpException(HTTP_BADREQUEST, "No support for format: " + format);
+            }
+            final RendererFactory<?> factory = it.next();
+
+            Properties q = request.getParms();
+            String styleName = q != null ? q.getProperty("style") : null;
+            final Style style = resolveStyle(styleName, server);
+
+            Matcher m = (Matcher) request.getContext().get(Matcher.class);
+            List<String> layers = Collections.singletonList(m.group(1) + ":" + m.group(2));
+            String prefix = TileSeeder.prefix(layers, styleName, GRID, format);
+
+            final TileSeeder.CacheSink sink = imageCache != null ?
+                new TileSeeder.CacheSink(imageCache, prefix, TileSeeder.tags(layers, styleName)) : null;
+            if (sink != null) {
+                Response cached = imageCache.get(sink.key(t));
+                if (cached != null) {
+                    return cached;
+                }
+            }
+
+            // render the metatile aligned on the grid holding the tile, caching all its tiles,
+            // or the single tile when there is no cache to keep the others in
+            int size = sink != null ? Math.min(metatile, n) : 1;
+            final int x0 = t.x() / size * size;
+            final int y0 = t.y() / size * size;
+            final int x1 = Math.min(x0 + size, n) - 1;
+            final int y1 = Math.min(y0 + size, n) - 1;
+
+            String key = prefix + "/" + t.z() + "/" + x0 + "/" + y0 + "/" + size;
+            Response r = coalesce(key, new Callable<Response>() {
+                @Override
+                public Response call() throws Exception {
+                    rendered[0] = true;
+                    return response(format,
+                        render(factory, data, style, format, t, x0, x1, y0, y1, sink));
+                }
+            });
+            if (rendered[0] || size == 1) {
+                return r;
+            }
+
+            // the metatile was rendered by an identical request, its tiles are in the cache
+            Response cached = imageCache.get(sink.key(t));
+            if (cached != null) {
+                return cached;
+            }
+            rendered[0] = true;
+            return response(format,
+                render(factory, data, style, format, t, t.x(), t.x(), t.y(), t.y(), sink));
+        }
+        finally {
+            if (!rendered[0]) {
+                // the layer is closed along with the map when rendered
+                data.close();
+            }
+        }
+    }
+
+    /**
+     * Renders the tiles from <tt>x0,y0</tt> to <tt>x1,y1</tt> at the zoom level of a tile in a
+     * single image, putting them in the sink.
+     *
+     * @param sink The sink, may be <tt>null</tt>.
+     *
+     * @return The encoded image of the tile.
+     */
+    byte[] render(RendererFactory<?> factory, VectorDataset data, Style style, String format,
+        Tile t, int x0, int x1, int y0, int y1, TileSeeder.Sink sink) throws IOException {
+        int width = (x1 - x0 + 1) * TILE_SIZE + 2 * buffer;
+        int height = (y1 - y0 + 1) * TILE_SIZE + 2 * buffer;
+
+        // with bounds and crs set the map doesn't derive them from the layer
+        MapBuilder mb = new MapBuilder().bounds(bounds(t.z(), x0, x1, y0, y1, buffer))
+            .crs(Proj.EPSG_900913).size(width, height).layer(data).style(style);
+
+        // sliced as drawn, rather than decoded from an encoded metatile
+        BufferedImage img =
+            new RenderContent(factory, mb, renderGuard, metrics, null).renderImage();
+
+        String type = format.substring(format.indexOf('/') + 1);
+        byte[] result = null;
+        for (int x = x0; x <= x1; x++) {
+            for (int y = y0; y <= y1; y++) {
+                ByteArrayOutputStream tout = new ByteArrayOutputStream();
+                BufferedImage sub = img.getSubimage(
+                    buffer + (x - x0) * TILE_SIZE, buffer + (y - y0) * TILE_SIZE, TILE_SIZE, TILE_SIZE);
+                if (!ImageIO.write(sub, type, tout)) {
+                    throw new IOException("No image writer for " + format);
+                }
+
+                byte[] tile = tout.toByteArray();
+                if (sink != null) {
+                    sink.put(new Tile(t.z(), x, y), tile, format);
+                }
+                if (x == t.x() && y == t.y()) {
+                    result = tile;
+                }
+            }
+        }
+        return result;
+    }
+
+    Response response(String format, byte[] data) {
+        Response r = new Response(HTTP_OK, format, new ByteArrayInputStream(data));
+        r.addHeader("Content-Length", String.valueOf(data.length));
+        if (imageCache != null) {
+            r.addHeader("X-Cache", "MISS");
+        }
+        return r;
+    }
+
+    /**
+     * The web mercator bounds of the tiles from <tt>x0,y0</tt> to <tt>x1,y1</tt>, rows counted
+     * from the north edge, grown by a number of pixels.
+     */
+    static Bounds bounds(int z, int x0, int x1, int y0, int y1, int buffer) {
+        double res = 2 * EXTENT / ((double) TILE_SIZE * (1L << z));
+        double b = buffer * res;
+        double span = TILE_SIZE * res;
+        return new Bounds(-EXTENT + x0 * span - b, -EXTENT + (x1 + 1) * span + b,
+            EXTENT - (y1 + 1) * span - b, EXTENT - y0 * span + b);
+    }
+
+    /**
+     * The image mime type of a tile extension, <tt>png</tt> when there is none.
+     */
+    static String mimeType(String ext) {
+        if (ext == null) {
+            return "image/png";
+        }
+        ext = ext.toLowerCase(Locale.ROOT);
+        return "image/" + ("jpg".equals(ext) ? "jpeg" : ext);
+    }
+
+    /**
+     * Resolves a style, parsed once until it is invalidated, see {@link #invalidateStyle(String)}.
+     *
+     * @param name The style name, <tt>null</tt> for the default style.
+     */
+    Style resolveStyle(String name, NanoServer server) throws IOException {
+        if (name == null) {
+            Style s = defaultStyle;
+            if (s == null) {
+                defaultStyle = s = createStyle();
+            }
+            return s;
+        }
+
+        Style s = styles.get(name);
+        if (s == null) {
+            s = server.getRegistry().get(name, Style.class);
+            if (s == null) {
+                throw new HttpException(HTTP_BADREQUEST, "No such style: " + name);
+            }
+            styles.put(name, s);
+        }
+        return s;
+    }
+
+    /**
+     * Drops the parsed form of a style, so it is read again from the registry.
+     */
+    void invalidateStyle(String name) {
+        styles.remove(name);
+    }
+
+    /**
+     * Drops all parsed styles and forgets which layers are tile layers.
+     */
+    void clear() {
+        styles.clear();
+        tileLayers.clear();
+    }
+
+    /**
+     * Forgets whether a layer, or any layer of a workspace if <tt>layer</tt> is <tt>null</tt>,
+     * is a tile layer.
+     */
+    void invalidateLayer(String workspace, String layer) {
+        String prefix = workspace + ":" + (layer != null ? layer : "");
+        for (Iterator<String> it = tileLayers.iterator(); it.hasNext(); ) {
+            String key = it.next();
+            if (layer != null ? key.equals(prefix) : key.startsWith(prefix)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Finds the tile layer of a request, or the vector layer of a tile request.
+     */
+    Pair<Workspace, ? extends Dataset> findLayer(Request request, NanoServer server)
+        throws IOException {
         Pair<Workspace, ? extends Dataset> p = findWorkspaceOrDataset(request, server.getRegistry());
-        
-        if (!(p.second instanceof TileDataset)) {
-            // not a tile set
-            throw new HttpException(HTTP_NOTFOUND, "No such tile layer at: " + request.getUri());
+
+        if (p.second instanceof TileDataset) {
+            return p;
+        }
+        if (p.second instanceof VectorDataset && parseTileIndex(request) != null
+            && !"html".equalsIgnoreCase(parseFormat(request))) {
+            return p;
         }
 
-        return (Pair<Workspace, TileDataset>) p;
+        // not a tile set
+        if (p.second != null) {
+            p.second.close();
+        }
+        if (p.first != null) {
+            p.first.close();
+        }
+        throw new HttpException(HTTP_NOTFOUND, "No such tile layer at: " + request.getUri());
     }
 
     String parseFormat(Request request) throws IOException {
@@ -0,0 +1,873 @@
+/* Copyright 2014 The jeo project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jeo.nano;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+
+import io.jeo.data.DataRepositoryView;
+import io.jeo.data.Dataset;
+import io.jeo.data.Workspace;
+import io.jeo.geom.Bounds;
+import io.jeo.map.MapBuilder;
+import io.jeo.map.Style;
+import io.jeo.map.View;
+import io.jeo.proj.Proj;
+import io.jeo.render.Renderer;
+import io.jeo.render.RendererFactory;
+import io.jeo.render.RendererRegistry;
+import io.jeo.render.Renderers;
+import io.jeo.tile.Tile;
+import io.jeo.tile.TileCover;
+import io.jeo.tile.TileDataset;
+import io.jeo.tile.TileGrid;
+import io.jeo.tile.TilePyramid;
+import org.osgeo.proj4j.CoordinateReferenceSystem;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pre-renders tiles of a set of layers into a tile {@link Sink}, such as the image cache of the
+ * server or an MBTiles file.
+ * <p>
+ * Tiles are laid out on the web mercator grid of {@link TileHandler}, which seeds the tiles it
+ * serves from the image cache, or by the pyramid of a tile layer, the grid layer, and computed
+ * from the {@link TilePyramid#cover(Bounds, double, double) cover} of the seed area at each
+ * zoom level.
+ * Tiles are rendered in metatiles, blocks of <tt>n x n</tt> tiles rendered as a single image and
+ * cut into tiles, which amortizes the cost of reading data and avoids artifacts at tile edges.
+ * Metatiles are rendered in parallel, and submitted as threads free up to render them.
+ * </p>
+ * <p>
+ * Metatiles whose tiles are all present in the sink already are skipped, so an interrupted
+ * seed is resumed by running it again.
+ * </p>
+ * <pre>
+ * TileSeeder seeder = new TileSeeder(registry, rendererRegistry)
+ *   .layers("ws:roads").style("streets").grid(TileHandler.GRID)
+ *   .bounds(bbox).zoom(0, 12).sink(new TileSeeder.CacheSink(cache, prefix, tags));
+ * seeder.seed();
+ * </pre>
+ */
+public class TileSeeder implements Runnable {
+
+    static final Logger LOG = LoggerFactory.getLogger(NanoServer.class);
+
+    /**
+     * Destination of seeded tiles.
+     */
+    public static interface Sink extends Closeable {
+
+        /**
+         * Whether the sink already contains a tile.
+         */
+        boolean contains(Tile tile) throws IOException;
+
+        /**
+         * Stores a tile.
+         */
+        void put(Tile tile, byte[] data, String mimeType) throws IOException;
+    }
+
+    /**
+     * The cache key prefix of the tiles of a set of layers rendered with a style on the grid of
+     * a tile layer.
+     *
+     * @param style The style name, or <tt>null</tt> for the default style.
+     */
+    public static String prefix(List<String> layers, String style, String grid, String format) {
+        StringBuilder sb = new StringBuilder("/tiles/render/");
+        for (String l : layers) {
+            sb.append(l).append(',');
+        }
+        sb.setLength(sb.length() - 1);
+        sb.append('/').append(style != null ? style : "").append('/').append(grid)
+          .append('/').append(format);
+        return sb.toString();
+    }
+
+    /**
+     * The cache tags of a set of layers rendered with a style.
+     */
+    public static Set<String> tags(List<String> layers, String style) {
+        Set<String> tags = new HashSet<String>();
+        for (String l : layers) {
+            String[] parts = l.split(":", 2);
+            tags.add(ImageCache.layerTag(parts[0], parts.length > 1 ? parts[1] : null));
+        }
+        if (style != null) {
+            tags.add(ImageCache.styleTag(style));
+        }
+        return tags;
+    }
+
+    final DataRepositoryView registry;
+    final RendererRegistry rendererRegistry;
+
+    List<String> layers = Collections.emptyList();
+    String style;
+    String grid;
+    Bounds bounds;
+    int minZoom = 0, maxZoom = 0;
+    String format = "image/png";
+    int metatile = 4;
+    int buffer = TileHandler.DEFAULT_BUFFER;
+    int threads = Runtime.getRuntime().availableProcessors();
+    Sink sink;
+
+    final AtomicLong total = new AtomicLong();
+    final AtomicLong rendered = new AtomicLong();
+    final AtomicLong skipped = new AtomicLong();
+    final AtomicLong failed = new AtomicLong();
+    volatile long started, finished;
+    volatile boolean cancelled;
+    volatile Exception error;
+
+    public TileSeeder(DataRepositoryView registry, RendererRegistry rendererRegistry) {
+        this.registry = registry;
+        this.rendererRegistry = rendererRegistry;
+    }
+
+    /**
+     * The layers to render, as <tt>workspace:layer</tt> specifiers.
+     */
+    public TileSeeder layers(String... layers) {
+        this.layers = Arrays.asList(layers);
+        return this;
+    }
+
+    /**
+     * The name of the style to render with, defaults to a simple style.
+     */
+    public TileSeeder style(String style) {
+        this.style = style;
+        return this;
+    }
+
+    /**
+     * The tile layer, as a <tt>workspace:layer</tt> specifier, whose pyramid defines the tiles,
+     * or {@link TileHandler#GRID} for the web mercator grid vector layers are served on.
+     */
+    public TileSeeder grid(String grid) {
+        this.grid = grid;
+        return this;
+    }
+
+    /**
+     * The area to seed, in the crs of the grid layer. Defaults to the bounds of the pyramid, or
+     * of the layers on the web mercator grid.
+     */
+    public TileSeeder bounds(Bounds bounds) {
+        this.bounds = bounds;
+        return this;
+    }
+
+    /**
+     * The range of zoom levels to seed, inclusive.
+     */
+    public TileSeeder zoom(int min, int max) {
+        if (min > max) {
+            throw new IllegalArgumentException("min zoom greater than max zoom");
+        }
+        this.minZoom = min;
+        this.maxZoom = max;
+        return this;
+    }
+
+    /**
+     * The image format to render, defaults to <tt>image/png</tt>.
+     */
+    public TileSeeder format(String format) {
+        this.format = format;
+        return this;
+    }
+
+    /**
+     * The number of tiles along each side of a metatile, defaults to 4.
+     */
+    public TileSeeder metatile(int metatile) {
+        if (metatile < 1) {
+            throw new IllegalArgumentException("metatile size must be positive");
+        }
+        this.metatile = metatile;
+        return this;
+    }
+
+    /**
+     * The number of pixels rendered around metatiles of the web mercator grid and discarded,
+     * defaults to that of {@link TileHandler}.
+     */
+    public TileSeeder buffer(int buffer) {
+        if (buffer < 0) {
+            throw new IllegalArgumentException("buffer must not be negative");
+        }
+        this.buffer = buffer;
+        return this;
+    }
+
+    /**
+     * The number of threads rendering, defaults to the number of processors.
+     */
+    public TileSeeder threads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("thread count must be positive");
+        }
+        this.threads = threads;
+        return this;
+    }
+
+    /**
+     * The sink tiles are written to.
+     */
+    public TileSeeder sink(Sink sink) {
+        this.sink = sink;
+        return this;
+    }
+
+    /**
+     * Number of tiles to seed.
+     */
+    public long total() {
+        return total.get();
+    }
+
+    /**
+     * Number of tiles rendered so far.
+     */
+    public long rendered() {
+        return rendered.get();
+    }
+
+    /**
+     * Number of tiles skipped as they already existed.
+     */
+    public long skipped() {
+        return skipped.get();
+    }
+
+    /**
+     * Number of tiles that failed to render.
+     */
+    public long failed() {
+        return failed.get();
+    }
+
+    /**
+     * Whether the seed has completed, successfully or not.
+     */
+    public boolean isDone() {
+        return finished > 0;
+    }
+
+    /**
+     * The error that aborted the seed, if any.
+     */
+    public Exception error() {
+        return error;
+    }
+
+    /**
+     * Milliseconds the seed has been running, or ran for once done.
+     */
+    public long elapsed() {
+        if (started == 0) {
+            return 0;
+        }
+        return (finished > 0 ? finished : System.currentTimeMillis()) - started;
+    }
+
+    /**
+     * Throughput of the seed, in tiles rendered per second.
+     */
+    public double throughput() {
+        long elapsed = elapsed();
+        return elapsed > 0 ? rendered.get() * 1000d / elapsed : 0;
+    }
+
+    /**
+     * Requests that the seed stop, metatiles being rendered are completed.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public void run() {
+        try {
+            seed();
+        }
+        catch(Exception e) {
+            LOG.warn("Seeding failed", e);
+        }
+    }
+
+    /**
+     * Runs the seed, blocking until all tiles have been rendered.
+     */
+    public void seed() throws Exception {
+        if (layers.isEmpty()) {
+            throw new IllegalStateException("no layers to seed");
+        }
+        if (grid == null) {
+            throw new IllegalStateException("no grid layer specified");
+        }
+        if (sink == null) {
+            throw new IllegalStateException("no sink specified");
+        }
+
+        started = System.currentTimeMillis();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        TileDataset gridLayer = null;
+        try {
+            if (!TileHandler.GRID.equals(grid)) {
+                Dataset g = resolve(grid);
+                if (!(g instanceof TileDataset)) {
+                    if (g != null) {
+                        g.close();
+                    }
+                    throw new IllegalArgumentException(grid + " is not a tile layer");
+                }
+                gridLayer = (TileDataset) g;
+            }
+
+            final TileDataset layout = gridLayer;
+            final TilePyramid pyr = gridLayer != null ? gridLayer.pyramid() : null;
+            final Style s = style != null ? registry.get(style, Style.class) : null;
+            if (style != null && s == null) {
+                throw new IllegalArgumentException("No such style: " + style);
+            }
+
+            Iterator<RendererFactory<?>> it = Renderers.listForFormat(format, rendererRegistry);
+            if (!it.hasNext()) {
+                throw new IllegalArgumentException("No renderer for format: " + format);
+            }
+            final RendererFactory<?> factory = it.next();
+
+            // compute the tile ranges up front, to know the total
+            List<int[]> covers = covers(gridLayer);
+            for (int[] c : covers) {
+                total.addAndGet((long) (c[2] - c[1] + 1) * (c[4] - c[3] + 1));
+            }
+
+            // metatiles are submitted as threads free up, rather than all at once
+            final Semaphore pending = new Semaphore(threads * 2);
+            long lastReport = System.currentTimeMillis();
+            for (int[] c : covers) {
+                final int z = c[0];
+                for (int mx = c[1] / metatile; mx <= c[2] / metatile && !cancelled; mx++) {
+                    for (int my = c[3] / metatile; my <= c[4] / metatile && !cancelled; my++) {
+                        final int x0 = Math.max(c[1], mx * metatile);
+                        final int x1 = Math.min(c[2], mx * metatile + metatile - 1);
+                        final int y0 = Math.max(c[3], my * metatile);
+                        final int y1 = Math.min(c[4], my * metatile + metatile - 1);
+
+                        while (!pending.tryAcquire(1, TimeUnit.SECONDS)) {
+                            lastReport = report(lastReport);
+                        }
+                        executor.execute(new Runnable() {
+                            final AtomicInteger written = new AtomicInteger();
+
+                            @Override
+                            public void run() {
+                                try {
+                                    if (!cancelled) {
+                                        seed(pyr, layout, s, factory, z, x0, x1, y0, y1, written);
+                                    }
+                                }
+                                catch(Exception e) {
+                                    // the tiles written before the failure are seeded
+                                    failed.addAndGet((x1 - x0 + 1) * (y1 - y0 + 1) - written.get());
+                                    LOG.debug(String.format(Locale.ROOT,
+                                        "Error seeding metatile %d/%d-%d/%d-%d", z, x0, x1, y0, y1), e);
+                                }
+                                finally {
+                                    pending.release();
+                                }
+                            }
+                        });
+                        lastReport = report(lastReport);
+                    }
+                }
+            }
+
+            executor.shutdown();
+            while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                lastReport = report(lastReport);
+            }
+        }
+        catch(Exception e) {
+            error = e;
+            throw e;
+        }
+        finally {
+            executor.shutdownNow();
+            finished = System.currentTimeMillis();
+            if (gridLayer != null) {
+                gridLayer.close();
+            }
+            sink.close();
+            LOG.info(toString());
+        }
+    }
+
+    long report(long lastReport) {
+        long now = System.currentTimeMillis();
+        if (now - lastReport > 5000) {
+            LOG.info(toString());
+            return now;
+        }
+        return lastReport;
+    }
+
+    /**
+     * The ranges of tiles to seed, as <tt>{z, x0, x1, y0, y1}</tt> arrays.
+     *
+     * @param gridLayer The grid layer, <tt>null</tt> for the web mercator grid.
+     */
+    List<int[]> covers(TileDataset gridLayer) throws IOException {
+        List<int[]> covers = new ArrayList<int[]>();
+        if (gridLayer != null) {
+            TilePyramid pyr = gridLayer.pyramid();
+            Bounds area = bounds != null ? bounds : gridLayer.bounds();
+            for (int z = minZoom; z <= maxZoom; z++) {
+                TileGrid tg = pyr.grid(z);
+                if (tg == null) {
+                    continue;
+                }
+                TileCover cover = pyr.cover(area, tg.xres(), tg.yres());
+                if (cover == null || cover.grid().z() != z) {
+                    continue;
+                }
+                covers.add(new int[]{z, cover.x0(), cover.x1(), cover.y0(), cover.y1()});
+            }
+            return covers;
+        }
+
+        Bounds area = bounds != null ? bounds : layerBounds();
+        if (area == null || area.isNull()) {
+            return covers;
+        }
+
+        // the xyz layout of TileHandler, rows counted from the north edge
+        double e = TileHandler.EXTENT;
+        for (int z = minZoom; z <= Math.min(maxZoom, TileHandler.MAX_ZOOM); z++) {
+            int n = 1 << z;
+            double span = 2 * e / n;
+            int x0 = clamp((int) Math.floor((area.getMinX() + e) / span), n);
+            int x1 = clamp((int) Math.ceil((area.getMaxX() + e) / span) - 1, n);
+            int y0 = clamp((int) Math.floor((e - area.getMaxY()) / span), n);
+            int y1 = clamp((int) Math.ceil((e - area.getMinY()) / span) - 1, n);
+            covers.add(new int[]{z, x0, Math.max(x0, x1), y0, Math.max(y0, y1)});
+        }
+        return covers;
+    }
+
+    static int clamp(int i, int n) {
+        return Math.max(0, Math.min(n - 1, i));
+    }
+
+    /**
+     * The union of the bounds of the layers, in web mercator.
+     */
+    Bounds layerBounds() throws IOException {
+        Bounds area = new Bounds();
+        for (String l : layers) {
+            Dataset d = resolve(l);
+            if (d == null) {
+                throw new IllegalArgumentException("No such layer: " + l);
+            }
+            try {
+                Bounds b = d.bounds();
+                if (b != null && !b.isNull()) {
+                    CoordinateReferenceSystem crs = d.crs();
+                    area.expandToInclude(
+                        Proj.reproject(b, crs != null ? crs : Proj.EPSG_4326, Proj.EPSG_900913));
+                }
+            }
+            finally {
+                d.close();
+            }
+        }
+        return area;
+    }
+
+    /**
+     * Renders a single metatile and writes its tiles to the sink.
+     *
+     * @param pyr The pyramid of the grid layer, <tt>null</tt> for the web mercator grid.
+     * @param gridLayer The grid layer, <tt>null</tt> for the web mercator grid.
+     * @param written Counts the tiles written to the sink.
+     */
+    void seed(TilePyramid pyr, TileDataset gridLayer, Style s, RendererFactory<?> factory,
+        int z, int x0, int x1, int y0, int y1, AtomicInteger written) throws Exception {
+
+        // skip if all tiles exist
+        boolean exist = true;
+        for (int x = x0; x <= x1 && exist; x++) {
+            for (int y = y0; y <= y1 && exist; y++) {
+                exist = sink.contains(new Tile(z, x, y));
+            }
+        }
+        if (exist) {
+            skipped.addAndGet((x1 - x0 + 1) * (y1 - y0 + 1));
+            return;
+        }
+
+        Bounds b;
+        Bounds tb;
+        CoordinateReferenceSystem crs;
+        int tw, th, pad;
+        if (pyr != null) {
+            b = new Bounds(pyr.bounds(new Tile(z, x0, y0)));
+            b.expandToInclude(pyr.bounds(new Tile(z, x1, y1)));
+            tb = pyr.bounds(new Tile(z, x0, y0));
+            crs = gridLayer.crs();
+            tw = pyr.tileWidth();
+            th = pyr.tileHeight();
+            pad = 0;
+        }
+        else {
+            // rendered as TileHandler renders it, so seeded and served tiles are identical
+            b = TileHandler.bounds(z, x0, x1, y0, y1, buffer);
+            tb = null;
+            crs = Proj.EPSG_900913;
+            tw = th = TileHandler.TILE_SIZE;
+            pad = buffer;
+        }
+        int width = (x1 - x0 + 1) * tw + 2 * pad;
+        int height = (y1 - y0 + 1) * th + 2 * pad;
+
+        List<Dataset> data = new ArrayList<Dataset>();
+        try {
+            MapBuilder mb = new MapBuilder().bounds(b).crs(crs).size(width, height);
+            for (String l : layers) {
+                Dataset d = resolve(l);
+                if (d == null) {
+                    throw new IllegalArgumentException("No such layer: " + l);
+                }
+                data.add(d);
+                mb.layer(d);
+            }
+            mb.style(s != null ? s : createStyle());
+
+            BufferedImage img;
+            View view = mb.view();
+            Renderer renderer = factory.create(view, null);
+            renderer.init(view, null);
+            try {
+                img = RenderContent.image(renderer);
+            }
+            finally {
+                renderer.close();
+                mb.map().close();
+            }
+
+            String type = format.substring(format.indexOf('/') + 1);
+            for (int x = x0; x <= x1; x++) {
+                for (int y = y0; y <= y1; y++) {
+                    Tile t = new Tile(z, x, y);
+
+                    int px, py;
+                    if (pyr != null) {
+                        // offset of the tile in the metatile, origin agnostic
+                        Bounds tbb = pyr.bounds(t);
+                        px = (int) Math.round((tbb.getMinX() - b.getMinX()) / tb.getWidth()) * tw;
+                        py = (int) Math.round((b.getMaxY() - tbb.getMaxY()) / tb.getHeight()) * th;
+                    }
+                    else {
+                        px = pad + (x - x0) * tw;
+                        py = pad + (y - y0) * th;
+                    }
+
+                    ByteArrayOutputStream tout = new ByteArrayOutputStream();
+                    if (!ImageIO.write(img.getSubimage(px, py, tw, th), type, tout)) {
+                        throw new IOException("No image writer for " + format);
+                    }
+                    sink.put(t, tout.toByteArray(), format);
+                    rendered.incrementAndGet();
+                    written.incrementAndGet();
+                }
+            }
+        }
+        finally {
+            for (Dataset d : data) {
+                d.close();
+            }
+        }
+    }
+
+    Dataset resolve(String spec) throws IOException {
+        String[] parts = spec.split(":", 2);
+        Workspace ws = registry.get(parts[0], Workspace.class);
+        if (ws == null) {
+            return null;
+        }
+        return ws.get(parts.length > 1 ? parts[1] : parts[0]);
+    }
+
+    Style createStyle() {
+        return new NoopHandler().createStyle();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT,
+            "seed %s: %d/%d tiles, %d skipped, %d failed, %.1f tiles/s",
+            layers, rendered.get() + skipped.get() + failed.get(), total.get(), skipped.get(),
+            failed.get(), throughput());
+    }
+
+    /**
+     * Sink writing tiles to an {@link ImageCache}.
+     */
+    public static class CacheSink implements Sink {
+
+        final ImageCache cache;
+        final String prefix;
+        final Set<String> tags;
+
+        /**
+         * @param cache The cache.
+         * @param prefix Prefix of the cache keys of tiles, identifying the tile set.
+         * @param tags Tags of the seeded layers and style.
+         */
+        public CacheSink(ImageCache cache, String prefix, Set<String> tags) {
+            this.cache = cache;
+            this.prefix = prefix;
+            this.tags = new HashSet<String>(tags);
+        }
+
+        /**
+         * The cache key of a tile.
+         */
+        public String key(Tile t) {
+            return prefix + "/" + t.z() + "/" + t.x() + "/" + t.y();
+        }
+
+        @Override
+        public boolean contains(Tile tile) {
+            return cache.contains(key(tile));
+        }
+
+        @Override
+        public void put(Tile tile, byte[] data, String mimeType) {
+            cache.put(key(tile), tags, mimeType, data);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Sink writing tiles to an MBTiles file, requires the sqlite jdbc driver.
+     * <p>
+     * The tile set is created if the file does not exist. Rows are stored in the TMS layout
+     * of the MBTiles specification, counted from the south edge of the pyramid. Tiles are
+     * inserted in batches, each committed in a single transaction.
+     * </p>
+     */
+    public static class MBTilesSink implements Sink {
+
+        /**
+         * Number of tiles inserted per transaction.
+         */
+        static final int BATCH_SIZE = 256;
+
+        final Connection cx;
+        final TilePyramid pyr;
+
+        PreparedStatement insert;
+        int batched;
+
+        /**
+         * @param pyr The pyramid tiles are laid out by, <tt>null</tt> for the web mercator grid.
+         */
+        public MBTilesSink(File file, String name, TilePyramid pyr, String format) throws IOException {
+            this.pyr = pyr;
+            try {
+                Class.forName("org.sqlite.JDBC");
+                cx = DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath());
+
+                Statement st = cx.createStatement();
+                try {
+                    st.execute("CREATE TABLE IF NOT EXISTS metadata (name TEXT, value TEXT)");
+                    st.execute("CREATE TABLE IF NOT EXISTS tiles (zoom_level INTEGER, "
+                        + "tile_column INTEGER, tile_row INTEGER, tile_data BLOB)");
+                    st.execute("CREATE UNIQUE INDEX IF NOT EXISTS tile_index ON tiles "
+                        + "(zoom_level, tile_column, tile_row)");
+
+                    ResultSet rs = st.executeQuery("SELECT count(*) FROM metadata");
+                    boolean empty = rs.next() && rs.getInt(1) == 0;
+                    rs.close();
+                    if (empty) {
+                        PreparedStatement ps = cx.prepareStatement("INSERT INTO metadata VALUES (?,?)");
+                        try {
+                            for (String[] kv : new String[][]{{"name", name}, {"type", "baselayer"},
+                                {"version", "1.0"}, {"description", name},
+                                {"format", format.substring(format.indexOf('/') + 1)}}) {
+                                ps.setString(1, kv[0]);
+                                ps.setString(2, kv[1]);
+                                ps.executeUpdate();
+                            }
+                        }
+                        finally {
+                            ps.close();
+                        }
+                    }
+                }
+                finally {
+                    st.close();
+                }
+            }
+            catch(ClassNotFoundException e) {
+                throw new IOException("sqlite jdbc driver not available", e);
+            }
+            catch(SQLException e) {
+                throw new IOException(e);
+            }
+        }
+
+        int row(Tile t) {
+            if (pyr == null) {
+                // rows of the web mercator grid are counted from the north edge
+                return (1 << t.z()) - 1 - t.y();
+            }
+
+            // count rows from the south edge, whatever the origin of the pyramid
+            TileGrid g = pyr.grid(t.z());
+            Bounds b = pyr.bounds(t);
+            Bounds first = pyr.bounds(new Tile(t.z(), t.x(), 0));
+            Bounds last = pyr.bounds(new Tile(t.z(), t.x(), g.height() - 1));
+            double south = Math.min(first.getMinY(), last.getMinY());
+            return (int) Math.round((b.getMinY() - south) / b.getHeight());
+        }
+
+        @Override
+        public synchronized boolean contains(Tile tile) throws IOException {
+            try {
+                PreparedStatement ps = cx.prepareStatement(
+                    "SELECT 1 FROM tiles WHERE zoom_level = ? AND tile_column = ? AND tile_row = ?");
+                try {
+                    ps.setInt(1, tile.z());
+                    ps.setInt(2, tile.x());
+                    ps.setInt(3, row(tile));
+                    ResultSet rs = ps.executeQuery();
+                    try {
+                        return rs.next();
+                    }
+                    finally {
+                        rs.close();
+                    }
+                }
+                finally {
+                    ps.close();
+                }
+            }
+            catch(SQLException e) {
+                throw new IOException(e);
+            }
+        }
+
+        @Override
+        public synchronized void put(Tile tile, byte[] data, String mimeType) throws IOException {
+            try {
+                if (insert == null) {
+                    cx.setAutoCommit(false);
+                    insert = cx.prepareStatement("INSERT OR REPLACE INTO tiles "
+                        + "(zoom_level, tile_column, tile_row, tile_data) VALUES (?,?,?,?)");
+                }
+                insert.setInt(1, tile.z());
+                insert.setInt(2, tile.x());
+                insert.setInt(3, row(tile));
+                insert.setBytes(4, data);
+                insert.addBatch();
+                if (++batched >= BATCH_SIZE) {
+                    flush();
+                }
+            }
+            catch(SQLException e) {
+                throw new IOException(e);
+            }
+        }
+
+        /**
+         * Inserts the batched tiles and commits them.
+         */
+        synchronized void flush() throws SQLException {
+            if (batched == 0) {
+                return;
+            }
+            batched = 0;
+            try {
+                insert.executeBatch();
+                cx.commit();
+            }
+            catch(SQLException e) {
+                // the tiles of the batch are missing, and rendered again when the seed is resumed
+                insert.clearBatch();
+                cx.rollback();
+                throw e;
+            }
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            try {
+                try {
+                    flush();
+                }
+                finally {
+                    if (insert != null) {
+                        insert.close();
+                    }
+                    cx.close();
+                }
+            }
+            catch(SQLException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/* Copyright 2014 The jeo project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jeo.nano;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Date;
+import java.util.Properties;
+
+import io.jeo.nano.NanoHTTPD.Response;
+
+/**
+ * Cache validator of a response, an entity tag and optionally a last modified time.
+ * <p>
+ * Validators are used to answer conditional requests, carrying <tt>If-None-Match</tt> or
+ * <tt>If-Modified-Since</tt> headers, with <tt>304 Not Modified</tt>. Handlers either provide a
+ * validator up front through {@link Handler#validator(Request, NanoServer)}, which allows the
+ * request to be answered without touching the data, or {@link #apply(Response) apply} one to
+ * the response they produce.
+ * </p>
+ */
+public class Validator {
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Suffixes of the entity tags of compressed responses.
+     */
+    static final String[] CODINGS = {"-gz\"", "-deflate\""};
+
+    final String etag;
+    final long lastModified;
+
+    /**
+     * Creates a new validator.
+     *
+     * @param etag The entity tag, including quotes.
+     * @param lastModified The last modified time in milliseconds, or <tt>-1</tt> if unknown.
+     */
+    public Validator(String etag, long lastModified) {
+        this.etag = etag;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * Creates a validator from the contents of a response.
+     */
+    public static Validator of(byte[] content) {
+        return new Validator(tag(digest(content)), -1);
+    }
+
+    /**
+     * Creates a validator for a resource backed by a file, from the modified time and size of
+     * the file along with any parts identifying the resource within the file.
+     */
+    public static Validator of(File file, Object... parts) {
+        StringBuilder sb = new StringBuilder(file.getAbsolutePath()).append('/')
+            .append(file.lastModified()).append('/').append(file.length());
+        for (Object p : parts) {
+            sb.append('/').append(p);
+        }
+        return new Validator(tag(digest(sb.toString().getBytes(UTF8))), file.lastModified());
+    }
+
+    /**
+     * Creates a validator for a resource derived from a version, along with any parts
+     * identifying the resource.
+     */
+    public static Validator of(long version, Object... parts) {
+        StringBuilder sb = new StringBuilder().append(version);
+        for (Object p : parts) {
+            sb.append('/').append(p);
+        }
+        return new Validator(tag(digest(sb.toString().getBytes(UTF8))), -1);
+    }
+
+    /**
+     * The entity tag.
+     */
+    public String etag() {
+        return etag;
+    }
+
+    /**
+     * The last modified time, <tt>-1</tt> if unknown.
+     */
+    public long lastModified() {
+        return lastModified;
+    }
+
+    /**
+     * Determines if the conditional headers of a request match the validator, meaning the
+     * client holds a current copy of the response.
+     * <p>
+     * <tt>If-None-Match</tt> takes precedence over <tt>If-Modified-Since</tt> as mandated by
+     * RFC 7232.
+     * </p>
+     */
+    public boolean matches(Properties header) {
+        if (header == null) {
+            return false;
+        }
+
+        String inm = header.getProperty("if-none-match");
+        if (inm != null) {
+            for (String tag : inm.split(",")) {
+                tag = tag.trim();
+                if (tag.equals("*") || opaque(tag).equals(opaque(etag))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        String ims = header.getProperty("if-modified-since");
+        if (ims != null && lastModified >= 0) {
+            long since = NanoHTTPD.parseDate(ims);
+            // http dates have second precision
+            return since >= 0 && lastModified / 1000 <= since / 1000;
+        }
+
+        return false;
+    }
+
+    /**
+     * Adds the validator headers to a response.
+     */
+    public Response apply(Response response) {
+        response.addHeader("ETag", etag);
+        if (lastModified >= 0) {
+            response.addHeader("Last-Modified", NanoHTTPD.formatDate(new Date(lastModified)));
+        }
+        return response;
+    }
+
+    /**
+     * Creates the <tt>304 Not Modified</tt> response for the validator.
+     */
+    public Response notModified() {
+        return apply(new Response(NanoHTTPD.HTTP_NOTMODIFIED, null, (Response.Content) null));
+    }
+
+    static String opaque(String tag) {
+        // weak comparison, as allowed for If-None-Match
+        if (tag.startsWith("W/")) {
+            tag = tag.substring(2);
+        }
+        // a compressed copy of the entity, tagged by NanoHTTPD with the coding
+        for (String coding : CODINGS) {
+            if (tag.endsWith(coding)) {
+                return tag.substring(0, tag.length() - coding.length()) + "\"";
+            }
+        }
+        return tag;
+    }
+
+    static String tag(byte[] digest) {
+        StringBuilder sb = new StringBuilder(34).append('"');
+        for (int i = 0; i < 16 && i < digest.length; i++) {
+            sb.append(Character.forDigit((digest[i] >> 4) & 0xf, 16))
+              .append(Character.forDigit(digest[i] & 0xf, 16));
+        }
+        return sb.append('"').toString();
+    }
+
+    static byte[] digest(byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-1").digest(data);
+        }
+        catch(NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
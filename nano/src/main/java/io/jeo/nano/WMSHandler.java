@@ -14,30 +14,48 @@
  */
 package io.jeo.nano;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.StringWriter;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.Point;
+import io.jeo.data.Cursor;
 import io.jeo.data.DataRepositoryView;
 import io.jeo.data.Dataset;
 import io.jeo.data.Handle;
 import io.jeo.data.Workspace;
 import io.jeo.filter.Filter;
+import io.jeo.filter.Id;
+import io.jeo.filter.Literal;
 import io.jeo.filter.cql.CQL;
 import io.jeo.filter.cql.ParseException;
+import io.jeo.geojson.GeoJSONWriter;
 import io.jeo.geom.Bounds;
+import io.jeo.json.JSONValue;
 import io.jeo.map.MapBuilder;
 import io.jeo.map.Style;
-import io.jeo.map.View;
-import io.jeo.render.Renderer;
+import io.jeo.render.RenderListener;
 import io.jeo.render.RendererFactory;
 import io.jeo.render.Renderers;
+import io.jeo.vector.Feature;
+import io.jeo.vector.MapFeature;
+import io.jeo.vector.VectorDataset;
+import io.jeo.vector.VectorQuery;
 import static io.jeo.nano.NanoHTTPD.HTTP_OK;
+import static io.jeo.nano.NanoHTTPD.MIME_JSON;
+import static io.jeo.nano.NanoHTTPD.MIME_PLAINTEXT;
 import io.jeo.proj.Proj;
 import io.jeo.util.XMLWriter;
 import org.osgeo.proj4j.CoordinateReferenceSystem;
@@ -46,16 +64,33 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Handler for WMS 1.3.0 GetMap and GetCapabilities requests.
+ * Handler for WMS 1.3.0 GetMap, GetFeatureInfo and GetCapabilities requests.
+ * <p>
+ * Features drawn by GetMap are recorded in the {@link FeatureIndex} of the server, if any, so
+ * that GetFeatureInfo on the same view is answered without querying the data again. The vendor
+ * operation <tt>HitTest</tt> takes the same parameters as GetFeatureInfo and returns only the
+ * identifiers of the features hit, keyed by layer.
+ * </p>
  */
 public class WMSHandler extends OWSHandler {
 
     static final Logger LOG = LoggerFactory.getLogger(NanoServer.class);
 
+    /**
+     * Default distance in pixels a feature may be drawn from the point of a GetFeatureInfo
+     * request.
+     */
+    static final int DEFAULT_BUFFER = 3;
+
     public WMSHandler() {
         super("wms");
     }
 
+    @Override
+    public boolean isExpensive(Request request) {
+        return "getmap".equalsIgnoreCase(request.getParms().getProperty("request"));
+    }
+
     @Override
     protected DelegateHandler resolveRequestHandler(String request, Request req) {
         DelegateHandler impl = null;
@@ -64,6 +99,10 @@ public class WMSHandler extends OWSHandler {
             impl = new GetCaps();
         } else if (request.equals("getmap")) {
             impl = new GetMap(req);
+        } else if (request.equals("getfeatureinfo")) {
+            impl = new GetFeatureInfo(req, false);
+        } else if (request.equals("hittest")) {
+            impl = new GetFeatureInfo(req, true);
         }
 
         return impl;
@@ -72,26 +111,23 @@ public class WMSHandler extends OWSHandler {
     // for testing
     NanoHTTPD.Response render(RendererFactory factory, List<Dataset> dataSet, List<Style> styles,
             CoordinateReferenceSystem crs, Bounds bbox, int width, int height,
-            String mimeType, List<Filter> filters) throws IOException {
+            String mimeType, List<Filter> filters, RenderListener listener) throws IOException {
         MapBuilder mb = new MapBuilder();
-        ByteArrayOutputStream bout = new ByteArrayOutputStream();
         mb.bounds(bbox).crs(crs).size(width, height);
         for (int i = 0; i < dataSet.size(); i++) {
             Filter filter = i < filters.size() ? filters.get(i) : null;
             mb.layer(dataSet.get(i), filter);
         }
         mb.style(Style.combine(styles));
-        View view = mb.view();
-        Renderer renderer = factory.create(view, null);
-        renderer.init(view, null);
-        try {
-            renderer.render(bout);
-        } finally {
-            renderer.close();
-            mb.map().close();
-        }
+        return renderMap(factory, mb, mimeType, width, height, listener);
+    }
 
-        return new NanoHTTPD.Response(HTTP_OK, mimeType, new ByteArrayInputStream(bout.toByteArray()));
+    /**
+     * Canonical name of a layer, <tt>workspace:layer</tt>.
+     */
+    static String layerName(String spec) {
+        String[] parts = spec.split(":", 2);
+        return parts.length == 1 ? parts[0] + ":" + parts[0] : spec;
     }
 
     class GetCaps implements DelegateHandler {
@@ -192,7 +228,7 @@ public class WMSHandler extends OWSHandler {
             for (Handle<Workspace> w : workspaces) {
                 try {
                     for (Handle<Dataset> entry : w.resolve().list()) {
-                        CoordinateReferenceSystem crs = entry.crs();
+                        CoordinateReferenceSystem crs = layerInfo(w, entry).crs();
                         if (crs != null) {
                             Integer epsgCode = Proj.epsgCode(crs);
                             if (epsgCode != null) {
@@ -240,12 +276,8 @@ public class WMSHandler extends OWSHandler {
             xml.start("Layer", "queryable", "1");
             xml.element("Name", ws.name() + ":" + lyr.name());
 
-            CoordinateReferenceSystem crs;
-            try {
-                crs = lyr.crs();
-            } catch (IOException ex) {
-                throw new RuntimeException(ex);
-            }
+            CapabilitiesCache.LayerInfo info = layerInfo(ws, lyr);
+            CoordinateReferenceSystem crs = info.crs();
             if (crs == null) {
                 crs = Proj.EPSG_4326; // @todo better than nothing ?
                 LOG.warn(ws.name() + ":" + lyr.name() + " is missing crs");
@@ -253,15 +285,15 @@ public class WMSHandler extends OWSHandler {
             String epsgCode = "EPSG:" + Proj.epsgCode(crs);
             xml.element("CRS", epsgCode);
             xml.element("CRS", "CRS:84");
-            Bounds bbox = lyr.bounds();
+            Bounds bbox = info.bounds();
+            Bounds lonLat = info.lonLat();
             if (bbox == null) {
                 // @todo another good guess?
                 bbox = new Bounds(-180,180,-90,90);
+                lonLat = bbox;
                 LOG.warn(ws.name() + ":" + lyr.name() + " is missing bbox");
             }
 
-            Bounds lonLat =Proj.reproject(bbox, crs, Proj.EPSG_4326);
-
             writeBoundingBox("CRS:84", lonLat.getMinX(), lonLat.getMaxX(), lonLat.getMinY(), lonLat.getMaxY());
             // yay, the flipped bbox
             writeBoundingBox(epsgCode, bbox.getMinY(), bbox.getMaxY(), bbox.getMinX(), bbox.getMaxX());
@@ -291,6 +323,8 @@ public class WMSHandler extends OWSHandler {
 
     class GetMap extends RequestParser implements DelegateHandler {
 
+        boolean rendered;
+
         GetMap(Request req) {
             super(req);
         }
@@ -298,25 +332,26 @@ public class WMSHandler extends OWSHandler {
         @Override
         public NanoHTTPD.Response handle(Request req, NanoServer server) throws Exception {
             this.parms = req.parms;
+
+            final String key = ImageCache.key("/" + serviceName, req.parms);
+            if (imageCache != null) {
+                NanoHTTPD.Response cached = imageCache.get(key);
+                if (cached != null) {
+                    return cached;
+                }
+            }
+
             String version = getParameter("version", true);
             if (!"1.3.0".equals(version)) {
                 addError("No support for version: '" + version + "'");
             }
-            String[] layerSpecs = getList("layers", true);
-            String[] styleSpecs = getList("styles", false);
-            Integer width = getInteger("width", true);
-            Integer height = getInteger("height", true);
-            String format = getParameter("format", "image/png");
-            String filterSpec = getParameter("cql_filter", false);
+            final String[] layerSpecs = getList("layers", true);
+            final String[] styleSpecs = getList("styles", false);
+            final Integer width = getInteger("width", true);
+            final Integer height = getInteger("height", true);
+            final String format = getParameter("format", "image/png");
             CoordinateReferenceSystem crs = getCRS();
-            Bounds bbox = null;
-            List<Filter> filters = new ArrayList<Filter>(3);
-
-            if (crs != null) {
-                // if geographic, flip axis parsing
-                boolean flippedAxis = Units.DEGREES.name.equals(crs.getProjection().getUnits().name);
-                bbox = getBBox(flippedAxis);
-            }
+            Bounds bbox = getBBox(crs);
             // @todo transparency + bgcolor
 
             Iterator<RendererFactory<?>> it = Renderers.listForFormat(format, server.getRendererRegistry());
@@ -324,31 +359,48 @@ public class WMSHandler extends OWSHandler {
                 addError("No support for format: '" + format + "'");
             }
 
-            List<Dataset> datasets = resolveDatasets(layerSpecs, server.getRegistry());
-            List<Style> styles = resolveStyles(styleSpecs, datasets, server.getRegistry());
+            final List<Dataset> datasets = resolveDatasets(layerSpecs, server.getRegistry());
+            final List<Style> styles = resolveStyles(styleSpecs, datasets, server.getRegistry());
 
             if (crs == null && !datasets.isEmpty()) {
                 crs = datasets.get(0).crs();
             }
 
-            if (filterSpec != null) {
-                String[] parts = filterSpec.split(";");
-                if (parts.length > datasets.size()) {
-                    addError(parts.length + " filters provided but only " + datasets.size() + " layers");
-                }
-                for (int i = 0; i < parts.length; i++) {
-                    try {
-                        Filter f = parts[i].length() > 0 ? CQL.parse(parts[i]) : null;
-                        filters.add(f);
-                    } catch (ParseException pe) {
-                        addError("Invalid filter specifier [" + (i+1) + "] : " + pe.getMessage());
-                    }
-                }
-            }
+            final List<Filter> filters = getFilters(datasets.size());
 
             NanoHTTPD.Response resp;
             if (errors == null) {
-                 resp = render(it.next(), datasets, styles, crs, bbox, width, height, format, filters);
+                final RendererFactory<?> factory = it.next();
+                final CoordinateReferenceSystem mapCrs = crs;
+                final Bounds mapBounds = bbox;
+                if (isStreamed(width, height)) {
+                    rendered = true;
+                    return render(factory, datasets, styles, mapCrs, mapBounds, width, height, format,
+                        filters, capture(req, layerSpecs, datasets));
+                }
+                try {
+                    // identical concurrent requests share a single render
+                    resp = coalesce(key, new Callable<NanoHTTPD.Response>() {
+                        @Override
+                        public NanoHTTPD.Response call() throws Exception {
+                            rendered = true;
+                            NanoHTTPD.Response r = render(factory, datasets, styles, mapCrs, mapBounds,
+                                width, height, format, filters, capture(req, layerSpecs, datasets));
+                            if (imageCache != null) {
+                                r = imageCache.put(key, tags(layerSpecs, styleSpecs), r);
+                            }
+                            return r;
+                        }
+                    });
+                }
+                finally {
+                    if (!rendered) {
+                        // the datasets are closed along with the map when rendered
+                        for (Dataset ds : datasets) {
+                            ds.close();
+                        }
+                    }
+                }
             } else {
                 StringBuilder sb = new StringBuilder();
                 for (String e : errors) {
@@ -359,7 +411,40 @@ public class WMSHandler extends OWSHandler {
             return resp;
         }
 
-        private List<Dataset> resolveDatasets(String[] layerSpecs, DataRepositoryView registry) throws IOException {
+        /**
+         * Creates a listener recording the features rendered in the feature index, <tt>null</tt>
+         * if the server has no index.
+         */
+        RenderListener capture(Request req, String[] layerSpecs, List<Dataset> datasets) {
+            if (featureIndex == null || layerSpecs == null || layerSpecs.length != datasets.size()) {
+                return null;
+            }
+            Map<Dataset,String> names = new IdentityHashMap<Dataset, String>();
+            for (int i = 0; i < layerSpecs.length; i++) {
+                names.put(datasets.get(i), layerName(layerSpecs[i]));
+            }
+            return featureIndex.capture(FeatureIndex.key(req.parms), names);
+        }
+
+        Set<String> tags(String[] layerSpecs, String[] styleSpecs) {
+            Set<String> tags = new HashSet<String>();
+            if (layerSpecs != null) {
+                for (String spec : layerSpecs) {
+                    String[] parts = spec.split(":", 2);
+                    tags.add(ImageCache.layerTag(parts[0], parts.length > 1 ? parts[1] : null));
+                }
+            }
+            if (styleSpecs != null) {
+                for (String spec : styleSpecs) {
+                    if (!spec.isEmpty()) {
+                        tags.add(ImageCache.styleTag(spec));
+                    }
+                }
+            }
+            return tags;
+        }
+
+        List<Dataset> resolveDatasets(String[] layerSpecs, DataRepositoryView registry) throws IOException {
             if (layerSpecs == null) layerSpecs = new String[0];
             List<Dataset> dataSets = new ArrayList<Dataset>(layerSpecs.length);
             for (String spec : layerSpecs) {
@@ -371,7 +456,7 @@ public class WMSHandler extends OWSHandler {
             return dataSets;
         }
 
-        private List<Style> resolveStyles(String[] styleSpecs, List<Dataset> datasets, DataRepositoryView registry) throws IOException {
+        List<Style> resolveStyles(String[] styleSpecs, List<Dataset> datasets, DataRepositoryView registry) throws IOException {
             if (styleSpecs == null) styleSpecs = new String[0];
             List<Style> styles = new ArrayList<Style>(styleSpecs.length);
             for (String spec : styleSpecs) {
@@ -388,7 +473,36 @@ public class WMSHandler extends OWSHandler {
             return styles;
         }
 
-        private CoordinateReferenceSystem getCRS() {
+        Bounds getBBox(CoordinateReferenceSystem crs) {
+            if (crs == null) {
+                return null;
+            }
+            // if geographic, flip axis parsing
+            boolean flippedAxis = Units.DEGREES.name.equals(crs.getProjection().getUnits().name);
+            return getBBox(flippedAxis);
+        }
+
+        List<Filter> getFilters(int layers) {
+            List<Filter> filters = new ArrayList<Filter>(3);
+            String filterSpec = getParameter("cql_filter", false);
+            if (filterSpec != null) {
+                String[] parts = filterSpec.split(";");
+                if (parts.length > layers) {
+                    addError(parts.length + " filters provided but only " + layers + " layers");
+                }
+                for (int i = 0; i < parts.length; i++) {
+                    try {
+                        Filter f = parts[i].length() > 0 ? CQL.parse(parts[i]) : null;
+                        filters.add(f);
+                    } catch (ParseException pe) {
+                        addError("Invalid filter specifier [" + (i+1) + "] : " + pe.getMessage());
+                    }
+                }
+            }
+            return filters;
+        }
+
+        CoordinateReferenceSystem getCRS() {
             CoordinateReferenceSystem crs = null;
             String spec = getParameter("srs", getParameter("crs", false));
             if (spec == null) {
@@ -403,4 +517,253 @@ public class WMSHandler extends OWSHandler {
         }
 
     }
+
+    /**
+     * GetFeatureInfo, resolving a click against the features drawn by GetMap for the same view,
+     * or against the data if the view is not indexed.
+     */
+    class GetFeatureInfo extends GetMap {
+
+        final boolean hitTest;
+
+        GetFeatureInfo(Request req, boolean hitTest) {
+            super(req);
+            this.hitTest = hitTest;
+        }
+
+        @Override
+        public NanoHTTPD.Response handle(Request req, NanoServer server) throws Exception {
+            this.parms = req.parms;
+
+            String version = getParameter("version", true);
+            if (!"1.3.0".equals(version)) {
+                addError("No support for version: '" + version + "'");
+            }
+            String[] layerSpecs = getList("layers", true);
+            String[] querySpecs = getList("query_layers", true);
+            Integer width = getInteger("width", true);
+            Integer height = getInteger("height", true);
+            Integer i = getInteger("i", true);
+            Integer j = getInteger("j", true);
+            Integer count = getInteger("feature_count", false);
+            Integer buffer = getInteger("buffer", false);
+            String format = hitTest ? MIME_JSON : getParameter("info_format", MIME_JSON);
+            CoordinateReferenceSystem crs = getCRS();
+            Bounds bbox = getBBox(crs);
+            List<Filter> filters = getFilters(layerSpecs != null ? layerSpecs.length : 0);
+
+            if (!MIME_JSON.equals(format) && !MIME_PLAINTEXT.equals(format)) {
+                addError("No support for info format: '" + format + "'");
+            }
+            if (errors != null) {
+                StringBuilder sb = new StringBuilder();
+                for (String e : errors) {
+                    sb.append(e).append('\n');
+                }
+                throw exception("MissingOrInvalidParameter", "request", sb.toString());
+            }
+
+            List<String> layers = new ArrayList<String>(layerSpecs.length);
+            for (String spec : layerSpecs) {
+                layers.add(layerName(spec));
+            }
+            for (String spec : querySpecs) {
+                if (!layers.contains(layerName(spec))) {
+                    throw exception("LayerNotQueryable", "query_layers", "Layer not in map: " + spec);
+                }
+            }
+            if (i < 0 || i >= width || j < 0 || j >= height) {
+                throw exception("InvalidPoint", "i", "Point outside of map: " + i + "," + j);
+            }
+
+            int max = count != null ? count : 1;
+            int tolerance = buffer != null ? buffer : DEFAULT_BUFFER;
+
+            FeatureIndex.Entry view = featureIndex != null ?
+                featureIndex.get(FeatureIndex.key(req.parms)) : null;
+
+            boolean indexed = view != null;
+            Map<String,List<Feature>> results = new LinkedHashMap<String, List<Feature>>();
+            for (String spec : querySpecs) {
+                String name = layerName(spec);
+                List<String> ids = view != null ? view.query(name, i, j, tolerance, max) : null;
+                List<Feature> features = ids != null ? read(server, spec, ids, crs) : null;
+                if (features == null) {
+                    indexed = false;
+
+                    int l = layers.indexOf(name);
+                    Filter filter = l < filters.size() ? filters.get(l) : null;
+                    features = query(server, spec, filter, crs, bbox, width, height, i, j,
+                        tolerance, max);
+                }
+                results.put(name, features);
+            }
+
+            NanoHTTPD.Response r = hitTest ? hitTest(results) :
+                MIME_PLAINTEXT.equals(format) ? text(results) : json(results);
+            if (featureIndex != null) {
+                r.addHeader("X-Feature-Index", indexed ? "HIT" : "MISS");
+            }
+            return r;
+        }
+
+        /**
+         * Reads the features of a layer hit in the feature index, in the order of their ids.
+         * Features removed since the view was indexed are left out.
+         */
+        List<Feature> read(NanoServer server, String spec, List<String> ids,
+            CoordinateReferenceSystem mapCrs) throws IOException {
+            if (ids.isEmpty()) {
+                return new ArrayList<Feature>();
+            }
+
+            Dataset data = resolve(server.getRegistry(), spec, this);
+            if (data == null) {
+                throw exception("LayerNotDefined", "query_layers", "No such layer: " + spec);
+            }
+
+            try {
+                if (!(data instanceof VectorDataset)) {
+                    return Collections.emptyList();
+                }
+
+                Literal[] literals = new Literal[ids.size()];
+                for (int i = 0; i < literals.length; i++) {
+                    literals[i] = new Literal(ids.get(i));
+                }
+                VectorQuery q = new VectorQuery().filter(new Id(literals));
+                CoordinateReferenceSystem crs = data.crs();
+                if (crs != null && mapCrs != null && !Proj.equal(mapCrs, crs)) {
+                    q.reproject(mapCrs);
+                }
+
+                Map<String,Feature> found = new HashMap<String, Feature>();
+                Cursor<Feature> c = ((VectorDataset) data).read(q);
+                try {
+                    for (Feature f : c) {
+                        found.put(f.id(), new MapFeature(f.id(), new HashMap<String, Object>(f.map())));
+                    }
+                }
+                finally {
+                    c.close();
+                }
+
+                List<Feature> features = new ArrayList<Feature>(ids.size());
+                for (String id : ids) {
+                    Feature f = found.get(id);
+                    if (f != null) {
+                        features.add(f);
+                    }
+                }
+                return features;
+            }
+            finally {
+                data.close();
+            }
+        }
+
+        /**
+         * Queries the features of a layer within tolerance of a pixel, topmost first.
+         */
+        List<Feature> query(NanoServer server, String spec, Filter filter,
+            CoordinateReferenceSystem mapCrs, Bounds bbox, int width, int height, int i, int j,
+            int tolerance, int max) throws IOException {
+            Dataset data = resolve(server.getRegistry(), spec, this);
+            if (data == null) {
+                throw exception("LayerNotDefined", "query_layers", "No such layer: " + spec);
+            }
+
+            try {
+                if (!(data instanceof VectorDataset)) {
+                    return Collections.emptyList();
+                }
+
+                double resX = bbox.getWidth() / width;
+                double resY = bbox.getHeight() / height;
+                double tol = tolerance * Math.max(resX, resY);
+                double x = bbox.getMinX() + (i + 0.5) * resX;
+                double y = bbox.getMaxY() - (j + 0.5) * resY;
+                Point p = FeatureIndex.GEOMS.createPoint(new Coordinate(x, y));
+
+                // push the search down to the data, in its own projection
+                VectorQuery q = new VectorQuery();
+                Bounds area = new Bounds(x - tol, x + tol, y - tol, y + tol);
+                CoordinateReferenceSystem crs = data.crs();
+                if (crs != null && mapCrs != null && !Proj.equal(mapCrs, crs)) {
+                    q.reproject(mapCrs);
+                    area = Proj.reproject(area, mapCrs, crs);
+                }
+                q.bounds(area);
+                if (filter != null) {
+                    q.filter(filter);
+                }
+
+                List<Feature> features = new ArrayList<Feature>();
+                Cursor<Feature> c = ((VectorDataset) data).read(q);
+                try {
+                    for (Feature f : c) {
+                        Geometry g = f.geometry();
+                        if (g != null && g.isWithinDistance(p, tol)) {
+                            features.add(new MapFeature(f.id(), new HashMap<String, Object>(f.map())));
+                        }
+                    }
+                }
+                finally {
+                    c.close();
+                }
+
+                // last read is drawn on top
+                Collections.reverse(features);
+                return features.size() > max ? features.subList(0, max) : features;
+            }
+            finally {
+                data.close();
+            }
+        }
+
+        NanoHTTPD.Response hitTest(Map<String,List<Feature>> results) {
+            Map<String,List<String>> ids = new LinkedHashMap<String, List<String>>();
+            for (Map.Entry<String,List<Feature>> e : results.entrySet()) {
+                List<String> list = new ArrayList<String>(e.getValue().size());
+                for (Feature f : e.getValue()) {
+                    list.add(f.id());
+                }
+                ids.put(e.getKey(), list);
+            }
+            return new NanoHTTPD.Response(HTTP_OK, MIME_JSON, JSONValue.toJSONString(ids));
+        }
+
+        NanoHTTPD.Response json(Map<String,List<Feature>> results) throws IOException {
+            StringWriter out = new StringWriter();
+            GeoJSONWriter w = new GeoJSONWriter(out);
+            w.featureCollection();
+            for (List<Feature> features : results.values()) {
+                for (Feature f : features) {
+                    w.feature(f);
+                }
+            }
+            w.endArray();
+            w.endObject();
+            w.flush();
+            return new NanoHTTPD.Response(HTTP_OK, MIME_JSON, out.toString());
+        }
+
+        NanoHTTPD.Response text(Map<String,List<Feature>> results) {
+            StringBuilder sb = new StringBuilder();
+            for (Map.Entry<String,List<Feature>> e : results.entrySet()) {
+                sb.append("Results for layer '").append(e.getKey()).append("':\n");
+                for (Feature f : e.getValue()) {
+                    sb.append("--------------------------------------------\n");
+                    sb.append("id = ").append(f.id()).append('\n');
+                    for (Map.Entry<String,Object> a : f.map().entrySet()) {
+                        if (!(a.getValue() instanceof Geometry)) {
+                            sb.append(a.getKey()).append(" = ").append(a.getValue()).append('\n');
+                        }
+                    }
+                }
+                sb.append("--------------------------------------------\n");
+            }
+            return new NanoHTTPD.Response(HTTP_OK, MIME_PLAINTEXT, sb.toString());
+        }
+    }
 }
@@ -26,6 +26,7 @@ import io.jeo.data.Dataset;
 import io.jeo.data.Handle;
 import io.jeo.tile.TileDataset;
 import io.jeo.data.Workspace;
+import io.jeo.nano.CapabilitiesCache.LayerInfo;
 import static io.jeo.nano.NanoHTTPD.HTTP_NOTFOUND;
 import static io.jeo.nano.NanoHTTPD.HTTP_OK;
 import static io.jeo.nano.NanoHTTPD.MIME_PLAINTEXT;
@@ -172,17 +173,16 @@ public class WMTSHandler extends OWSHandler {
             for (Handle<Workspace> w: workspaces) {
                 try {
                     for (Handle<Dataset> ds: w.resolve().list()) {
-                        Dataset dataset = ds.resolve();
-                        if (dataset instanceof TileDataset) {
+                        LayerInfo info = layerInfo(w, ds);
+                        if (info.pyramid() != null) {
                             String id = w.name() + ":" + ds.name();
-                            Integer epsgCode = Proj.epsgCode(ds.crs());
+                            Integer epsgCode = info.crs() != null ? Proj.epsgCode(info.crs()) : null;
                             if (epsgCode == null) {
                                 LOG.warn("Skipping " + w.name() + ":" + ds.name() + ", no epsgCode resolved");
                                 continue;
                             }
-                            TileDataset tds = (TileDataset) dataset;
-                            writeLayer(id, tds);
-                            tileDatasets.add(new Object[] {id, epsgCode, tds});
+                            writeLayer(id, info);
+                            tileDatasets.add(new Object[] {id, epsgCode, info});
                         }
                     }
                 } catch (IOException ex) {
@@ -190,7 +190,7 @@ public class WMTSHandler extends OWSHandler {
                 }
             }
             for (Object[] td: tileDatasets) {
-                writeTileMatrix((String)td[0], (Integer)td[1], (TileDataset)td[2]);
+                writeTileMatrix((String)td[0], (Integer)td[1], (LayerInfo)td[2]);
             }
             xml.end("Contents");
         }
@@ -199,12 +199,12 @@ public class WMTSHandler extends OWSHandler {
             xml.emptyElement("ServiceMetadataURL", "xlink:href", uri);
         }
 
-        private void writeLayer(String id, TileDataset ds) throws IOException {
+        private void writeLayer(String id, LayerInfo ds) throws IOException {
             xml.start("Layer");
 
             //xml.element("ows:Title", ds.title());
             //xml.element("ows:Abstract", ds.description());
-            Envelope bbox = Proj.reproject(ds.bounds(), ds.crs(), Proj.EPSG_4326);
+            Envelope bbox = ds.lonLat() != null ? ds.lonLat() : new Envelope(-180, 180, -90, 90);
             xml.start("ows:WGS84BoundingBox");
             xml.element("ows:LowerCorner", bbox.getMinX() + " " + bbox.getMinY());
             xml.element("ows:UpperCorner", bbox.getMaxX() + " " + bbox.getMaxY());
@@ -222,7 +222,7 @@ public class WMTSHandler extends OWSHandler {
             xml.end("Layer");
         }
 
-        private void writeLimits(TileDataset ds, String id) throws IOException {
+        private void writeLimits(LayerInfo ds, String id) throws IOException {
             xml.start("TileMatrixSetLink");
             xml.element("TileMatrixSet", id);
             xml.start("TileMatrixSetLimits");
@@ -243,7 +243,7 @@ public class WMTSHandler extends OWSHandler {
             xml.end("TileMatrixLimits");
         }
 
-        private void writeTileMatrix(String key, Integer epsgCode, TileDataset ds) throws IOException {
+        private void writeTileMatrix(String key, Integer epsgCode, LayerInfo ds) throws IOException {
             xml.start("TileMatrixSet");
             xml.element("ows:Identifier", key);
             xml.element("ows:SupportedCRS", "urn:ogc:def:crs:EPSG::" + epsgCode);
@@ -321,7 +321,8 @@ public class WMTSHandler extends OWSHandler {
                     Locale.ROOT, "No such tile z = %d, x = %d, y = %d", zoom, tileCol, tileRow));
             }
 
-            return new Response(HTTP_OK, t.mimeType(), new ByteArrayInputStream(t.data()));
+            return Validator.of(t.data()).apply(
+                new Response(HTTP_OK, t.mimeType(), new ByteArrayInputStream(t.data())));
         }
     }
 
@@ -0,0 +1,61 @@
+/* Copyright 2014 The jeo project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jeo.nano;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static io.jeo.nano.NanoHTTPD.HTTP_METHOD_NOT_ALLOWED;
+import static io.jeo.nano.NanoHTTPD.HTTP_NOTFOUND;
+import static io.jeo.nano.NanoHTTPD.HTTP_OK;
+import static io.jeo.nano.NanoHTTPD.MIME_JSON;
+import static org.junit.Assert.assertEquals;
+
+public class AdminHandlerTest extends HandlerTestSupport {
+
+    @Before
+    public void init() {
+        handler = new AdminHandler();
+    }
+
+    @Test
+    public void testPattern() {
+        assertPattern(AdminHandler.ADMIN_URI_RE, "/admin/reload", "reload");
+        assertPattern(AdminHandler.ADMIN_URI_RE, "/admin/reload/", "reload");
+    }
+
+    @Test
+    public void testReload() throws Exception {
+        mock = MockServer.create().withReload().withRegistryVersion(42).replay();
+
+        NanoHTTPD.Response r = makeRequest(new Request("/admin/reload", "POST", null, null, null),
+            HTTP_OK, MIME_JSON);
+        assertEquals("{\"version\":42}", read(r));
+
+        mock.verify();
+    }
+
+    @Test
+    public void testReloadRequiresPost() throws Exception {
+        mock = MockServer.create().replay();
+
+        makeBadRequest(new Request("/admin/reload", "GET", null, null, null),
+            HTTP_METHOD_NOT_ALLOWED, "reload requires POST");
+        makeBadRequest(new Request("/admin/foo", "POST", null, null, null),
+            HTTP_NOTFOUND, "No such operation: foo");
+
+        mock.verify();
+    }
+}
@@ -0,0 +1,126 @@
+/* Copyright 2014 The jeo project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jeo.nano;
+
+import java.io.ByteArrayInputStream;
+
+import com.google.common.io.ByteStreams;
+import io.jeo.data.Dataset;
+import io.jeo.data.Handle;
+import io.jeo.geom.Bounds;
+import io.jeo.proj.Proj;
+import io.jeo.vector.VectorDataset;
+import org.easymock.classextension.EasyMock;
+import org.junit.Test;
+
+import static io.jeo.nano.NanoHTTPD.HTTP_NOTFOUND;
+import static io.jeo.nano.NanoHTTPD.HTTP_OK;
+import static org.easymock.EasyMock.expect;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class CapabilitiesCacheTest {
+
+    @Test
+    public void testVersion() throws Exception {
+        CapabilitiesCache cache = new CapabilitiesCache();
+
+        assertNull(cache.get("wms", 1));
+        NanoHTTPD.Response r = cache.put("wms", 1, response("<caps/>"));
+        assertEquals("MISS", r.header.getProperty("X-Cache"));
+        assertEquals("<caps/>", new String(ByteStreams.toByteArray(r.stream())));
+
+        r = cache.get("wms", 1);
+        assertNotNull(r);
+        assertEquals("HIT", r.header.getProperty("X-Cache"));
+        assertEquals("text/xml", r.mimeType);
+        assertEquals("<caps/>", new String(ByteStreams.toByteArray(r.stream())));
+
+        // registry changed
+        assertNull(cache.get("wms", 2));
+        assertEquals(1, cache.hits());
+        assertEquals(2, cache.misses());
+    }
+
+    @Test
+    public void testNotCached() throws Exception {
+        CapabilitiesCache cache = new CapabilitiesCache();
+
+        NanoHTTPD.Response r = new NanoHTTPD.Response(HTTP_NOTFOUND, "text/plain", "nope");
+        assertSame(r, cache.put("wms", 1, r));
+        assertEquals(0, cache.count());
+    }
+
+    @Test
+    public void testEvict() throws Exception {
+        CapabilitiesCache cache = new CapabilitiesCache(2);
+        cache.put("a", 1, response("a"));
+        cache.put("b", 1, response("b"));
+        assertNotNull(cache.get("a", 1));
+
+        // evicts b, the least recently used
+        cache.put("c", 1, response("c"));
+        assertEquals(2, cache.count());
+        assertNotNull(cache.get("a", 1));
+        assertNull(cache.get("b", 1));
+        assertNotNull(cache.get("c", 1));
+    }
+
+    @Test
+    public void testLayer() throws Exception {
+        Handle<Dataset> foo = handle("foo");
+        Handle<Dataset> bar = handle("bar");
+        EasyMock.replay(foo, bar);
+
+        CapabilitiesCache cache = new CapabilitiesCache();
+        CapabilitiesCache.LayerInfo info = cache.layer("ws", foo);
+        assertEquals(new Bounds(-10, 10, -5, 5), info.bounds());
+        assertEquals(info.bounds(), info.lonLat());
+        assertNull(info.pyramid());
+
+        assertSame(info, cache.layer("ws", foo));
+        cache.layer("ws", bar);
+        assertEquals(1, cache.layerHits());
+        assertEquals(2, cache.layerMisses());
+
+        cache.put("wms", 1, response("<caps/>"));
+        cache.invalidateLayer("ws", "foo");
+        assertEquals(0, cache.count());
+        cache.layer("ws", bar);
+        cache.layer("ws", foo);
+        assertEquals(2, cache.layerHits());
+        assertEquals(3, cache.layerMisses());
+
+        // whole workspace
+        cache.invalidateLayer("ws", null);
+        cache.layer("ws", bar);
+        assertEquals(4, cache.layerMisses());
+    }
+
+    Handle<Dataset> handle(String name) throws Exception {
+        Handle<Dataset> h = EasyMock.createMock(Handle.class);
+        expect(h.name()).andReturn(name).anyTimes();
+        expect(h.type()).andReturn((Class) VectorDataset.class).anyTimes();
+        expect(h.crs()).andReturn(Proj.EPSG_4326).anyTimes();
+        expect(h.bounds()).andReturn(new Bounds(-10, 10, -5, 5)).anyTimes();
+        return h;
+    }
+
+    NanoHTTPD.Response response(String xml) {
+        return new NanoHTTPD.Response(HTTP_OK, "text/xml", new ByteArrayInputStream(xml.getBytes()));
+    }
+}
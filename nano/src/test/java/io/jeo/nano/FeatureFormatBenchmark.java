@@ -0,0 +1,154 @@
+/* Copyright 2014 The jeo project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jeo.nano;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Random;
+import java.util.regex.Matcher;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LinearRing;
+import com.vividsolutions.jts.geom.Polygon;
+import io.jeo.data.mem.MemVectorDataset;
+import io.jeo.nano.NanoHTTPD.Response;
+import io.jeo.vector.ListFeature;
+import io.jeo.vector.Schema;
+import io.jeo.vector.SchemaBuilder;
+import io.jeo.vector.VectorDataset;
+
+/**
+ * Compares the size and throughput of the /features outputs against GeoJSON.
+ * <p>
+ * Not run as part of the build, run with:
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *   -Dexec.mainClass=io.jeo.nano.FeatureFormatBenchmark [-Dexec.args="features vertices"]
+ * </pre>
+ * Each output is written from an in memory layer of polygons to a counting sink, reporting bytes
+ * per feature and features per second.
+ * </p>
+ */
+public class FeatureFormatBenchmark {
+
+    static final String[] FORMATS = {"json", "ndjson", "fgb", "wkb"};
+
+    static final int WARMUP = 5;
+    static final int RUNS = 10;
+
+    public static void main(String[] args) throws Exception {
+        int features = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int vertices = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+
+        VectorDataset layer = layer(features, vertices);
+        FeatureHandler handler = new FeatureHandler();
+
+        System.out.println(String.format(Locale.ROOT, "%d polygons of %d vertices", features,
+            vertices));
+        System.out.println(String.format(Locale.ROOT, "%-8s %14s %14s %10s", "format",
+            "bytes/feature", "features/s", "size"));
+
+        double json = 0;
+        for (String format : FORMATS) {
+            for (int i = 0; i < WARMUP; i++) {
+                write(handler, layer, format);
+            }
+
+            long bytes = 0;
+            long nanos = System.nanoTime();
+            for (int i = 0; i < RUNS; i++) {
+                bytes = write(handler, layer, format);
+            }
+            nanos = System.nanoTime() - nanos;
+
+            double perFeature = bytes / (double) features;
+            if (json == 0) {
+                json = perFeature;
+            }
+            System.out.println(String.format(Locale.ROOT, "%-8s %14.1f %14.0f %9.0f%%", format,
+                perFeature, features * RUNS / (nanos / 1e9), 100 * perFeature / json));
+        }
+    }
+
+    /**
+     * Writes all features of the layer in a format.
+     *
+     * @return The number of bytes written.
+     */
+    static long write(FeatureHandler handler, VectorDataset layer, String format)
+        throws IOException {
+        String path = "/features/bench/polygons." + format;
+        Request request = new Request(path, "GET", new Properties(), new Properties(),
+            new Properties());
+        Matcher m = FeatureHandler.FEATURES_URI_RE.matcher(path);
+        m.matches();
+        request.getContext().put(Matcher.class, m);
+
+        Response res;
+        if ("ndjson".equals(format)) {
+            res = handler.getAsNDJSON(layer, request);
+        }
+        else if ("fgb".equals(format)) {
+            res = handler.getAsFlatGeobuf(layer, request);
+        }
+        else if ("wkb".equals(format)) {
+            res = handler.getAsWKB(layer, request);
+        }
+        else {
+            res = handler.getAsJSON(layer, request, null);
+        }
+
+        CountingOutputStream out = new CountingOutputStream(ByteStreams.nullOutputStream());
+        try {
+            res.data.write(out);
+        }
+        finally {
+            res.data.close();
+        }
+        return out.getCount();
+    }
+
+    static VectorDataset layer(int features, int vertices) throws IOException {
+        Schema schema = new SchemaBuilder("polygons")
+            .field("geom", Polygon.class, "EPSG:4326")
+            .field("name", String.class)
+            .field("value", Double.class)
+            .field("count", Integer.class)
+            .schema();
+
+        GeometryFactory gf = new GeometryFactory();
+        Random random = new Random(0);
+        MemVectorDataset layer = new MemVectorDataset(schema);
+        for (int i = 0; i < features; i++) {
+            double x = random.nextDouble() * 360 - 180, y = random.nextDouble() * 180 - 90;
+            Coordinate[] ring = new Coordinate[vertices + 1];
+            for (int j = 0; j < vertices; j++) {
+                double a = 2 * Math.PI * j / vertices, r = 0.01 + random.nextDouble() * 0.01;
+                ring[j] = new Coordinate(x + r * Math.cos(a), y + r * Math.sin(a));
+            }
+            ring[vertices] = ring[0];
+            LinearRing shell = gf.createLinearRing(ring);
+
+            layer.add(new ListFeature(String.valueOf(i), schema,
+                gf.createPolygon(shell, new LinearRing[0]), "feature " + i,
+                random.nextDouble() * 1000, random.nextInt(1000)));
+        }
+        return layer;
+    }
+}
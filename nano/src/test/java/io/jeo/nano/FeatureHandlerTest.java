@@ -17,14 +17,23 @@ package io.jeo.nano;
 import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.GeometryFactory;
 import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.io.WKBReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
 import java.util.regex.Pattern;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
+import com.google.common.io.ByteStreams;
 import io.jeo.data.Cursor;
 import io.jeo.vector.ListFeature;
 import io.jeo.vector.MapFeature;
@@ -126,6 +135,98 @@ public class FeatureHandlerTest extends HandlerTestSupport {
         mock.verify();
     }
 
+    @Test
+    public void testGetWorkspaceDatasetJSONPaged() throws Exception {
+        mock = MockServer.create()
+                .withMemoryVectorLayer()
+                .replay();
+        MockServer first = mock;
+        Schema schema = mock.memoryLayer.schema();
+        mock.memoryLayer.add(new ListFeature("43", schema, "bar"));
+        mock.memoryLayer.add(new ListFeature("44", schema, "baz"));
+
+        Response res = makeRequest(
+                new Request("/features/foo/bar", "GET", null, q("limit", "2"), null),
+                NanoHTTPD.HTTP_OK,
+                NanoHTTPD.MIME_JSON
+        );
+        JSONObject page = (JSONObject) new JSONParser().parse(new InputStreamReader(res.stream()));
+        JSONArray features = (JSONArray) page.get("features");
+        assertEquals(2, features.size());
+        assertEquals("42", ((JSONObject) features.get(0)).get("id"));
+        assertEquals("43", ((JSONObject) features.get(1)).get("id"));
+
+        String next = (String) page.get("next");
+        assertNotNull(next);
+        assertEquals(1, ((FeatureHandler) handler).getPager().open());
+
+        // the next page resumes the cursor of the first
+        mock = MockServer.create()
+                .withMemoryVectorLayer()
+                .replay();
+        res = makeRequest(
+                new Request("/features/foo/bar", "GET", null, q("cursor", next), null),
+                NanoHTTPD.HTTP_OK,
+                NanoHTTPD.MIME_JSON
+        );
+        page = (JSONObject) new JSONParser().parse(new InputStreamReader(res.stream()));
+        features = (JSONArray) page.get("features");
+        assertEquals(1, features.size());
+        assertEquals("44", ((JSONObject) features.get(0)).get("id"));
+        assertNull(page.get("next"));
+
+        assertEquals(1, ((FeatureHandler) handler).getPager().resumed());
+        assertEquals(0, ((FeatureHandler) handler).getPager().open());
+        first.verify();
+        mock.verify();
+    }
+
+    @Test
+    public void testGetWorkspaceDatasetJSONPagedExpired() throws Exception {
+        mock = MockServer.create()
+                .withMemoryVectorLayer()
+                .replay();
+        Schema schema = mock.memoryLayer.schema();
+        mock.memoryLayer.add(new ListFeature("43", schema, "bar"));
+
+        // with no cursor parked the page is read with an offset
+        ((FeatureHandler) handler).setPager(new FeaturePager(0, 0));
+        Response res = makeRequest(
+                new Request("/features/foo/bar", "GET", null, q("limit", "1"), null),
+                NanoHTTPD.HTTP_OK,
+                NanoHTTPD.MIME_JSON
+        );
+        JSONObject page = (JSONObject) new JSONParser().parse(new InputStreamReader(res.stream()));
+        String next = (String) page.get("next");
+        assertNotNull(next);
+        mock.verify();
+
+        mock = MockServer.create()
+                .withMemoryVectorLayer()
+                .replay();
+        mock.memoryLayer.add(new ListFeature("43", schema, "bar"));
+        res = makeRequest(
+                new Request("/features/foo/bar", "GET", null, q("cursor", next), null),
+                NanoHTTPD.HTTP_OK,
+                NanoHTTPD.MIME_JSON
+        );
+        page = (JSONObject) new JSONParser().parse(new InputStreamReader(res.stream()));
+        JSONArray features = (JSONArray) page.get("features");
+        assertEquals(1, features.size());
+        assertEquals("43", ((JSONObject) features.get(0)).get("id"));
+        assertNull(page.get("next"));
+        mock.verify();
+
+        mock = MockServer.create()
+                .withMemoryVectorLayer()
+                .replay();
+        makeBadRequest(
+                new Request("/features/foo/bar", "GET", null, q("cursor", "foo"), null),
+                NanoHTTPD.HTTP_BADREQUEST,
+                "Invalid cursor: foo"
+        );
+    }
+
     @Test
     public void testGetWorkspaceDatasetFeatureJSON() throws Exception {
         mock = MockServer.create()
@@ -148,6 +249,95 @@ public class FeatureHandlerTest extends HandlerTestSupport {
         mock.verify();
     }
 
+    @Test
+    public void testGetWorkspaceDatasetNDJSON() throws Exception {
+        GeometryFactory f = new GeometryFactory();
+        mock = MockServer.create()
+                .withVectorLayer()
+                    .withFeature("22", "name", "foo", "geom", f.createPoint(new Coordinate(1,2)))
+                .replay();
+
+        Response res = makeRequest(
+                new Request("/features/foo/bar.ndjson", "GET", null, q(), null),
+                NanoHTTPD.HTTP_OK,
+                FeatureHandler.MIME_NDJSON
+        );
+
+        String[] lines = read(res).split("\n");
+        assertEquals(1, lines.length);
+        JSONObject feature = (JSONObject) new JSONParser().parse(lines[0]);
+        assertEquals("22", feature.get("id"));
+        assertNotNull(feature.get("geometry"));
+
+        mock.verify();
+    }
+
+    @Test
+    public void testGetWorkspaceDatasetFlatGeobuf() throws Exception {
+        GeometryFactory f = new GeometryFactory();
+        Schema schema = new SchemaBuilder("bar")
+            .field("geom", Point.class, "EPSG:4326").field("name", String.class).schema();
+        mock = MockServer.create()
+                .withVectorLayer()
+                    .withSchema(schema)
+                    .withFeature("22", "name", "foo", "geom", f.createPoint(new Coordinate(1,2)))
+                .replay();
+
+        // negotiated through the accept header
+        Response res = makeRequest(
+                new Request("/features/foo/bar", "GET", h("accept", "application/flatgeobuf"), q(), null),
+                NanoHTTPD.HTTP_OK,
+                FeatureHandler.MIME_FLATGEOBUF
+        );
+
+        byte[] fgb = ByteStreams.toByteArray(res.stream());
+        assertArrayEquals(FlatGeobufWriter.MAGIC, Arrays.copyOf(fgb, 8));
+
+        // header and a single feature, each size prefixed
+        ByteBuffer buf = ByteBuffer.wrap(fgb).order(ByteOrder.LITTLE_ENDIAN);
+        buf.position(8);
+        buf.position(buf.position() + 4 + buf.getInt(buf.position()));
+        buf.position(buf.position() + 4 + buf.getInt(buf.position()));
+        assertFalse(buf.hasRemaining());
+
+        mock.verify();
+    }
+
+    @Test
+    public void testGetWorkspaceDatasetWKB() throws Exception {
+        GeometryFactory f = new GeometryFactory();
+        mock = MockServer.create()
+                .withVectorLayer()
+                    .withFeature("22", "name", "foo", "geom", f.createPoint(new Coordinate(1,2)))
+                .replay();
+
+        Response res = makeRequest(
+                new Request("/features/foo/bar.wkb", "GET", null, q(), null),
+                NanoHTTPD.HTTP_OK,
+                FeatureHandler.MIME_WKB
+        );
+
+        DataInputStream in = new DataInputStream(res.stream());
+        int length = in.readInt();
+
+        byte[] id = new byte[in.readInt()];
+        in.readFully(id);
+        assertEquals("22", new String(id, "UTF-8"));
+
+        byte[] wkb = new byte[in.readInt()];
+        in.readFully(wkb);
+        assertEquals(f.createPoint(new Coordinate(1,2)), new WKBReader().read(wkb));
+
+        byte[] props = new byte[in.readInt()];
+        in.readFully(props);
+        assertEquals(dequote("{'name':'foo'}"), new String(props, "UTF-8"));
+
+        assertEquals(length, 12 + id.length + wkb.length + props.length);
+        assertEquals(-1, in.read());
+
+        mock.verify();
+    }
+
     @Test
     public void testGetWorkspaceDatasetHTML() throws Exception {
         mock = MockServer.create()
@@ -184,6 +374,28 @@ public class FeatureHandlerTest extends HandlerTestSupport {
         mock.verify();
     }
 
+    @Test
+    public void testGetWorkspaceDatasetPNGStreamed() throws Exception {
+        mock = MockServer.create()
+                .withVectorLayer()
+                    .withPointGeometry()
+                .withPngRenderer()
+                .replay();
+
+        handler.setMaxBufferedPixels(0);
+        Response resp = makeRequest(
+                new Request("/features/foo/bar.png", "GET", null, q(), null),
+                NanoHTTPD.HTTP_OK,
+                NanoHTTPD.MIME_PNG
+        );
+
+        // rendered as the response is sent
+        assertTrue(resp.data instanceof RenderContent);
+        resp.data.write(new ByteArrayOutputStream());
+
+        mock.verify();
+    }
+
     @Test
     public void testPutEditFeature() throws Exception {
         Feature feature = new MapFeature("baz");
@@ -267,6 +479,54 @@ public class FeatureHandlerTest extends HandlerTestSupport {
         mock.verify();
     }
 
+    @Test
+    public void testPostAddFeatureCollectionStreamed() throws Exception {
+        mock = MockServer.create()
+                    .withMemoryVectorLayer()
+                .replay();
+
+        String json = dequote("{'type':'FeatureCollection','features':[" +
+            "{'type':'Feature','properties':{'name':'one'}}," +
+            "{'type':'Feature','properties':{'name':'two'}}]}");
+        makeRequest(
+                new Request("/features/foo/bar", "POST", h("Content-type", "application/json"), null, null,
+                    new ByteArrayInputStream(json.getBytes("UTF-8"))),
+                NanoHTTPD.HTTP_CREATED,
+                NanoHTTPD.MIME_PLAINTEXT
+        );
+
+        mock.verify();
+        assertEquals(3, mock.memoryLayer.count(new VectorQuery()));
+    }
+
+    @Test
+    public void testPostAddFeaturesProgress() throws Exception {
+        mock = MockServer.create()
+                    .withMemoryVectorLayer()
+                .replay();
+
+        String json = dequote("{'type':'Feature','properties':{'name':'one'}}\n" +
+            "{'type':'Feature','properties':{'name':'two'}}\n");
+        Response resp = makeRequest(
+                new Request("/features/foo/bar", "POST", h("Content-type", "application/x-ndjson"),
+                    q("progress", "1"), null, new ByteArrayInputStream(json.getBytes("UTF-8"))),
+                NanoHTTPD.HTTP_CREATED,
+                FeatureHandler.MIME_NDJSON
+        );
+
+        // features are added as the response is sent
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        resp.data.write(out);
+
+        String[] progress = out.toString("UTF-8").split("\n");
+        assertEquals(3, progress.length);
+        assertEquals(dequote("{'written':1,'committed':0}"), progress[0]);
+        assertEquals(dequote("{'written':2,'committed':2}"), progress[2]);
+
+        mock.verify();
+        assertEquals(3, mock.memoryLayer.count(new VectorQuery()));
+    }
+
     @Test
     public void testPutCreateLayer() throws Exception {
         mock = MockServer.create()
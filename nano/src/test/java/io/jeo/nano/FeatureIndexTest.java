@@ -0,0 +1,210 @@
+/* Copyright 2014 The jeo project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jeo.nano;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import com.vividsolutions.jts.geom.Geometry;
+import io.jeo.data.Dataset;
+import io.jeo.geom.Bounds;
+import io.jeo.geom.GeomBuilder;
+import io.jeo.map.Layer;
+import io.jeo.map.MapBuilder;
+import io.jeo.map.Rule;
+import io.jeo.map.View;
+import io.jeo.vector.Feature;
+import io.jeo.vector.MapFeature;
+import org.easymock.classextension.EasyMock;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FeatureIndexTest {
+
+    Dataset data;
+    Layer layer;
+    View view;
+
+    @Before
+    public void setUp() {
+        data = EasyMock.createNiceMock(Dataset.class);
+        EasyMock.replay(data);
+        layer = new Layer(data);
+        // one world unit per pixel
+        view = new MapBuilder().bounds(new Bounds(0, 100, 0, 100)).size(100, 100).view();
+    }
+
+    @Test
+    public void testKey() {
+        Properties p1 = new Properties();
+        p1.setProperty("request", "GetMap");
+        p1.setProperty("format", "image/png");
+        p1.setProperty("LAYERS", "foo:bar");
+        p1.setProperty("bbox", "0,0,100,100");
+
+        Properties p2 = new Properties();
+        p2.setProperty("request", "GetFeatureInfo");
+        p2.setProperty("i", "10");
+        p2.setProperty("j", "10");
+        p2.setProperty("layers", "foo:bar");
+        p2.setProperty("bbox", "0,0,100,100");
+        assertEquals(FeatureIndex.key(p1), FeatureIndex.key(p2));
+
+        p2.setProperty("bbox", "0,0,50,50");
+        assertFalse(FeatureIndex.key(p1).equals(FeatureIndex.key(p2)));
+    }
+
+    @Test
+    public void testQuery() {
+        FeatureIndex index = new FeatureIndex();
+        FeatureIndex.Capture c = index.capture("view", Collections.singletonMap(data, "foo:bar"));
+        c.onStart(view);
+        c.onFeature(layer, feature("p", new GeomBuilder().point(10, 90).toPoint()), new Rule());
+        c.onFeature(layer, feature("l", new GeomBuilder().points(0, 50, 100, 50).toLineString()),
+            new Rule());
+        c.onFinish();
+
+        FeatureIndex.Entry e = index.get("view");
+        assertNotNull(e);
+        assertTrue(e.layers().contains("foo:bar"));
+        assertNull(e.query("foo:baz", 10, 10, 0, 1));
+
+        // within the marker
+        assertIds(e.query("foo:bar", 10, 10, 0, 10), "p");
+        assertIds(e.query("foo:bar", 13, 12, 0, 10), "p");
+        assertIds(e.query("foo:bar", 30, 30, 3, 10));
+
+        // on the line, then within tolerance of it
+        assertIds(e.query("foo:bar", 40, 49, 0, 10), "l");
+        assertIds(e.query("foo:bar", 40, 46, 0, 10));
+        assertIds(e.query("foo:bar", 40, 46, 3, 10), "l");
+
+        assertEquals(1, index.hits());
+        assertNull(index.get("other"));
+        assertEquals(1, index.misses());
+    }
+
+    @Test
+    public void testTopmostFirst() {
+        FeatureIndex index = new FeatureIndex();
+        FeatureIndex.Capture c = index.capture("view", Collections.singletonMap(data, "foo:bar"));
+        c.onStart(view);
+        c.onFeature(layer, feature("a", new GeomBuilder().point(50, 50).toPoint()), new Rule());
+        c.onFeature(layer, feature("b", new GeomBuilder().point(51, 50).toPoint()), new Rule());
+        c.onFinish();
+
+        FeatureIndex.Entry e = index.get("view");
+        assertIds(e.query("foo:bar", 50, 49, 0, 10), "b", "a");
+        assertIds(e.query("foo:bar", 50, 49, 0, 1), "b");
+    }
+
+    @Test
+    public void testEmptyLayer() {
+        FeatureIndex index = new FeatureIndex();
+        FeatureIndex.Capture c = index.capture("view", Collections.singletonMap(data, "foo:bar"));
+        c.onStart(view);
+        c.onFinish();
+
+        assertIds(index.get("view").query("foo:bar", 10, 10, 3, 1));
+    }
+
+    @Test
+    public void testOverflow() {
+        FeatureIndex index = new FeatureIndex(16, 1, FeatureIndex.DEFAULT_TTL);
+        FeatureIndex.Capture c = index.capture("view", Collections.singletonMap(data, "foo:bar"));
+        c.onStart(view);
+        c.onFeature(layer, feature("a", new GeomBuilder().point(50, 50).toPoint()), new Rule());
+        c.onFeature(layer, feature("b", new GeomBuilder().point(51, 50).toPoint()), new Rule());
+        c.onFinish();
+
+        assertNull(index.get("view"));
+        assertEquals(1, index.overflows());
+        assertEquals(0, index.count());
+    }
+
+    @Test
+    public void testInvalidate() {
+        FeatureIndex index = new FeatureIndex();
+        capture(index, "v1", "foo:bar");
+        capture(index, "v2", "foo:baz");
+        capture(index, "v3", "other:bar");
+        assertEquals(3, index.count());
+
+        index.invalidateLayer("foo", "bar");
+        assertNull(index.get("v1"));
+        assertNotNull(index.get("v2"));
+        assertNotNull(index.get("v3"));
+
+        index.invalidateLayer("foo", null);
+        assertNull(index.get("v2"));
+        assertNotNull(index.get("v3"));
+
+        index.clear();
+        assertEquals(0, index.count());
+    }
+
+    @Test
+    public void testEvict() {
+        FeatureIndex index = new FeatureIndex(2, FeatureIndex.DEFAULT_MAX_FEATURES,
+            FeatureIndex.DEFAULT_TTL);
+        capture(index, "v1", "foo:bar");
+        capture(index, "v2", "foo:bar");
+        index.get("v1");
+        capture(index, "v3", "foo:bar");
+
+        assertEquals(2, index.count());
+        assertNotNull(index.get("v1"));
+        assertNull(index.get("v2"));
+        assertNotNull(index.get("v3"));
+    }
+
+    @Test
+    public void testExpired() throws Exception {
+        FeatureIndex index = new FeatureIndex(16, FeatureIndex.DEFAULT_MAX_FEATURES, 1);
+        capture(index, "view", "foo:bar");
+        Thread.sleep(10);
+
+        assertNull(index.get("view"));
+        assertEquals(0, index.count());
+    }
+
+    void capture(FeatureIndex index, String key, String layerName) {
+        FeatureIndex.Capture c = index.capture(key, Collections.singletonMap(data, layerName));
+        c.onStart(view);
+        c.onFeature(layer, feature("a", new GeomBuilder().point(50, 50).toPoint()), new Rule());
+        c.onFinish();
+    }
+
+    Feature feature(String id, Geometry g) {
+        Map<String,Object> vals = new HashMap<String, Object>();
+        vals.put("geometry", g);
+        return new MapFeature(id, vals);
+    }
+
+    void assertIds(List<String> hits, String... ids) {
+        assertNotNull(hits);
+        assertEquals(Arrays.asList(ids), hits);
+    }
+}
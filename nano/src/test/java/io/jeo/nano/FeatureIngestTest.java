@@ -0,0 +1,201 @@
+/* Copyright 2014 The jeo project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jeo.nano;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Properties;
+
+import io.jeo.data.Transaction;
+import io.jeo.data.Transactional;
+import io.jeo.data.Workspace;
+import io.jeo.data.mem.MemVectorDataset;
+import io.jeo.util.Pair;
+import io.jeo.vector.Schema;
+import io.jeo.vector.SchemaBuilder;
+import io.jeo.vector.VectorDataset;
+import io.jeo.vector.VectorQuery;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FeatureIngestTest {
+
+    TransactionalLayer layer;
+    IngestHandler handler;
+
+    @Before
+    public void setUp() {
+        Schema schema = new SchemaBuilder("ingest")
+            .field("name", String.class)
+            .schema();
+        layer = new TransactionalLayer(schema);
+        handler = new IngestHandler(layer);
+    }
+
+    @Test
+    public void testCommitBatches() throws Exception {
+        FeatureIngest ingest = new FeatureIngest(handler, request(features(5, true)), null, 2, 0);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ingest.write(out);
+
+        assertEquals(5, ingest.committed());
+        assertEquals(3, layer.commits);
+        assertEquals(0, layer.rollbacks);
+        assertEquals(5, layer.count(new VectorQuery()));
+
+        // invalidated once when complete, not per batch
+        assertEquals(1, handler.invalidated);
+        assertEquals("{\"written\":5,\"committed\":5}\n", out.toString("UTF-8"));
+    }
+
+    @Test
+    public void testRollbackBatch() throws Exception {
+        FeatureIngest ingest = new FeatureIngest(handler, request(features(3, false)), null, 2, 0);
+        try {
+            ingest.run();
+            fail();
+        }
+        catch(HttpException e) {
+            assertEquals(NanoHTTPD.HTTP_BADREQUEST, e.status);
+        }
+
+        assertEquals(3, ingest.written());
+        assertEquals(2, ingest.committed());
+        assertEquals(1, layer.commits);
+        assertEquals(1, layer.rollbacks);
+
+        // the committed batch is visible so cached state is dropped
+        assertEquals(1, handler.invalidated);
+    }
+
+    @Test
+    public void testRollbackFirstBatch() throws Exception {
+        FeatureIngest ingest = new FeatureIngest(handler, request(features(1, false)), null, 2, 0);
+        try {
+            ingest.run();
+            fail();
+        }
+        catch(HttpException e) {
+        }
+
+        assertEquals(0, ingest.committed());
+        assertEquals(0, layer.commits);
+        assertEquals(1, layer.rollbacks);
+
+        // nothing committed, nothing to invalidate
+        assertEquals(0, handler.invalidated);
+    }
+
+    @Test
+    public void testReportError() throws Exception {
+        FeatureIngest ingest = new FeatureIngest(handler, request(features(3, false)), null, 2, 1);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ingest.write(out);
+
+        String[] records = out.toString("UTF-8").split("\n");
+        assertTrue(records[records.length-1].startsWith(
+            "{\"written\":3,\"committed\":2,\"error\":\"Invalid GeoJSON"));
+        assertEquals(1, layer.rollbacks);
+        assertEquals(1, handler.invalidated);
+    }
+
+    @Test
+    public void testInvalidateOnceWithProgress() throws Exception {
+        Request request = request(features(5, true));
+        request.getParms().setProperty("progress", "1");
+        assertTrue(handler.canHandle(request, null));
+
+        // nothing is written until the response is sent
+        NanoHTTPD.Response res = handler.handle(request, null);
+        assertEquals(NanoHTTPD.HTTP_CREATED, res.status);
+        assertEquals(0, handler.invalidated);
+
+        res.data.write(new ByteArrayOutputStream());
+        assertEquals(5, layer.count(new VectorQuery()));
+        assertEquals(1, handler.invalidated);
+    }
+
+    static String features(int n, boolean complete) {
+        StringBuilder sb = new StringBuilder("{\"type\":\"FeatureCollection\",\"features\":[");
+        for (int i = 0; i < n; i++) {
+            sb.append("{\"type\":\"Feature\",\"id\":\"").append(i).append("\",")
+              .append("\"properties\":{\"name\":\"").append(i).append("\"}},");
+        }
+        if (complete) {
+            sb.setLength(sb.length()-1);
+            sb.append("]}");
+        }
+        else {
+            sb.append("{\"type\":\"Feature\",\"properties\":{\"name\":");
+        }
+        return sb.toString();
+    }
+
+    static Request request(String body) throws IOException {
+        return new Request("/features/foo/bar", "POST", new Properties(), new Properties(),
+            new Properties(), new ByteArrayInputStream(body.getBytes("UTF-8")));
+    }
+
+    static class IngestHandler extends FeatureHandler {
+
+        final VectorDataset layer;
+        int invalidated;
+
+        IngestHandler(VectorDataset layer) {
+            this.layer = layer;
+        }
+
+        @Override
+        Pair<Workspace, VectorDataset> findVectorLayer(Request request, NanoServer server) {
+            return new Pair<Workspace, VectorDataset>(null, layer);
+        }
+
+        @Override
+        void invalidateLayer(Request request) {
+            invalidated++;
+        }
+    }
+
+    static class TransactionalLayer extends MemVectorDataset implements Transactional {
+
+        int commits;
+        int rollbacks;
+
+        TransactionalLayer(Schema schema) {
+            super(schema);
+        }
+
+        @Override
+        public Transaction transaction(Map<String, Object> options) throws IOException {
+            return new Transaction() {
+                @Override
+                public void commit() throws IOException {
+                    commits++;
+                }
+
+                @Override
+                public void rollback() throws IOException {
+                    rollbacks++;
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/* Copyright 2014 The jeo project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jeo.nano;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import io.jeo.vector.FeatureCursor;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FeaturePagerTest {
+
+    @Test
+    public void testBase64() {
+        for (String s : new String[]{"", "f", "fo", "foo", "foob", "fooba", "foobar"}) {
+            byte[] b = s.getBytes(FeaturePager.UTF8);
+            assertArrayEquals(b, FeaturePager.unbase64(FeaturePager.base64(b)));
+        }
+        assertEquals("Zm9vYmFy", FeaturePager.base64("foobar".getBytes(FeaturePager.UTF8)));
+        assertEquals("-_8", FeaturePager.base64(new byte[]{(byte)0xfb, (byte)0xff}));
+    }
+
+    @Test
+    public void testToken() {
+        Properties q = new Properties();
+        q.setProperty("limit", "10");
+        q.setProperty("filter", "name = 'a&b'");
+
+        FeaturePager pager = new FeaturePager(60000, 0);
+        Properties token = FeaturePager.decode(pager.park("/features/foo/bar", q, 20, FeatureCursor.empty()));
+        assertEquals(q, FeaturePager.query(token));
+        assertEquals(20, FeaturePager.position(token));
+    }
+
+    @Test
+    public void testParkResume() {
+        Properties q = new Properties();
+        q.setProperty("limit", "10");
+
+        FeaturePager pager = new FeaturePager();
+        Properties token = FeaturePager.decode(pager.park("/features/foo/bar", q, 10, FeatureCursor.empty()));
+        assertEquals(1, pager.open());
+
+        // a different query doesn't resume the cursor
+        assertNull(pager.resume("/features/foo/baz", token));
+
+        assertNotNull(pager.resume("/features/foo/bar", token));
+        assertEquals(0, pager.open());
+
+        // tokens are single use
+        assertNull(pager.resume("/features/foo/bar", token));
+        assertEquals(1, pager.resumed());
+    }
+
+    @Test
+    public void testEvict() throws Exception {
+        FeaturePager pager = new FeaturePager(0, 10);
+        Properties token = FeaturePager.decode(pager.park("/features/foo/bar", new Properties(), 10,
+            FeatureCursor.empty()));
+        Thread.sleep(5);
+        assertNull(pager.resume("/features/foo/bar", token));
+        assertEquals(0, pager.open());
+        assertEquals(1, pager.expired());
+    }
+
+    @Test
+    public void testReaper() throws Exception {
+        FeaturePager pager = new FeaturePager(20, 10);
+        final AtomicBoolean closed = new AtomicBoolean();
+        pager.park("/features/foo/bar", new Properties(), 10, FeatureCursor.empty(), new Closeable() {
+            @Override
+            public void close() throws IOException {
+                closed.set(true);
+            }
+        });
+
+        // closed without another request to the pager
+        for (int i = 0; i < 100 && pager.open() > 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, pager.open());
+        assertEquals(1, pager.expired());
+        assertTrue(closed.get());
+    }
+
+    @Test
+    public void testInvalidateLayer() throws Exception {
+        FeaturePager pager = new FeaturePager();
+        Properties bar = FeaturePager.decode(pager.park("/features/foo/bar",
+            ImageCache.layerTag("foo", "bar"), new Properties(), 10, FeatureCursor.empty()));
+        Properties baz = FeaturePager.decode(pager.park("/features/foo/baz",
+            ImageCache.layerTag("foo", "baz"), new Properties(), 10, FeatureCursor.empty()));
+        assertEquals(2, pager.open());
+
+        pager.invalidateLayer("foo", "bar");
+        assertEquals(1, pager.open());
+
+        // falls back to an offset
+        assertNull(pager.resume("/features/foo/bar", bar));
+        assertEquals(1, pager.missed());
+        assertNotNull(pager.resume("/features/foo/baz", baz));
+    }
+
+    @Test
+    public void testMissed() throws Exception {
+        FeaturePager pager = new FeaturePager(60000, 1);
+        pager.park("/features/foo/bar", new Properties(), 10, FeatureCursor.empty());
+
+        // too many open, not parked
+        Properties token = FeaturePager.decode(pager.park("/features/foo/bar", new Properties(), 20,
+            FeatureCursor.empty()));
+        assertEquals(1, pager.open());
+        assertNull(pager.resume("/features/foo/bar", token));
+        assertEquals(1, pager.missed());
+    }
+}
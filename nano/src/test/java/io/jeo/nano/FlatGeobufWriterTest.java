@@ -0,0 +1,420 @@
+/* Copyright 2014 The jeo project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jeo.nano;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.LinearRing;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.io.WKTReader;
+import io.jeo.vector.ListFeature;
+import io.jeo.vector.Schema;
+import io.jeo.vector.SchemaBuilder;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Decodes the output of {@link FlatGeobufWriter} following the FlatGeobuf schema, independently
+ * of the {@link FlatBuffer} builder.
+ */
+public class FlatGeobufWriterTest {
+
+    static final String[] WKT = {
+        "POINT (1 2)",
+        "LINESTRING (0 0, 1 1, 2 0)",
+        "POLYGON ((0 0, 10 0, 10 10, 0 10, 0 0), (2 2, 2 4, 4 4, 4 2, 2 2))",
+        "MULTIPOINT ((1 1), (2 2), (3 3))",
+        "MULTILINESTRING ((0 0, 1 1), (2 2, 3 3, 4 4))",
+        "MULTIPOLYGON (((0 0, 1 0, 1 1, 0 0)), ((5 5, 9 5, 9 9, 5 9, 5 5), (6 6, 6 7, 7 7, 6 6)))",
+        "GEOMETRYCOLLECTION (POINT (1 2), LINESTRING (0 0, 1 1), POLYGON ((0 0, 1 0, 1 1, 0 0)))"
+    };
+
+    @Test
+    public void testGeometries() throws Exception {
+        Schema schema = new SchemaBuilder("geoms").field("geom", Geometry.class).schema();
+
+        WKTReader wkt = new WKTReader();
+        List<Geometry> geoms = new ArrayList<Geometry>();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FlatGeobufWriter w = new FlatGeobufWriter(out, "geoms", schema, 4326);
+        for (int i = 0; i < WKT.length; i++) {
+            Geometry g = wkt.read(WKT[i]);
+            geoms.add(g);
+            w.write(new ListFeature(String.valueOf(i), schema, g));
+        }
+        w.write(new ListFeature("none", schema, (Object) null));
+        w.finish();
+
+        Decoder d = new Decoder(out.toByteArray());
+        assertEquals("geoms", d.name);
+        assertEquals(FlatGeobufWriter.UNKNOWN, d.geometryType);
+        assertEquals(Integer.valueOf(4326), d.epsg);
+        assertTrue(d.columns.isEmpty());
+
+        for (Geometry g : geoms) {
+            Geometry decoded = d.next().geometry;
+            assertTrue(g + " != " + decoded, g.equalsExact(decoded));
+            assertEquals(g.getGeometryType(), decoded.getGeometryType());
+        }
+        assertNull(d.next().geometry);
+        assertFalse(d.hasNext());
+    }
+
+    @Test
+    public void testProperties() throws Exception {
+        Schema schema = new SchemaBuilder("props")
+            .field("geom", Polygon.class)
+            .field("bool", Boolean.class)
+            .field("byte", Byte.class)
+            .field("short", Short.class)
+            .field("int", Integer.class)
+            .field("long", Long.class)
+            .field("float", Float.class)
+            .field("double", Double.class)
+            .field("string", String.class)
+            .field("date", Date.class)
+            .field("binary", byte[].class)
+            .schema();
+
+        GeometryFactory gf = new GeometryFactory();
+        Polygon poly = gf.createPolygon(gf.createLinearRing(new Coordinate[]{new Coordinate(0, 0),
+            new Coordinate(1, 0), new Coordinate(1, 1), new Coordinate(0, 0)}), new LinearRing[0]);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FlatGeobufWriter w = new FlatGeobufWriter(out, "props", schema, null);
+        w.write(new ListFeature("1", schema, poly, true, (byte) -3, (short) 300, 70000,
+            1L << 40, 1.5f, Math.PI, "\u00e9t\u00e9", new Date(1000), new byte[]{1, 2, 3}));
+
+        // nulls left out, values converted to the column type or left out
+        w.write(new ListFeature("2", schema, poly, null, 4, "5", 6.7, "8", 9, "10", 11,
+            new Date(0), "unconvertible"));
+        w.finish();
+
+        Decoder d = new Decoder(out.toByteArray());
+        assertEquals("props", d.name);
+        assertEquals(FlatGeobufWriter.POLYGON, d.geometryType);
+        assertNull(d.epsg);
+        assertEquals(Arrays.asList("bool", "byte", "short", "int", "long", "float", "double",
+            "string", "date", "binary"), new ArrayList<String>(d.columns.keySet()));
+        assertEquals(Arrays.asList(FlatGeobufWriter.BOOL, FlatGeobufWriter.BYTE,
+            FlatGeobufWriter.SHORT, FlatGeobufWriter.INT, FlatGeobufWriter.LONG,
+            FlatGeobufWriter.FLOAT, FlatGeobufWriter.DOUBLE, FlatGeobufWriter.STRING,
+            FlatGeobufWriter.DATETIME, FlatGeobufWriter.BINARY),
+            new ArrayList<Integer>(d.columns.values()));
+
+        Decoded f = d.next();
+        assertTrue(poly.equalsExact(f.geometry));
+        assertEquals(true, f.props.get("bool"));
+        assertEquals((byte) -3, f.props.get("byte"));
+        assertEquals((short) 300, f.props.get("short"));
+        assertEquals(70000, f.props.get("int"));
+        assertEquals(1L << 40, f.props.get("long"));
+        assertEquals(1.5f, f.props.get("float"));
+        assertEquals(Math.PI, f.props.get("double"));
+        assertEquals("\u00e9t\u00e9", f.props.get("string"));
+        assertEquals("1970-01-01T00:00:01.000Z", f.props.get("date"));
+        assertArrayEquals(new byte[]{1, 2, 3}, (byte[]) f.props.get("binary"));
+
+        f = d.next();
+        assertFalse(f.props.containsKey("bool"));
+        assertEquals((byte) 4, f.props.get("byte"));
+        assertEquals((short) 5, f.props.get("short"));
+        assertEquals(6, f.props.get("int"));
+        assertEquals(8L, f.props.get("long"));
+        assertEquals(9f, f.props.get("float"));
+        assertEquals(10d, f.props.get("double"));
+        assertEquals("11", f.props.get("string"));
+        assertEquals("1970-01-01T00:00:00.000Z", f.props.get("date"));
+        assertFalse(f.props.containsKey("binary"));
+        assertFalse(d.hasNext());
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+        Schema schema = new SchemaBuilder("empty").field("name", String.class).schema();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new FlatGeobufWriter(out, "empty", schema, null).finish();
+
+        Decoder d = new Decoder(out.toByteArray());
+        assertEquals("empty", d.name);
+        assertEquals(Integer.valueOf(FlatGeobufWriter.STRING), d.columns.get("name"));
+        assertFalse(d.hasNext());
+    }
+
+    static class Decoded {
+        Geometry geometry;
+        Map<String,Object> props = new LinkedHashMap<String, Object>();
+    }
+
+    /**
+     * Reads a FlatGeobuf stream without an index.
+     */
+    static class Decoder {
+
+        final ByteBuffer buf;
+        final GeometryFactory gf = new GeometryFactory();
+
+        String name;
+        int geometryType;
+        Integer epsg;
+        Map<String,Integer> columns = new LinkedHashMap<String, Integer>();
+
+        /** start of the buffer being read, scalars are aligned relative to it */
+        int base;
+
+        Decoder(byte[] b) {
+            buf = ByteBuffer.wrap(b).order(ByteOrder.LITTLE_ENDIAN);
+            for (int i = 0; i < 8; i++) {
+                assertEquals(FlatGeobufWriter.MAGIC[i], buf.get(i));
+            }
+
+            int header = root(8);
+            name = string(header, 0);
+            geometryType = ubyte(header, 2, 0);
+            assertEquals(0, ushort(header, 9, 16));
+
+            int cols = field(header, 7);
+            if (cols != 0) {
+                cols = deref(cols);
+                for (int i = 0; i < buf.getInt(cols); i++) {
+                    int col = deref(cols + 4 + 4 * i);
+                    columns.put(string(col, 0), ubyte(col, 1, 0));
+                }
+            }
+
+            int crs = field(header, 10);
+            if (crs != 0) {
+                crs = deref(crs);
+                assertEquals("EPSG", string(crs, 0));
+                epsg = buf.getInt(field(crs, 1));
+            }
+            buf.position(8 + 4 + buf.getInt(8));
+        }
+
+        boolean hasNext() {
+            return buf.hasRemaining();
+        }
+
+        Decoded next() {
+            int start = buf.position();
+            base = start;
+            int feature = root(start);
+            buf.position(start + 4 + buf.getInt(start));
+
+            Decoded f = new Decoded();
+            int g = field(feature, 0);
+            if (g != 0) {
+                f.geometry = geometry(deref(g));
+            }
+
+            int props = field(feature, 1);
+            if (props != 0) {
+                props = deref(props);
+                int pos = props + 4, end = pos + buf.getInt(props);
+                List<String> names = new ArrayList<String>(columns.keySet());
+                while (pos < end) {
+                    int col = buf.getShort(pos) & 0xffff;
+                    pos += 2;
+                    Object v;
+                    switch(columns.get(names.get(col))) {
+                    case FlatGeobufWriter.BOOL:
+                        v = buf.get(pos) != 0;
+                        pos += 1;
+                        break;
+                    case FlatGeobufWriter.BYTE:
+                        v = buf.get(pos);
+                        pos += 1;
+                        break;
+                    case FlatGeobufWriter.SHORT:
+                        v = buf.getShort(pos);
+                        pos += 2;
+                        break;
+                    case FlatGeobufWriter.INT:
+                        v = buf.getInt(pos);
+                        pos += 4;
+                        break;
+                    case FlatGeobufWriter.LONG:
+                        v = buf.getLong(pos);
+                        pos += 8;
+                        break;
+                    case FlatGeobufWriter.FLOAT:
+                        v = buf.getFloat(pos);
+                        pos += 4;
+                        break;
+                    case FlatGeobufWriter.DOUBLE:
+                        v = buf.getDouble(pos);
+                        pos += 8;
+                        break;
+                    case FlatGeobufWriter.BINARY:
+                        byte[] b = new byte[buf.getInt(pos)];
+                        bytes(pos + 4, b);
+                        v = b;
+                        pos += 4 + b.length;
+                        break;
+                    default:
+                        byte[] s = new byte[buf.getInt(pos)];
+                        bytes(pos + 4, s);
+                        v = new String(s, FlatBuffer.UTF8);
+                        pos += 4 + s.length;
+                    }
+                    f.props.put(names.get(col), v);
+                }
+                assertEquals(end, pos);
+            }
+            return f;
+        }
+
+        Geometry geometry(int table) {
+            int type = ubyte(table, 6, 0);
+
+            int parts = field(table, 7);
+            if (parts != 0) {
+                parts = deref(parts);
+                Geometry[] geoms = new Geometry[buf.getInt(parts)];
+                for (int i = 0; i < geoms.length; i++) {
+                    geoms[i] = geometry(deref(parts + 4 + 4 * i));
+                }
+                if (type == FlatGeobufWriter.MULTIPOLYGON) {
+                    Polygon[] polys = new Polygon[geoms.length];
+                    System.arraycopy(geoms, 0, polys, 0, geoms.length);
+                    return gf.createMultiPolygon(polys);
+                }
+                assertEquals(FlatGeobufWriter.GEOMETRYCOLLECTION, type);
+                return gf.createGeometryCollection(geoms);
+            }
+
+            Coordinate[] xy = new Coordinate[0];
+            int v = field(table, 1);
+            if (v != 0) {
+                v = deref(v);
+                assertEquals("doubles aligned", 0, (v + 4 - base) % 8);
+                xy = new Coordinate[buf.getInt(v) / 2];
+                for (int i = 0; i < xy.length; i++) {
+                    xy[i] = new Coordinate(buf.getDouble(v + 4 + 16 * i),
+                        buf.getDouble(v + 12 + 16 * i));
+                }
+            }
+
+            int[] ends = {xy.length};
+            int e = field(table, 0);
+            if (e != 0) {
+                e = deref(e);
+                ends = new int[buf.getInt(e)];
+                for (int i = 0; i < ends.length; i++) {
+                    ends[i] = buf.getInt(e + 4 + 4 * i);
+                }
+            }
+            Coordinate[][] seqs = new Coordinate[ends.length][];
+            for (int i = 0, s = 0; i < ends.length; s = ends[i++]) {
+                seqs[i] = Arrays.copyOfRange(xy, s, ends[i]);
+            }
+
+            switch(type) {
+            case FlatGeobufWriter.POINT:
+                return gf.createPoint(xy[0]);
+            case FlatGeobufWriter.LINESTRING:
+                return gf.createLineString(xy);
+            case FlatGeobufWriter.POLYGON:
+                LinearRing[] holes = new LinearRing[seqs.length - 1];
+                for (int i = 0; i < holes.length; i++) {
+                    holes[i] = gf.createLinearRing(seqs[i + 1]);
+                }
+                return gf.createPolygon(gf.createLinearRing(seqs[0]), holes);
+            case FlatGeobufWriter.MULTIPOINT:
+                return gf.createMultiPoint(xy);
+            case FlatGeobufWriter.MULTILINESTRING:
+                LineString[] lines = new LineString[seqs.length];
+                for (int i = 0; i < lines.length; i++) {
+                    lines[i] = gf.createLineString(seqs[i]);
+                }
+                return gf.createMultiLineString(lines);
+            default:
+                throw new IllegalStateException("Unexpected geometry type: " + type);
+            }
+        }
+
+        /**
+         * Position of the root table of the size prefixed buffer at <tt>pos</tt>.
+         */
+        int root(int pos) {
+            return deref(pos + 4);
+        }
+
+        /**
+         * Follows the offset at <tt>pos</tt>.
+         */
+        int deref(int pos) {
+            return pos + buf.getInt(pos);
+        }
+
+        /**
+         * Position of a field of a table, <tt>0</tt> if absent.
+         */
+        int field(int table, int field) {
+            int vtable = table - buf.getInt(table);
+            int vlen = buf.getShort(vtable);
+            if (4 + 2 * field >= vlen) {
+                return 0;
+            }
+            int off = buf.getShort(vtable + 4 + 2 * field);
+            return off != 0 ? table + off : 0;
+        }
+
+        int ubyte(int table, int field, int def) {
+            int pos = field(table, field);
+            return pos != 0 ? buf.get(pos) & 0xff : def;
+        }
+
+        int ushort(int table, int field, int def) {
+            int pos = field(table, field);
+            return pos != 0 ? buf.getShort(pos) & 0xffff : def;
+        }
+
+        String string(int table, int field) {
+            int pos = field(table, field);
+            if (pos == 0) {
+                return null;
+            }
+            pos = deref(pos);
+            byte[] b = new byte[buf.getInt(pos)];
+            bytes(pos + 4, b);
+            assertEquals(0, buf.get(pos + 4 + b.length));
+            return new String(b, FlatBuffer.UTF8);
+        }
+
+        void bytes(int pos, byte[] b) {
+            for (int i = 0; i < b.length; i++) {
+                b[i] = buf.get(pos + i);
+            }
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/* Copyright 2014 The jeo project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jeo.nano;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import io.jeo.vector.Feature;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class GeoJSONStreamReaderTest {
+
+    @Test
+    public void testEscapes() throws Exception {
+        GeoJSONStreamReader r = reader("{'type':'FeatureCollection','features':["
+            + feature("1", "'name':'a \\'quoted\\' }] \\\\'") + ","
+            + feature("2", "'name':'b'") + "]}");
+
+        Feature f = r.next();
+        assertEquals("a \"quoted\" }] \\", f.get("name"));
+        assertEquals("b", r.next().get("name"));
+        assertNull(r.next());
+        assertEquals(2, r.count());
+    }
+
+    @Test
+    public void testNestedArrays() throws Exception {
+        GeoJSONStreamReader r = reader("{'type':'FeatureCollection','features':["
+            + feature("1", "'name':'a','tags':[[1,2],[3,[4,']']]],'obj':{'list':[{}]}") + ","
+            + feature("2", "'name':'b'") + "]}");
+
+        Feature f = r.next();
+        assertEquals("a", f.get("name"));
+        assertNotNull(f.get("tags"));
+
+        f = r.next();
+        assertEquals("2", f.id());
+        assertEquals("b", f.get("name"));
+        assertNull(r.next());
+    }
+
+    @Test
+    public void testFeaturesNotFirst() throws Exception {
+        GeoJSONStreamReader r = reader("{'type':'FeatureCollection',"
+            + "'crs':{'type':'name','properties':{'name':'EPSG:4326'}},'bbox':[0,0,1,1],"
+            + "'features':[" + feature("1", "'name':'a'") + "," + feature("2", "'name':'b'") + "],"
+            + "'foo':{'features':[]}}");
+
+        assertEquals("a", r.next().get("name"));
+        assertEquals("b", r.next().get("name"));
+        assertNull(r.next());
+    }
+
+    @Test
+    public void testSequence() throws Exception {
+        GeoJSONStreamReader r = reader(GeoJSONStreamReader.RS + feature("1", "'name':'a'") + "\n"
+            + GeoJSONStreamReader.RS + feature("2", "'name':'b'") + "\n"
+            + feature("3", "'name':'c'") + "\n");
+
+        assertEquals("a", r.next().get("name"));
+        assertEquals("b", r.next().get("name"));
+        assertEquals("c", r.next().get("name"));
+        assertNull(r.next());
+        assertEquals(3, r.count());
+    }
+
+    @Test
+    public void testTruncated() throws Exception {
+        String json = "{'type':'FeatureCollection','features':[" + feature("1", "'name':'a'") + ","
+            + feature("2", "'name':'b'");
+
+        for (String s : new String[]{json.substring(0, json.length() - 3),
+            json.substring(0, json.length() - 12)}) {
+            GeoJSONStreamReader r = reader(s);
+            assertEquals("a", r.next().get("name"));
+            try {
+                r.next();
+                fail();
+            }
+            catch(HttpException e) {
+                assertEquals(NanoHTTPD.HTTP_BADREQUEST, e.status);
+                assertTrue(e.getMessage().startsWith("Invalid GeoJSON"));
+            }
+        }
+    }
+
+    static String feature(String id, String props) {
+        return "{'type':'Feature','id':'" + id + "',"
+            + "'geometry':{'type':'Point','coordinates':[1,2]},'properties':{" + props + "}}";
+    }
+
+    static GeoJSONStreamReader reader(String json) throws IOException {
+        return new GeoJSONStreamReader(new StringReader(json.replace('\'', '"')));
+    }
+}
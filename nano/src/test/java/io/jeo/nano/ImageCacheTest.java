@@ -0,0 +1,147 @@
+/* Copyright 2014 The jeo project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jeo.nano;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+
+import com.google.common.io.ByteStreams;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static io.jeo.nano.NanoHTTPD.HTTP_OK;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class ImageCacheTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testKey() {
+        Properties p1 = new Properties();
+        p1.setProperty("LAYERS", "foo:bar");
+        p1.setProperty("width", "256");
+
+        Properties p2 = new Properties();
+        p2.setProperty("width", "256");
+        p2.setProperty("layers", "foo:bar");
+
+        assertEquals(ImageCache.key("/wms", p1), ImageCache.key("/wms", p2));
+    }
+
+    @Test
+    public void testMemory() throws Exception {
+        ImageCache cache = new ImageCache(8, 0, null);
+
+        assertNull(cache.get("a"));
+        NanoHTTPD.Response r = cache.put("a", tags("layer:foo:bar"), response(4));
+        assertEquals("MISS", r.header.getProperty("X-Cache"));
+        assertEquals(4, ByteStreams.toByteArray(r.stream()).length);
+
+        r = cache.get("a");
+        assertNotNull(r);
+        assertEquals("HIT", r.header.getProperty("X-Cache"));
+        assertEquals("image/png", r.mimeType);
+        assertEquals(1, cache.hits());
+        assertEquals(1, cache.misses());
+
+        // evicts a
+        cache.put("b", tags(), response(8));
+        assertNull(cache.get("a"));
+        assertNotNull(cache.get("b"));
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        ImageCache cache = new ImageCache(1024, 0, null);
+        cache.put("a", tags(ImageCache.layerTag("foo", "bar")), response(4));
+        cache.put("b", tags(ImageCache.styleTag("baz")), response(4));
+
+        cache.invalidateLayer("foo", "bar");
+        assertNull(cache.get("a"));
+        assertNotNull(cache.get("b"));
+
+        cache.invalidateStyle("baz");
+        assertNull(cache.get("b"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testDisk() throws Exception {
+        File dir = tmp.newFolder("cache");
+        ImageCache cache = new ImageCache(1024, 0, dir);
+        byte[] data = ByteStreams.toByteArray(cache.put("a", tags("layer:foo:bar"), response(16)).stream());
+
+        // a new cache over the same directory
+        cache = new ImageCache(1024, 0, dir);
+        NanoHTTPD.Response r = cache.get("a");
+        assertNotNull(r);
+        assertArrayEquals(data, ByteStreams.toByteArray(r.stream()));
+        assertEquals(1, cache.diskHits());
+
+        cache = new ImageCache(1024, 0, dir);
+        cache.invalidate("layer:foo:bar");
+        assertNull(cache.get("a"));
+    }
+
+    @Test
+    public void testDiskLongKey() throws Exception {
+        // longer than writeUTF allows, as with a long filter
+        StringBuilder sb = new StringBuilder("/features/foo/bar.png?filter=");
+        while (sb.length() < 70000) {
+            sb.append("name = '\u00e9t\u00e9' OR ");
+        }
+        String key = sb.toString();
+
+        File dir = tmp.newFolder("cache");
+        ImageCache cache = new ImageCache(1024, 0, dir);
+        cache.put(key, tags("layer:foo:bar"), response(16));
+
+        cache = new ImageCache(1024, 0, dir);
+        assertNotNull(cache.get(key));
+        assertEquals(1, cache.diskHits());
+    }
+
+    @Test
+    public void testExpiry() throws Exception {
+        ImageCache cache = new ImageCache(1024, 1, null);
+        cache.put("a", tags(), response(4));
+        Thread.sleep(10);
+        assertNull(cache.get("a"));
+    }
+
+    Set<String> tags(String... tags) {
+        Set<String> set = new HashSet<String>();
+        Collections.addAll(set, tags);
+        return set;
+    }
+
+    NanoHTTPD.Response response(int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) i;
+        }
+        return new NanoHTTPD.Response(HTTP_OK, "image/png", new ByteArrayInputStream(data));
+    }
+}
@@ -0,0 +1,78 @@
+/* Copyright 2014 The jeo project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jeo.nano;
+
+import io.jeo.nano.NanoHTTPD.Response;
+import org.junit.Before;
+import org.junit.Test;
+
+import static io.jeo.nano.NanoHTTPD.HTTP_OK;
+import static org.junit.Assert.assertEquals;
+
+public class MetricsHandlerTest extends HandlerTestSupport {
+
+    @Before
+    public void init() {
+        handler = new MetricsHandler();
+    }
+
+    @Test
+    public void testPattern() {
+        assertPattern(MetricsHandler.METRICS_URI_RE, "/metrics");
+        assertPattern(MetricsHandler.METRICS_URI_RE, "/metrics/");
+    }
+
+    @Test
+    public void testGet() throws Exception {
+        Metrics metrics = new Metrics();
+        metrics.started();
+        metrics.completed("TileHandler", "200 OK", 3000 * 1000, 512, true);
+        metrics.rendered(0, 1000 * 1000);
+
+        FeatureHandler features = new FeatureHandler();
+        mock = MockServer.create().withMetrics(metrics, features).replay();
+
+        Response r = makeRequest(new Request("/metrics", "GET", null, null, null), HTTP_OK,
+            MetricsHandler.MIME_PROMETHEUS);
+        String text = read(r);
+
+        assertContains(text, "# TYPE nano_request_duration_seconds histogram\n");
+        assertContains(text,
+            "nano_request_duration_seconds_bucket{handler=\"TileHandler\",code=\"200\",le=\"0.002048\"} 0\n");
+        assertContains(text,
+            "nano_request_duration_seconds_bucket{handler=\"TileHandler\",code=\"200\",le=\"0.002816\"} 0\n");
+        assertContains(text,
+            "nano_request_duration_seconds_bucket{handler=\"TileHandler\",code=\"200\",le=\"0.003072\"} 1\n");
+        assertContains(text,
+            "nano_request_duration_seconds_bucket{handler=\"TileHandler\",code=\"200\",le=\"+Inf\"} 1\n");
+        assertContains(text, "nano_request_duration_seconds_sum{handler=\"TileHandler\",code=\"200\"} 0.003\n");
+        assertContains(text, "nano_request_duration_seconds_count{handler=\"TileHandler\",code=\"200\"} 1\n");
+        assertContains(text, "nano_response_bytes_total{handler=\"TileHandler\"} 512\n");
+        assertContains(text, "nano_requests_in_flight 0\n");
+        assertContains(text, "nano_render_duration_seconds_count 1\n");
+        assertContains(text, "nano_render_wait_seconds_bucket{le=\"0.000128\"} 1\n");
+        assertContains(text, "nano_feature_pager_open_cursors 0\n");
+        assertContains(text, "nano_feature_pager_missed_total 0\n");
+        assertContains(text, "nano_feature_clusters_hierarchies 0\n");
+
+        mock.verify();
+    }
+
+    @Test
+    public void testLabels() {
+        MetricsHandler.Exposition out = new MetricsHandler.Exposition();
+        assertEquals("{a=\"x\\\\\\\"y\\n\"}", out.labels("a", "x\\\"y\n"));
+    }
+}
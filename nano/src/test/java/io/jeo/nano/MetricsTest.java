@@ -0,0 +1,74 @@
+/* Copyright 2014 The jeo project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jeo.nano;
+
+import io.jeo.nano.Metrics.Histogram;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MetricsTest {
+
+    @Test
+    public void testBuckets() {
+        for (long v = 0; v < 1 << 20; v++) {
+            int b = Histogram.bucket(v);
+            assertTrue(Histogram.lower(b) <= v);
+            assertTrue(v < Histogram.lower(b + 1));
+
+            // relative error bounded by the sub buckets
+            long width = Histogram.lower(b + 1) - Histogram.lower(b);
+            assertTrue(width <= Math.max(1, Histogram.lower(b) / Histogram.SUB_BUCKETS));
+        }
+        for (int i = 0; i < Histogram.BUCKETS; i++) {
+            assertEquals(i, Histogram.bucket(Histogram.lower(i)));
+        }
+        assertEquals(Histogram.BUCKETS - 1, Histogram.bucket(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testHistogram() {
+        Histogram h = new Histogram();
+        h.record(100 * 1000);
+        h.record(1500 * 1000);
+        h.record(3000 * 1000);
+
+        assertEquals(3, h.count());
+        assertEquals(4600, h.sum());
+        assertEquals(0, h.countBelow(64));
+        assertEquals(1, h.countBelow(1024));
+        assertEquals(2, h.countBelow(2048));
+        assertEquals(3, h.countBelow(4096));
+    }
+
+    @Test
+    public void testCompleted() {
+        Metrics m = new Metrics();
+        m.started();
+        m.started();
+        assertEquals(2, m.inFlight());
+
+        m.completed("TileHandler", "200 OK", 1000000, 100, true);
+        m.completed("TileHandler", "404 Not Found", 1000000, 10, true);
+        m.completed("none", "503 Service Unavailable", 0, 10, false);
+        assertEquals(0, m.inFlight());
+
+        assertEquals(1, m.requests.get("TileHandler 200").count());
+        assertEquals(1, m.requests.get("TileHandler 404").count());
+        assertEquals(1, m.requests.get("none 503").count());
+        assertEquals(110, m.bytes.get("TileHandler").get());
+    }
+}
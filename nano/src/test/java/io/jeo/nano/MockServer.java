@@ -18,6 +18,7 @@ import com.google.common.collect.Iterables;
 import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
 
+import java.awt.image.BufferedImage;
 import java.io.OutputStream;
 import java.util.*;
 
@@ -51,6 +52,7 @@ import io.jeo.data.Handle;
 import io.jeo.vector.VectorQuery;
 import io.jeo.map.Style;
 import io.jeo.map.View;
+import io.jeo.render.ImageRenderer;
 import io.jeo.render.Renderer;
 import io.jeo.render.RendererFactory;
 import io.jeo.render.RendererRegistry;
@@ -79,6 +81,7 @@ public class MockServer {
     private RendererRegistry rendererRegistry;
     private List<Handle<?>> workspaces = new ArrayList<Handle<?>>();
     private List<Handle<?>> styles = new ArrayList<Handle<?>>();
+    View rendered;
 
     private MockServer() {
         server = createMock(NanoServer.class);
@@ -136,6 +139,36 @@ public class MockServer {
         return this;
     }
 
+    MockServer withSchema(Schema schema) throws Exception {
+        expect(vectorLayer.name()).andReturn(schema.name()).anyTimes();
+        expect(vectorLayer.crs()).andReturn(schema.crs()).anyTimes();
+        expect(vectorLayer.schema()).andReturn(schema).anyTimes();
+        return this;
+    }
+
+    MockServer withRegistryVersion(long version) throws Exception {
+        expect(server.getRegistryVersion()).andReturn(version).anyTimes();
+        return this;
+    }
+
+    MockServer withMetrics(Metrics metrics, Handler... handlers) throws Exception {
+        expect(server.getMetrics()).andReturn(metrics).anyTimes();
+        expect(server.getExecutor()).andReturn(null).anyTimes();
+        expect(server.getRenderPool()).andReturn(null).anyTimes();
+        expect(server.getImageCache()).andReturn(null).anyTimes();
+        expect(server.getSingleFlight()).andReturn(null).anyTimes();
+        expect(server.getCapabilitiesCache()).andReturn(null).anyTimes();
+        expect(server.getFeatureIndex()).andReturn(null).anyTimes();
+        expect(server.getHandlers()).andReturn(Arrays.asList(handlers)).anyTimes();
+        return this;
+    }
+
+    MockServer withReload() throws Exception {
+        server.reload();
+        expectLastCall().once();
+        return this;
+    }
+
     MockServer withNoFeatures() throws Exception {
         expect(vectorLayer.read(new VectorQuery().bounds(new Bounds(-180, 180, -90, 90))))
                 .andReturn(FeatureCursor.empty()).once();
@@ -387,9 +420,39 @@ public class MockServer {
         png.close();
         expectLastCall().once();
 
+        return withRenderer(png);
+    }
+
+    /**
+     * Renderer drawing blank images the size of the view, recorded as {@link #rendered}.
+     */
+    MockServer withImageRenderer() throws Exception {
+        ImageRenderer png = createMock(ImageRenderer.class);
+        png.init((View)anyObject(), (Map)anyObject());
+        expectLastCall().andAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() throws Throwable {
+                rendered = (View) EasyMock.getCurrentArguments()[0];
+                return null;
+            }
+        }).anyTimes();
+        expect(png.renderImage()).andAnswer(new IAnswer<BufferedImage>() {
+            @Override
+            public BufferedImage answer() throws Throwable {
+                return new BufferedImage(rendered.getWidth(), rendered.getHeight(),
+                    BufferedImage.TYPE_INT_ARGB);
+            }
+        }).anyTimes();
+        png.close();
+        expectLastCall().once();
+
+        return withRenderer(png);
+    }
+
+    MockServer withRenderer(Renderer renderer) throws Exception {
         final RendererFactory rf = createMock(RendererFactory.class);
         expect(rf.getFormats()).andReturn(Arrays.asList("png","image/png")).anyTimes();
-        expect(rf.create((View)anyObject(), (Map)anyObject())).andReturn(png).anyTimes();
+        expect(rf.create((View)anyObject(), (Map)anyObject())).andReturn(renderer).anyTimes();
 
         expect(rendererRegistry.list()).andAnswer(new IAnswer<Iterator<RendererFactory<?>>>() {
             @Override
@@ -0,0 +1,314 @@
+/* Copyright 2014 The jeo project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jeo.nano;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Properties;
+
+import com.google.common.io.ByteStreams;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class NanoHTTPDTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    NanoHTTPD server;
+
+    @After
+    public void tearDown() {
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testKeepAlive() throws Exception {
+        startEchoServer();
+        Socket s = connect();
+        try {
+            send(s, "GET /one HTTP/1.1\r\nHost: localhost\r\n\r\n");
+            Reply r1 = read(s.getInputStream());
+            send(s, "GET /two HTTP/1.1\r\nHost: localhost\r\n\r\n");
+            Reply r2 = read(s.getInputStream());
+
+            assertEquals(NanoHTTPD.HTTP_OK, r1.status);
+            assertEquals("GET /one ", r1.body);
+            assertEquals(NanoHTTPD.HTTP_OK, r2.status);
+            assertEquals("GET /two ", r2.body);
+        }
+        finally {
+            s.close();
+        }
+    }
+
+    @Test
+    public void testPipelining() throws Exception {
+        startEchoServer();
+        Socket s = connect();
+        try {
+            // all requests in a single write, answered in order
+            send(s, "GET /one HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                + "POST /two HTTP/1.1\r\nHost: localhost\r\nContent-Type: text/plain\r\n"
+                + "Content-Length: 3\r\n\r\nabc"
+                + "GET /three HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+
+            InputStream in = s.getInputStream();
+            assertEquals("GET /one ", read(in).body);
+            assertEquals("POST /two abc", read(in).body);
+            assertEquals("GET /three ", read(in).body);
+            assertEquals(-1, in.read());
+        }
+        finally {
+            s.close();
+        }
+    }
+
+    @Test
+    public void testChunkedBody() throws Exception {
+        startEchoServer();
+        Socket s = connect();
+        try {
+            send(s, "POST /chunked HTTP/1.1\r\nHost: localhost\r\nContent-Type: text/plain\r\n"
+                + "Transfer-Encoding: chunked\r\n\r\n5\r\nhello\r\n6;ext=1\r\n world\r\n0\r\n\r\n");
+            Reply r = read(s.getInputStream());
+            assertEquals(NanoHTTPD.HTTP_OK, r.status);
+            assertEquals("POST /chunked hello world", r.body);
+
+            // the connection is still usable
+            send(s, "GET /next HTTP/1.1\r\nHost: localhost\r\n\r\n");
+            assertEquals("GET /next ", read(s.getInputStream()).body);
+        }
+        finally {
+            s.close();
+        }
+    }
+
+    @Test
+    public void testBodyTooLarge() throws Exception {
+        startEchoServer();
+        server.setMaxBodySize(16);
+
+        Socket s = connect();
+        try {
+            // rejected from the header alone, before the body is sent
+            send(s, "POST /big HTTP/1.1\r\nHost: localhost\r\nContent-Type: text/plain\r\n"
+                + "Content-Length: 1073741824\r\n\r\n");
+            Reply r = read(s.getInputStream());
+            assertEquals(NanoHTTPD.HTTP_ENTITY_TOO_LARGE, r.status);
+            assertEquals(-1, s.getInputStream().read());
+        }
+        finally {
+            s.close();
+        }
+
+        s = connect();
+        try {
+            send(s, "POST /big HTTP/1.1\r\nHost: localhost\r\nContent-Type: text/plain\r\n"
+                + "Transfer-Encoding: chunked\r\n\r\n10\r\n0123456789abcdef\r\n1\r\n!\r\n0\r\n\r\n");
+            assertEquals(NanoHTTPD.HTTP_ENTITY_TOO_LARGE, read(s.getInputStream()).status);
+        }
+        finally {
+            s.close();
+        }
+
+        // bodies within the limit are served
+        s = connect();
+        try {
+            send(s, "POST /small HTTP/1.1\r\nHost: localhost\r\nContent-Type: text/plain\r\n"
+                + "Content-Length: 5\r\n\r\nsmall");
+            assertEquals("POST /small small", read(s.getInputStream()).body);
+        }
+        finally {
+            s.close();
+        }
+    }
+
+    @Test
+    public void testParseRanges() {
+        assertRanges(new long[][]{{0, 9}}, NanoHTTPD.parseRanges("bytes=0-9", 100));
+        assertRanges(new long[][]{{90, 99}}, NanoHTTPD.parseRanges("bytes=90-", 100));
+        assertRanges(new long[][]{{95, 99}}, NanoHTTPD.parseRanges("bytes=-5", 100));
+        assertRanges(new long[][]{{50, 99}}, NanoHTTPD.parseRanges("bytes=50-500", 100));
+        assertRanges(new long[][]{{0, 1}, {10, 12}}, NanoHTTPD.parseRanges("bytes=0-1, 10-12", 100));
+    }
+
+    @Test
+    public void testParseRangesUnsatisfiable() {
+        assertEquals(0, NanoHTTPD.parseRanges("bytes=100-", 100).length);
+        assertEquals(0, NanoHTTPD.parseRanges("bytes=200-300", 100).length);
+        assertEquals(0, NanoHTTPD.parseRanges("bytes=-0", 100).length);
+    }
+
+    @Test
+    public void testParseRangesIgnored() {
+        assertNull(NanoHTTPD.parseRanges("items=0-9", 100));
+        assertNull(NanoHTTPD.parseRanges("bytes=9-0", 100));
+        assertNull(NanoHTTPD.parseRanges("bytes=foo", 100));
+    }
+
+    @Test
+    public void testServeFileNotModified() throws Exception {
+        File dir = tmp.getRoot();
+        FileOutputStream out = new FileOutputStream(new File(dir, "a.txt"));
+        try {
+            out.write("hello".getBytes("UTF-8"));
+        }
+        finally {
+            out.close();
+        }
+
+        NanoHTTPD.Response res = NanoHTTPD.serveFile("/a.txt", new Properties(), dir, false, null);
+        assertEquals(NanoHTTPD.HTTP_OK, res.status);
+        String etag = res.header.getProperty("ETag");
+        String lastModified = res.header.getProperty("Last-Modified");
+        String gz = etag.substring(0, etag.length() - 1) + "-gz\"";
+
+        for (String inm : new String[]{etag, "W/" + etag, gz, "\"foo\", " + etag, "*"}) {
+            assertEquals(inm, NanoHTTPD.HTTP_NOTMODIFIED, serveFile(dir, "if-none-match", inm));
+        }
+        assertEquals(NanoHTTPD.HTTP_OK, serveFile(dir, "if-none-match", "\"foo\""));
+
+        // If-Modified-Since only applies without If-None-Match
+        assertEquals(NanoHTTPD.HTTP_NOTMODIFIED, serveFile(dir, "if-modified-since", lastModified));
+        assertEquals(NanoHTTPD.HTTP_OK, serveFile(dir, "if-modified-since",
+            NanoHTTPD.formatDate(new Date(0))));
+    }
+
+    String serveFile(File dir, String name, String value) {
+        Properties header = new Properties();
+        header.setProperty(name, value);
+        return NanoHTTPD.serveFile("/a.txt", header, dir, false, null).status;
+    }
+
+    /**
+     * Starts a server answering requests with their method, uri and body.
+     */
+    void startEchoServer() throws IOException {
+        server = new NanoHTTPD(0, null, 4) {
+            @Override
+            public Response serve(String uri, String method, Properties header, Properties parms,
+                Properties files) {
+                String body = "";
+                String content = files.getProperty("content");
+                if (content != null) {
+                    try {
+                        FileInputStream in = new FileInputStream(new File(content));
+                        try {
+                            body = new String(ByteStreams.toByteArray(in), "UTF-8");
+                        }
+                        finally {
+                            in.close();
+                        }
+                    }
+                    catch(IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+                return new Response(HTTP_OK, MIME_PLAINTEXT, method + " " + uri + " " + body);
+            }
+        };
+    }
+
+    Socket connect() throws IOException {
+        Socket s = new Socket("localhost", server.getListeningPort());
+        s.setSoTimeout(10000);
+        return s;
+    }
+
+    void send(Socket s, String request) throws IOException {
+        OutputStream out = s.getOutputStream();
+        out.write(request.getBytes("ISO-8859-1"));
+        out.flush();
+    }
+
+    /**
+     * Reads a response delimited by its Content-Length or chunked encoding.
+     */
+    Reply read(InputStream in) throws IOException {
+        Reply r = new Reply();
+        String status = line(in);
+        r.status = status.substring(status.indexOf(' ') + 1);
+
+        String line;
+        while ((line = line(in)).length() > 0) {
+            int colon = line.indexOf(':');
+            r.header.setProperty(line.substring(0, colon).trim().toLowerCase(Locale.ROOT),
+                line.substring(colon + 1).trim());
+        }
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        if ("chunked".equalsIgnoreCase(r.header.getProperty("transfer-encoding"))) {
+            int size;
+            while ((size = Integer.parseInt(line(in).split(";")[0].trim(), 16)) > 0) {
+                byte[] chunk = new byte[size];
+                ByteStreams.readFully(in, chunk);
+                body.write(chunk);
+                line(in);
+            }
+            line(in);
+        }
+        else if (r.header.getProperty("content-length") != null) {
+            byte[] b = new byte[Integer.parseInt(r.header.getProperty("content-length"))];
+            ByteStreams.readFully(in, b);
+            body.write(b);
+        }
+        r.body = body.toString("UTF-8");
+        return r;
+    }
+
+    String line(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1) {
+                throw new IOException("Unexpected end of response");
+            }
+            if (b != '\r') {
+                sb.append((char) b);
+            }
+        }
+        return sb.toString();
+    }
+
+    static class Reply {
+        String status;
+        Properties header = new Properties();
+        String body;
+    }
+
+    void assertRanges(long[][] expected, long[][] actual) {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertArrayEquals(expected[i], actual[i]);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/* Copyright 2014 The jeo project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jeo.nano;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+
+import io.jeo.vector.FeatureCursor;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class NanoServerTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testEntry() {
+        assertEquals("roads", NanoServer.entry("roads.shp"));
+        assertEquals("roads", NanoServer.entry("roads.dbf"));
+        assertEquals("db", NanoServer.entry("db.gpkg-wal"));
+        assertEquals("db", NanoServer.entry("db.gpkg-journal"));
+        assertNull(NanoServer.entry("db.gpkg-shm"));
+        assertEquals("tiles", NanoServer.entry("tiles/0/0/0.png"));
+        assertEquals("tiles", NanoServer.entry("tiles.d/meta-shm"));
+    }
+
+    @Test
+    public void testChanged() throws Exception {
+        File dir = tmp.getRoot();
+        write(new File(dir, "roads.shp"), 10);
+        write(new File(dir, "roads.dbf"), 10);
+        write(new File(dir, "db.gpkg"), 10);
+        write(new File(dir, "db.gpkg-shm"), 10);
+        write(new File(dir, "style.css"), 10);
+        write(new File(new File(dir, "tiles"), "0.png"), 10);
+
+        Map<String,Long> before = NanoServer.snapshot(dir);
+        assertEquals(6, before.size());
+        assertTrue(NanoServer.changed(before, NanoServer.snapshot(dir)).isEmpty());
+
+        write(new File(dir, "roads.dbf"), 20);
+        write(new File(dir, "db.gpkg-shm"), 20);
+        write(new File(new File(dir, "tiles"), "1.png"), 10);
+        assertEquals(new HashSet<String>(Arrays.asList("roads", "tiles")),
+            NanoServer.changed(before, NanoServer.snapshot(dir)));
+
+        before = NanoServer.snapshot(dir);
+        write(new File(dir, "db.gpkg-wal"), 10);
+        new File(dir, "style.css").delete();
+        assertEquals(new HashSet<String>(Arrays.asList("db", "style")),
+            NanoServer.changed(before, NanoServer.snapshot(dir)));
+    }
+
+    @Test
+    public void testWatch() throws Exception {
+        File dir = tmp.getRoot();
+        write(new File(dir, "roads.shp"), 10);
+        write(new File(dir, "db.gpkg"), 10);
+
+        NanoServer server = new NanoServer(0, null, 2, null,
+            Arrays.<Handler>asList(new FeatureHandler()));
+        try {
+            ImageCache cache = server.getImageCache();
+            cache.put("roads", Collections.singleton(ImageCache.layerTag("roads", null)),
+                "image/png", new byte[1]);
+            cache.put("db", Collections.singleton(ImageCache.layerTag("db", "a")), "image/png",
+                new byte[1]);
+            cache.put("style", Collections.singleton(ImageCache.styleTag("roads")), "image/png",
+                new byte[1]);
+
+            server.watch(dir, 0);
+            long version = server.getRegistryVersion();
+            assertEquals(3, cache.count());
+
+            // only the state derived from the changed file is dropped
+            write(new File(dir, "roads.shp"), 20);
+            assertTrue(server.getRegistryVersion() > version);
+            assertFalse(cache.contains("roads"));
+            assertFalse(cache.contains("style"));
+            assertTrue(cache.contains("db"));
+
+            // all layers of a workspace
+            write(new File(dir, "db.gpkg-wal"), 10);
+            server.getRegistryVersion();
+            assertFalse(cache.contains("db"));
+        }
+        finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testReload() throws Exception {
+        FeatureHandler features = new FeatureHandler();
+        TileHandler tiles = new TileHandler();
+        NanoServer server = new NanoServer(0, null, 2, null,
+            Arrays.<Handler>asList(features, tiles));
+        try {
+            ImageCache cache = server.getImageCache();
+            cache.put("roads", Collections.singleton(ImageCache.layerTag("roads", null)),
+                "image/png", new byte[1]);
+
+            features.getClusters().get(PointClusters.key("roads", "roads", 40, null, null),
+                new Callable<PointClusters.Hierarchy>() {
+                    @Override
+                    public PointClusters.Hierarchy call() throws Exception {
+                        return null;
+                    }
+                });
+            features.getPager().park("/features/roads/roads", new Properties(), 10,
+                FeatureCursor.empty());
+            tiles.styles.put("roads", tiles.createStyle());
+            tiles.tileLayers.add("tiles:tiles");
+
+            long version = server.getRegistryVersion();
+            server.reload();
+            assertTrue(server.getRegistryVersion() > version);
+
+            // all state derived from the registry is dropped
+            assertEquals(0, cache.count());
+            assertEquals(0, features.getClusters().count());
+            assertEquals(0, features.getPager().open());
+            assertTrue(tiles.styles.isEmpty());
+            assertTrue(tiles.tileLayers.isEmpty());
+        }
+        finally {
+            server.stop();
+        }
+    }
+
+    static void write(File f, int size) throws IOException {
+        f.getParentFile().mkdirs();
+        FileOutputStream out = new FileOutputStream(f);
+        try {
+            out.write(new byte[size]);
+        }
+        finally {
+            out.close();
+        }
+    }
+}
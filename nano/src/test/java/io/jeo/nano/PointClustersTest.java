@@ -0,0 +1,171 @@
+/* Copyright 2014 The jeo project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jeo.nano;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.vividsolutions.jts.geom.Point;
+import io.jeo.data.mem.MemVectorDataset;
+import io.jeo.geom.Bounds;
+import io.jeo.geom.GeomBuilder;
+import io.jeo.vector.ListFeature;
+import io.jeo.vector.Schema;
+import io.jeo.vector.SchemaBuilder;
+import io.jeo.vector.VectorQuery;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class PointClustersTest {
+
+    MemVectorDataset points;
+
+    @Before
+    public void setUp() {
+        Schema schema = new SchemaBuilder("points")
+            .field("geometry", Point.class, "EPSG:4326")
+            .field("pop", Integer.class)
+            .schema();
+        points = new MemVectorDataset(schema);
+
+        GeomBuilder gb = new GeomBuilder();
+        points.add(new ListFeature("a", schema, gb.point(0, 0).toPoint(), 1));
+        points.add(new ListFeature("b", schema, gb.point(0.001, 0).toPoint(), 2));
+        points.add(new ListFeature("c", schema, gb.point(0, 0.001).toPoint(), null));
+        points.add(new ListFeature("d", schema, gb.point(100, 40).toPoint(), 10));
+    }
+
+    @Test
+    public void testProjection() {
+        assertEquals(0.5, PointClusters.x(0), 1e-9);
+        assertEquals(0.5, PointClusters.y(0), 1e-9);
+        assertEquals(-120, PointClusters.lon(PointClusters.x(-120)), 1e-9);
+        assertEquals(45, PointClusters.lat(PointClusters.y(45)), 1e-9);
+        assertEquals(0, PointClusters.y(90), 1e-9);
+    }
+
+    @Test
+    public void testLevels() throws Exception {
+        PointClusters clusters = new PointClusters();
+        PointClusters.Hierarchy h = clusters.load(points.read(new VectorQuery()), 40,
+            new String[]{"pop"});
+        assertEquals(4, h.size());
+
+        PointClusters.Level points = h.level(PointClusters.MAX_ZOOM + 1);
+        assertEquals(4, points.size());
+        assertEquals(4, h.level(20).size());
+
+        PointClusters.Level world = h.level(0);
+        assertEquals(2, world.size());
+
+        int near = world.count(0) == 3 ? 0 : 1;
+        int far = 1 - near;
+
+        assertEquals(3, world.count(near));
+        assertNull(world.id(near));
+        assertEquals(0.001 / 3, world.lon(near), 1e-6);
+        assertEquals(0.001 / 3, world.lat(near), 1e-6);
+        assertEquals(3, world.sum[0][near], 0);
+        assertEquals(1, world.min[0][near], 0);
+        assertEquals(2, world.max[0][near], 0);
+
+        assertEquals(1, world.count(far));
+        assertEquals("d", world.id(far));
+        assertEquals(100, world.lon(far), 1e-9);
+        assertEquals(40, world.lat(far), 1e-9);
+        assertEquals(10, world.sum[0][far], 0);
+
+        Bounds bbox = new Bounds(90, 110, 30, 50);
+        assertEquals(false, world.within(near, bbox));
+        assertEquals(true, world.within(far, bbox));
+    }
+
+    @Test
+    public void testCached() throws Exception {
+        final PointClusters clusters = new PointClusters();
+        final AtomicInteger loads = new AtomicInteger();
+        Callable<PointClusters.Hierarchy> loader = new Callable<PointClusters.Hierarchy>() {
+            @Override
+            public PointClusters.Hierarchy call() throws Exception {
+                loads.incrementAndGet();
+                return clusters.load(points.read(new VectorQuery()), 40, null);
+            }
+        };
+
+        String key = PointClusters.key("foo", "bar", 40, null, null);
+        PointClusters.Hierarchy h = clusters.get(key, loader);
+        assertNotNull(h);
+        assertSame(h, clusters.get(key, loader));
+        assertEquals(1, loads.get());
+        assertEquals(1, clusters.hits());
+        assertEquals(1, clusters.misses());
+
+        clusters.get(PointClusters.key("foo", "baz", 40, null, null), loader);
+        clusters.get(PointClusters.key("other", "bar", 40, null, null), loader);
+        assertEquals(3, clusters.count());
+
+        // layer changed
+        clusters.invalidateLayer("foo", "bar");
+        assertEquals(2, clusters.count());
+        PointClusters.Hierarchy h2 = clusters.get(key, loader);
+        assertNotSame(h, h2);
+        assertEquals(4, loads.get());
+        assertEquals(3, clusters.count());
+
+        clusters.invalidateLayer("foo", "bar");
+        assertEquals(2, clusters.count());
+        clusters.invalidateLayer("foo", null);
+        assertEquals(1, clusters.count());
+    }
+
+    @Test
+    public void testFailedLoad() throws Exception {
+        PointClusters clusters = new PointClusters();
+        String key = PointClusters.key("foo", "bar", 40, null, null);
+        try {
+            clusters.get(key, new Callable<PointClusters.Hierarchy>() {
+                @Override
+                public PointClusters.Hierarchy call() throws Exception {
+                    throw new IOException("boom");
+                }
+            });
+            fail();
+        }
+        catch(IOException e) {
+            assertEquals("boom", e.getMessage());
+        }
+        assertEquals(0, clusters.count());
+    }
+
+    @Test
+    public void testTooManyPoints() throws Exception {
+        PointClusters clusters = new PointClusters(8, 3);
+        try {
+            clusters.load(points.read(new VectorQuery()), 40, null);
+            fail();
+        }
+        catch(HttpException e) {
+            assertEquals(NanoHTTPD.HTTP_BADREQUEST, e.status);
+        }
+    }
+}
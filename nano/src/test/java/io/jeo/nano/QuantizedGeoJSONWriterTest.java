@@ -0,0 +1,136 @@
+/* Copyright 2014 The jeo project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jeo.nano;
+
+import java.io.StringWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import com.vividsolutions.jts.io.WKTReader;
+import io.jeo.vector.MapFeature;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class QuantizedGeoJSONWriterTest {
+
+    @Test
+    public void testSettings() {
+        assertNull(QuantizedGeoJSONWriter.settings(new Properties()));
+
+        QuantizedGeoJSONWriter.Settings s = QuantizedGeoJSONWriter.settings(q("resolution", "0.001"));
+        assertEquals(3, s.precision);
+        assertEquals(0.001, s.tolerance, 0);
+
+        s = QuantizedGeoJSONWriter.settings(q("resolution", "150"));
+        assertEquals(0, s.precision);
+        assertEquals(150, s.tolerance, 0);
+
+        s = QuantizedGeoJSONWriter.settings(q("resolution", "0.001", "precision", "5", "simplify", "0"));
+        assertEquals(5, s.precision);
+        assertEquals(0, s.tolerance, 0);
+
+        s = QuantizedGeoJSONWriter.settings(q("simplify", "10"));
+        assertEquals(QuantizedGeoJSONWriter.MAX_PRECISION, s.precision);
+
+        try {
+            QuantizedGeoJSONWriter.settings(q("precision", "42"));
+            fail();
+        }
+        catch(HttpException e) {
+            assertEquals(NanoHTTPD.HTTP_BADREQUEST, e.status);
+        }
+        try {
+            QuantizedGeoJSONWriter.settings(q("resolution", "-1"));
+            fail();
+        }
+        catch(HttpException e) {
+            assertEquals(NanoHTTPD.HTTP_BADREQUEST, e.status);
+        }
+    }
+
+    @Test
+    public void testNumbers() throws Exception {
+        assertEquals("[1.23,-0.5]", geometry(2, "POINT(1.23456 -0.5)")
+            .replace("{\"type\":\"Point\",\"coordinates\":", "").replace("}", ""));
+        assertEquals("{\"type\":\"Point\",\"coordinates\":[100,0.005]}", geometry(3, "POINT(100 0.005)"));
+        assertEquals("{\"type\":\"Point\",\"coordinates\":[-12,0]}", geometry(0, "POINT(-12.4 0.4)"));
+    }
+
+    @Test
+    public void testLine() throws Exception {
+        assertEquals("{\"type\":\"LineString\",\"coordinates\":[[0,0],[1,1]]}",
+            geometry(1, "LINESTRING(0 0, 0.01 0.01, 1 1)"));
+        assertEquals("null", geometry(1, "LINESTRING(0 0, 0.01 0.01)"));
+        assertEquals("{\"type\":\"MultiLineString\",\"coordinates\":[[[0,0],[1,1]]]}",
+            geometry(1, "MULTILINESTRING((0 0, 0.01 0.01), (0 0, 1 1))"));
+    }
+
+    @Test
+    public void testPolygon() throws Exception {
+        assertEquals("{\"type\":\"Polygon\",\"coordinates\":[[[0,0],[10,0],[10,10],[0,10],[0,0]]]}",
+            geometry(0, "POLYGON((0 0, 10 0, 10 10, 0 10, 0 0), (5 5, 5.1 5, 5.1 5.1, 5 5))"));
+        assertEquals("null", geometry(0, "POLYGON((0 0, 0.1 0, 0.1 0.1, 0 0.1, 0 0))"));
+        assertEquals("{\"type\":\"MultiPolygon\",\"coordinates\":[[[[0,0],[10,0],[10,10],[0,0]]]]}",
+            geometry(0, "MULTIPOLYGON(((0 0, 0.1 0, 0.1 0.1, 0 0)), ((0 0, 10 0, 10 10, 0 0)))"));
+    }
+
+    @Test
+    public void testSimplify() throws Exception {
+        QuantizedGeoJSONWriter.Settings s = new QuantizedGeoJSONWriter.Settings(2, 0.5);
+        StringWriter out = new StringWriter();
+        s.writer(out).geometry(new WKTReader().read("LINESTRING(0 0, 1 0.1, 2 -0.1, 3 0.1, 4 0)"));
+        assertEquals("{\"type\":\"LineString\",\"coordinates\":[[0,0],[4,0]]}", out.toString());
+    }
+
+    @Test
+    public void testFeatureCollection() throws Exception {
+        Map<String,Object> values = new LinkedHashMap<String, Object>();
+        values.put("geometry", new WKTReader().read("POINT(1.26 2)"));
+        values.put("name", "foo");
+        values.put("value", Double.NaN);
+
+        StringWriter out = new StringWriter();
+        QuantizedGeoJSONWriter w = new QuantizedGeoJSONWriter.Settings(1, 0).writer(out);
+        w.featureCollection();
+        w.feature(new MapFeature("1", values));
+        w.feature(new MapFeature("2", values));
+        w.endFeatureCollection("abc").flush();
+
+        String feature = "{\"type\":\"Feature\",\"id\":\"%s\",\"geometry\":"
+            + "{\"type\":\"Point\",\"coordinates\":[1.3,2]},"
+            + "\"properties\":{\"name\":\"foo\",\"value\":null}}";
+        assertEquals("{\"type\":\"FeatureCollection\",\"features\":["
+            + String.format(feature, "1") + "," + String.format(feature, "2") + "],\"next\":\"abc\"}",
+            out.toString());
+    }
+
+    String geometry(int precision, String wkt) throws Exception {
+        StringWriter out = new StringWriter();
+        new QuantizedGeoJSONWriter.Settings(precision, 0).writer(out).geometry(new WKTReader().read(wkt));
+        return out.toString();
+    }
+
+    Properties q(String... kv) {
+        Properties p = new Properties();
+        for (int i = 0; i < kv.length; i += 2) {
+            p.setProperty(kv[i], kv[i + 1]);
+        }
+        return p;
+    }
+}
@@ -0,0 +1,139 @@
+/* Copyright 2014 The jeo project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jeo.nano;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RenderGuardTest {
+
+    @Test
+    public void testAcquireRelease() throws Exception {
+        RenderGuard guard = new RenderGuard(2);
+        assertEquals(2, guard.available());
+
+        guard.acquire();
+        guard.acquire();
+        assertEquals(0, guard.available());
+
+        guard.release();
+        assertEquals(1, guard.available());
+        guard.release();
+        assertEquals(2, guard.available());
+    }
+
+    @Test
+    public void testAcquireWaits() throws Exception {
+        final RenderGuard guard = new RenderGuard(1);
+        guard.acquire();
+
+        final CountDownLatch acquired = new CountDownLatch(1);
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    guard.acquire();
+                    acquired.countDown();
+                    guard.release();
+                }
+                catch(InterruptedIOException e) {
+                }
+            }
+        });
+        t.start();
+
+        assertFalse(acquired.await(100, TimeUnit.MILLISECONDS));
+        guard.release();
+        assertTrue(acquired.await(5, TimeUnit.SECONDS));
+        t.join(5000);
+        assertEquals(1, guard.available());
+    }
+
+    @Test
+    public void testAcquireInterrupted() throws Exception {
+        final RenderGuard guard = new RenderGuard(1);
+        guard.acquire();
+
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    guard.acquire();
+                }
+                catch(Throwable e) {
+                    error.set(e);
+                }
+                if (Thread.currentThread().isInterrupted()) {
+                    interrupted.countDown();
+                }
+            }
+        });
+        t.start();
+        t.interrupt();
+        t.join(5000);
+
+        assertTrue(error.get() instanceof InterruptedIOException);
+        // the interrupt is preserved for the caller
+        assertEquals(0, interrupted.getCount());
+        assertEquals(0, guard.available());
+    }
+
+    @Test
+    public void testSetMaxRenders() throws Exception {
+        RenderGuard guard = new RenderGuard(2);
+        guard.acquire();
+        guard.acquire();
+
+        // lowered while both are admitted, takes effect as they complete
+        guard.setMaxRenders(1);
+        assertEquals(1, guard.getMaxRenders());
+        assertEquals(0, guard.available());
+        guard.release();
+        assertEquals(0, guard.available());
+        guard.release();
+        assertEquals(1, guard.available());
+
+        guard.setMaxRenders(3);
+        assertEquals(3, guard.available());
+    }
+
+    @Test
+    public void testInvalidMaxRenders() {
+        try {
+            new RenderGuard(0);
+            fail();
+        }
+        catch(IllegalArgumentException e) {
+        }
+
+        try {
+            new RenderGuard(1).setMaxRenders(0);
+            fail();
+        }
+        catch(IllegalArgumentException e) {
+        }
+    }
+}
@@ -0,0 +1,255 @@
+/* Copyright 2014 The jeo project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jeo.nano;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.jeo.map.MapBuilder;
+import io.jeo.nano.NanoHTTPD.Response;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RenderPoolTest {
+
+    RenderPool pool;
+    CountDownLatch running, done;
+
+    @Before
+    public void setUp() {
+        pool = new RenderPool(1, 1, 100);
+        running = new CountDownLatch(1);
+        done = new CountDownLatch(1);
+    }
+
+    @After
+    public void tearDown() {
+        done.countDown();
+        pool.shutdown();
+    }
+
+    @Test
+    public void testExecute() throws Exception {
+        assertEquals("foo", pool.execute(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return "foo";
+            }
+        }));
+    }
+
+    @Test
+    public void testShedWhenBusy() throws Exception {
+        // occupy the only thread
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    pool.execute(new Callable<Object>() {
+                        @Override
+                        public Object call() throws Exception {
+                            running.countDown();
+                            done.await();
+                            return null;
+                        }
+                    });
+                } catch (Exception e) {
+                }
+            }
+        }).start();
+        assertTrue(running.await(5, TimeUnit.SECONDS));
+
+        // waits in the queue past the latency budget
+        try {
+            pool.execute(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    return null;
+                }
+            });
+            fail();
+        }
+        catch(HttpException e) {
+            NanoHTTPD.Response r = e.toResponse();
+            assertEquals(NanoHTTPD.HTTP_SERVICE_UNAVAILABLE, r.status);
+            assertEquals("1", r.header.getProperty("Retry-After"));
+        }
+        assertEquals(1, pool.rejected());
+        assertEquals(0, pool.queued());
+    }
+
+    @Test
+    public void testShedWhenAdmissionFull() throws Exception {
+        pool.shutdown();
+        pool = new RenderPool(1, 4, 5000, 1);
+
+        occupy();
+        assertEquals(1, pool.admitted());
+
+        // shed straight away, even though the queue has room
+        long start = System.currentTimeMillis();
+        try {
+            pool.execute(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    return null;
+                }
+            });
+            fail();
+        }
+        catch(HttpException e) {
+            assertEquals(NanoHTTPD.HTTP_SERVICE_UNAVAILABLE, e.toResponse().status);
+        }
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertEquals(1, pool.rejected());
+        assertEquals(1, pool.admitted());
+    }
+
+    @Test
+    public void testStreamedRenderShed() throws Exception {
+        pool.shutdown();
+        pool = new RenderPool(1, 4, 5000, 1);
+        occupy();
+
+        // shed before anything is written, so the response can still be an error
+        RenderContent content =
+            new RenderContent(null, new MapBuilder(), new RenderGuard(1), null, null, pool);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            content.write(out);
+            fail();
+        }
+        catch(HttpException e) {
+            assertEquals(NanoHTTPD.HTTP_SERVICE_UNAVAILABLE, e.toResponse().status);
+        }
+        assertEquals(0, out.size());
+        assertTrue(content.closed);
+    }
+
+    @Test
+    public void testForRequestThreads() {
+        RenderPool p = RenderPool.forRequestThreads(25);
+        try {
+            assertEquals(12, p.maxAdmitted);
+            assertTrue(p.executor.getMaximumPoolSize() <= 12);
+        }
+        finally {
+            p.shutdown();
+        }
+
+        p = RenderPool.forRequestThreads(1);
+        try {
+            assertEquals(1, p.maxAdmitted);
+        }
+        finally {
+            p.shutdown();
+        }
+    }
+
+    @Test
+    public void testCheapRequestsServedWhenSaturated() throws Exception {
+        Handler expensive = new Handler() {
+            @Override
+            public boolean canHandle(Request request, NanoServer server) {
+                return request.getUri().startsWith("/render");
+            }
+
+            @Override
+            public boolean isExpensive(Request request) {
+                return true;
+            }
+
+            @Override
+            public Response handle(Request request, NanoServer server) throws Exception {
+                done.await();
+                return new Response(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "rendered");
+            }
+        };
+
+        NanoServer server = new NanoServer(0, null, 4, null, Arrays.<Handler>asList(expensive));
+        List<Socket> sockets = new ArrayList<Socket>();
+        try {
+            // more expensive requests than there are request threads
+            for (int i = 0; i < 8; i++) {
+                sockets.add(get(server, "/render"));
+            }
+
+            // half the request threads are admitted, the rest of the requests are shed
+            long timeout = System.currentTimeMillis() + 5000;
+            while (server.getRenderPool().rejected() < 6 && System.currentTimeMillis() < timeout) {
+                Thread.sleep(10);
+            }
+            assertEquals(2, server.getRenderPool().admitted());
+            assertEquals(6, server.getRenderPool().rejected());
+
+            Socket ping = get(server, "/ping");
+            sockets.add(ping);
+            String status = new BufferedReader(
+                new InputStreamReader(ping.getInputStream(), "ISO-8859-1")).readLine();
+            assertTrue(status, status.startsWith("HTTP/1.1 200"));
+        }
+        finally {
+            done.countDown();
+            for (Socket s : sockets) {
+                s.close();
+            }
+            server.stop();
+        }
+    }
+
+    void occupy() throws Exception {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    pool.execute(new Callable<Object>() {
+                        @Override
+                        public Object call() throws Exception {
+                            running.countDown();
+                            done.await();
+                            return null;
+                        }
+                    });
+                } catch (Exception e) {
+                }
+            }
+        }).start();
+        assertTrue(running.await(5, TimeUnit.SECONDS));
+    }
+
+    Socket get(NanoServer server, String uri) throws Exception {
+        Socket s = new Socket("localhost", server.getListeningPort());
+        s.setSoTimeout(10000);
+        OutputStream out = s.getOutputStream();
+        out.write(("GET " + uri + " HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes("ISO-8859-1"));
+        out.flush();
+        return s;
+    }
+}
@@ -0,0 +1,193 @@
+/* Copyright 2014 The jeo project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jeo.nano;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.io.ByteStreams;
+import io.jeo.nano.NanoHTTPD.Response;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static io.jeo.nano.NanoHTTPD.HTTP_OK;
+import static io.jeo.nano.NanoHTTPD.HTTP_SERVICE_UNAVAILABLE;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SingleFlightTest {
+
+    ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testCoalesce() throws Exception {
+        final SingleFlight flight = new SingleFlight(5000);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger calls = new AtomicInteger();
+
+        final Callable<Response> render = new Callable<Response>() {
+            @Override
+            public Response call() throws Exception {
+                calls.incrementAndGet();
+                release.await();
+                return new Response(HTTP_OK, "image/png", new ByteArrayInputStream(new byte[]{1, 2, 3}));
+            }
+        };
+
+        List<Future<Response>> futures = new ArrayList<Future<Response>>();
+        for (int i = 0; i < 8; i++) {
+            futures.add(executor.submit(new Callable<Response>() {
+                @Override
+                public Response call() throws Exception {
+                    return flight.execute("a", render);
+                }
+            }));
+        }
+
+        // wait for all requests to join the flight
+        long deadline = System.currentTimeMillis() + 5000;
+        while (flight.coalesced() < 7 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        release.countDown();
+
+        for (Future<Response> f : futures) {
+            Response r = f.get(5, TimeUnit.SECONDS);
+            assertEquals(HTTP_OK, r.status);
+            assertEquals("image/png", r.mimeType);
+            assertArrayEquals(new byte[]{1, 2, 3}, ByteStreams.toByteArray(r.stream()));
+        }
+
+        assertEquals(1, calls.get());
+        assertEquals(1, flight.executed());
+        assertEquals(7, flight.coalesced());
+        assertEquals(0, flight.inFlight());
+    }
+
+    @Test
+    public void testError() throws Exception {
+        final SingleFlight flight = new SingleFlight(5000);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        final Callable<Response> render = new Callable<Response>() {
+            @Override
+            public Response call() throws Exception {
+                release.await();
+                throw new IOException("boom");
+            }
+        };
+
+        List<Future<Response>> futures = new ArrayList<Future<Response>>();
+        for (int i = 0; i < 4; i++) {
+            futures.add(executor.submit(new Callable<Response>() {
+                @Override
+                public Response call() throws Exception {
+                    return flight.execute("a", render);
+                }
+            }));
+        }
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (flight.coalesced() < 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        release.countDown();
+
+        for (Future<Response> f : futures) {
+            try {
+                f.get(5, TimeUnit.SECONDS);
+                fail();
+            }
+            catch(java.util.concurrent.ExecutionException e) {
+                assertTrue(e.getCause() instanceof IOException);
+                assertEquals("boom", e.getCause().getMessage());
+            }
+        }
+        assertEquals(0, flight.inFlight());
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        final SingleFlight flight = new SingleFlight(10);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+
+        Future<Response> leader = executor.submit(new Callable<Response>() {
+            @Override
+            public Response call() throws Exception {
+                return flight.execute("a", new Callable<Response>() {
+                    @Override
+                    public Response call() throws Exception {
+                        started.countDown();
+                        release.await();
+                        return new Response(HTTP_OK, "image/png", new ByteArrayInputStream(new byte[1]));
+                    }
+                });
+            }
+        });
+        started.await();
+
+        try {
+            flight.execute("a", null);
+            fail();
+        }
+        catch(HttpException e) {
+            assertEquals(HTTP_SERVICE_UNAVAILABLE, e.status);
+        }
+        assertEquals(1, flight.timeouts());
+
+        release.countDown();
+        assertEquals(HTTP_OK, leader.get(5, TimeUnit.SECONDS).status);
+    }
+
+    @Test
+    public void testDistinctKeys() throws Exception {
+        SingleFlight flight = new SingleFlight();
+        Callable<Response> render = new Callable<Response>() {
+            @Override
+            public Response call() throws Exception {
+                return new Response(HTTP_OK, "image/png", new ByteArrayInputStream(new byte[1]));
+            }
+        };
+
+        flight.execute("a", render);
+        flight.execute("b", render);
+        flight.execute("a", render);
+        assertEquals(3, flight.executed());
+        assertEquals(0, flight.coalesced());
+    }
+}
@@ -14,13 +14,23 @@
  */
 package io.jeo.nano;
 
-import java.io.IOException;
+import java.awt.image.BufferedImage;
+import java.util.Collections;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+import io.jeo.geom.Bounds;
 import io.jeo.tile.Tile;
 import io.jeo.tile.TileDataset;
 import io.jeo.nano.NanoHTTPD.Response;
 import org.junit.Before;
 import org.junit.Test;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
 public class TileHandlerTest extends HandlerTestSupport {
 
     @Before
@@ -35,6 +45,22 @@ public class TileHandlerTest extends HandlerTestSupport {
         assertPattern(TileHandler.TILES_URI_RE, "/tiles/work_space/data_set/1/2/3.jpg", "work_space", "data_set", "1", "2", "3", "jpg");
     }
 
+    @Test
+    public void testIsExpensive() throws Exception {
+        TileHandler h = (TileHandler) handler;
+        assertTrue(h.isExpensive(tileRequest("/tiles/foo/bar/1/2/3.png")));
+        assertFalse(h.isExpensive(tileRequest("/tiles/foo/bar/1/2/3.html")));
+        assertFalse(h.isExpensive(tileRequest("/tiles/foo/bar")));
+
+        // tiles of tile layers are read
+        h.tileLayers.add("foo:bar");
+        assertFalse(h.isExpensive(tileRequest("/tiles/foo/bar/1/2/3.png")));
+        assertTrue(h.isExpensive(tileRequest("/tiles/foo/baz/1/2/3.png")));
+
+        h.invalidateLayer("foo", null);
+        assertTrue(h.isExpensive(tileRequest("/tiles/foo/bar/1/2/3.png")));
+    }
+
     @Test
     public void testGet() throws Exception {
         mock = MockServer.create().
@@ -47,6 +73,7 @@ public class TileHandlerTest extends HandlerTestSupport {
                 "image/png"
         );
 
+        assertTrue(((TileHandler) handler).tileLayers.contains("foo:bar"));
         mock.verify();
     }
 
@@ -77,4 +104,85 @@ public class TileHandlerTest extends HandlerTestSupport {
 
         mock.verify();
     }
+
+    @Test
+    public void testWebMercatorBounds() {
+        double e = TileHandler.EXTENT;
+        assertBounds(new Bounds(-e, e, -e, e), TileHandler.bounds(0, 0, 0, 0, 0, 0));
+        assertBounds(new Bounds(-e, 0, 0, e), TileHandler.bounds(1, 0, 0, 0, 0, 0));
+        assertBounds(new Bounds(0, e, -e, 0), TileHandler.bounds(1, 1, 1, 1, 1, 0));
+        assertBounds(new Bounds(-e, e, -e, e), TileHandler.bounds(2, 0, 3, 0, 3, 0));
+
+        // one pixel at zoom 0 spans 1/256 of the world
+        double px = 2 * e / 256;
+        assertBounds(new Bounds(-e - px, e + px, -e - px, e + px),
+            TileHandler.bounds(0, 0, 0, 0, 0, 1));
+    }
+
+    @Test
+    public void testGetRendered() throws Exception {
+        mock = MockServer.create()
+            .withMemoryVectorLayer()
+            .withImageRenderer()
+            .replay();
+
+        Response res = makeRequest(
+            new Request("/tiles/foo/bar/1/0/1.png", "GET", null, null, null),
+            NanoHTTPD.HTTP_OK,
+            "image/png"
+        );
+
+        BufferedImage img = ImageIO.read(res.stream());
+        assertEquals(256, img.getWidth());
+        assertEquals(256, img.getHeight());
+        assertEquals(256 + 2 * TileHandler.DEFAULT_BUFFER, mock.rendered.getWidth());
+
+        mock.verify();
+    }
+
+    @Test
+    public void testGetRenderedMetatileCached() throws Exception {
+        mock = MockServer.create()
+            .withMemoryVectorLayer()
+            .withImageRenderer()
+            .replay();
+
+        ImageCache cache = new ImageCache();
+        handler.setImageCache(cache);
+
+        Response res = makeRequest(
+            new Request("/tiles/foo/bar/3/5/2.png", "GET", null, null, null),
+            NanoHTTPD.HTTP_OK,
+            "image/png"
+        );
+        assertEquals("MISS", res.header.getProperty("X-Cache"));
+
+        // the metatile holding the tile is rendered and cached whole
+        assertEquals(4 * 256 + 2 * TileHandler.DEFAULT_BUFFER, mock.rendered.getWidth());
+        List<String> layers = Collections.singletonList("foo:bar");
+        TileSeeder.CacheSink sink = new TileSeeder.CacheSink(cache,
+            TileSeeder.prefix(layers, null, TileHandler.GRID, "image/png"),
+            TileSeeder.tags(layers, null));
+        for (int x = 4; x < 8; x++) {
+            for (int y = 0; y < 4; y++) {
+                assertTrue(sink.contains(new Tile(3, x, y)));
+            }
+        }
+        assertEquals(16, cache.count());
+
+        mock.verify();
+    }
+
+    void assertBounds(Bounds expected, Bounds actual) {
+        assertEquals(expected.getMinX(), actual.getMinX(), 1e-6);
+        assertEquals(expected.getMaxX(), actual.getMaxX(), 1e-6);
+        assertEquals(expected.getMinY(), actual.getMinY(), 1e-6);
+        assertEquals(expected.getMaxY(), actual.getMaxY(), 1e-6);
+    }
+
+    Request tileRequest(String uri) {
+        Request request = new Request(uri, "GET", null, null, null);
+        assertTrue(handler.canHandle(request, null));
+        return request;
+    }
 }
@@ -0,0 +1,91 @@
+/* Copyright 2014 The jeo project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jeo.nano;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import io.jeo.geom.Bounds;
+import io.jeo.tile.Tile;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TileSeederTest {
+
+    @Test
+    public void testPrefix() {
+        List<String> layers = Arrays.asList("foo:bar", "foo:baz");
+        assertEquals("/tiles/render/foo:bar,foo:baz/streets/foo:tiles/image/png",
+            TileSeeder.prefix(layers, "streets", "foo:tiles", "image/png"));
+        assertEquals("/tiles/render/foo:bar,foo:baz//foo:tiles/image/png",
+            TileSeeder.prefix(layers, null, "foo:tiles", "image/png"));
+    }
+
+    @Test
+    public void testTags() {
+        Set<String> tags = TileSeeder.tags(Arrays.asList("foo:bar", "baz"), "streets");
+        assertEquals(3, tags.size());
+        assertTrue(tags.contains(ImageCache.layerTag("foo", "bar")));
+        assertTrue(tags.contains(ImageCache.layerTag("baz", null)));
+        assertTrue(tags.contains(ImageCache.styleTag("streets")));
+    }
+
+    @Test
+    public void testCacheSink() throws Exception {
+        ImageCache cache = new ImageCache(1024, 0, null);
+        List<String> layers = Arrays.asList("foo:bar");
+        TileSeeder.CacheSink sink = new TileSeeder.CacheSink(cache,
+            TileSeeder.prefix(layers, null, "foo:tiles", "image/png"), TileSeeder.tags(layers, null));
+
+        Tile t = new Tile(1, 2, 3);
+        assertFalse(sink.contains(t));
+
+        sink.put(t, new byte[]{1, 2, 3}, "image/png");
+        assertTrue(sink.contains(t));
+        assertEquals("/tiles/render/foo:bar//foo:tiles/image/png/1/2/3", sink.key(t));
+
+        // seeded tiles are invalidated along with the layer
+        cache.invalidateLayer("foo", "bar");
+        assertFalse(sink.contains(t));
+        assertEquals(0, cache.misses());
+    }
+
+    @Test
+    public void testWebMercatorCovers() throws Exception {
+        double e = TileHandler.EXTENT;
+        TileSeeder seeder = new TileSeeder(null, null).layers("foo:bar").grid(TileHandler.GRID)
+            .zoom(0, 2).bounds(new Bounds(-e, e, -e, e));
+
+        List<int[]> covers = seeder.covers(null);
+        assertEquals(3, covers.size());
+        assertArrayEquals(new int[]{0, 0, 0, 0, 0}, covers.get(0));
+        assertArrayEquals(new int[]{1, 0, 1, 0, 1}, covers.get(1));
+        assertArrayEquals(new int[]{2, 0, 3, 0, 3}, covers.get(2));
+
+        // the north east quadrant, rows counted from the north edge
+        seeder.bounds(new Bounds(1, e, 1, e)).zoom(2, 2);
+        assertArrayEquals(new int[]{2, 2, 3, 0, 1}, seeder.covers(null).get(0));
+
+        // the seeded tiles are those TileHandler renders
+        Bounds b = TileHandler.bounds(2, 2, 3, 0, 1, 0);
+        assertEquals(0, b.getMinX(), 1e-6);
+        assertEquals(0, b.getMinY(), 1e-6);
+    }
+}
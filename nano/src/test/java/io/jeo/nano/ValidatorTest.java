@@ -0,0 +1,86 @@
+/* Copyright 2014 The jeo project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jeo.nano;
+
+import java.util.Properties;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ValidatorTest {
+
+    @Test
+    public void testIfNoneMatch() {
+        Validator v = new Validator("\"abc\"", -1);
+
+        assertTrue(v.matches(header("if-none-match", "\"abc\"")));
+        assertTrue(v.matches(header("if-none-match", "\"foo\", W/\"abc\"")));
+        assertTrue(v.matches(header("if-none-match", "*")));
+        assertFalse(v.matches(header("if-none-match", "\"foo\"")));
+        assertFalse(v.matches(new Properties()));
+    }
+
+    @Test
+    public void testIfModifiedSince() {
+        // Tue, 13 May 2014 16:53:20 GMT
+        Validator v = new Validator("\"abc\"", 1400000000500l);
+
+        assertTrue(v.matches(header("if-modified-since", "Tue, 13 May 2014 16:53:20 GMT")));
+        assertFalse(v.matches(header("if-modified-since", "Tue, 13 May 2014 16:53:19 GMT")));
+        assertFalse(v.matches(header("if-modified-since", "garbage")));
+    }
+
+    @Test
+    public void testIfNoneMatchTakesPrecedence() {
+        Validator v = new Validator("\"abc\"", 1400000000000l);
+
+        Properties h = header("if-none-match", "\"foo\"");
+        h.setProperty("if-modified-since", "Tue, 13 May 2014 16:53:20 GMT");
+        assertFalse(v.matches(h));
+    }
+
+    @Test
+    public void testMatchesCompressed() {
+        Validator v = new Validator("\"abc\"", -1);
+        assertTrue(v.matches(header("if-none-match", "\"abc-gz\"")));
+        assertTrue(v.matches(header("if-none-match", "W/\"abc-deflate\"")));
+        assertFalse(v.matches(header("if-none-match", "\"abd-gz\"")));
+    }
+
+    @Test
+    public void testContent() {
+        assertEquals(Validator.of("foo".getBytes()).etag(), Validator.of("foo".getBytes()).etag());
+        assertFalse(Validator.of("foo".getBytes()).etag().equals(Validator.of("bar".getBytes()).etag()));
+    }
+
+    @Test
+    public void testNotModified() {
+        NanoHTTPD.Response r = new Validator("\"abc\"", 1400000000000l).notModified();
+        assertEquals(NanoHTTPD.HTTP_NOTMODIFIED, r.status);
+        assertNull(r.data);
+        assertEquals("\"abc\"", r.header.getProperty("ETag"));
+        assertEquals("Tue, 13 May 2014 16:53:20 GMT", r.header.getProperty("Last-Modified"));
+    }
+
+    Properties header(String key, String value) {
+        Properties h = new Properties();
+        h.setProperty(key, value);
+        return h;
+    }
+}
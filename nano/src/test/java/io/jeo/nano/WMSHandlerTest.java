@@ -36,6 +36,7 @@ import io.jeo.vector.Schema;
 import io.jeo.vector.SchemaBuilder;
 import io.jeo.filter.Filter;
 import io.jeo.map.Style;
+import io.jeo.render.RenderListener;
 import io.jeo.render.RendererFactory;
 import io.jeo.proj.Proj;
 import static org.junit.Assert.assertEquals;
@@ -75,7 +76,10 @@ public class WMSHandlerTest extends HandlerTestSupport {
     }
 
     private String wmsResponse(String... kv) throws Exception {
-        NanoHTTPD.Response resp = handler.handle(request(kv), server == null ? null : server.server);
+        return read(handler.handle(request(kv), server == null ? null : server.server));
+    }
+
+    private String read(NanoHTTPD.Response resp) throws IOException {
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         byte[] buf = new byte[1024];
         int r = 0;
@@ -105,7 +109,14 @@ public class WMSHandlerTest extends HandlerTestSupport {
     }
 
     void makeTestData() throws Exception {
+        makeTestData(null);
+    }
+
+    void makeTestData(Long registryVersion) throws Exception {
         server = MockServer.create();
+        if (registryVersion != null) {
+            server.withRegistryVersion(registryVersion);
+        }
         server.withPngRenderer();
         Schema s1 = new SchemaBuilder("s1").field("geom", Point.class, "EPSG:4326").schema();
         Schema s2 = new SchemaBuilder("s2").field("geom", LineString.class, "EPSG:3857").schema();
@@ -152,6 +163,29 @@ public class WMSHandlerTest extends HandlerTestSupport {
         assertEquals("image/png", xpath.evaluate("//GetMap/Format/text()", dom));
     }
 
+    @Test
+    public void testCapabilitiesCached() throws Exception {
+        makeTestData(1);
+        CapabilitiesCache cache = new CapabilitiesCache();
+        handler.setCapabilitiesCache(cache);
+
+        NanoHTTPD.Response r1 = handler.handle(request("request", "getcapabilities"), server.server);
+        assertEquals("MISS", r1.header.getProperty("X-Cache"));
+        NanoHTTPD.Response r2 = handler.handle(request("request", "getcapabilities"), server.server);
+        assertEquals("HIT", r2.header.getProperty("X-Cache"));
+        assertEquals(read(r1), read(r2));
+
+        assertEquals(1, cache.hits());
+        assertEquals(4, cache.layerMisses());
+
+        // dropping a layer rebuilds the document, computing only the metadata of that layer
+        cache.invalidateLayer("ws", "ds1");
+        NanoHTTPD.Response r3 = handler.handle(request("request", "getcapabilities"), server.server);
+        assertEquals("MISS", r3.header.getProperty("X-Cache"));
+        assertEquals(read(r1), read(r3));
+        assertEquals(5, cache.layerMisses());
+    }
+
     @Test
     public void testGetMap() throws Exception {
         makeTestData();
@@ -195,7 +229,7 @@ public class WMSHandlerTest extends HandlerTestSupport {
         @Override
             NanoHTTPD.Response render(RendererFactory f, List<Dataset> dataSet, List<Style> styles,
                 CoordinateReferenceSystem crs, Bounds bbox, int width, int height,
-                String format, List<Filter> filters) throws IOException {
+                String format, List<Filter> filters, RenderListener listener) throws IOException {
                 this.dataSet = dataSet;
                 this.styles = styles;
                 this.crs = crs;
@@ -204,7 +238,8 @@ public class WMSHandlerTest extends HandlerTestSupport {
                 this.height = height;
                 this.format = format;
                 this.filters = filters;
-                return super.render(f, dataSet, styles, crs, bbox, width, height, format, filters);
+                return super.render(f, dataSet, styles, crs, bbox, width, height, format, filters,
+                    listener);
             }
     }
 }
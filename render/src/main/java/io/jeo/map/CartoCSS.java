@@ -132,6 +132,12 @@ public interface CartoCSS {
     static final String RASTER_SCALING = "raster-scaling";
     static final String RASTER_MESH_SIZE = "raster-mesh-size";
     static final String RASTER_COMP_OP = "raster-comp-op";
+
+    // heatmap (jeo extension)
+    static final String HEATMAP_RADIUS = "heatmap-radius";
+    static final String HEATMAP_WEIGHT = "heatmap-weight";
+    static final String HEATMAP_OPACITY = "heatmap-opacity";
+    static final String HEATMAP_MAX = "heatmap-max";
     
     // point
     static final String POINT_FILE = "point-file";
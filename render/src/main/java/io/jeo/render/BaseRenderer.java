@@ -19,9 +19,18 @@ import static io.jeo.map.CartoCSS.*;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.jeo.data.Cursor;
 import io.jeo.data.Dataset;
 import io.jeo.geom.Bounds;
 import io.jeo.map.Colorizer;
@@ -39,7 +48,10 @@ import io.jeo.raster.Raster;
 import io.jeo.raster.RasterDataset;
 import io.jeo.raster.RasterQuery;
 import io.jeo.raster.Stats;
+import io.jeo.tile.Tile;
+import io.jeo.tile.TileCover;
 import io.jeo.tile.TileDataset;
+import io.jeo.tile.TilePyramid;
 import io.jeo.util.Function;
 import io.jeo.vector.Feature;
 import io.jeo.filter.Filter;
@@ -53,6 +65,7 @@ import org.osgeo.proj4j.CoordinateReferenceSystem;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.Geometry;
 
 /**
@@ -63,9 +76,39 @@ public abstract class BaseRenderer implements Renderer {
 
     static final Logger LOG = LoggerFactory.getLogger(BaseRenderer.class);
 
+    /**
+     * Pool used to decode tile images, shared by all renderers.
+     */
+    static final ExecutorService TILE_DECODERS = Executors.newFixedThreadPool(
+        Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+            final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "jeo-tile-decoder-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+    /**
+     * Rendering option specifying a {@link RenderListener} notified as the map is rendered.
+     */
+    public static final String LISTENER = "listener";
+
     protected View view;
     protected java.util.Map<?, Object> opts;
 
+    /**
+     * Listener notified as the map is rendered, <tt>null</tt> if none.
+     */
+    protected RenderListener listener;
+
+    /**
+     * The layer being rendered.
+     */
+    protected Layer layer;
+
     protected LabelIndex labels = new LabelIndex();
     protected Labeller labeller;
 
@@ -75,6 +118,9 @@ public abstract class BaseRenderer implements Renderer {
         this.view = view;
         this.opts = opts;
 
+        Object l = opts != null ? opts.get(LISTENER) : null;
+        this.listener = l instanceof RenderListener ? (RenderListener) l : null;
+
         this.labeller = createLabeller();
     }
 
@@ -93,6 +139,9 @@ public abstract class BaseRenderer implements Renderer {
 
         LOG.debug("Rendering map at " + view.getBounds());
         onStart();
+        if (listener != null) {
+            listener.onStart(view);
+        }
 
         // background
         renderBackground();
@@ -101,6 +150,7 @@ public abstract class BaseRenderer implements Renderer {
                 continue;
             }
 
+            layer = l;
             onLayerStart(l);
 
             Dataset data = l.getData();
@@ -117,7 +167,7 @@ public abstract class BaseRenderer implements Renderer {
                     render((RasterDataset)data, ruleList);
                 }
                 else if (data instanceof TileDataset) {
-                    render((TileDataset)data, rules);
+                    render((TileDataset)data, ruleList);
                 }
             }
 
@@ -129,6 +179,9 @@ public abstract class BaseRenderer implements Renderer {
 
         LOG.debug("Rendering complete");
         onFinish();
+        if (listener != null) {
+            listener.onFinish();
+        }
     }
 
     void renderBackground() throws IOException {
@@ -172,12 +225,55 @@ public abstract class BaseRenderer implements Renderer {
             throw new UnsupportedOperationException("renderer does not render vector data");
         }
 
-        // build up the data query
+        // rules setting a heatmap radius render a density surface, the others render as usual
+        RuleList heat = new RuleList();
+        RuleList plain = new RuleList();
+        for (Rule r : rules) {
+            (r.has(HEATMAP_RADIUS) ? heat : plain).add(r);
+        }
+
+        if (!heat.isEmpty()) {
+            Rule rule = heat.collapse();
+
+            // points up to a radius outside the view still spread onto it
+            int radius = rule.number(null, HEATMAP_RADIUS, 10);
+            renderHeatmap(data, query(data, heat, filter, radius), heat, rule);
+            if (plain.isEmpty()) {
+                return;
+            }
+        }
+
+        for (Feature f : data.read(query(data, plain, filter, 0))) {
+            RuleList rs = plain.match(f);
+            if (rs.isEmpty()) {
+                continue;
+            }
+
+            Rule r = rs.collapse();
+            if (r != null) {
+                draw(f, r);
+            }
+        }
+    }
+
+    /**
+     * Builds the query of the features of a vector layer drawn with a set of rules.
+     *
+     * @param buffer Number of pixels to grow the view bounds by.
+     */
+    VectorQuery query(VectorDataset data, RuleList rules, Filter<Feature> filter, float buffer)
+        throws IOException {
         VectorQuery q = new VectorQuery();
 
         // bounds, we may have to reproject it
-        Bounds bbox = reproject(q, view.getBounds(), data);
-        
+        Bounds bbox = view.getBounds();
+        if (buffer > 0) {
+            bbox = new Bounds(bbox);
+            bbox.expandBy(buffer * bbox.getWidth() / view.getWidth(),
+                buffer * bbox.getHeight() / view.getHeight());
+        }
+        bbox = reproject(q, bbox, data);
+
         q.bounds(bbox);
         if (filter != null) {
             q.filter(filter);
@@ -193,18 +289,96 @@ public abstract class BaseRenderer implements Renderer {
 
         // grab any specified by the style
         q.appendFields(rules.fields());
+        return q;
+    }
 
-        for (Feature f : data.read(q)) {
-            RuleList rs = rules.match(f);
-            if (rs.isEmpty()) {
-                continue;
+    /**
+     * Renders a vector layer as a point density surface.
+     * <p>
+     * Features are streamed in a single pass into a {@link Heatmap} grid the size of the view.
+     * Point geometries contribute each of their coordinates, other geometries contribute their
+     * centroid. The resulting surface is colored against the <tt>heatmap-max</tt> density, one
+     * by default, and drawn as a raster.
+     * </p>
+     */
+    void renderHeatmap(VectorDataset data, VectorQuery q, RuleList rules, Rule rule)
+        throws IOException {
+        if (!canRenderRasters()) {
+            throw new UnsupportedOperationException("renderer does not render raster data");
+        }
+
+        Heatmap heat = new Heatmap(
+            view.getWidth(), view.getHeight(), rule.number(null, HEATMAP_RADIUS, 10));
+
+        ViewTransformFilter tx = toScreenTransform();
+        Coordinate c = new Coordinate();
+
+        Cursor<Feature> cursor = data.read(q);
+        try {
+            for (Feature f : cursor) {
+                Geometry g = f.geometry();
+                if (g == null || g.isEmpty()) {
+                    continue;
+                }
+
+                RuleList rs = rules.match(f);
+                if (rs.isEmpty()) {
+                    continue;
+                }
+
+                float weight = weight(rs, f);
+                if (weight == 0f) {
+                    continue;
+                }
+
+                switch(Geom.Type.from(g)) {
+                case POINT:
+                case MULTIPOINT:
+                    for (Coordinate p : g.getCoordinates()) {
+                        c.x = p.x;
+                        c.y = p.y;
+                        tx.filter(c);
+                        heat.add(c.x, c.y, weight);
+                    }
+                    break;
+                default:
+                    Coordinate centroid = g.getCentroid().getCoordinate();
+                    if (centroid != null) {
+                        c.x = centroid.x;
+                        c.y = centroid.y;
+                        tx.filter(c);
+                        heat.add(c.x, c.y, weight);
+                    }
+                }
             }
+        }
+        finally {
+            cursor.close();
+        }
 
-            Rule r = rules.match(f).collapse();
-            if (r != null) {
-                draw(f, r);
+        heat.blur();
+
+        Colorizer colorizer = rule.has("raster-colorizer-stops") ?
+            Colorizer.decode(rule) : Heatmap.DEFAULT_COLORIZER;
+        Rect pos = view.window();
+        RasterTarget target = createRasterTarget(pos, rule);
+        heat.colorize(colorizer, rule.number(null, HEATMAP_OPACITY, 1f),
+            rule.number(null, HEATMAP_MAX, 1f), target);
+        drawRaster(target, pos, rule);
+    }
+
+    /**
+     * The heatmap weight of a feature, from the last matching rule that sets it as collapsing
+     * the rules would, without collapsing them for every feature.
+     */
+    static float weight(RuleList matched, Feature f) {
+        for (int i = matched.size() - 1; i >= 0; i--) {
+            Rule r = matched.get(i);
+            if (r.has(HEATMAP_WEIGHT)) {
+                return r.number(f, HEATMAP_WEIGHT, 1f);
             }
         }
+        return 1f;
     }
 
     void render(RasterDataset data, RuleList rules) throws IOException {
@@ -225,6 +399,10 @@ public abstract class BaseRenderer implements Renderer {
             }
         }
         Rect pos = view.mapToWindow(bbox);
+        if (pos == null || pos.width() <= 0 || pos.height() <= 0) {
+            // raster does not intersect the view
+            return;
+        }
         q.size(pos.width(), pos.height());
 
         Rule rule = rules.collapse();
@@ -318,48 +496,213 @@ public abstract class BaseRenderer implements Renderer {
                 };
             }
 
-            drawRasterRGBA(convertToRGBA(raw, colormap, band, rule), pos, rule);
+            RasterTarget target = createRasterTarget(pos, rule);
+            colorize(raw, colormap, band, rule, target);
+            drawRaster(target, pos, rule);
         }
         else {
-            // apply opacity and draw directly
-            float opacity = rule.number(null, "raster-opacity", 1.0f);
-            byte alpha = (byte)(opacity*255);
-
-            for (int i = 3; i < raw.capacity(); i+= 4) {
-                raw.put(i, alpha);
-            }
-            raw.rewind();
-            drawRasterRGBA(raw, pos, rule);
+            // packed rgb pixels, apply opacity while copying into the target
+            RasterTarget target = createRasterTarget(pos, rule);
+            copyRGB(raw, rule, target);
+            drawRaster(target, pos, rule);
         }
     }
 
-    ByteBuffer convertToRGBA(ByteBuffer raw, Function<Double,RGB> colormap, Band band, Rule rule) throws IOException {
-        byte alpha = (byte)(255*rule.number(null, "raster-opacity", 1f));
-        int n = view.getWidth() * view.getHeight();
+    /**
+     * Maps the values of a single band raster through a color map into a raster target.
+     */
+    void colorize(ByteBuffer raw, Function<Double,RGB> colormap, Band band, Rule rule,
+        RasterTarget target) throws IOException {
+        int alpha = (int)(255*rule.number(null, "raster-opacity", 1f)) & 0xff;
 
-        ByteBuffer rgba = ByteBuffer.allocate(n*4);
         DataBuffer<Number> db = DataBuffer.create(raw, band.datatype());
-
         NoData nodata = NoData.create(band.nodata());
 
-        for (int i = 0; i < db.size(); i++) {
-            Double val = nodata.valueOrNull(db.get().doubleValue());
-            RGB color = colormap.apply(val);
-            rgba.put((byte) color.getRed());
-            rgba.put((byte) color.getGreen());
-            rgba.put((byte) color.getBlue());
-            rgba.put(alpha);
+        int n = db.size();
+        int i = 0;
+        for (int y = 0; y < target.height() && i < n; y++) {
+            for (int x = 0; x < target.width() && i < n; x++, i++) {
+                Double val = nodata.valueOrNull(db.get().doubleValue());
+                RGB color = colormap.apply(val);
+                target.set(x, y, (alpha << 24) | ((color.getRed() & 0xff) << 16)
+                    | ((color.getGreen() & 0xff) << 8) | (color.getBlue() & 0xff));
+            }
         }
+    }
 
-        rgba.flip();
-        return rgba;
+    /**
+     * Copies packed pixels with red, green and blue in the first three bytes into a raster
+     * target, replacing the fourth byte with the raster opacity.
+     */
+    void copyRGB(ByteBuffer raw, Rule rule, RasterTarget target) {
+        int alpha = (int)(rule.number(null, "raster-opacity", 1.0f)*255) & 0xff;
+
+        int n = raw.limit() / 4;
+        int i = 0;
+        for (int y = 0; y < target.height() && i < n; y++) {
+            for (int x = 0; x < target.width() && i < n; x++, i++) {
+                int j = i * 4;
+                target.set(x, y, (alpha << 24) | ((raw.get(j) & 0xff) << 16)
+                    | ((raw.get(j + 1) & 0xff) << 8) | (raw.get(j + 2) & 0xff));
+            }
+        }
     }
 
+    /**
+     * Renders a tile layer.
+     * <p>
+     * The view is covered with tiles from the pyramid grid that best matches the view
+     * resolution. Tiles are looked up in the {@link #tileCache()} first, missing tiles are read
+     * from the dataset and decoded in parallel. The tiles are then resampled onto a single
+     * image the size of the view which is drawn as a raster.
+     * </p>
+     */
     void render(TileDataset data, RuleList rules) throws IOException {
         if (!canRenderTiles()) {
-            throw new UnsupportedOperationException("renderer does not render vector data");
+            throw new UnsupportedOperationException("renderer does not render tile data");
+        }
+
+        Rule rule = rules.collapse();
+
+        TilePyramid pyr = data.pyramid();
+        Bounds bbox = reproject(null, view.getBounds(), data);
+
+        TileCover cover = pyr.cover(bbox, view.getWidth(), view.getHeight());
+        if (cover == null) {
+            LOG.debug("No tiles cover " + bbox + " for layer " + data.name());
+            return;
+        }
+
+        boolean reproject = view.getCRS() != null && data.crs() != null
+            && !Proj.equal(view.getCRS(), data.crs());
+        boolean bilinear = !"near".equalsIgnoreCase(rule.string(null, "raster-scaling", "bilinear"));
+        float opacity = rule.number(null, "raster-opacity", 1f);
+
+        Rect pos = view.window();
+        RasterTarget target = createRasterTarget(pos, rule);
+        TileCache cache = tileCache();
+
+        List<Tile> pending = new ArrayList<Tile>();
+        List<Future<TileCache.Image>> decoded = new ArrayList<Future<TileCache.Image>>();
+
+        // the dataset version is looked up once for all tiles
+        Object id = TileCache.id(data);
+
+        int z = cover.grid().z();
+        for (int x = cover.x0(); x <= cover.x1(); x++) {
+            for (int y = cover.y0(); y <= cover.y1(); y++) {
+                TileCache.Image img = cache.get(new TileCache.Key(id, z, x, y));
+                if (img != null) {
+                    composite(img, tileBounds(pyr, new Tile(z, x, y, null, null), data, reproject),
+                        target, bilinear, opacity);
+                    continue;
+                }
+
+                // reads happen on this thread, datasets are not required to be thread safe
+                final Tile t = data.read(z, x, y);
+                if (t == null) {
+                    continue;
+                }
+
+                pending.add(t);
+                decoded.add(TILE_DECODERS.submit(new Callable<TileCache.Image>() {
+                    @Override
+                    public TileCache.Image call() throws Exception {
+                        return TileCache.decode(t);
+                    }
+                }));
+            }
+        }
+
+        for (int i = 0; i < pending.size(); i++) {
+            Tile t = pending.get(i);
+            TileCache.Image img;
+            try {
+                img = decoded.get(i).get();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted decoding tiles", e);
+            }
+            catch (ExecutionException e) {
+                throw new IOException("Error decoding tile " + t, e.getCause());
+            }
+
+            if (img == null) {
+                LOG.debug("Unable to decode tile " + t + " of type " + t.mimeType());
+                continue;
+            }
+
+            cache.put(new TileCache.Key(id, t.z(), t.x(), t.y()), img);
+            composite(img, tileBounds(pyr, t, data, reproject), target, bilinear, opacity);
+        }
+
+        drawRaster(target, pos, rule);
+    }
+
+    /**
+     * The cache of decoded tiles used when rendering tile layers.
+     */
+    protected TileCache tileCache() {
+        return TileCache.DEFAULT;
+    }
+
+    Bounds tileBounds(TilePyramid pyr, Tile t, Dataset data, boolean reproject) {
+        Bounds b = pyr.bounds(t);
+        if (reproject) {
+            b = Proj.reproject(b, data.crs(), view.getCRS());
+        }
+        return b;
+    }
+
+    /**
+     * Resamples a tile image onto a raster target the size of the view.
+     *
+     * @param img The decoded tile.
+     * @param bbox The world bounds of the tile.
+     * @param target The target to write to.
+     */
+    void composite(TileCache.Image img, Bounds bbox, RasterTarget target, boolean bilinear,
+        float opacity) {
+        Bounds vb = view.getBounds();
+        int width = view.getWidth();
+        int height = view.getHeight();
+
+        double sx = width / vb.getWidth();
+        double sy = height / vb.getHeight();
+
+        // tile extent in screen space
+        double x0 = (bbox.getMinX() - vb.getMinX()) * sx;
+        double x1 = (bbox.getMaxX() - vb.getMinX()) * sx;
+        double y0 = (vb.getMaxY() - bbox.getMaxY()) * sy;
+        double y1 = (vb.getMaxY() - bbox.getMinY()) * sy;
+        if (x1 <= x0 || y1 <= y0) {
+            return;
+        }
+
+        // screen pixels whose centers fall inside the tile
+        int px0 = Math.max(0, (int) Math.ceil(x0 - 0.5));
+        int px1 = Math.min(width, (int) Math.ceil(x1 - 0.5));
+        int py0 = Math.max(0, (int) Math.ceil(y0 - 0.5));
+        int py1 = Math.min(height, (int) Math.ceil(y1 - 0.5));
+
+        double fx = img.width() / (x1 - x0);
+        double fy = img.height() / (y1 - y0);
+
+        for (int py = py0; py < py1; py++) {
+            double v = (py + 0.5 - y0) * fy - 0.5;
+            for (int px = px0; px < px1; px++) {
+                double u = (px + 0.5 - x0) * fx - 0.5;
+                int argb = bilinear ? img.bilinear(u, v) : img.nearest(u, v);
+
+                int a = Math.round((argb >>> 24) * opacity);
+                if (a == 0) {
+                    continue;
+                }
+
+                target.set(px, py, (a << 24) | (argb & 0xffffff));
+            }
         }
-        throw new UnsupportedOperationException("TODO: implement");
     }
 
     void renderLabels() throws IOException {
@@ -382,6 +725,10 @@ public abstract class BaseRenderer implements Renderer {
             return;
         }
 
+        if (listener != null) {
+            listener.onFeature(layer, f, rule);
+        }
+
         switch(Geom.Type.from(g)) {
         case POINT:
         case MULTIPOINT:
@@ -504,6 +851,36 @@ public abstract class BaseRenderer implements Renderer {
         throw new UnsupportedOperationException();
     }
 
+    /**
+     * Creates the target a raster is colorized into before being drawn with
+     * {@link #drawRaster(RasterTarget, Rect, Rule)}.
+     * <p>
+     * Subclasses should override this method, along with
+     * {@link #drawRaster(RasterTarget, Rect, Rule)}, to hand out a target backed directly by
+     * the pixels they draw, avoiding intermediate copies. The default implementation allocates
+     * a new pixel array.
+     * </p>
+     * @param pos The position in the view/window the raster will be drawn at.
+     * @param rule The matching styling rule for the raster.
+     */
+    protected RasterTarget createRasterTarget(Rect pos, Rule rule) throws IOException {
+        return new RasterTarget(pos.width(), pos.height());
+    }
+
+    /**
+     * Draws a raster target obtained from {@link #createRasterTarget(Rect, Rule)}.
+     * <p>
+     * The default implementation converts the target to a buffer and delegates to
+     * {@link #drawRasterRGBA(ByteBuffer, Rect, Rule)}.
+     * </p>
+     * @param target The target holding the raster pixels.
+     * @param pos The position in the view/window to draw the raster at.
+     * @param rule The matching styling rule for the raster.
+     */
+    protected void drawRaster(RasterTarget target, Rect pos, Rule rule) throws IOException {
+        drawRasterRGBA(target.toRGBA(), pos, rule);
+    }
+
     /**
      * Draws a grayscale raster.
      * <p>
@@ -525,7 +902,7 @@ public abstract class BaseRenderer implements Renderer {
      * This method must be implemented by subclasses if {@link #canRenderRasters()}
      * returns true.
      * </p>
-     * @param raster A 4 band buffer in the order alpha, blue, green, red
+     * @param raster A 4 band buffer in the order red, green, blue, alpha
      * @param pos The position in the view/window to draw the raster at.
      * @param rule The matching styling rule for the raster.
      */
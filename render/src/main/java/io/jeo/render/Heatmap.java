@@ -0,0 +1,298 @@
+/* Copyright 2014 The jeo project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jeo.render;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import io.jeo.map.Colorizer;
+import io.jeo.map.RGB;
+
+/**
+ * Point density surface accumulated at screen resolution.
+ * <p>
+ * Points are accumulated into a single <tt>float</tt> grid the size of the view, so memory use
+ * is proportional to the image rather than the number of points. The grid extends a kernel
+ * radius past each edge of the view so that points just outside of it, such as those across the
+ * edge of a tile, still spread onto it. Once all points have been added the grid is smoothed
+ * with a separable gaussian kernel and mapped to colors with a {@link Colorizer} whose stops are
+ * expressed as normalized density values in the range <tt>[0,1]</tt>.
+ * </p>
+ * <p>
+ * Densities are normalized against a fixed maximum rather than the maximum of the view, so that
+ * adjacent tiles share the same color scale. The maximum is expressed in point weights, a lone
+ * point whose weight is the maximum reaching the top of the color ramp at its center.
+ * </p>
+ * <p>
+ * Usage:
+ * <pre><code>
+ * Heatmap heat = new Heatmap(256, 256, 10);
+ * heat.add(12.3, 45.6, 1f);
+ * ...
+ * heat.blur();
+ * heat.colorize(Heatmap.DEFAULT_COLORIZER, 1f, 1f, target);
+ * </code></pre>
+ * </p>
+ */
+public class Heatmap {
+
+    /**
+     * Default color ramp, blue through green and yellow to red.
+     */
+    public static final Colorizer DEFAULT_COLORIZER = Colorizer.build()
+        .stop(0d, RGB.blue, Colorizer.Mode.LINEAR)
+        .stop(0.5, RGB.lime, Colorizer.Mode.LINEAR)
+        .stop(0.75, RGB.yellow, Colorizer.Mode.LINEAR)
+        .stop(1d, RGB.red, Colorizer.Mode.LINEAR)
+        .colorizer();
+
+    /**
+     * Number of entries in the color lookup table.
+     */
+    static final int LUT_SIZE = 256;
+
+    final int width;
+    final int height;
+    final int radius;
+
+    /**
+     * The grid, the view grown by the radius on each side.
+     */
+    final int gridWidth;
+    final int gridHeight;
+    final float[] grid;
+
+    /**
+     * Creates a new heatmap.
+     *
+     * @param width The width of the view, in pixels.
+     * @param height The height of the view, in pixels.
+     * @param radius The radius of the smoothing kernel, in pixels.
+     */
+    public Heatmap(int width, int height, int radius) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("heatmap dimensions must be positive");
+        }
+        this.width = width;
+        this.height = height;
+        this.radius = Math.max(0, radius);
+        this.gridWidth = width + 2 * this.radius;
+        this.gridHeight = height + 2 * this.radius;
+        this.grid = new float[gridWidth * gridHeight];
+    }
+
+    /**
+     * The width of the view.
+     */
+    public int width() {
+        return width;
+    }
+
+    /**
+     * The height of the view.
+     */
+    public int height() {
+        return height;
+    }
+
+    /**
+     * The radius of the smoothing kernel.
+     */
+    public int radius() {
+        return radius;
+    }
+
+    /**
+     * The accumulated value at the specified pixel of the view.
+     */
+    public float get(int x, int y) {
+        return grid[(y + radius) * gridWidth + x + radius];
+    }
+
+    /**
+     * Accumulates a weighted point.
+     * <p>
+     * Points further than the radius outside of the view are ignored.
+     * </p>
+     * @param x The x ordinate in screen space.
+     * @param y The y ordinate in screen space.
+     * @param weight The weight of the point.
+     */
+    public void add(double x, double y, float weight) {
+        int i = (int) Math.floor(x) + radius;
+        int j = (int) Math.floor(y) + radius;
+        if (i < 0 || i >= gridWidth || j < 0 || j >= gridHeight) {
+            return;
+        }
+        grid[j * gridWidth + i] += weight;
+    }
+
+    /**
+     * Smooths the accumulated grid with a gaussian kernel.
+     * <p>
+     * The kernel is applied separably, first along rows and then along columns, which makes the
+     * cost linear in the kernel radius rather than quadratic.
+     * </p>
+     */
+    public void blur() {
+        if (radius == 0) {
+            return;
+        }
+
+        float[] kernel = kernel(radius);
+        float[] tmp = new float[grid.length];
+
+        // horizontal pass, grid -> tmp
+        for (int y = 0; y < gridHeight; y++) {
+            int row = y * gridWidth;
+            for (int x = 0; x < gridWidth; x++) {
+                float v = grid[row + x];
+                if (v == 0f) {
+                    continue;
+                }
+                int k0 = Math.max(-radius, -x);
+                int k1 = Math.min(radius, gridWidth - 1 - x);
+                for (int k = k0; k <= k1; k++) {
+                    tmp[row + x + k] += v * kernel[k + radius];
+                }
+            }
+        }
+
+        // vertical pass, tmp -> grid
+        Arrays.fill(grid, 0f);
+        for (int y = 0; y < gridHeight; y++) {
+            int k0 = Math.max(-radius, -y);
+            int k1 = Math.min(radius, gridHeight - 1 - y);
+            int row = y * gridWidth;
+            for (int x = 0; x < gridWidth; x++) {
+                float v = tmp[row + x];
+                if (v == 0f) {
+                    continue;
+                }
+                for (int k = k0; k <= k1; k++) {
+                    grid[row + k * gridWidth + x] += v * kernel[k + radius];
+                }
+            }
+        }
+    }
+
+    /**
+     * The maximum accumulated value in the view.
+     */
+    public float max() {
+        float max = 0f;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                max = Math.max(max, get(x, y));
+            }
+        }
+        return max;
+    }
+
+    /**
+     * The value at the center of a lone point of unit weight once blurred, the density
+     * maximums are expressed relative to.
+     */
+    public float peak() {
+        float k = kernel(radius)[radius];
+        return k * k;
+    }
+
+    /**
+     * Maps the view to colors.
+     * <p>
+     * Values are normalized against the maximum before being mapped through the colorizer.
+     * Pixels with no density are left fully transparent.
+     * </p>
+     * @param colorizer Maps normalized density values to colors.
+     * @param opacity Opacity multiplied into the alpha of each color.
+     * @param max The density mapped to the top of the color ramp, in point weights.
+     *
+     * @return A 4 band buffer in the order red, green, blue, alpha.
+     */
+    public ByteBuffer colorize(Colorizer colorizer, float opacity, float max) {
+        RasterTarget target = new RasterTarget(width, height);
+        colorize(colorizer, opacity, max, target);
+        return target.toRGBA();
+    }
+
+    /**
+     * Maps the view to colors, writing them directly into a raster target.
+     * <p>
+     * Values are normalized against the maximum before being mapped through the colorizer.
+     * Pixels with no density are set fully transparent.
+     * </p>
+     * @param colorizer Maps normalized density values to colors.
+     * @param opacity Opacity multiplied into the alpha of each color.
+     * @param max The density mapped to the top of the color ramp, in point weights.
+     * @param target The target to write to, at least as large as the view.
+     */
+    public void colorize(Colorizer colorizer, float opacity, float max, RasterTarget target) {
+        if (target.width() < width || target.height() < height) {
+            throw new IllegalArgumentException("raster target smaller than heatmap");
+        }
+        if (max <= 0f) {
+            throw new IllegalArgumentException("heatmap maximum must be positive");
+        }
+
+        int[] lut = lookup(colorizer, opacity);
+        float scale = (LUT_SIZE - 1) / (max * peak());
+
+        for (int y = 0; y < height; y++) {
+            int row = (y + radius) * gridWidth + radius;
+            for (int x = 0; x < width; x++) {
+                float v = grid[row + x];
+                target.set(x, y, v <= 0f ? 0 : lut[Math.min(LUT_SIZE - 1, (int) (v * scale))]);
+            }
+        }
+    }
+
+    /**
+     * Builds a lookup table of packed argb values, avoiding a colorizer lookup per pixel.
+     */
+    int[] lookup(Colorizer colorizer, float opacity) {
+        int[] lut = new int[LUT_SIZE];
+        for (int i = 0; i < LUT_SIZE; i++) {
+            RGB c = colorizer.map(i / (double) (LUT_SIZE - 1));
+            int a = Math.round(c.getAlpha() * opacity);
+            lut[i] = ((a & 0xff) << 24) | (c.getRed() << 16) | (c.getGreen() << 8) | c.getBlue();
+        }
+        return lut;
+    }
+
+    /**
+     * Computes a normalized one dimensional gaussian kernel of size <tt>2*radius+1</tt>.
+     * <p>
+     * The standard deviation is taken to be a third of the radius so that the kernel falls off
+     * to near zero at its edges.
+     * </p>
+     */
+    static float[] kernel(int radius) {
+        float[] k = new float[2 * radius + 1];
+        double sigma = Math.max(radius / 3d, 0.5);
+        double s2 = 2 * sigma * sigma;
+
+        double sum = 0;
+        for (int i = -radius; i <= radius; i++) {
+            double v = Math.exp(-(i * i) / s2);
+            k[i + radius] = (float) v;
+            sum += v;
+        }
+        for (int i = 0; i < k.length; i++) {
+            k[i] /= sum;
+        }
+        return k;
+    }
+}
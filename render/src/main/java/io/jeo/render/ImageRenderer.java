@@ -0,0 +1,35 @@
+/* Copyright 2014 The jeo project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jeo.render;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+/**
+ * Renderer drawing maps into an image, which can be rendered without being encoded.
+ * <p>
+ * Callers cutting a map into pieces, such as the tiles of a metatile, render it with
+ * {@link #renderImage()} rather than decoding the output of {@link #render(java.io.OutputStream)}.
+ * </p>
+ */
+public interface ImageRenderer extends Renderer {
+
+    /**
+     * Renders the map without encoding it.
+     *
+     * @return The image the map was drawn into, the size of the view.
+     */
+    BufferedImage renderImage() throws IOException;
+}
@@ -0,0 +1,115 @@
+/* Copyright 2014 The jeo project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jeo.render;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Writable block of pixels that rasters are drawn into.
+ * <p>
+ * A target is handed out by a renderer through {@link BaseRenderer#createRasterTarget} and
+ * written to directly as raster data is colorized, so that a raster layer costs a single pass
+ * over its pixels. Pixels are packed non pre-multiplied <tt>argb</tt> integers, the layout of
+ * {@link java.awt.image.BufferedImage#TYPE_INT_ARGB}, which allows a target to be a view onto
+ * the pixel array of an image.
+ * </p>
+ * <p>
+ * The pixel at <tt>(x,y)</tt> is stored at index <tt>offset + y*scanline + x</tt> of the pixel
+ * array.
+ * </p>
+ */
+public class RasterTarget {
+
+    final int width;
+    final int height;
+    final int[] pixels;
+    final int offset;
+    final int scanline;
+
+    /**
+     * Creates a new target backed by a newly allocated pixel array.
+     */
+    public RasterTarget(int width, int height) {
+        this(new int[width * height], 0, width, width, height);
+    }
+
+    /**
+     * Creates a new target backed by an existing pixel array.
+     *
+     * @param pixels The pixel array.
+     * @param offset Index of the first pixel of the target in the array.
+     * @param scanline Distance between the start of two rows in the array.
+     * @param width The width of the target.
+     * @param height The height of the target.
+     */
+    public RasterTarget(int[] pixels, int offset, int scanline, int width, int height) {
+        if (offset + (height - 1) * scanline + width > pixels.length) {
+            throw new IllegalArgumentException("pixel array too small for target");
+        }
+        this.pixels = pixels;
+        this.offset = offset;
+        this.scanline = scanline;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * The width of the target.
+     */
+    public int width() {
+        return width;
+    }
+
+    /**
+     * The height of the target.
+     */
+    public int height() {
+        return height;
+    }
+
+    /**
+     * Returns the packed argb pixel at the specified location.
+     */
+    public int get(int x, int y) {
+        return pixels[offset + y * scanline + x];
+    }
+
+    /**
+     * Sets the pixel at the specified location to a packed argb value.
+     */
+    public void set(int x, int y, int argb) {
+        pixels[offset + y * scanline + x] = argb;
+    }
+
+    /**
+     * Copies the target into a 4 band buffer in the order red, green, blue, alpha.
+     * <p>
+     * This method exists for renderers that draw rasters with
+     * {@link BaseRenderer#drawRasterRGBA} and incurs a copy.
+     * </p>
+     */
+    public ByteBuffer toRGBA() {
+        ByteBuffer rgba = ByteBuffer.allocate(width * height * 4);
+        for (int y = 0; y < height; y++) {
+            int row = offset + y * scanline;
+            for (int x = 0; x < width; x++) {
+                int argb = pixels[row + x];
+                rgba.putInt((argb << 8) | (argb >>> 24));
+            }
+        }
+        rgba.flip();
+        return rgba;
+    }
+}
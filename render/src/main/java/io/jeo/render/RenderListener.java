@@ -0,0 +1,55 @@
+/* Copyright 2014 The jeo project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jeo.render;
+
+import io.jeo.map.Layer;
+import io.jeo.map.Rule;
+import io.jeo.map.View;
+import io.jeo.vector.Feature;
+
+/**
+ * Receives callbacks as a {@link BaseRenderer} renders a map, for instance to record where
+ * features were drawn.
+ * <p>
+ * A listener is passed to a renderer with the {@link BaseRenderer#LISTENER} option. Callbacks
+ * are made on the rendering thread.
+ * </p>
+ */
+public interface RenderListener {
+
+    /**
+     * Callback invoked before a new rendering job starts.
+     *
+     * @param view The view being rendered.
+     */
+    void onStart(View view);
+
+    /**
+     * Callback invoked as a feature is drawn.
+     * <p>
+     * Features are read with only the attributes the style refers to, along with their id and
+     * geometry. The feature may be reused by the renderer once the callback returns.
+     * </p>
+     * @param layer The layer of the feature.
+     * @param feature The feature, in the crs of the view.
+     * @param rule The rule the feature is drawn with.
+     */
+    void onFeature(Layer layer, Feature feature, Rule rule);
+
+    /**
+     * Callback invoked after a rendering job has completed successfully.
+     */
+    void onFinish();
+}
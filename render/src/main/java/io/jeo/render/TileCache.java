@@ -0,0 +1,297 @@
+/* Copyright 2014 The jeo project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jeo.render;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+
+import io.jeo.data.Dataset;
+import io.jeo.data.FileDriver;
+import io.jeo.tile.Tile;
+
+/**
+ * Bounded least recently used cache of decoded tile images.
+ * <p>
+ * The cache is bounded by the number of bytes of decoded pixel data it holds rather than the
+ * number of tiles. Tiles are keyed by the dataset they come from and their <tt>z/x/y</tt> index
+ * so that tiles decoded for one render are reused by subsequent renders of overlapping views.
+ * The dataset part of the key includes the version of file backed datasets, so that tiles of a
+ * modified file are decoded anew, the stale entries aging out of the cache.
+ * </p>
+ * <p>
+ * Instances of this class are thread safe.
+ * </p>
+ */
+public class TileCache {
+
+    /**
+     * Shared cache used by renderers, bounded to 64MB of decoded pixels.
+     */
+    public static final TileCache DEFAULT = new TileCache(64 * 1024 * 1024);
+
+    final long maxBytes;
+    long bytes = 0;
+
+    final LinkedHashMap<Key,Image> images = new LinkedHashMap<Key, Image>(64, 0.75f, true);
+
+    /**
+     * Creates a new cache.
+     *
+     * @param maxBytes Maximum number of bytes of decoded pixels to hold.
+     */
+    public TileCache(long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("cache size must be positive");
+        }
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the cached image for the specified key, or <tt>null</tt> if it is not cached.
+     */
+    public synchronized Image get(Key key) {
+        return images.get(key);
+    }
+
+    /**
+     * Caches an image, evicting least recently used images as required to stay within the
+     * cache size.
+     */
+    public synchronized void put(Key key, Image img) {
+        Image old = images.put(key, img);
+        if (old != null) {
+            bytes -= old.bytes();
+        }
+        bytes += img.bytes();
+
+        Iterator<Image> it = images.values().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            Image eldest = it.next();
+            if (eldest == img) {
+                // always keep the most recent entry
+                break;
+            }
+            bytes -= eldest.bytes();
+            it.remove();
+        }
+    }
+
+    /**
+     * Number of images in the cache.
+     */
+    public synchronized int count() {
+        return images.size();
+    }
+
+    /**
+     * Number of bytes of decoded pixels in the cache.
+     */
+    public synchronized long size() {
+        return bytes;
+    }
+
+    /**
+     * Removes all images from the cache.
+     */
+    public synchronized void clear() {
+        images.clear();
+        bytes = 0;
+    }
+
+    /**
+     * Decodes the image data of a tile.
+     *
+     * @return The decoded image, or <tt>null</tt> if the tile format could not be decoded.
+     */
+    public static Image decode(Tile tile) throws IOException {
+        byte[] data = tile.data();
+        if (data == null || data.length == 0) {
+            return null;
+        }
+
+        BufferedImage img = ImageIO.read(new ByteArrayInputStream(data));
+        if (img == null) {
+            return null;
+        }
+
+        int w = img.getWidth();
+        int h = img.getHeight();
+        return new Image(w, h, img.getRGB(0, 0, w, h, null, 0, w));
+    }
+
+    /**
+     * Creates the cache key for a tile of a dataset.
+     *
+     * @see #id(Dataset)
+     */
+    public static Key key(Dataset data, int z, int x, int y) {
+        return new Key(id(data), z, x, y);
+    }
+
+    /**
+     * Identifies the current version of a dataset in cache keys.
+     * <p>
+     * Datasets are identified by driver, driver options and name, rather than instance, since
+     * datasets are typically opened anew for each request. For datasets backed by a file the
+     * modified time and length of the file, and of its sqlite write ahead log if any, are
+     * included so that modifying the file changes the keys of its tiles.
+     * </p>
+     */
+    public static Object id(Dataset data) {
+        Map<io.jeo.util.Key<?>, Object> opts = data.driverOptions();
+        Object file = opts != null ? opts.get(FileDriver.FILE) : null;
+
+        Object version = null;
+        if (file instanceof File) {
+            File f = (File) file;
+            File wal = new File(f.getPath() + "-wal");
+            version = Arrays.asList(f.lastModified(), f.length(), wal.lastModified(), wal.length());
+        }
+        return Arrays.asList(data.driver() != null ? data.driver().name() : null,
+            opts, data.name(), version);
+    }
+
+    /**
+     * Cache key of a tile.
+     */
+    public static class Key {
+        final Object dataset;
+        final int z, x, y;
+
+        public Key(Object dataset, int z, int x, int y) {
+            this.dataset = dataset;
+            this.z = z;
+            this.x = x;
+            this.y = y;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+
+            Key other = (Key) obj;
+            return z == other.z && x == other.x && y == other.y
+                && (dataset == null ? other.dataset == null : dataset.equals(other.dataset));
+        }
+
+        @Override
+        public int hashCode() {
+            int result = dataset != null ? dataset.hashCode() : 0;
+            result = 31 * result + z;
+            result = 31 * result + x;
+            result = 31 * result + y;
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return dataset + "/" + z + "/" + x + "/" + y;
+        }
+    }
+
+    /**
+     * Decoded tile image, stored as non pre-multiplied packed argb pixels.
+     */
+    public static class Image {
+        final int width;
+        final int height;
+        final int[] argb;
+
+        public Image(int width, int height, int[] argb) {
+            this.width = width;
+            this.height = height;
+            this.argb = argb;
+        }
+
+        public int width() {
+            return width;
+        }
+
+        public int height() {
+            return height;
+        }
+
+        /**
+         * The number of bytes of pixel data held by the image.
+         */
+        public long bytes() {
+            return argb.length * 4l;
+        }
+
+        /**
+         * The packed argb pixel at the specified location, clamped to the image.
+         */
+        public int pixel(int x, int y) {
+            x = x < 0 ? 0 : x >= width ? width - 1 : x;
+            y = y < 0 ? 0 : y >= height ? height - 1 : y;
+            return argb[y * width + x];
+        }
+
+        /**
+         * Samples the image at the pixel nearest to the specified location.
+         */
+        public int nearest(double x, double y) {
+            return pixel((int) Math.round(x), (int) Math.round(y));
+        }
+
+        /**
+         * Samples the image at the specified location with bilinear interpolation.
+         * <p>
+         * Color components are weighted by alpha so that transparent pixels do not bleed their
+         * color into neighbouring pixels.
+         * </p>
+         */
+        public int bilinear(double x, double y) {
+            int x0 = (int) Math.floor(x);
+            int y0 = (int) Math.floor(y);
+            double fx = x - x0;
+            double fy = y - y0;
+
+            int p00 = pixel(x0, y0), p10 = pixel(x0 + 1, y0);
+            int p01 = pixel(x0, y0 + 1), p11 = pixel(x0 + 1, y0 + 1);
+
+            double w00 = (1 - fx) * (1 - fy), w10 = fx * (1 - fy);
+            double w01 = (1 - fx) * fy, w11 = fx * fy;
+
+            double a00 = w00 * (p00 >>> 24), a10 = w10 * (p10 >>> 24);
+            double a01 = w01 * (p01 >>> 24), a11 = w11 * (p11 >>> 24);
+
+            double a = a00 + a10 + a01 + a11;
+            if (a <= 0) {
+                return 0;
+            }
+
+            int r = (int) Math.round((a00 * ((p00 >> 16) & 0xff) + a10 * ((p10 >> 16) & 0xff)
+                + a01 * ((p01 >> 16) & 0xff) + a11 * ((p11 >> 16) & 0xff)) / a);
+            int g = (int) Math.round((a00 * ((p00 >> 8) & 0xff) + a10 * ((p10 >> 8) & 0xff)
+                + a01 * ((p01 >> 8) & 0xff) + a11 * ((p11 >> 8) & 0xff)) / a);
+            int b = (int) Math.round((a00 * (p00 & 0xff) + a10 * (p10 & 0xff)
+                + a01 * (p01 & 0xff) + a11 * (p11 & 0xff)) / a);
+
+            int alpha = Math.min(255, (int) Math.round(a));
+            return (alpha << 24) | (r << 16) | (g << 8) | b;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/* Copyright 2014 The jeo project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jeo.render;
+
+import java.nio.ByteBuffer;
+
+import io.jeo.map.Colorizer;
+import io.jeo.map.RGB;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HeatmapTest {
+
+    @Test
+    public void testAdd() {
+        Heatmap h = new Heatmap(10, 10, 0);
+        h.add(2.5, 3.5, 1f);
+        h.add(2.1, 3.9, 2f);
+        h.add(-1, 3, 1f);
+        h.add(10, 3, 1f);
+
+        assertEquals(3f, h.get(2, 3), 0f);
+        assertEquals(3f, h.max(), 0f);
+    }
+
+    @Test
+    public void testBlurPreservesMass() {
+        Heatmap h = new Heatmap(41, 41, 5);
+        h.add(20, 20, 1f);
+        h.blur();
+
+        float sum = 0;
+        for (int y = 0; y < h.height(); y++) {
+            for (int x = 0; x < h.width(); x++) {
+                sum += h.get(x, y);
+            }
+        }
+        assertEquals(1f, sum, 1e-4);
+
+        // peak stays at the center and falls off symmetrically
+        assertEquals(h.max(), h.get(20, 20), 0f);
+        assertEquals(h.get(18, 20), h.get(22, 20), 1e-6);
+        assertEquals(h.get(20, 18), h.get(20, 22), 1e-6);
+        assertTrue(h.get(20, 20) > h.get(22, 20));
+        assertEquals(0f, h.get(26, 20), 0f);
+    }
+
+    @Test
+    public void testColorize() {
+        Colorizer c = Colorizer.build().stop(0d, RGB.blue).stop(1d, RGB.red).colorizer();
+
+        Heatmap h = new Heatmap(2, 1, 0);
+        h.add(1, 0, 4f);
+
+        ByteBuffer rgba = h.colorize(c, 0.5f, 4f);
+        assertEquals(8, rgba.remaining());
+
+        // empty pixel is transparent
+        assertEquals(0, rgba.getInt(0));
+
+        // the maximum maps to the last stop
+        assertEquals(255, rgba.get(4) & 0xff);
+        assertEquals(0, rgba.get(5) & 0xff);
+        assertEquals(0, rgba.get(6) & 0xff);
+        assertEquals(128, rgba.get(7) & 0xff);
+    }
+
+    @Test
+    public void testPadding() {
+        Heatmap h = new Heatmap(10, 10, 3);
+        h.add(-2, 5, 1f);
+        h.add(-4, 5, 1f);
+        h.blur();
+
+        // within the radius of the left edge spreads onto the view, further doesn't
+        assertTrue(h.get(0, 5) > 0f);
+        assertEquals(Heatmap.kernel(3)[3] * Heatmap.kernel(3)[1], h.get(0, 5), 1e-6);
+    }
+
+    @Test
+    public void testAdjacentTiles() {
+        float[][] points = {{18, 5}, {21, 10}, {24, 12}, {19, 12}, {30, 8}};
+
+        // a map 40 pixels wide, and the two 20 pixel tiles it is made of
+        Heatmap map = new Heatmap(40, 20, 5);
+        Heatmap left = new Heatmap(20, 20, 5);
+        Heatmap right = new Heatmap(20, 20, 5);
+        for (float[] p : points) {
+            map.add(p[0], p[1], 1f);
+            left.add(p[0], p[1], 1f);
+            right.add(p[0] - 20, p[1], 1f);
+        }
+        map.blur();
+        left.blur();
+        right.blur();
+
+        for (int y = 0; y < 20; y++) {
+            for (int x = 0; x < 20; x++) {
+                assertEquals(map.get(x, y), left.get(x, y), 1e-6);
+                assertEquals(map.get(x + 20, y), right.get(x, y), 1e-6);
+            }
+        }
+
+        // colored on the same scale, so the tiles agree along their shared edge
+        Colorizer c = Heatmap.DEFAULT_COLORIZER;
+        RasterTarget l = new RasterTarget(20, 20);
+        RasterTarget r = new RasterTarget(20, 20);
+        RasterTarget m = new RasterTarget(40, 20);
+        left.colorize(c, 1f, 2f, l);
+        right.colorize(c, 1f, 2f, r);
+        map.colorize(c, 1f, 2f, m);
+        for (int y = 0; y < 20; y++) {
+            assertEquals(m.get(19, y), l.get(19, y));
+            assertEquals(m.get(20, y), r.get(0, y));
+        }
+        assertTrue(l.get(19, 10) != 0);
+        assertTrue(r.get(0, 12) != 0);
+    }
+}
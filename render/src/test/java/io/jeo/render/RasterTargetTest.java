@@ -0,0 +1,63 @@
+/* Copyright 2014 The jeo project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jeo.render;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class RasterTargetTest {
+
+    @Test
+    public void testRegion() {
+        // 2x2 region at (1,1) of a 4x3 pixel array
+        int[] pixels = new int[12];
+        RasterTarget t = new RasterTarget(pixels, 5, 4, 2, 2);
+
+        t.set(0, 0, 1);
+        t.set(1, 0, 2);
+        t.set(0, 1, 3);
+        t.set(1, 1, 4);
+
+        assertEquals(1, pixels[5]);
+        assertEquals(2, pixels[6]);
+        assertEquals(3, pixels[9]);
+        assertEquals(4, pixels[10]);
+        assertEquals(4, t.get(1, 1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRegionTooLarge() {
+        new RasterTarget(new int[12], 5, 4, 3, 2);
+    }
+
+    @Test
+    public void testToRGBA() {
+        RasterTarget t = new RasterTarget(2, 1);
+        t.set(0, 0, 0x80ff0000);
+        t.set(1, 0, 0xff0000ff);
+
+        ByteBuffer rgba = t.toRGBA();
+        assertEquals(8, rgba.remaining());
+        assertEquals(0xff, rgba.get(0) & 0xff);
+        assertEquals(0, rgba.get(1));
+        assertEquals(0, rgba.get(2));
+        assertEquals(0x80, rgba.get(3) & 0xff);
+        assertEquals(0xff, rgba.get(6) & 0xff);
+        assertEquals(0xff, rgba.get(7) & 0xff);
+    }
+}
@@ -0,0 +1,130 @@
+/* Copyright 2014 The jeo project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jeo.render;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+
+import io.jeo.data.Dataset;
+import io.jeo.data.FileDriver;
+import io.jeo.util.Key;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class TileCacheTest {
+
+    @Test
+    public void testEviction() {
+        // room for two 2x2 images
+        TileCache cache = new TileCache(32);
+
+        TileCache.Key k1 = new TileCache.Key("foo", 1, 0, 0);
+        TileCache.Key k2 = new TileCache.Key("foo", 1, 1, 0);
+        TileCache.Key k3 = new TileCache.Key("foo", 1, 1, 1);
+
+        cache.put(k1, image(0xff000000));
+        cache.put(k2, image(0xff000000));
+        assertEquals(2, cache.count());
+        assertEquals(32, cache.size());
+
+        // touch k1 so k2 is evicted first
+        assertNotNull(cache.get(k1));
+        cache.put(k3, image(0xff000000));
+
+        assertEquals(2, cache.count());
+        assertNotNull(cache.get(k1));
+        assertNull(cache.get(k2));
+        assertNotNull(cache.get(k3));
+    }
+
+    @Test
+    public void testKey() {
+        assertEquals(new TileCache.Key("foo", 1, 2, 3), new TileCache.Key("foo", 1, 2, 3));
+        assertEquals(new TileCache.Key("foo", 1, 2, 3).hashCode(),
+            new TileCache.Key("foo", 1, 2, 3).hashCode());
+        assertNotEquals(new TileCache.Key("foo", 1, 2, 3), new TileCache.Key("bar", 1, 2, 3));
+    }
+
+    @Test
+    public void testIdChangesWithFile() throws Exception {
+        File file = File.createTempFile("tiles", ".mbtiles");
+        file.deleteOnExit();
+        Dataset data = dataset(file);
+
+        Object id = TileCache.id(data);
+        assertEquals(id, TileCache.id(data));
+
+        FileOutputStream out = new FileOutputStream(file, true);
+        try {
+            out.write(new byte[]{1, 2, 3});
+        }
+        finally {
+            out.close();
+        }
+        assertNotEquals(id, TileCache.id(data));
+    }
+
+    @Test
+    public void testBilinear() {
+        TileCache.Image img = new TileCache.Image(2, 1, new int[]{0xff000000, 0xffc8c8c8});
+
+        assertEquals(0xff000000, img.bilinear(0, 0));
+        assertEquals(0xffc8c8c8, img.bilinear(1, 0));
+        assertEquals(0xff646464, img.bilinear(0.5, 0));
+
+        // clamped at the edges
+        assertEquals(0xffc8c8c8, img.bilinear(5, 0));
+    }
+
+    @Test
+    public void testBilinearIgnoresTransparentColor() {
+        TileCache.Image img = new TileCache.Image(2, 1, new int[]{0x00ffffff, 0xff0000ff});
+
+        int argb = img.bilinear(0.5, 0);
+        assertEquals(128, argb >>> 24);
+        assertEquals(0x0000ff, argb & 0xffffff);
+    }
+
+    void assertNotEquals(Object o1, Object o2) {
+        assertEquals(false, o1.equals(o2));
+    }
+
+    Dataset dataset(final File file) {
+        return (Dataset) Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class<?>[]{Dataset.class}, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    if ("driverOptions".equals(method.getName())) {
+                        return Collections.<Key<?>,Object>singletonMap(FileDriver.FILE, file);
+                    }
+                    if ("name".equals(method.getName())) {
+                        return "tiles";
+                    }
+                    return null;
+                }
+            });
+    }
+
+    TileCache.Image image(int argb) {
+        return new TileCache.Image(2, 2, new int[]{argb, argb, argb, argb});
+    }
+}
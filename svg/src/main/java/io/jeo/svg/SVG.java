@@ -16,6 +16,7 @@ package io.jeo.svg;
 
 import io.jeo.map.View;
 import io.jeo.render.RendererFactory;
+import io.jeo.util.Key;
 
 import java.util.Arrays;
 import java.util.Collections;
@@ -27,6 +28,11 @@ import java.util.Map;
  */
 public class SVG implements RendererFactory<SVGRenderer> {
 
+    /**
+     * Number of decimal places used to write coordinates.
+     */
+    public static Key<Integer> PRECISION = new Key<Integer>("precision", Integer.class, 1);
+
     @Override
     public String getName() {
         return "SVG";
@@ -44,6 +50,6 @@ public class SVG implements RendererFactory<SVGRenderer> {
 
     @Override
     public SVGRenderer create(View view, Map<?, Object> opts) {
-        return new SVGRenderer();
+        return new SVGRenderer().precision(PRECISION.get(opts));
     }
 }
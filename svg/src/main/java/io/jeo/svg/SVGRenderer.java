@@ -17,13 +17,19 @@ package io.jeo.svg;
 import static io.jeo.map.CartoCSS.*;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import io.jeo.geom.Bounds;
 import io.jeo.vector.Feature;
 import io.jeo.geom.CoordinatePath;
+import io.jeo.map.Layer;
 import io.jeo.map.RGB;
 import io.jeo.map.Rule;
 import io.jeo.map.RuleList;
@@ -39,26 +45,48 @@ import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
 import io.jeo.render.ViewTransformFilter;
-import io.jeo.util.XMLWriter;
 
 /**
  * Renderer producing Scalable Vector Graphics (SVG) output.
+ * <p>
+ * To keep output compact presentation attributes are not repeated on every element. Consecutive
+ * paths that share the same presentation attributes are wrapped in a single <tt>&lt;g></tt>
+ * element carrying them. Each distinct marker is defined once and referenced from points with
+ * <tt>&lt;use></tt> elements outside of any group. The definitions are written in a single
+ * document level <tt>&lt;defs></tt> element at the end of the document.
+ * </p>
  */
 public class SVGRenderer extends BaseRenderer implements Labeller {
 
     static final Logger LOG = LoggerFactory.getLogger(SVGRenderer.class);
 
     static final String URI = "http://www.w3.org/2000/svg";
+    static final String XLINK_URI = "http://www.w3.org/1999/xlink";
     static final String VERSION = "1.2";
     static final String PROFILE = "tiny";
     static final String INDENT_AMOUNT_KEY = "{http://xml.apache.org/xslt}indent-amount";
 
     static enum TextAnchor { start,  middle, end };
 
-    final XMLWriter xml;
+    final SVGWriter xml;
+
+    /**
+     * presentation attributes of the currently open group, <tt>null</tt> when no group is open
+     */
+    List<Object> group;
+
+    /**
+     * marker ids, keyed by shape, size, colors and line width
+     */
+    Map<List<Object>,String> markers = new HashMap<List<Object>,String>();
+
+    /**
+     * marker definitions, element name and attributes, in id order
+     */
+    List<Object[]> markerDefs = new ArrayList<Object[]>();
 
     public SVGRenderer() {
-        xml = new XMLWriter();
+        xml = new SVGWriter();
     }
 
     public SVGRenderer indent(int size) {
@@ -68,6 +96,18 @@ public class SVGRenderer extends BaseRenderer implements Labeller {
         return this;
     }
 
+    /**
+     * Sets the number of decimal places used to write path data and screen coordinates.
+     * <p>
+     * Defaults to {@link SVG#PRECISION}. A value of <tt>0</tt> snaps coordinates to whole
+     * pixels. Opacities, widths and sizes are written at full precision.
+     * </p>
+     */
+    public SVGRenderer precision(int precision) {
+        xml.precision(precision);
+        return this;
+    }
+
     @Override
     protected boolean canRenderVectors() {
         return true;
@@ -86,19 +126,31 @@ public class SVGRenderer extends BaseRenderer implements Labeller {
     @Override
     protected void onStart() {
         try {
+            group = null;
+            markers.clear();
+            markerDefs.clear();
+
             xml.init(output);
             xml.start("svg", "width", view.getWidth(), "height", view.getHeight(),
                 "zoomAndPan", "magnify", 
-                "xmlns", URI, "version", VERSION, "baseProfile", PROFILE);
+                "xmlns", URI, "xmlns:xlink", XLINK_URI, "version", VERSION,
+                "baseProfile", PROFILE);
 
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
     }
 
+    @Override
+    protected void onLayerFinish(Layer layer) {
+        endGroup();
+    }
+
     @Override
     protected void onFinish() {
         try {
+            endGroup();
+            writeMarkers();
             xml.end("svg");
             xml.close();
         } catch (IOException e) {
@@ -117,6 +169,7 @@ public class SVGRenderer extends BaseRenderer implements Labeller {
         String shape = rule.string(f, MARKER_TYPE, "circle");
         float width = rule.number(f, MARKER_WIDTH, 10f);
         float height = rule.number(f, MARKER_HEIGHT, width);
+        float lineWidth = rule.number(f, MARKER_LINE_WIDTH, 1f);
 
         RGB fillColor = markFillColor(f, rule);
         RGB lineColor = markLineColor(f, rule);
@@ -127,7 +180,7 @@ public class SVGRenderer extends BaseRenderer implements Labeller {
         Coordinate coord = vtf.apply(point.getCoordinate());
 
         if (fillColor != null || lineColor != null) {
-            drawSimpleShape(coord, shape, width, height, fillColor, lineColor);
+            drawSimpleShape(coord, shape, width, height, fillColor, lineColor, lineWidth);
         }
 
         String label = rule.eval(f, TEXT_NAME, String.class);
@@ -160,67 +213,125 @@ public class SVGRenderer extends BaseRenderer implements Labeller {
         drawPath(path(poly), polyFill, s);
     }
 
-    void drawSimpleShape(Coordinate c, String type, float width, float height, RGB fill, RGB stroke) {
-        Shape shape = shape(type);
+    void drawSimpleShape(Coordinate c, String type, float width, float height, RGB fill, RGB stroke,
+        float lineWidth) {
+        String id = marker(shape(type), width, height, fill, stroke, lineWidth);
+
+        // markers don't inherit the presentation attributes of path groups
+        endGroup();
+        xml.emptyElement("use", "xlink:href", "#" + id, "x", c.x, "y", c.y);
+    }
+
+    /**
+     * Returns the id of the definition for a marker, recording the definition the first time
+     * the marker is encountered, see {@link #writeMarkers()}.
+     * <p>
+     * The definition is centered on the origin and specifies all of its presentation attributes
+     * so that it renders the same wherever it is referenced from.
+     * </p>
+     */
+    String marker(Shape shape, float width, float height, RGB fill, RGB stroke, float lineWidth) {
+        List<Object> key = Arrays.<Object>asList(shape, width, height,
+            fill != null ? fill.rgbhex() : null, fill != null ? fill.getOpacity() : null,
+            stroke != null ? stroke.rgbhex() : null, stroke != null ? stroke.getOpacity() : null,
+            stroke != null ? lineWidth : null);
 
-        type = shape.name().toLowerCase(Locale.ROOT);
+        String id = markers.get(key);
+        if (id != null) {
+            return id;
+        }
+
+        id = "m" + markers.size();
+        markers.put(key, id);
 
+        List<Object> atts = new ArrayList<Object>();
+        atts.add("id");
+        atts.add(id);
         if (fill != null) {
-            xml.atts("fill", fill.rgbhex(), "fill-opacity", fill.getOpacity());
+            atts.addAll(Arrays.<Object>asList("fill", fill.rgbhex(), "fill-opacity", fill.getOpacity()));
+        }
+        else {
+            atts.addAll(Arrays.<Object>asList("fill", "none"));
         }
         if (stroke != null) {
-            xml.atts("stroke", stroke.rgbhex(), "stroke-opacity", stroke.getOpacity());
+            atts.addAll(Arrays.<Object>asList("stroke", stroke.rgbhex(), "stroke-opacity",
+                stroke.getOpacity(), "stroke-width", lineWidth, "stroke-linejoin", Join.miter,
+                "stroke-linecap", Cap.butt, "stroke-dasharray", "none"));
+        }
+        else {
+            atts.addAll(Arrays.<Object>asList("stroke", "none"));
         }
 
         switch(shape) {
         case circle:
-            xml.atts("r", width);
+            atts.addAll(Arrays.<Object>asList("r", width));
             break;
         case ellipse:
-            xml.atts("rx", width, "ry", height);
+            atts.addAll(Arrays.<Object>asList("rx", width, "ry", height));
             break;
         case rect:
-            xml.atts("width", width, "height", height);
+            // locate the corner of the rectangle so the center draws on the origin
+            atts.addAll(Arrays.<Object>asList(
+                "x", -width / 2, "y", -height / 2, "width", width, "height", height));
             break;
         }
 
-        switch(shape) {
-        case circle: case ellipse:
-            xml.atts("cx", c.x, "cy", c.y);
-            break;
-        case rect:
-            // locate the corner of the rectangle so the center draws on the coordinate
-            double cx = c.x - (width / 2);
-            double cy = c.y - (height / 2);
-            xml.atts("x", cx, "y", cy);
-            break;
+        markerDefs.add(new Object[]{shape.name().toLowerCase(Locale.ROOT), atts.toArray()});
+        return id;
+    }
+
+    /**
+     * Writes the definitions of the markers referenced in the document in a single
+     * <tt>&lt;defs></tt> element, if any.
+     */
+    void writeMarkers() {
+        if (markerDefs.isEmpty()) {
+            return;
         }
 
-        xml.emptyElement(type);
+        xml.start("defs");
+        for (Object[] def : markerDefs) {
+            xml.emptyElement((String) def[0], (Object[]) def[1]);
+        }
+        xml.end("defs");
     }
 
     void drawPath(CoordinatePath path, RGB fill, Stroke stroke) {
 
-        applyStroke(stroke);
-        xml.atts("fill", fill != null ? fill.rgbhex() : "none");
-
-        StringBuilder d = new StringBuilder();
-        while(path.hasNext()) {
-            Coordinate c = path.next();
-            switch(path.step()) {
-            case MOVE_TO:
-                d.append("M ").append(c.x).append(" ").append(c.y).append(" ");
-                break;
-            case LINE_TO:
-                d.append("L ").append(c.x).append(" ").append(c.y).append(" ");
-                break;
-            case CLOSE:
-                d.append("Z ");
-            case STOP:
-            }
+        List<Object> atts = new ArrayList<Object>();
+        applyStroke(stroke, atts);
+        atts.add("fill");
+        atts.add(fill != null ? fill.rgbhex() : "none");
+        group(atts);
+
+        // path data is streamed straight to the output
+        xml.path(path, "focusable", "true");
+    }
+
+    /**
+     * Ensures a group with the specified presentation attributes is open, closing the current
+     * group if its attributes differ.
+     */
+    void group(List<Object> atts) {
+        if (atts.equals(group)) {
+            return;
+        }
+
+        endGroup();
+        if (!atts.isEmpty()) {
+            xml.start("g", atts.toArray());
+            group = atts;
         }
+    }
 
-        xml.emptyElement("path", "d", d.toString(), "focusable", "true");
+    /**
+     * Closes the current group, if one is open.
+     */
+    void endGroup() {
+        if (group != null) {
+            xml.end("g");
+            group = null;
+        }
     }
 
     String toString(float[] array) {
@@ -369,12 +480,13 @@ public class SVGRenderer extends BaseRenderer implements Labeller {
         return prim;
     }
 
-    void applyStroke(Stroke s) {
+    void applyStroke(Stroke s, List<Object> atts) {
         if (s != null) {
-            xml.atts("stroke", s.color.rgbhex(), "stroke-width", s.width, "stroke-linejoin", s.join,
-                "stroke-linecap", s.cap);
+            atts.addAll(Arrays.<Object>asList("stroke", s.color.rgbhex(), "stroke-width", s.width,
+                "stroke-linejoin", s.join, "stroke-linecap", s.cap));
             if (s.dash != null) {
-                xml.atts("stroke-dasharray", toString(s.dash), "stroke-dashoffset", s.dashOffset);
+                atts.addAll(Arrays.<Object>asList(
+                    "stroke-dasharray", toString(s.dash), "stroke-dashoffset", s.dashOffset));
             }
         }
     }
@@ -501,6 +613,9 @@ public class SVGRenderer extends BaseRenderer implements Labeller {
 
     @Override
     public void render(Label label) {
+        // labels should not inherit from feature groups
+        endGroup();
+
         if (debugLabels()) {
             Envelope box = label.bounds();
             xml.emptyElement("rect", "fill", "none", "stroke", "black", "x", box.getMinX(),
@@ -0,0 +1,426 @@
+/* Copyright 2014 The jeo project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jeo.svg;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import io.jeo.geom.CoordinatePath;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+/**
+ * Streaming writer for SVG documents.
+ * <p>
+ * Elements are written directly to the underlying stream as they are produced, nothing is
+ * buffered beyond a fixed size character buffer. Floating point values are written with a fixed
+ * number of decimal places without going through {@link Double#toString(double)}. Path data and
+ * coordinate attributes, see {@link #COORDINATES}, are written at the configured precision, see
+ * {@link #precision(int)}, other values such as opacities and widths at {@link #MAX_PRECISION}.
+ * </p>
+ * <p>
+ * Path data is encoded with relative commands (<tt>m dx dy ...</tt>) and consecutive points
+ * that are equal at the configured precision are dropped.
+ * </p>
+ */
+class SVGWriter {
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    static final int BUFFER_SIZE = 32 * 1024;
+
+    static final long[] POW10 = {
+        1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L
+    };
+
+    /**
+     * Number of decimal places of floating point values other than coordinates.
+     */
+    static final int MAX_PRECISION = POW10.length - 1;
+
+    /**
+     * Names of the attributes holding screen coordinates.
+     */
+    static final Set<String> COORDINATES = new HashSet<String>(Arrays.asList(
+        "x", "y", "cx", "cy", "x1", "y1", "x2", "y2", "dx", "dy"));
+
+    Writer out;
+
+    int indent = 0;
+    int precision = 1;
+
+    /** pending attributes for the next element */
+    List<Object> atts = new ArrayList<Object>();
+
+    /** element nesting depth */
+    int depth = 0;
+
+    /** whether the element at the current depth has child elements */
+    boolean children = false;
+
+    /** scratch buffer for formatting numbers */
+    final char[] digits = new char[24];
+
+    /**
+     * Sets the indentation amount, <tt>0</tt> disables indentation.
+     */
+    SVGWriter indent(int indent) {
+        this.indent = Math.max(0, indent);
+        return this;
+    }
+
+    /**
+     * Sets the number of decimal places used when writing path data and coordinates.
+     */
+    SVGWriter precision(int precision) {
+        if (precision < 0 || precision >= POW10.length) {
+            throw new IllegalArgumentException(
+                "precision must be in range [0," + (POW10.length-1) + "]");
+        }
+        this.precision = precision;
+        return this;
+    }
+
+    /**
+     * Initializes the writer against the specified output stream and writes the xml declaration.
+     */
+    void init(OutputStream output) throws IOException {
+        out = new BufferedWriter(new OutputStreamWriter(output, UTF8), BUFFER_SIZE);
+        atts.clear();
+        depth = 0;
+        children = false;
+
+        out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+    }
+
+    /**
+     * Adds attributes to be written on the next element.
+     */
+    SVGWriter atts(Object... kvp) {
+        for (Object o : kvp) {
+            atts.add(o);
+        }
+        return this;
+    }
+
+    /**
+     * Starts a new element.
+     */
+    SVGWriter start(String name, Object... kvp) {
+        try {
+            open(name, kvp);
+            out.write('>');
+            depth++;
+            children = false;
+        }
+        catch(IOException e) {
+            throw new RuntimeException(e);
+        }
+        return this;
+    }
+
+    /**
+     * Ends the current element.
+     */
+    SVGWriter end(String name) {
+        try {
+            depth--;
+            if (children) {
+                newline();
+            }
+            out.write("</");
+            out.write(name);
+            out.write('>');
+            children = true;
+        }
+        catch(IOException e) {
+            throw new RuntimeException(e);
+        }
+        return this;
+    }
+
+    /**
+     * Writes an element with no content.
+     */
+    SVGWriter emptyElement(String name, Object... kvp) {
+        try {
+            open(name, kvp);
+            out.write("/>");
+        }
+        catch(IOException e) {
+            throw new RuntimeException(e);
+        }
+        return this;
+    }
+
+    /**
+     * Writes an element with text content.
+     */
+    SVGWriter element(String name, Object text, Object... kvp) {
+        if (text == null) {
+            return emptyElement(name, kvp);
+        }
+
+        try {
+            open(name, kvp);
+            out.write('>');
+            escape(text.toString());
+            out.write("</");
+            out.write(name);
+            out.write('>');
+        }
+        catch(IOException e) {
+            throw new RuntimeException(e);
+        }
+        return this;
+    }
+
+    /**
+     * Writes a <tt>path</tt> element, streaming the coordinates of the path directly into the
+     * <tt>d</tt> attribute.
+     */
+    SVGWriter path(CoordinatePath path, Object... kvp) {
+        try {
+            open("path", kvp);
+            out.write(" d=\"");
+            pathData(path);
+            out.write("\"/>");
+        }
+        catch(IOException e) {
+            throw new RuntimeException(e);
+        }
+        return this;
+    }
+
+    /**
+     * Flushes and closes the writer.
+     */
+    void close() throws IOException {
+        out.flush();
+        out.close();
+    }
+
+    void open(String name, Object[] kvp) throws IOException {
+        children = true;
+        newline();
+
+        out.write('<');
+        out.write(name);
+
+        for (int i = 0; i < atts.size(); i += 2) {
+            attribute(atts.get(i), atts.get(i+1));
+        }
+        atts.clear();
+
+        for (int i = 0; i < kvp.length; i += 2) {
+            attribute(kvp[i], kvp[i+1]);
+        }
+    }
+
+    void attribute(Object key, Object value) throws IOException {
+        if (value == null) {
+            return;
+        }
+
+        out.write(' ');
+        out.write(key.toString());
+        out.write("=\"");
+        value(value, COORDINATES.contains(key) ? precision : MAX_PRECISION);
+        out.write('"');
+    }
+
+    void value(Object value, int precision) throws IOException {
+        if (value instanceof Double || value instanceof Float) {
+            number(((Number) value).doubleValue(), precision);
+        }
+        else if (value instanceof Number) {
+            out.write(value.toString());
+        }
+        else {
+            escape(value.toString());
+        }
+    }
+
+    void newline() throws IOException {
+        if (indent > 0) {
+            out.write('\n');
+            for (int i = 0; i < depth * indent; i++) {
+                out.write(' ');
+            }
+        }
+    }
+
+    void escape(String s) throws IOException {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch(c) {
+            case '<':
+                out.write("&lt;");
+                break;
+            case '>':
+                out.write("&gt;");
+                break;
+            case '&':
+                out.write("&amp;");
+                break;
+            case '"':
+                out.write("&quot;");
+                break;
+            default:
+                out.write(c);
+            }
+        }
+    }
+
+    /**
+     * Writes the path data for a coordinate path.
+     * <p>
+     * Coordinates are snapped to the configured precision and written relative to the previous
+     * point. Points that snap onto the previous point are skipped. Since pairs following a
+     * <tt>m</tt> command are implicitly treated as relative line segments no <tt>l</tt> command
+     * is needed for line segments.
+     * </p>
+     */
+    void pathData(CoordinatePath path) throws IOException {
+        long scale = POW10[precision];
+
+        // current point and start of current sub path, in scaled units
+        long cx = 0, cy = 0, sx = 0, sy = 0;
+
+        // whether pairs written now are implicitly line segments
+        boolean line = false;
+        boolean first = true;
+
+        while (path.hasNext()) {
+            Coordinate c = path.next();
+            switch(path.step()) {
+            case MOVE_TO: {
+                long x = Math.round(c.x * scale);
+                long y = Math.round(c.y * scale);
+                if (!first) {
+                    out.write(' ');
+                }
+                out.write('m');
+                pair(x - cx, y - cy, scale);
+                cx = sx = x;
+                cy = sy = y;
+                line = true;
+                first = false;
+                break;
+            }
+            case LINE_TO: {
+                long x = Math.round(c.x * scale);
+                long y = Math.round(c.y * scale);
+                if (x == cx && y == cy) {
+                    // duplicate point at this precision
+                    break;
+                }
+                if (!line) {
+                    out.write('l');
+                    line = true;
+                }
+                else {
+                    out.write(' ');
+                }
+                pair(x - cx, y - cy, scale);
+                cx = x;
+                cy = y;
+                break;
+            }
+            case CLOSE:
+                out.write('z');
+                cx = sx;
+                cy = sy;
+                line = false;
+                break;
+            default:
+            }
+        }
+    }
+
+    void pair(long dx, long dy, long scale) throws IOException {
+        fixed(dx, scale, precision);
+        out.write(' ');
+        fixed(dy, scale, precision);
+    }
+
+    /**
+     * Writes a floating point value at the configured precision.
+     */
+    void number(double d) throws IOException {
+        number(d, precision);
+    }
+
+    /**
+     * Writes a floating point value with a number of decimal places.
+     */
+    void number(double d, int precision) throws IOException {
+        if (Double.isNaN(d) || Double.isInfinite(d)) {
+            out.write('0');
+            return;
+        }
+
+        long scale = POW10[precision];
+        fixed(Math.round(d * scale), scale, precision);
+    }
+
+    /**
+     * Writes a value scaled by <tt>10^precision</tt> as a decimal number, trimming trailing
+     * zeros.
+     */
+    void fixed(long value, long scale, int precision) throws IOException {
+        if (value < 0) {
+            out.write('-');
+            value = -value;
+        }
+
+        long ip = value / scale;
+        long fp = value % scale;
+
+        int n = digits.length;
+        do {
+            digits[--n] = (char) ('0' + (ip % 10));
+            ip /= 10;
+        }
+        while (ip > 0);
+        out.write(digits, n, digits.length - n);
+
+        if (fp != 0) {
+            // fractional digits, left padded with zeros and trailing zeros trimmed
+            int len = precision;
+            while (fp % 10 == 0) {
+                fp /= 10;
+                len--;
+            }
+
+            n = digits.length;
+            for (int i = 0; i < len; i++) {
+                digits[--n] = (char) ('0' + (fp % 10));
+                fp /= 10;
+            }
+            out.write('.');
+            out.write(digits, n, len);
+        }
+    }
+}
@@ -19,6 +19,8 @@ import org.junit.Test;
 import org.junit.rules.TestName;
 
 import static io.jeo.map.CartoCSS.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class SVGRendererTest {
 
@@ -104,6 +106,52 @@ public class SVGRendererTest {
         r.render(output);
     }
 
+    @Test
+    public void pointsShareMarker() throws IOException {
+        Style s = Style.build().select("*")
+            .set(MARKER_FILL, "green")
+            .set(MARKER_WIDTH, 10)
+            .style();
+
+        Bounds bbox = TestData.point().bounds().scale(1.5);
+        View v = Map.build().layer(TestData.point()).style(s).bounds(bbox).size(256,256).view();
+        r.init(v, null);
+        r.render(output);
+
+        String svg = output.toString("UTF-8");
+        assertEquals(1, count(svg, "<circle"));
+        assertTrue(count(svg, "<use") > 0);
+
+        // a single document level definition block
+        assertEquals(1, count(svg, "<defs"));
+        assertTrue(svg.indexOf("<defs") > svg.lastIndexOf("<use"));
+        assertEquals(0, count(svg, "<g"));
+    }
+
+    @Test
+    public void polygonsShareGroup() throws IOException {
+        Style s = Style.build().select("*")
+           .set(POLYGON_FILL, RGB.gray)
+           .style();
+
+        View v = Map.build().layer(TestData.states()).style(s).view();
+        r.init(v, null);
+        r.render(output);
+
+        String svg = output.toString("UTF-8");
+        assertEquals(1, count(svg, "<g"));
+        assertEquals(1, count(svg, "fill="));
+        assertTrue(count(svg, "<path") > 1);
+    }
+
+    int count(String str, String token) {
+        int count = 0;
+        for (int i = str.indexOf(token); i != -1; i = str.indexOf(token, i + 1)) {
+            count++;
+        }
+        return count;
+    }
+
     //uncomment to write out resulting svg to home directory
     //@After
     public void debugOutput() throws IOException {
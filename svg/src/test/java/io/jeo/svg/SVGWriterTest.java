@@ -0,0 +1,102 @@
+/* Copyright 2014 The jeo project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jeo.svg;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import io.jeo.geom.CoordinatePath;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SVGWriterTest {
+
+    GeometryFactory gf = new GeometryFactory();
+
+    SVGWriter w;
+    StringWriter out;
+
+    @Before
+    public void setUp() {
+        out = new StringWriter();
+        w = new SVGWriter();
+        w.out = out;
+    }
+
+    @Test
+    public void testNumber() throws IOException {
+        w.precision(3);
+        w.number(1.25);
+        out.write(',');
+        w.number(3.0);
+        out.write(',');
+        w.number(0.001);
+        out.write(',');
+        w.number(-12.5);
+        assertEquals("1.25,3,0.001,-12.5", out.toString());
+    }
+
+    @Test
+    public void testNumberRounds() throws IOException {
+        w.precision(1);
+        w.number(0.07);
+        out.write(',');
+        w.number(-0.04);
+        assertEquals("0.1,0", out.toString());
+    }
+
+    @Test
+    public void testPathData() throws IOException {
+        w.precision(1);
+        w.pathData(CoordinatePath.create(gf.createLineString(new Coordinate[]{
+            new Coordinate(0, 0), new Coordinate(1.04, 0), new Coordinate(1.02, 0),
+            new Coordinate(3, 2.56)
+        })));
+        assertEquals("m0 0 1 0 2 2.6", out.toString());
+    }
+
+    @Test
+    public void testPathDataClosed() throws IOException {
+        w.precision(0);
+        w.pathData(CoordinatePath.create(gf.createPolygon(gf.createLinearRing(new Coordinate[]{
+            new Coordinate(0, 0), new Coordinate(0, 10), new Coordinate(10, 10),
+            new Coordinate(10, 0), new Coordinate(0, 0)
+        }), null)));
+
+        String d = out.toString();
+        assertTrue(d, d.startsWith("m0 0 0 10 10 0 0 -10"));
+        assertTrue(d, d.endsWith("z"));
+    }
+
+    @Test
+    public void testAttributePrecision() throws IOException {
+        w.precision(0);
+        w.emptyElement("use", "x", 10.4, "y", 2.6, "fill-opacity", 0.3f, "stroke-width", 0.25f);
+        assertEquals(
+            "<use x=\"10\" y=\"3\" fill-opacity=\"0.3\" stroke-width=\"0.25\"/>", out.toString());
+    }
+
+    @Test
+    public void testEscape() throws IOException {
+        w.emptyElement("text", "title", "a<b & \"c\"");
+        assertEquals("<text title=\"a&lt;b &amp; &quot;c&quot;\"/>", out.toString());
+    }
+}